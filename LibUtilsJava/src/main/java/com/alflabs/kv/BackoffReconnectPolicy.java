@@ -0,0 +1,92 @@
+/*
+ * Project: Lib Utils
+ * Copyright (C) 2017 alf.labs gmail com,
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.alflabs.kv;
+
+import com.alflabs.annotations.NonNull;
+
+import java.util.Random;
+
+/**
+ * The default {@link KeyValueClient.IReconnectPolicy}: exponential backoff with full jitter.
+ * <p/>
+ * The delay before a connection attempt is a random value between zero and the base delay
+ * doubled for each consecutive failure, capped to a maximum. Picking the whole delay at random
+ * ("full jitter") rather than adding a small random part to it spreads the reconnections of
+ * many clients which lost the same server at the same time, instead of having them retry in
+ * lockstep. The resync delay is likewise a random value within a window.
+ * <p/>
+ * The random generator is thread-safe, so a policy can be shared by several clients.
+ */
+public class BackoffReconnectPolicy implements KeyValueClient.IReconnectPolicy {
+    /** Default maximum delay of the first attempt after losing a connection. */
+    public static final long DEFAULT_BASE_MS = 100;
+    /** Default cap of the retry delays. */
+    public static final long DEFAULT_MAX_MS = 10000;
+    /** Default window over which resyncs are spread. */
+    public static final long DEFAULT_RESYNC_WINDOW_MS = 1000;
+
+    private final long mBaseMs;
+    private final long mMaxMs;
+    private final long mResyncWindowMs;
+    @NonNull private final Random mRandom;
+
+    public BackoffReconnectPolicy() {
+        this(DEFAULT_BASE_MS, DEFAULT_MAX_MS, DEFAULT_RESYNC_WINDOW_MS);
+    }
+
+    /**
+     * @param baseMs The maximum delay of the first attempt after losing a connection.
+     * @param maxMs The cap of the retry delays.
+     * @param resyncWindowMs The window over which resyncs are spread. Zero to resync right away.
+     */
+    public BackoffReconnectPolicy(long baseMs, long maxMs, long resyncWindowMs) {
+        this(baseMs, maxMs, resyncWindowMs, new Random());
+    }
+
+    BackoffReconnectPolicy(long baseMs, long maxMs, long resyncWindowMs, @NonNull Random random) {
+        mBaseMs = Math.max(1, baseMs);
+        mMaxMs = Math.max(mBaseMs, maxMs);
+        mResyncWindowMs = Math.max(0, resyncWindowMs);
+        mRandom = random;
+    }
+
+    /** Returns the upper bound of the retry delay after that many consecutive failures. */
+    public long getMaxRetryDelayMs(int failures) {
+        // Shifting by 62 or more would overflow; the cap is reached long before anyway.
+        int shift = Math.min(Math.max(0, failures), 62 - (63 - Long.numberOfLeadingZeros(mBaseMs)));
+        return Math.min(mMaxMs, mBaseMs << shift);
+    }
+
+    @Override
+    public long getRetryDelayMs(int failures) {
+        return random(getMaxRetryDelayMs(failures));
+    }
+
+    @Override
+    public long getResyncDelayMs() {
+        return random(mResyncWindowMs);
+    }
+
+    /** Returns a random value between zero and max, inclusive. */
+    private long random(long max) {
+        if (max <= 0) return 0;
+        // The bias of the modulo is negligible for delays far below 2^63 ms.
+        return (mRandom.nextLong() & Long.MAX_VALUE) % (max + 1);
+    }
+}
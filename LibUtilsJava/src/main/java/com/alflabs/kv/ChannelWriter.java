@@ -0,0 +1,136 @@
+/*
+ * Project: Lib Utils
+ * Copyright (C) 2017 alf.labs gmail com,
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.alflabs.kv;
+
+import com.alflabs.annotations.NonNull;
+import com.alflabs.annotations.Null;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Writes the queued frames of one connection to a non-blocking channel, compressed if negotiated.
+ * <p/>
+ * Frames are polled from a {@link IFrameSource} and moved into an output buffer, which is written
+ * as much as the channel accepts. A large frame which doesn't fit in the buffer is written after
+ * it from a separate buffer. This is used on the loop threads of the selector-based engines and is
+ * not thread-safe.
+ */
+class ChannelWriter {
+    private static final int BUFFER_SIZE = 8192;
+
+    /** The frames to write and the metrics of what has been written. */
+    interface IFrameSource {
+        /** Returns the next encoded frame to write or null if there is none. Does not block. */
+        @Null
+        byte[] pollFrame();
+
+        /** Invoked once a polled frame has been moved to the output buffer. */
+        void onFrameWritten(@NonNull byte[] frame, long nowNanos);
+
+        /** Invoked with the number of bytes actually written to the channel. */
+        void onBytesWritten(int count);
+    }
+
+    @NonNull private final SocketChannel mChannel;
+    @NonNull private final IFrameSource mSource;
+    @NonNull private final FrameCompressor mCompressor;
+    private final ByteBuffer mOutBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    /** Pending bytes which did not fit in {@link #mOutBuffer}, written after it. */
+    private ByteBuffer mLargeOut;
+    private ByteArrayOutputStream mOverflow = new ByteArrayOutputStream();
+    /** Writes in the output buffer till some bytes don't fit, then in the overflow. */
+    private final OutputStream mOutStream = new OutputStream() {
+        @Override
+        public void write(int b) {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) {
+            if (mOverflow.size() == 0 && len <= mOutBuffer.remaining()) {
+                mOutBuffer.put(b, off, len);
+            } else {
+                mOverflow.write(b, off, len);
+            }
+        }
+    };
+
+    public ChannelWriter(@NonNull SocketChannel channel, @NonNull IFrameSource source, int compressionThreshold) {
+        mChannel = channel;
+        mSource = source;
+        mCompressor = new FrameCompressor(compressionThreshold);
+        mOutBuffer.flip(); // start empty, ready to be drained
+    }
+
+    /**
+     * Writes as much of the queued frames as the channel accepts without blocking.
+     * Returns true if all the frames were written, false if the channel is full.
+     */
+    public boolean write() throws IOException {
+        while (true) {
+            if (!writePending()) return false;
+            if (!fillOutBuffer()) return true;
+        }
+    }
+
+    /** Writes pending bytes. Returns true if everything pending could be written. */
+    private boolean writePending() throws IOException {
+        // The overflow, if any, was written after the bytes already in the output buffer.
+        if (mOutBuffer.hasRemaining()) {
+            mSource.onBytesWritten(mChannel.write(mOutBuffer));
+            if (mOutBuffer.hasRemaining()) return false;
+        }
+        if (mLargeOut != null) {
+            mSource.onBytesWritten(mChannel.write(mLargeOut));
+            if (mLargeOut.hasRemaining()) return false;
+            mLargeOut = null;
+        }
+        return true;
+    }
+
+    /** Moves queued frames in the output buffer. Returns false if there was nothing to write. */
+    private boolean fillOutBuffer() throws IOException {
+        mOutBuffer.clear();
+        byte[] frame;
+        long now = System.nanoTime();
+        while (mOverflow.size() == 0 && (frame = mSource.pollFrame()) != null) {
+            mCompressor.write(mOutStream, frame);
+            // The socket write of the buffer follows right away, unless the socket is full.
+            mSource.onFrameWritten(frame, now);
+            if (!mOutBuffer.hasRemaining()) break;
+        }
+        mCompressor.flush(mOutStream);
+        if (mOverflow.size() > 0) {
+            mLargeOut = ByteBuffer.wrap(mOverflow.toByteArray());
+            // Don't keep the buffer of a large frame for the lifetime of the connection.
+            mOverflow = new ByteArrayOutputStream();
+        }
+        mOutBuffer.flip();
+        return mOutBuffer.hasRemaining() || mLargeOut != null;
+    }
+
+    /** Releases the compressor. Pending bytes are discarded. */
+    public void close() {
+        mCompressor.close();
+    }
+}
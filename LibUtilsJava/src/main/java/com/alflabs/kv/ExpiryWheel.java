@@ -0,0 +1,153 @@
+/*
+ * Project: Lib Utils
+ * Copyright (C) 2017 alf.labs gmail com,
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.alflabs.kv;
+
+import com.alflabs.annotations.NonNull;
+import com.alflabs.annotations.Null;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A hashed timer wheel of key deadlines.
+ * <p/>
+ * Time is divided in ticks and the wheel has a power-of-two number of slots. A key expiring at a
+ * given tick is linked in the slot of that tick modulo the number of slots, so scheduling and
+ * cancelling are O(1). Advancing the wheel by one tick only visits the keys of one slot, which
+ * are the keys expiring at that tick plus the keys expiring one or more turns of the wheel later.
+ * The cost of a tick thus does not depend on the total number of keys.
+ * <p/>
+ * Deadlines are absolute times in milliseconds given by the caller, typically from an
+ * {@link com.alflabs.utils.IClock}. This is not thread-safe: callers synchronize.
+ */
+final class ExpiryWheel {
+
+    private static final class Entry {
+        @NonNull final String mKey;
+        final long mTick;
+        @Null Entry mPrev;
+        @Null Entry mNext;
+
+        Entry(@NonNull String key, long tick) {
+            mKey = key;
+            mTick = tick;
+        }
+    }
+
+    private final long mTickMs;
+    private final int mMask;
+    private final Entry[] mSlots;
+    private final Map<String, Entry> mEntries = new HashMap<>();
+    /** The last tick processed by {@link #advance}. */
+    private long mCurrentTick;
+
+    /**
+     * Creates a new wheel.
+     *
+     * @param tickMs The duration of a tick. Keys expire at the end of the tick of their deadline.
+     * @param numSlots The number of slots, rounded up to a power of two.
+     * @param nowMs The current time.
+     */
+    public ExpiryWheel(long tickMs, int numSlots, long nowMs) {
+        mTickMs = Math.max(1, tickMs);
+        int size = Integer.highestOneBit(Math.max(1, numSlots - 1)) << 1;
+        mSlots = new Entry[size];
+        mMask = size - 1;
+        mCurrentTick = nowMs / mTickMs;
+    }
+
+    public long getTickMs() {
+        return mTickMs;
+    }
+
+    public int size() {
+        return mEntries.size();
+    }
+
+    /** Sets the deadline of the key, replacing any previous one. */
+    public void schedule(@NonNull String key, long deadlineMs) {
+        cancel(key);
+        // Rounded up so that a key never expires before its deadline.
+        long tick = Math.max((deadlineMs + mTickMs - 1) / mTickMs, mCurrentTick + 1);
+        Entry entry = new Entry(key, tick);
+        int slot = (int) (tick & mMask);
+        entry.mNext = mSlots[slot];
+        if (entry.mNext != null) {
+            entry.mNext.mPrev = entry;
+        }
+        mSlots[slot] = entry;
+        mEntries.put(key, entry);
+    }
+
+    /** Removes the deadline of the key. Returns false if it had none. */
+    public boolean cancel(@NonNull String key) {
+        Entry entry = mEntries.remove(key);
+        if (entry == null) return false;
+        unlink(entry);
+        return true;
+    }
+
+    /** Returns the deadline of the key, at the end of its tick, or -1 if it has none. */
+    public long getDeadline(@NonNull String key) {
+        Entry entry = mEntries.get(key);
+        return entry == null ? -1 : entry.mTick * mTickMs;
+    }
+
+    /**
+     * Advances the wheel to the given time and returns the keys which expired since the last call,
+     * removing their deadlines. When more than a full turn of the wheel elapsed, each slot is only
+     * visited once.
+     */
+    @NonNull
+    public List<String> advance(long nowMs) {
+        long nowTick = nowMs / mTickMs;
+        List<String> expired = new ArrayList<>();
+        if (nowTick <= mCurrentTick) return expired;
+        long first = Math.max(mCurrentTick + 1, nowTick - mMask);
+        for (long tick = first; tick <= nowTick; tick++) {
+            Entry entry = mSlots[(int) (tick & mMask)];
+            while (entry != null) {
+                Entry next = entry.mNext;
+                if (entry.mTick <= nowTick) {
+                    unlink(entry);
+                    mEntries.remove(entry.mKey);
+                    expired.add(entry.mKey);
+                }
+                entry = next;
+            }
+        }
+        mCurrentTick = nowTick;
+        return expired;
+    }
+
+    private void unlink(@NonNull Entry entry) {
+        if (entry.mPrev != null) {
+            entry.mPrev.mNext = entry.mNext;
+        } else {
+            mSlots[(int) (entry.mTick & mMask)] = entry.mNext;
+        }
+        if (entry.mNext != null) {
+            entry.mNext.mPrev = entry.mPrev;
+        }
+        entry.mPrev = null;
+        entry.mNext = null;
+    }
+}
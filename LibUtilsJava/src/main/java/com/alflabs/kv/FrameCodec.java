@@ -0,0 +1,432 @@
+/*
+ * Project: Lib Utils
+ * Copyright (C) 2017 alf.labs gmail com,
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.alflabs.kv;
+
+import com.alflabs.annotations.NonNull;
+import com.alflabs.annotations.Null;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Encodes the frames sent on the network by {@link KeyValueProtocol}.
+ * <p/>
+ * Text frames are UTF-8 lines terminated by a single LF. <br/>
+ * Binary frames are: <br/>
+ * - 1 byte: the opcode, which is the same ASCII letter as the text command (W, R, P, Q, V, S, F, B, T). <br/>
+ * - varint: the length in bytes of the key, followed by the UTF-8 key bytes. <br/>
+ * - varint: the length in bytes of the value, followed by the UTF-8 value bytes. <br/>
+ * Varints are unsigned LEB128 (7 bits per byte, high bit set when more bytes follow).
+ * Keys and values are never trimmed and values can contain any character including EOLs.
+ * <p/>
+ * Keys must be valid in both framings, see {@link #isValidKey}: values with other keys are
+ * not encoded as text lines, and are ignored when received in binary frames.
+ * <p/>
+ * Binary frames are encoded with a single allocation of the exact frame size.
+ * <p/>
+ * Broadcast values are wrapped in a {@link SharedValue} so that their frames are encoded once
+ * and then shared by all the connections instead of being encoded again for each of them.
+ * <p/>
+ * A batch is a "B" command with the number of values as key, immediately followed by that many
+ * "W" commands. All of them are encoded in a single frame so that they are queued and written
+ * at once. See {@link SharedBatch}.
+ * <p/>
+ * Once compression is negotiated, the frames can be sent deflated in "Z" frames which have an
+ * empty key and the raw compressed bytes as value. See {@link FrameCompressor}.
+ */
+final class FrameCodec {
+
+    /** Frames larger than this are considered malformed and the connection is dropped. */
+    static final int MAX_FRAME_LENGTH = 1 << 24;
+
+    /** Opcode of the frames holding compressed frames. */
+    static final char OP_COMPRESSED = 'Z';
+
+    /**
+     * Queued by identity by a sender to start the compression of the frames which follow.
+     * It is never written: see {@link FrameCompressor}.
+     */
+    static final byte[] COMPRESS_MARKER = new byte[0];
+
+    private FrameCodec() {}
+
+    /** Encodes a text line, adding the LF terminator. */
+    @NonNull
+    public static byte[] encodeLine(@NonNull String line) {
+        int len = utf8Length(line);
+        byte[] frame = new byte[len + 1];
+        writeUtf8(line, frame, 0);
+        frame[len] = '\n';
+        return frame;
+    }
+
+    /**
+     * Returns true if the key can be sent in a text line: it is not empty, does not start nor end
+     * with a space, and contains neither ':' nor EOLs.
+     */
+    public static boolean isValidKey(@NonNull String key) {
+        int n = key.length();
+        if (n == 0 || key.charAt(0) <= ' ' || key.charAt(n - 1) <= ' ') return false;
+        for (int i = 0; i < n; i++) {
+            char c = key.charAt(i);
+            if (c == ':' || c == '\n' || c == '\r') return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the text line of a value, without its EOL. EOLs in the value are replaced by spaces.
+     * Returns null if the key is not valid, see {@link #isValidKey}.
+     */
+    @Null
+    public static String valueLine(@NonNull String key, @NonNull String value) {
+        if (!isValidKey(key)) return null;
+        if (value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0) {
+            value = value.replace('\n', ' ').replace('\r', ' ');
+        }
+        return "W" + key + ":" + value;
+    }
+
+    /** Encodes a binary frame. */
+    @NonNull
+    public static byte[] encodeFrame(char op, @NonNull String key, @NonNull String value) {
+        int keyLen = utf8Length(key);
+        int valueLen = utf8Length(value);
+        byte[] frame = new byte[1 + varintLength(keyLen) + keyLen + varintLength(valueLen) + valueLen];
+        frame[0] = (byte) op;
+        int pos = writeVarint(keyLen, frame, 1);
+        pos = writeUtf8(key, frame, pos);
+        pos = writeVarint(valueLen, frame, pos);
+        writeUtf8(value, frame, pos);
+        return frame;
+    }
+
+    /** Encodes a "Z" frame with the given compressed bytes as value. */
+    @NonNull
+    public static byte[] encodeCompressedFrame(@NonNull byte[] data, int offset, int length) {
+        byte[] frame = new byte[2 + varintLength(length) + length];
+        frame[0] = (byte) OP_COMPRESSED;
+        frame[1] = 0; // empty key
+        int pos = writeVarint(length, frame, 2);
+        System.arraycopy(data, offset, frame, pos, length);
+        return frame;
+    }
+
+    /** Returns the text line equivalent to a decoded binary frame, without its EOL. */
+    @NonNull
+    public static String toLine(char op, @NonNull String key, @NonNull String value) {
+        switch (op) {
+            case 'R':
+            case 'S':
+            case 'F':
+            case 'B':
+                return op + key;
+            case 'P':
+                return "P" + key + value;
+            case 'Q':
+                return "Q";
+            default:
+                return op + key + ":" + value;
+        }
+    }
+
+    /**
+     * Decodes a single encoded binary frame and returns its text line equivalent, without its EOL.
+     * Returns null if the frame is malformed.
+     */
+    @Null
+    public static String binaryToLine(@NonNull byte[] frame) {
+        if (frame.length < 3) return null;
+        int[] pos = { 1 };
+        int keyLen = readVarint(frame, pos, frame.length);
+        if (keyLen < 0 || pos[0] + keyLen > frame.length) return null;
+        String key = new String(frame, pos[0], keyLen, StandardCharsets.UTF_8);
+        pos[0] += keyLen;
+        int valueLen = readVarint(frame, pos, frame.length);
+        if (valueLen < 0 || pos[0] + valueLen != frame.length) return null;
+        String value = new String(frame, pos[0], valueLen, StandardCharsets.UTF_8);
+        return toLine((char) frame[0], key, value);
+    }
+
+    /**
+     * Converts the encoded binary frames of a single command to the equivalent text lines,
+     * separated by LF and without the final EOL. The frames are either a single frame or a batch
+     * as encoded by {@link #encodeBatchFrame}. Values are converted by {@link #valueLine} and
+     * {@link #batchLines}, which replace their EOLs and leave out the keys which are not valid.
+     * Returns null if the frames are malformed or if nothing is left to send.
+     */
+    @Null
+    public static String binaryToText(@NonNull byte[] frames) {
+        int[] pos = { 0 };
+        Map<String, String> batch = null;
+        String line = null;
+        while (pos[0] < frames.length) {
+            char op = (char) (frames[pos[0]++] & 0xFF);
+            int keyLen = readVarint(frames, pos, frames.length);
+            if (keyLen < 0 || pos[0] + keyLen > frames.length) return null;
+            String key = new String(frames, pos[0], keyLen, StandardCharsets.UTF_8);
+            pos[0] += keyLen;
+            int valueLen = readVarint(frames, pos, frames.length);
+            if (valueLen < 0 || pos[0] + valueLen > frames.length) return null;
+            String value = new String(frames, pos[0], valueLen, StandardCharsets.UTF_8);
+            pos[0] += valueLen;
+
+            if (batch != null) {
+                if (op != 'W') return null;
+                batch.put(key, value);
+            } else if (op == 'B' && pos[0] < frames.length) {
+                batch = new LinkedHashMap<>();
+            } else if (pos[0] < frames.length) {
+                // Only batches are encoded as several frames.
+                return null;
+            } else if (op == 'W') {
+                line = valueLine(key, value);
+            } else if ((op == 'R' || op == 'T') && !isValidKey(key)) {
+                line = null;
+            } else {
+                line = toLine(op, key, value);
+            }
+        }
+        return batch != null ? batchLines(batch) : line;
+    }
+
+    /**
+     * A value to be sent to many connections. Its text and binary frames are each encoded at most
+     * once, when first needed, and then shared. Frames must not be modified.
+     * This is thread-safe.
+     */
+    static final class SharedValue {
+        @NonNull private final String mKey;
+        @NonNull private final String mValue;
+        private volatile byte[] mTextFrame;
+        private volatile byte[] mBinaryFrame;
+
+        public SharedValue(@NonNull String key, @NonNull String value) {
+            mKey = key;
+            mValue = value;
+        }
+
+        @NonNull
+        public String getKey() {
+            return mKey;
+        }
+
+        @NonNull
+        public String getValue() {
+            return mValue;
+        }
+
+        /** Returns the encoded text line of the value, including its EOL, or null if the key is not valid. */
+        @Null
+        public byte[] getTextFrame() {
+            byte[] frame = mTextFrame;
+            if (frame == null) {
+                String line = valueLine(mKey, mValue);
+                if (line == null) return null;
+                // Racing threads may encode it twice, which is harmless.
+                mTextFrame = frame = encodeLine(line);
+            }
+            return frame;
+        }
+
+        /** Returns the encoded binary frame of the value. */
+        @NonNull
+        public byte[] getBinaryFrame() {
+            byte[] frame = mBinaryFrame;
+            if (frame == null) {
+                mBinaryFrame = frame = encodeFrame('W', mKey, mValue);
+            }
+            return frame;
+        }
+    }
+
+    /**
+     * Returns the text lines of a batch of values, separated by LF and without the final EOL.
+     * EOLs in the values are replaced by spaces. Values with keys which are not valid are left out,
+     * and null is returned if none is left.
+     */
+    @Null
+    public static String batchLines(@NonNull Map<String, String> values) {
+        StringBuilder sb = new StringBuilder();
+        int count = 0;
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            String line = valueLine(entry.getKey(), entry.getValue());
+            if (line != null) {
+                sb.append('\n').append(line);
+                count++;
+            }
+        }
+        if (count == 0) return null;
+        return "B" + count + sb;
+    }
+
+    /** Encodes the binary frames of a batch of values in a single array. */
+    @NonNull
+    public static byte[] encodeBatchFrame(@NonNull Map<String, String> values) {
+        byte[][] frames = new byte[values.size() + 1][];
+        frames[0] = encodeFrame('B', Integer.toString(values.size()), "");
+        int len = frames[0].length;
+        int n = 1;
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            frames[n] = encodeFrame('W', entry.getKey(), entry.getValue());
+            len += frames[n++].length;
+        }
+        byte[] batch = new byte[len];
+        int pos = 0;
+        for (byte[] frame : frames) {
+            System.arraycopy(frame, 0, batch, pos, frame.length);
+            pos += frame.length;
+        }
+        return batch;
+    }
+
+    /**
+     * A batch of values to be sent to many connections, like {@link SharedValue}.
+     * Values must not be null and the map must not be modified. This is thread-safe.
+     */
+    static final class SharedBatch {
+        @NonNull private final Map<String, String> mValues;
+        private volatile byte[] mTextFrame;
+        private volatile byte[] mBinaryFrame;
+
+        public SharedBatch(@NonNull Map<String, String> values) {
+            mValues = values;
+        }
+
+        @NonNull
+        public Map<String, String> getValues() {
+            return mValues;
+        }
+
+        /** Returns the encoded text lines of the batch, including the final EOL, or null if no key is valid. */
+        @Null
+        public byte[] getTextFrame() {
+            byte[] frame = mTextFrame;
+            if (frame == null) {
+                String lines = batchLines(mValues);
+                if (lines == null) return null;
+                mTextFrame = frame = encodeLine(lines);
+            }
+            return frame;
+        }
+
+        /** Returns the encoded binary frames of the batch. */
+        @NonNull
+        public byte[] getBinaryFrame() {
+            byte[] frame = mBinaryFrame;
+            if (frame == null) {
+                mBinaryFrame = frame = encodeBatchFrame(mValues);
+            }
+            return frame;
+        }
+    }
+
+    /**
+     * Reads an unsigned varint at pos[0], not reading past end.
+     * Updates pos[0] and returns the value, or -1 if more bytes are needed, or -2 if malformed.
+     */
+    static int readVarint(@NonNull byte[] buf, @NonNull int[] pos, int end) {
+        int value = 0;
+        int p = pos[0];
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (p >= end) return -1;
+            int b = buf[p++];
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0 || value > MAX_FRAME_LENGTH) return -2;
+                pos[0] = p;
+                return value;
+            }
+        }
+        return -2;
+    }
+
+    static int varintLength(int value) {
+        int len = 1;
+        while ((value >>>= 7) != 0) {
+            len++;
+        }
+        return len;
+    }
+
+    static int writeVarint(int value, @NonNull byte[] dst, int pos) {
+        while ((value & ~0x7F) != 0) {
+            dst[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        dst[pos++] = (byte) value;
+        return pos;
+    }
+
+    /** Returns the number of bytes needed to encode the string in UTF-8. */
+    static int utf8Length(@NonNull String s) {
+        int n = s.length();
+        int len = n;
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                if (c < 0x800) {
+                    len += 1;
+                } else if (!Character.isSurrogate(c)) {
+                    len += 2;
+                } else if (Character.isHighSurrogate(c)
+                        && i + 1 < n
+                        && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    len += 2; // 4 bytes for 2 chars
+                    i++;
+                }
+                // Unpaired surrogates are encoded as a single '?'.
+            }
+        }
+        return len;
+    }
+
+    /**
+     * Encodes the string in UTF-8 at dst[pos]. Unpaired surrogates are encoded as '?' like
+     * {@link String#getBytes} does. Returns the position after the last written byte.
+     */
+    static int writeUtf8(@NonNull String s, @NonNull byte[] dst, int pos) {
+        int n = s.length();
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                dst[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                dst[pos++] = (byte) (0xC0 | (c >> 6));
+                dst[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    dst[pos++] = (byte) (0xF0 | (cp >> 18));
+                    dst[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                    dst[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                    dst[pos++] = (byte) (0x80 | (cp & 0x3F));
+                } else {
+                    dst[pos++] = '?';
+                }
+            } else {
+                dst[pos++] = (byte) (0xE0 | (c >> 12));
+                dst[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                dst[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return pos;
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Project: Lib Utils
+ * Copyright (C) 2017 alf.labs gmail com,
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.alflabs.kv;
+
+import com.alflabs.annotations.NonNull;
+import com.alflabs.annotations.Null;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses the frames written on one connection once the compression has been negotiated.
+ * <p/>
+ * Frames are written as-is till the writer sees the {@link FrameCodec#COMPRESS_MARKER} queued
+ * by the sender after its Accept line. After that, frames are accumulated and compressed when
+ * flushed, which writers do once their queue is drained. A single deflate stream is used for the
+ * whole connection and each flush ends with a sync-flush, so that the other side can inflate all
+ * the frames received so far. The compressed bytes are sent in "Z" binary frames, see
+ * {@link FrameCodec#encodeCompressedFrame}.
+ * <p/>
+ * Compressing small frames is not worth it: when less than the threshold bytes are pending
+ * on flush, they are written uncompressed.
+ * <p/>
+ * Compression happens when frames are written rather than when they are queued, so that a queue
+ * dropping or conflating frames can never break the deflate stream.
+ * This is not thread-safe: a single writer is expected to use the compressor.
+ */
+class FrameCompressor {
+    /** Default minimum number of bytes worth compressing. */
+    static final int DEFAULT_THRESHOLD = 256;
+    /** Pending frames are compressed once they reach this size, even without a flush. */
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final int mThreshold;
+    @Null private Deflater mDeflater;
+    private byte[] mPending = new byte[256];
+    private int mPendingLength;
+    private byte[] mOut;
+
+    /** @param threshold The minimum number of pending bytes to compress on flush. */
+    public FrameCompressor(int threshold) {
+        mThreshold = threshold;
+    }
+
+    /** True once the compression marker has been written. */
+    public boolean isEnabled() {
+        return mDeflater != null;
+    }
+
+    /**
+     * Writes a frame polled from an outbound queue, or accumulates it once compressing.
+     *
+     * @return The number of bytes written to the stream.
+     */
+    public int write(@NonNull OutputStream out, @NonNull byte[] frame) throws IOException {
+        if (frame == FrameCodec.COMPRESS_MARKER) {
+            if (mDeflater == null) {
+                mDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true /*nowrap*/);
+            }
+            return 0;
+        }
+        if (mDeflater == null) {
+            out.write(frame);
+            return frame.length;
+        }
+        int needed = mPendingLength + frame.length;
+        if (needed > mPending.length) {
+            mPending = Arrays.copyOf(mPending, Math.max(mPending.length * 2, needed));
+        }
+        System.arraycopy(frame, 0, mPending, mPendingLength, frame.length);
+        mPendingLength = needed;
+        return mPendingLength >= CHUNK_SIZE ? flush(out) : 0;
+    }
+
+    /**
+     * Writes the accumulated frames, compressed if they are larger than the threshold.
+     *
+     * @return The number of bytes written to the stream.
+     */
+    public int flush(@NonNull OutputStream out) throws IOException {
+        if (mPendingLength == 0) return 0;
+        int length = mPendingLength;
+        mPendingLength = 0;
+        if (length < mThreshold) {
+            out.write(mPending, 0, length);
+            return length;
+        }
+
+        assert mDeflater != null;
+        if (mOut == null) {
+            mOut = new byte[CHUNK_SIZE];
+        }
+        int written = 0;
+        mDeflater.setInput(mPending, 0, length);
+        while (true) {
+            int n = mDeflater.deflate(mOut, 0, mOut.length, Deflater.SYNC_FLUSH);
+            if (n > 0) {
+                byte[] frame = FrameCodec.encodeCompressedFrame(mOut, 0, n);
+                out.write(frame);
+                written += frame.length;
+            }
+            // A sync-flush is complete once the output buffer is not entirely filled.
+            if (n < mOut.length && mDeflater.needsInput()) break;
+        }
+        if (mPending.length > 4 * CHUNK_SIZE) {
+            // Don't keep the buffer of a large frame for the lifetime of the connection.
+            mPending = new byte[256];
+        }
+        return written;
+    }
+
+    /** Releases the deflater. Pending frames are discarded. */
+    public void close() {
+        mPendingLength = 0;
+        if (mDeflater != null) {
+            mDeflater.end();
+            mDeflater = null;
+        }
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Project: Lib Utils
+ * Copyright (C) 2017 alf.labs gmail com,
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.alflabs.kv;
+
+import com.alflabs.annotations.NonNull;
+import com.alflabs.utils.ILogger;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decodes the frames received on one connection and gives them to the {@link KeyValueProtocol}.
+ * <p/>
+ * This is push-based: the connection feeds the bytes as they are read from the network and the
+ * decoder keeps any partial frame till the next call. It's used both by blocking readers and by
+ * the selector loops.
+ * <p/>
+ * The decoder starts in text mode and switches to binary frames when the {@link KeyValueProtocol.Sender}
+ * of the connection has negotiated binary inbound frames. The check is done before each frame, so the
+ * switch happens exactly after the text line which ends the negotiation.
+ * <p/>
+ * Text lines end with "\n", "\r" or "\r\n", like with {@link java.io.BufferedReader#readLine()}.
+ * <p/>
+ * Once compression has been negotiated too, "Z" frames are inflated with a single inflater for the
+ * whole connection and the frames they contain are decoded by an inner decoder, which keeps any
+ * partial frame spanning several "Z" frames.
+ * <p/>
+ * This is not thread-safe: a single reader is expected to feed the decoder.
+ */
+class FrameDecoder {
+    private static final String TAG = FrameDecoder.class.getSimpleName();
+    private static final boolean DEBUG = false;
+    private static final boolean DEBUG_VERBOSE = false;
+
+    @NonNull private final ILogger mLogger;
+    @NonNull private final KeyValueProtocol mProtocol;
+    @NonNull private final KeyValueProtocol.Sender mSender;
+    /** Pending bytes of a partial frame which spans several reads. */
+    private byte[] mPending = new byte[256];
+    private int mPendingLength;
+    /** True when the last text line ended with '\r', in which case a following '\n' is skipped. */
+    private boolean mSkipLF;
+    private final int[] mPos = new int[1];
+    /** Inflater and decoder of the compressed frames, created on the first "Z" frame. */
+    private Inflater mInflater;
+    private FrameDecoder mInflated;
+    private byte[] mInflateBuffer;
+
+    public FrameDecoder(
+            @NonNull ILogger logger,
+            @NonNull KeyValueProtocol protocol,
+            @NonNull KeyValueProtocol.Sender sender) {
+        mLogger = logger;
+        mProtocol = protocol;
+        mSender = sender;
+    }
+
+    /**
+     * Decodes the given bytes and processes all complete frames.
+     *
+     * @throws KeyValueProtocol.QCloseRequestException when a frame requested the connection to be closed.
+     * @throws IOException when a frame is malformed or too large, in which case the connection should be closed.
+     */
+    public void feed(@NonNull byte[] buf, int offset, int length) throws IOException {
+        byte[] data = buf;
+        int start = offset;
+        int end = offset + length;
+        if (mPendingLength > 0) {
+            // Complete the pending partial frame. Everything is decoded from the pending buffer.
+            append(buf, offset, length);
+            data = mPending;
+            start = 0;
+            end = mPendingLength;
+        }
+
+        while (start < end) {
+            if (mSkipLF) {
+                mSkipLF = false;
+                if (data[start] == '\n') {
+                    start++;
+                    continue;
+                }
+            }
+            int next = mSender.isBinaryInbound()
+                    ? decodeFrame(data, start, end)
+                    : decodeLine(data, start, end);
+            if (next < 0) break;
+            start = next;
+        }
+
+        if (data == mPending) {
+            mPendingLength = end - start;
+            if (mPendingLength > 0 && start > 0) {
+                System.arraycopy(mPending, start, mPending, 0, mPendingLength);
+            }
+        } else if (start < end) {
+            append(data, start, end - start);
+        }
+    }
+
+    /** Releases the inflater, if any. */
+    public void close() {
+        if (mInflater != null) {
+            mInflater.end();
+            mInflater = null;
+        }
+    }
+
+    private void append(@NonNull byte[] buf, int offset, int length) throws IOException {
+        int needed = mPendingLength + length;
+        if (needed > FrameCodec.MAX_FRAME_LENGTH + 16) {
+            throw new IOException("Frame too long");
+        }
+        if (needed > mPending.length) {
+            mPending = Arrays.copyOf(mPending, Math.max(mPending.length * 2, needed));
+        }
+        System.arraycopy(buf, offset, mPending, mPendingLength, length);
+        mPendingLength = needed;
+    }
+
+    /** Decodes one text line. Returns the offset after the line or -1 if the line is incomplete. */
+    private int decodeLine(@NonNull byte[] data, int start, int end) throws IOException {
+        for (int i = start; i < end; i++) {
+            if (data[i] == '\n' || data[i] == '\r') {
+                mSkipLF = data[i] == '\r';
+                // The line is parsed in place, without decoding it as a whole.
+                if (DEBUG_VERBOSE) mLogger.d(TAG, "READ << " + new String(data, start, i - start, StandardCharsets.UTF_8).trim());
+                try {
+                    mProtocol.processLine(mSender, data, start, i);
+                } catch (KeyValueProtocol.QCloseRequestException e) {
+                    throw e;
+                } catch (Exception e) {
+                    if (DEBUG) mLogger.d(TAG, "Malformed line '" + new String(data, start, i - start, StandardCharsets.UTF_8) + "': " + e);
+                }
+                return i + 1;
+            }
+        }
+        if (end - start > FrameCodec.MAX_FRAME_LENGTH) {
+            throw new IOException("Line too long");
+        }
+        return -1;
+    }
+
+    /** Decodes one binary frame. Returns the offset after the frame or -1 if the frame is incomplete. */
+    private int decodeFrame(@NonNull byte[] data, int start, int end) throws IOException {
+        char op = (char) (data[start] & 0xFF);
+        mPos[0] = start + 1;
+        int keyLen = FrameCodec.readVarint(data, mPos, end);
+        if (keyLen == -1) return -1;
+        if (keyLen < 0) throw new IOException("Malformed frame");
+        int keyStart = mPos[0];
+        if (keyStart + keyLen >= end) return -1;
+        mPos[0] = keyStart + keyLen;
+        int valueLen = FrameCodec.readVarint(data, mPos, end);
+        if (valueLen == -1) return -1;
+        if (valueLen < 0) throw new IOException("Malformed frame");
+        int valueStart = mPos[0];
+        if (valueStart + valueLen > end) return -1;
+
+        if (op == FrameCodec.OP_COMPRESSED && mSender.isCompressedInbound()) {
+            inflate(data, valueStart, valueLen);
+            return valueStart + valueLen;
+        }
+
+        // Keys of writes, reads and TTLs are looked up in the key table without decoding them.
+        // Only the keys of writes are added to it. The key field of the other frames is not a key,
+        // e.g. a sync position.
+        String key;
+        if (op == 'W') {
+            key = mProtocol.getKeyTable().intern(data, keyStart, keyStart + keyLen);
+        } else if (op == 'R' || op == 'T') {
+            key = mProtocol.getKeyTable().lookup(data, keyStart, keyStart + keyLen);
+        } else {
+            key = new String(data, keyStart, keyLen, StandardCharsets.UTF_8);
+        }
+        String value = valueLen == 0 ? "" : new String(data, valueStart, valueLen, StandardCharsets.UTF_8);
+        if (DEBUG_VERBOSE) mLogger.d(TAG, "READ << " + op + " " + key + " " + value);
+        try {
+            mProtocol.processFrame(mSender, op, key, value);
+        } catch (KeyValueProtocol.QCloseRequestException e) {
+            throw e;
+        } catch (Exception e) {
+            if (DEBUG) mLogger.d(TAG, "Malformed frame '" + op + key + "': " + e);
+        }
+        return valueStart + valueLen;
+    }
+
+    /** Inflates the content of a "Z" frame and decodes the frames it contains. */
+    private void inflate(@NonNull byte[] data, int start, int length) throws IOException {
+        if (mInflater == null) {
+            mInflater = new Inflater(true /*nowrap*/);
+            mInflated = new FrameDecoder(mLogger, mProtocol, mSender);
+            mInflateBuffer = new byte[8192];
+        }
+        mInflater.setInput(data, start, length);
+        try {
+            // Inflate in chunks so that the inflated size never matters.
+            while (true) {
+                int n = mInflater.inflate(mInflateBuffer);
+                if (n > 0) {
+                    mInflated.feed(mInflateBuffer, 0, n);
+                } else if (mInflater.needsInput() || mInflater.finished()) {
+                    break;
+                } else if (mInflater.needsDictionary()) {
+                    throw new IOException("Malformed compressed frame");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Malformed compressed frame", e);
+        }
+    }
+}
@@ -22,6 +22,7 @@ import com.alflabs.annotations.NonNull;
 import com.alflabs.annotations.Null;
 import com.alflabs.rx.IStream;
 
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -51,4 +52,32 @@ public interface IKeyValue {
      * When broadcast is true, the server is notified if there's a change.
      */
     void putValue(@NonNull String key, @Null String value, boolean broadcast);
+
+    /**
+     * Sets the non-value for the given key with a time-to-live, after which the server removes
+     * the key and broadcasts its removal. Putting the key again with a TTL refreshes it.
+     * A TTL of zero or less cancels any TTL of the key.
+     * <p/>
+     * The default only supports cancelling the TTL, which it ignores.
+     */
+    default void putValue(@NonNull String key, @Null String value, boolean broadcast, long ttlMs) {
+        if (ttlMs > 0) {
+            throw new UnsupportedOperationException("TTL not supported");
+        }
+        putValue(key, value, broadcast);
+    }
+
+    /**
+     * Sets the non-values for the given keys.
+     * Null values remove the keys if they existed.
+     * When broadcast is true, the server is notified if there's a change.
+     * <p/>
+     * Implementations apply the values atomically and broadcast them as a single batch.
+     * The default applies them one by one.
+     */
+    default void putValues(@NonNull Map<String, String> values, boolean broadcast) {
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            putValue(entry.getKey(), entry.getValue(), broadcast);
+        }
+    }
 }
@@ -0,0 +1,186 @@
+/*
+ * Project: Lib Utils
+ * Copyright (C) 2017 alf.labs gmail com,
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.alflabs.kv;
+
+import com.alflabs.annotations.NonNull;
+import com.alflabs.annotations.Null;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A dictionary of the keys received from the network, giving each key a canonical string and a
+ * stable int id.
+ * <p/>
+ * Keys are looked up straight from the UTF-8 bytes of the read buffer: a key already in the table
+ * is returned without allocating nor decoding anything. All the copies of a key in the store, the
+ * change notifications and the outbound queues are then the same string instance, which computes
+ * its hash code once and compares by identity first.
+ * <p/>
+ * Only keys stored by writes are added with {@link #intern}. Keys which are merely read use
+ * {@link #lookup}, so that reading random keys never fills the table.
+ * <p/>
+ * Unlike {@link com.alflabs.serial.SerialKey}, ids are assigned sequentially so they never collide.
+ * Keys are never removed: once the table holds its maximum number of keys, new keys are simply
+ * decoded without being added, which bounds the memory used by clients writing many unique keys.
+ * <p/>
+ * Lookups of existing keys don't lock. Adding a key locks the table.
+ */
+final class KeyTable {
+    /** Default maximum number of keys. */
+    static final int DEFAULT_MAX_KEYS = 1 << 16;
+
+    private static final class Entry {
+        @NonNull final byte[] mUtf8;
+        @NonNull final String mKey;
+        final int mHash;
+        final int mId;
+
+        Entry(@NonNull byte[] utf8, @NonNull String key, int hash, int id) {
+            mUtf8 = utf8;
+            mKey = key;
+            mHash = hash;
+            mId = id;
+        }
+    }
+
+    private final int mMaxKeys;
+    /**
+     * Open-addressing hash table of the entries, with a power-of-two size, at most half full.
+     * Entries are immutable so readers can probe it without locking. Writers hold the table lock
+     * and replace the array when growing it.
+     */
+    private volatile Entry[] mSlots = new Entry[64];
+    /** Keys by id. Guarded by this. */
+    private String[] mKeys = new String[32];
+    /** Guarded by this. */
+    private int mSize;
+
+    /** @param maxKeys The maximum number of keys in the table. */
+    KeyTable(int maxKeys) {
+        mMaxKeys = maxKeys;
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns the canonical string of the key in the given UTF-8 bytes, adding it to the table if
+     * needed. Only allocates when the key is not in the table yet.
+     */
+    @NonNull
+    public String intern(@NonNull byte[] data, int start, int end) {
+        if (start == end) return "";
+        int hash = hash(data, start, end);
+        Entry entry = find(mSlots, data, start, end, hash);
+        if (entry != null) return entry.mKey;
+        return add(data, start, end, hash);
+    }
+
+    /**
+     * Returns the canonical string of the key in the given UTF-8 bytes if it is in the table,
+     * otherwise decodes it without adding it.
+     */
+    @NonNull
+    public String lookup(@NonNull byte[] data, int start, int end) {
+        if (start == end) return "";
+        Entry entry = find(mSlots, data, start, end, hash(data, start, end));
+        return entry != null ? entry.mKey : new String(data, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    /** Returns the id of the key in the given UTF-8 bytes, or -1 if it is not in the table. */
+    public int getId(@NonNull byte[] data, int start, int end) {
+        Entry entry = find(mSlots, data, start, end, hash(data, start, end));
+        return entry == null ? -1 : entry.mId;
+    }
+
+    /** Returns the key with the given id, or null if there is none. */
+    @Null
+    public synchronized String getKey(int id) {
+        return id >= 0 && id < mSize ? mKeys[id] : null;
+    }
+
+    @NonNull
+    private synchronized String add(@NonNull byte[] data, int start, int end, int hash) {
+        // Another thread may have added the key since the lookup.
+        Entry entry = find(mSlots, data, start, end, hash);
+        if (entry != null) return entry.mKey;
+        String key = new String(data, start, end - start, StandardCharsets.UTF_8);
+        if (mSize >= mMaxKeys) return key;
+
+        entry = new Entry(Arrays.copyOfRange(data, start, end), key, hash, mSize);
+        Entry[] slots = mSlots;
+        if (2 * (mSize + 1) > slots.length) {
+            Entry[] grown = new Entry[2 * slots.length];
+            for (Entry e : slots) {
+                if (e != null) insert(grown, e);
+            }
+            insert(grown, entry);
+            mSlots = grown;
+        } else {
+            insert(slots, entry);
+        }
+        if (mSize == mKeys.length) {
+            mKeys = Arrays.copyOf(mKeys, 2 * mKeys.length);
+        }
+        mKeys[mSize++] = key;
+        return key;
+    }
+
+    private static void insert(@NonNull Entry[] slots, @NonNull Entry entry) {
+        int mask = slots.length - 1;
+        int i = entry.mHash & mask;
+        while (slots[i] != null) {
+            i = (i + 1) & mask;
+        }
+        slots[i] = entry;
+    }
+
+    @Null
+    private static Entry find(@NonNull Entry[] slots, @NonNull byte[] data, int start, int end, int hash) {
+        int mask = slots.length - 1;
+        int i = hash & mask;
+        Entry entry;
+        while ((entry = slots[i]) != null) {
+            if (entry.mHash == hash && equals(entry.mUtf8, data, start, end)) {
+                return entry;
+            }
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    private static boolean equals(@NonNull byte[] utf8, @NonNull byte[] data, int start, int end) {
+        if (utf8.length != end - start) return false;
+        for (int i = 0; i < utf8.length; i++) {
+            if (utf8[i] != data[start + i]) return false;
+        }
+        return true;
+    }
+
+    private static int hash(@NonNull byte[] data, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + data[i];
+        }
+        // Spreads the high bits since only the low bits select a slot.
+        return hash ^ (hash >>> 16);
+    }
+}
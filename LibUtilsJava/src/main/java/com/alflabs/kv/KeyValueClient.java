@@ -20,24 +20,35 @@ package com.alflabs.kv;
 
 import com.alflabs.annotations.NonNull;
 import com.alflabs.annotations.Null;
+import com.alflabs.func.RConsumer;
 import com.alflabs.rx.IStream;
 import com.alflabs.utils.IClock;
 import com.alflabs.utils.ILogger;
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * A single {@link KeyValueProtocol} client.
@@ -55,6 +66,22 @@ public class KeyValueClient implements IConnection, IKeyValue {
     private static final boolean DEBUG = true;
     private static final boolean DEBUG_VERBOSE = false;
 
+    /** Heartbeat reply timeout used till enough round-trips have been measured. */
+    static final long DEFAULT_HB_TIMEOUT_MS = 5000;
+    /** Bounds of the adaptive heartbeat reply timeout. */
+    static final long MIN_HB_TIMEOUT_MS = 3000;
+    static final long MAX_HB_TIMEOUT_MS = 30000;
+    /** Number of heartbeat round-trips measured before the timeout adapts to them. */
+    private static final int HB_MIN_SAMPLES = 10;
+    /** Interval between heartbeats, which are only sent once the previous one got its reply. */
+    static final long HB_PERIOD_MS = 1000;
+    /** Timeout of each connection attempt. */
+    static final int CONNECT_TIMEOUT_MS = 1000;
+    /** How long {@link #startSync(boolean)} waits for the handshake once connected. */
+    static final long HANDSHAKE_TIMEOUT_MS = 60000;
+    /** Prefix of the ping values used as barriers, see {@link #sendBarrier}. Heartbeats use numbers. */
+    private static final String BARRIER_PING = "barrier";
+
     public interface IStatsListener {
         void addBandwidthTXBytes(int count);
 
@@ -67,16 +94,61 @@ public class KeyValueClient implements IConnection, IKeyValue {
         void HBLatencyReplyReceived();
     }
 
-    @NonNull private final Thread mSocketThread;
+    /**
+     * Decides when to reconnect and resync. Methods are invoked on the client's connection thread,
+     * or selector loop when driven by a {@link KeyValueClientGroup}.
+     * <p/>
+     * See {@link BackoffReconnectPolicy} for the default implementation.
+     */
+    public interface IReconnectPolicy {
+        /**
+         * Returns how long to wait before the next connection attempt.
+         *
+         * @param failures The number of consecutive failed attempts, or 0 after losing a connection.
+         */
+        long getRetryDelayMs(int failures);
+
+        /** Returns how long to wait once reconnected before asking the server for the values missed since. */
+        long getResyncDelayMs();
+    }
+
+    /** The thread of the thread-based engine, or null when driven by a {@link KeyValueClientGroup}. */
+    @Null private final Thread mSocketThread;
+    @Null private final KeyValueClientGroup mGroup;
+    @NonNull private final SocketAddress mAddress;
     @NonNull private final IClock mClock;
     @NonNull private final ILogger mLogger;
     @NonNull private final IStatsListener mStatsListener;
     @NonNull private final KeyValueProtocol mProtocol;
     private volatile long mHBValue = 1;
     private volatile boolean mIsRunning;
+    /** Key patterns subscribed to, sent again on each new connection. */
+    private final Set<String> mSubscriptions = new CopyOnWriteArraySet<>();
     private AtomicBoolean mStartSyncSuccess;
     private CountDownLatch mStartSyncLatch;
+    /** The handshake of the current connection, replaced on each connection. */
+    @NonNull private volatile Handshake mHandshake = new Handshake();
+    private final AtomicLong mBarrierSeq = new AtomicLong();
+    /** Invoked with true when the server replies to a barrier ping, or false if the connection is lost. */
+    private final Map<String, RConsumer<Boolean>> mBarriers = new ConcurrentHashMap<>();
+    /** Requests of {@link #getAsync} waiting for their reply, by key. */
+    private final ConcurrentMap<String, CompletableFuture<String>> mPendingGets = new ConcurrentHashMap<>();
+    /** The request of {@link #getAllAsync} waiting for its reply, or null. */
+    private final AtomicReference<CompletableFuture<Map<String, String>>> mPendingGetAll = new AtomicReference<>();
     private long mHeartBeatTimestamp;
+    /** When the pending heartbeat was sent, in {@link IClock#nanoTime()}. Guarded by {@link #mStatsListener}. */
+    private long mHeartBeatSentNanos;
+    private final LatencyHistogram mHeartBeatLatency = new LatencyHistogram();
+    private volatile int mCompressionThreshold = FrameCompressor.DEFAULT_THRESHOLD;
+    /** Invoked when a frame is queued, set by the {@link KeyValueClientGroup} while connected. */
+    @Null private volatile Runnable mOnQueued;
+    @NonNull private volatile IReconnectPolicy mReconnectPolicy = new BackoffReconnectPolicy();
+    /** The sync position of a resync delayed by the reconnect policy, or null. Guarded by {@link #mSender}. */
+    @Null private String mPendingResync;
+    /** When to send the pending resync, in {@link IClock#elapsedRealtime()}. Guarded by {@link #mSender}. */
+    private long mPendingResyncAtMs;
+    /** Whether each connection starts by getting all the values or resyncing, see {@link #setRequestAllOnConnect}. */
+    private volatile boolean mRequestAllOnConnect;
 
     /**
      * A dequeue (double-queue, can add/remove from head or tail) that is
@@ -86,13 +158,66 @@ public class KeyValueClient implements IConnection, IKeyValue {
      * only reject with false if the queue had reached its limit but we run it without
      * a limit.
      * We remove from the head using takeFirst() that blocks.
+     *
+     * The queue holds encoded frames. It outlives a connection, so frames queued once the
+     * binary framing is negotiated are preceded by the {@link #BINARY_MARKER}.
      */
-    private final LinkedBlockingDeque<String> mOutCommands = new LinkedBlockingDeque<>();
+    private final LinkedBlockingDeque<byte[]> mOutCommands = new LinkedBlockingDeque<>();
+
+    /** Queued by identity before the first binary frame of a connection. Never written. */
+    private static final byte[] BINARY_MARKER = new byte[0];
 
     private final KeyValueProtocol.Sender mSender = new KeyValueProtocol.Sender() {
         @Override
         public void sendLine(@NonNull String line) {
-            mOutCommands.offerLast(line);
+            mOutCommands.offerLast(FrameCodec.encodeLine(line));
+            notifyQueued();
+        }
+
+        @Override
+        protected void sendFrame(@Null String key, @NonNull byte[] frame) {
+            mOutCommands.offerLast(frame);
+            notifyQueued();
+        }
+
+        @Override
+        protected boolean supportsFeature(@NonNull String feature) {
+            return KeyValueProtocol.FEATURE_BINARY.equals(feature)
+                    || KeyValueProtocol.FEATURE_RESYNC.equals(feature)
+                    || KeyValueProtocol.FEATURE_COMPRESS.equals(feature);
+        }
+
+        @Override
+        public synchronized void acceptFeatures(@NonNull Set<String> features) {
+            boolean wasBinary = isBinaryOutbound();
+            super.acceptFeatures(features);
+            if (!wasBinary && isBinaryOutbound()) {
+                mOutCommands.offerLast(BINARY_MARKER);
+            }
+        }
+
+        @Override
+        public synchronized void onFeaturesAccepted(@NonNull Set<String> features) {
+            super.onFeaturesAccepted(features);
+            // Resync what changed while disconnected if a previous connection got a sync marker.
+            // A resync which was still pending when the connection was lost is from an older position.
+            String position = mPendingResync != null ? mPendingResync : mProtocol.getSyncPosition();
+            mPendingResync = null;
+            if (mRequestAllOnConnect && (!isResyncEnabled() || position == null)) {
+                // No position to resync from: get a full copy.
+                requestAllKeys();
+            } else if (isResyncEnabled() && position != null) {
+                // Spread the resyncs of clients which reconnect at the same time.
+                long delay = mReconnectPolicy.getResyncDelayMs();
+                if (delay <= 0) {
+                    if (DEBUG) mLogger.d(TAG, "Resync from " + position);
+                    requestResync(position);
+                } else {
+                    if (DEBUG) mLogger.d(TAG, "Resync from " + position + " in " + delay + " ms");
+                    mPendingResync = position;
+                    mPendingResyncAtMs = mClock.elapsedRealtime() + delay;
+                }
+            }
         }
     };
 
@@ -101,47 +226,78 @@ public class KeyValueClient implements IConnection, IKeyValue {
             @NonNull ILogger logger,
             @NonNull final SocketAddress address,
             @NonNull IStatsListener statsListener) {
+        this(clock, logger, address, statsListener, null);
+    }
+
+    /**
+     * Creates a client using its own threads, or driven by the selector loops of a group.
+     * See {@link KeyValueClientGroup#createClient}.
+     */
+    KeyValueClient(
+            @NonNull IClock clock,
+            @NonNull ILogger logger,
+            @NonNull final SocketAddress address,
+            @NonNull IStatsListener statsListener,
+            @Null KeyValueClientGroup group) {
         mClock = clock;
         mLogger = logger;
         mStatsListener = statsListener;
+        mAddress = address;
+        mGroup = group;
 
         mProtocol = new KeyValueProtocol(mLogger) {
             @Override
             protected void processPing(@NonNull Sender sender, @NonNull String line) {
                 super.processPing(sender, line);
-                onReceiveClientHeartBeat(line);
+                if (!onBarrierReply(line)) {
+                    onReceiveClientHeartBeat(line);
+                }
+            }
+
+            @Override
+            protected void onServerVersion(int version) {
+                mLogger.d(TAG, "Got server version: " + version);
+                updateCnxMessage("Connected to server v" + version);
+                mHandshake.onServerVersion();
             }
         };
 
-        mSocketThread = new Thread(() -> serverOnThread(address), TAG + "-Thread");
+        mSocketThread = group != null ? null : new Thread(() -> serverOnThread(address), TAG + "-Thread");
     }
 
     private void serverOnThread(@NonNull SocketAddress address) {
+        int failures = 0;
         while (mIsRunning) {
-            updateCnxMessage("Opening connection...");
-
-            Socket socket = createSocket(address);
+            if (failures == 0) {
+                updateCnxMessage("Opening connection...");
+            }
+            Socket socket = createSocket(address, failures);
 
-            if (mStartSyncSuccess != null) {
-                mStartSyncSuccess.set(socket != null);
+            if (socket != null) {
+                // Queued before completing startSync, so that requests queued once it returns
+                // are sent after the handshake requests.
+                prepareConnection();
+            }
+            if (!onConnectResult(socket != null)) {
+                mLogger.d(TAG, "Socket null [startSync failed]");
+                return;
             }
 
             if (socket == null) {
+                failures++;
                 mLogger.d(TAG, "Socket null [wait before retrying]");
-                if (mStartSyncLatch != null) {
-                    mStartSyncLatch.countDown();
-                    return;
-                }
+            } else {
+                failures = 0;
+                socketConnected(socket);
+            }
 
+            if (mIsRunning) {
                 try {
-                    mClock.sleepWithInterrupt(1000 /*ms*/);
+                    mClock.sleepWithInterrupt(mReconnectPolicy.getRetryDelayMs(failures));
                 } catch (InterruptedException e) {
                     // This should happen when stop() is called.
                     mLogger.d(TAG, "Socket sleep interrupted: " + e);
                 }
-
-            } else {
-                socketConnected(socket);
             }
         }
 
@@ -150,32 +306,131 @@ public class KeyValueClient implements IConnection, IKeyValue {
         }
     }
 
-    private void socketConnected(Socket socket) {
-        mLogger.d(TAG, "Socket opened [Start read/write threads]");
+    /**
+     * Reports the result of a connection attempt, which completes a pending {@link #startSync()}.
+     * Returns false if the client should stop trying to connect since {@link #startSync()} failed.
+     */
+    boolean onConnectResult(boolean connected) {
+        if (connected) {
+            // Set before completing startSync, which then waits on the handshake of this connection.
+            mHandshake = new Handshake();
+        }
+        if (mStartSyncSuccess != null) {
+            mStartSyncSuccess.set(connected);
+        }
         if (mStartSyncLatch != null) {
             mStartSyncLatch.countDown();
+            return connected;
+        }
+        return true;
+    }
+
+    /** Queues the requests which start each new connection, before anything else is written. */
+    void prepareConnection() {
+        resetFeatures();
+        Set<String> features = mProtocol.getEnabledFeatures();
+        if (!features.isEmpty()) {
+            mSender.requestFeatures(features);
+        }
+        for (String pattern : mSubscriptions) {
+            mSender.subscribe(pattern);
+        }
+        mHeartBeatTimestamp = 0;
+        synchronized (mStatsListener) {
+            // A heartbeat lost with the previous connection must not block the next ones.
+            mHBValue = Math.abs(mHBValue);
+        }
+    }
+
+    /**
+     * Sends the resync delayed by the reconnect policy once due.
+     * Returns how long till it is due, or -1 if there is none to send on this connection.
+     */
+    long sendPendingResync() {
+        synchronized (mSender) {
+            if (mPendingResync == null || !mSender.isResyncEnabled()) return -1;
+            long delay = mPendingResyncAtMs - mClock.elapsedRealtime();
+            if (delay > 0) return delay;
+            if (DEBUG) mLogger.d(TAG, "Resync from " + mPendingResync);
+            mSender.requestResync(mPendingResync);
+            mPendingResync = null;
+            return -1;
+        }
+    }
+
+    /** Invoked when the current connection is closed, which aborts its pending handshake and barriers. */
+    void onConnectionClosed() {
+        mHandshake.onClosed();
+        for (String value : mBarriers.keySet()) {
+            RConsumer<Boolean> onReply = mBarriers.remove(value);
+            if (onReply != null) {
+                onReply.accept(false);
+            }
+        }
+    }
+
+    /**
+     * Sends a ping and invokes the callback when the server replies. The server processes requests
+     * and sends replies in order, so the reply comes once the replies to all the requests sent
+     * before have been received. The callback gets false if the connection is lost before.
+     */
+    private void sendBarrier(@NonNull RConsumer<Boolean> onReply) {
+        String value = BARRIER_PING + mBarrierSeq.incrementAndGet();
+        mBarriers.put(value, onReply);
+        mSender.sendPing(value);
+    }
+
+    /** Returns true if the line is the reply to a barrier ping. */
+    private boolean onBarrierReply(@NonNull String line) {
+        if (!line.startsWith("PR" + BARRIER_PING)) return false;
+        RConsumer<Boolean> onReply = mBarriers.remove(line.substring(2));
+        if (onReply != null) {
+            onReply.accept(true);
         }
+        return true;
+    }
+
+    /**
+     * Sends a heartbeat if the previous one got its reply. Invoked every {@link #HB_PERIOD_MS}.
+     * Returns false if the reply is late and the connection should be considered lost.
+     */
+    boolean heartBeat() {
+        if (mHeartBeatTimestamp > 0) {
+            long delay = mClock.elapsedRealtime() - mHeartBeatTimestamp;
+            long timeout = getHeartBeatTimeoutMs();
+            if (delay > timeout) {
+                mLogger.d(TAG, "Heartbeat reply delay exceeded " + timeout + " ms, RTT " + mHeartBeatLatency);
+                return false;
+            }
+        }
+        sendClientHeartBeat();
+        return true;
+    }
+
+    private void socketConnected(Socket socket) {
+        mLogger.d(TAG, "Socket opened [Start read/write threads]");
 
         setSocketParams(socket);
+        // The reader reports the server version once received.
+        updateCnxMessage("Reading server information...");
         CountDownLatch readWriteLatch = new CountDownLatch(1);
         Thread reader = readSocket(socket, readWriteLatch);
         Thread writer = writeSocket(socket, readWriteLatch);
 
         try {
-            mHeartBeatTimestamp = 0;
-            initConnection();
-
             // Just wait for the reader/writer threads to do their work.
-            // Send the heart beat as long as the reader/writer threads have not finished.
-            while (mIsRunning && !socket.isClosed() && !readWriteLatch.await(1, TimeUnit.SECONDS)) {
-                if (mHeartBeatTimestamp > 0) {
-                    long delay = mClock.elapsedRealtime() - mHeartBeatTimestamp;
-                    if (delay > 5000 /*ms*/) {
-                        mLogger.d(TAG, "Heartbeat reply delay exceeded 5 seconds.");
-                        break;
-                    }
+            // Send the heart beat as long as the reader/writer threads have not finished,
+            // and the resync once the reconnect policy allows it.
+            long heartBeatWaitMs = HB_PERIOD_MS;
+            while (mIsRunning && !socket.isClosed()) {
+                long resyncWaitMs = sendPendingResync();
+                long waitMs = resyncWaitMs > 0 ? Math.min(heartBeatWaitMs, resyncWaitMs) : heartBeatWaitMs;
+                if (readWriteLatch.await(waitMs, TimeUnit.MILLISECONDS)) break;
+                heartBeatWaitMs -= waitMs;
+                if (heartBeatWaitMs <= 0) {
+                    if (!heartBeat()) break;
+                    heartBeatWaitMs = HB_PERIOD_MS;
                 }
-                sendClientHeartBeat();
             }
 
         } catch (InterruptedException e) {
@@ -196,53 +451,76 @@ public class KeyValueClient implements IConnection, IKeyValue {
         mLogger.d(TAG, "Socket lost: | isRunning=" + mIsRunning);
     }
 
+    /** Makes one connection attempt. Returns null if it failed. */
     @Null
-    private Socket createSocket(@NonNull SocketAddress address) {
-        Socket socket = null;
-        for (int i = 0; socket == null && mIsRunning && i < 10; i++) {
+    private Socket createSocket(@NonNull SocketAddress address, int failures) {
+        if (DEBUG) {
+            mLogger.d(TAG, "[" + failures + "] Trying to connect to " + address);
+        }
+        Socket socket = new Socket();
+        try {
+            socket.connect(address, CONNECT_TIMEOUT_MS);
+        } catch (IOException e) {
+            socket = null;
             if (DEBUG) {
-                mLogger.d(TAG, "[" + i + "] Trying to connect to " + address);
-            }
-            socket = new Socket();
-            try {
-                socket.connect(address, 1000 /*ms*/);
-            } catch (IOException e) {
-                socket = null;
-                if (DEBUG) {
-                    mLogger.d(TAG, "[" + i + "] Connect failed: " + e.toString());
-                }
-                String a = address.toString();
-                if (address instanceof InetSocketAddress) {
-                    a = ((InetSocketAddress) address).getAddress().getHostAddress();
-                }
-                String d = "";
-                switch (i % 3) {
-                    case 2: d += ".";
-                    case 1: d += ".";
-                    case 0: d += ".";
-                }
-                updateCnxMessage("Trying to connect to " + a + " " + d);
+                mLogger.d(TAG, "[" + failures + "] Connect failed: " + e.toString());
             }
+            onConnectFailed(failures);
         }
         return socket;
     }
 
-    private void initConnection() throws InterruptedException {
-        updateCnxMessage("Reading server information...");
+    /** Reports a failed connection attempt. */
+    void onConnectFailed(int failures) {
+        String a = mAddress.toString();
+        if (mAddress instanceof InetSocketAddress) {
+            a = ((InetSocketAddress) mAddress).getAddress().getHostAddress();
+        }
+        String d = "";
+        switch (failures % 3) {
+            case 2: d += ".";
+            case 1: d += ".";
+            case 0: d += ".";
+        }
+        updateCnxMessage("Trying to connect to " + a + " " + d);
+    }
 
-        // Once we got connected, wait up to 60 seconds that the reader
-        // can get and process the init state sent by the server.
-        int version = 0;
-        for (int i = 1; i <= 600; i++) {
-            mClock.sleep(100 /*ms*/);
-            version = mProtocol.getServerVersion();
-            if (version != 0) {
-                mLogger.d(TAG, "Got server version in " + i*100 + " ms");
-                break;
+    /**
+     * A new connection always starts in text mode. Frames queued but not sent in binary by the
+     * previous connection are converted back to text lines, see {@link FrameCodec#binaryToText}.
+     */
+    private void resetFeatures() {
+        synchronized (mSender) {
+            if (mSender.isBinaryOutbound()) {
+                List<byte[]> pending = new ArrayList<>();
+                mOutCommands.drainTo(pending);
+                // Frames queued before the marker are text lines. Once the writer polled the
+                // marker, all the pending frames are binary.
+                boolean binary = true;
+                for (byte[] frame : pending) {
+                    if (frame == BINARY_MARKER) {
+                        binary = false;
+                        break;
+                    }
+                }
+                for (byte[] frame : pending) {
+                    if (frame == FrameCodec.COMPRESS_MARKER) {
+                        // The next connection negotiates its own compression.
+                        continue;
+                    } else if (frame == BINARY_MARKER) {
+                        binary = true;
+                    } else if (!binary) {
+                        mOutCommands.offerLast(frame);
+                    } else {
+                        String lines = FrameCodec.binaryToText(frame);
+                        if (lines != null) {
+                            mOutCommands.offerLast(FrameCodec.encodeLine(lines));
+                        }
+                    }
+                }
             }
+            mSender.resetFeatures();
         }
-        mLogger.d(TAG, "Got server version: " + version);
-        updateCnxMessage("Connected to server v" + version);
     }
 
     private void handleQuit(Thread writer) {
@@ -263,11 +541,115 @@ public class KeyValueClient implements IConnection, IKeyValue {
         return mProtocol.getChangedStream();
     }
 
+    /**
+     * Requests the binary framing when connecting to the server. Must be called before starting.
+     * <p/>
+     * The server only uses it if it supports and enables it too, otherwise the connection keeps
+     * using text lines. See {@link KeyValueProtocol}.
+     */
+    public void setBinaryProtocol(boolean enabled) {
+        mProtocol.setFeatureEnabled(KeyValueProtocol.FEATURE_BINARY, enabled);
+    }
+
+    /**
+     * Requests the incremental resync when connecting to the server. Must be called before starting.
+     * <p/>
+     * Once the client got all the values via {@link #requestAllKeys()}, it automatically resyncs after
+     * reconnecting by only receiving the values changed since the previous connection. The server
+     * only does it if it supports and enables it too. See {@link KeyValueProtocol}.
+     */
+    public void setIncrementalResync(boolean enabled) {
+        mProtocol.setFeatureEnabled(KeyValueProtocol.FEATURE_RESYNC, enabled);
+    }
+
+    /**
+     * Requests the compression when connecting to the server. Must be called before starting.
+     * <p/>
+     * Frames are then deflated in both directions, which is useful on links where bandwidth matters
+     * more than CPU. The compression is only used with the binary framing, see {@link #setBinaryProtocol},
+     * and if the server enables it too. See {@link KeyValueProtocol}.
+     *
+     * @param enabled Whether to request the compression.
+     * @param threshold Writes smaller than this number of bytes are sent uncompressed, e.g. pings.
+     */
+    public void setCompression(boolean enabled, int threshold) {
+        mCompressionThreshold = Math.max(0, threshold);
+        mProtocol.setFeatureEnabled(KeyValueProtocol.FEATURE_COMPRESS, enabled);
+    }
+
+    /**
+     * Sets the policy deciding when to reconnect after a failed attempt or a lost connection, and
+     * when to resync once reconnected. Defaults to a {@link BackoffReconnectPolicy}.
+     */
+    public void setReconnectPolicy(@NonNull IReconnectPolicy policy) {
+        mReconnectPolicy = policy;
+    }
+
+    @NonNull
+    public IReconnectPolicy getReconnectPolicy() {
+        return mReconnectPolicy;
+    }
+
+    /**
+     * When enabled, each connection starts with getting the values changed since the previous
+     * connection when the incremental resync is used, or otherwise all the values, so that the
+     * client keeps a full copy of the server store. Used by replicas.
+     */
+    void setRequestAllOnConnect(boolean enabled) {
+        mRequestAllOnConnect = enabled;
+    }
+
+    /**
+     * Returns the position of the last sync marker received from the server, or null if none.
+     * This is the position the client resyncs from when reconnecting.
+     */
+    @Null
+    public String getSyncPosition() {
+        return mProtocol.getSyncPosition();
+    }
+
+    /** Returns true if the current connection uses binary frames in both directions. */
+    public boolean isBinaryConnection() {
+        return mSender.isBinaryOutbound() && mSender.isBinaryInbound();
+    }
+
+    /** Returns true if the current connection uses compression in both directions. */
+    public boolean isCompressedConnection() {
+        return mSender.isCompressedOutbound() && mSender.isCompressedInbound();
+    }
+
     @NonNull
     public IStatsListener getStatsListener() {
         return mStatsListener;
     }
 
+    /**
+     * Returns the round-trip times of the heartbeats in nanoseconds, measured by this client
+     * since it was created, across all its connections.
+     */
+    @NonNull
+    public LatencyHistogram getHeartBeatLatency() {
+        return mHeartBeatLatency;
+    }
+
+    /**
+     * Returns how long the client waits for a heartbeat reply before considering the connection
+     * lost and reconnecting.
+     * <p/>
+     * Till enough heartbeats have been measured, this is {@link #DEFAULT_HB_TIMEOUT_MS}.
+     * After that, this is the heartbeat period plus 4 times the p99 round-trip time, bounded by
+     * {@link #MIN_HB_TIMEOUT_MS} and {@link #MAX_HB_TIMEOUT_MS}. A fast network thus detects a
+     * lost connection sooner whereas a slow network does not reconnect needlessly.
+     */
+    public long getHeartBeatTimeoutMs() {
+        if (mHeartBeatLatency.getCount() < HB_MIN_SAMPLES) {
+            return DEFAULT_HB_TIMEOUT_MS;
+        }
+        long p99Ms = TimeUnit.NANOSECONDS.toMillis(mHeartBeatLatency.getP99());
+        long timeout = HB_PERIOD_MS + 4 * p99Ms;
+        return Math.max(MIN_HB_TIMEOUT_MS, Math.min(MAX_HB_TIMEOUT_MS, timeout));
+    }
+
     /** Returns all the keys available. */
     @Override
     @NonNull
@@ -275,6 +657,15 @@ public class KeyValueClient implements IConnection, IKeyValue {
         return mProtocol.getKeys();
     }
 
+    /**
+     * Returns an immutable point-in-time snapshot of all the key-values, sorted by key.
+     * This is O(1) and never blocks writers.
+     */
+    @NonNull
+    public Map<String, String> getSnapshot() {
+        return mProtocol.getSnapshot();
+    }
+
     /** Returns the value for the given key or null if it doesn't exist. */
     @Override
     @Null
@@ -297,6 +688,53 @@ public class KeyValueClient implements IConnection, IKeyValue {
         }
     }
 
+    /**
+     * Sets the non-value for the given key with a time-to-live. <br/>
+     * Only the server expires keys: with broadcast, the TTL is sent to the server before the value,
+     * even if the value has not changed, which refreshes the TTL. The server then broadcasts the
+     * removal of the key once it expires. Without broadcast, the TTL is ignored.
+     */
+    @Override
+    public void putValue(@NonNull String key, @Null String value, boolean broadcast, long ttlMs) {
+        mProtocol.putValue(key, value);
+        if (broadcast) {
+            mSender.sendTtl(key, ttlMs);
+            broadcastValue(key, value);
+        }
+    }
+
+    /**
+     * Atomically sets the non-values for the given keys. <br/>
+     * Null values remove the keys if they existed. <br/>
+     * When broadcast is true, the changed values are sent to the server as a single batch,
+     * which the server applies atomically and relays as a batch to its clients.
+     */
+    @Override
+    public void putValues(@NonNull Map<String, String> values, boolean broadcast) {
+        Map<String, String> changed = mProtocol.putValues(values, null);
+        if (broadcast && !changed.isEmpty()) {
+            broadcastValues(changed);
+        }
+    }
+
+    /**
+     * Broadcasts a batch of key/value changes to the server but does NOT update the local store.
+     * Null values are sent as empty values. See {@link #broadcastValue(String, String)}.
+     */
+    public void broadcastValues(@NonNull Map<String, String> values) {
+        Map<String, String> batch = new TreeMap<>();
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            String value = entry.getValue();
+            batch.put(entry.getKey(), value == null ? "" : value);
+        }
+        if (batch.size() == 1) {
+            Map.Entry<String, String> entry = batch.entrySet().iterator().next();
+            mSender.sendValue(entry.getKey(), entry.getValue());
+        } else if (!batch.isEmpty()) {
+            mSender.sendBatch(batch);
+        }
+    }
+
     /**
      * Broadcasts a key/value change to the server but does NOT update the local store.
      * <p/>
@@ -320,12 +758,17 @@ public class KeyValueClient implements IConnection, IKeyValue {
         }
         if (!mIsRunning) {
             mIsRunning = true;
-            mSocketThread.start();
+            if (mGroup != null) {
+                mGroup.connect(this);
+            } else {
+                assert mSocketThread != null;
+                mSocketThread.start();
+            }
         }
     }
 
     /**
-     * Starts blocking and waits for the start to either fail or succeed.
+     * Starts blocking and waits for the first connection attempt to either fail or succeed.
      * In case of failure there is no retry.
      * @return True if client started and got connected.
      * @throws InterruptedException if count down latch gets interrupted whilst waiting.
@@ -340,6 +783,23 @@ public class KeyValueClient implements IConnection, IKeyValue {
         return mStartSyncSuccess != null && mStartSyncSuccess.get();
     }
 
+    /**
+     * Starts blocking like {@link #startSync()} and also waits, up to {@link #HANDSHAKE_TIMEOUT_MS},
+     * for the server to send its version and, when requested, all its values.
+     *
+     * @param requestAllKeys True to request all the values and return once they have been received.
+     * @return True if client started, got connected and completed the handshake.
+     * @throws InterruptedException if interrupted whilst waiting.
+     */
+    public boolean startSync(boolean requestAllKeys) throws InterruptedException {
+        if (!startSync()) return false;
+        Handshake handshake = mHandshake;
+        if (requestAllKeys) {
+            handshake.requestSnapshot();
+        }
+        return handshake.await(HANDSHAKE_TIMEOUT_MS);
+    }
+
     public void stopAsync() {
         if (DEBUG) {
             mLogger.d(TAG, "stop -| isRunning=" + mIsRunning);
@@ -348,8 +808,14 @@ public class KeyValueClient implements IConnection, IKeyValue {
             mIsRunning = false;
 
             mSender.sendCnxQuit();
+            if (mGroup != null) {
+                // The group writes the quit request before closing the connection.
+                mGroup.disconnect(this);
+                return;
+            }
             mClock.sleep(250 /*ms*/);
 
+            assert mSocketThread != null;
             mSocketThread.interrupt();
         }
     }
@@ -358,7 +824,7 @@ public class KeyValueClient implements IConnection, IKeyValue {
         if (mIsRunning) {
             stopAsync();
             try {
-                mSocketThread.join();
+                joinConnection();
             } catch (InterruptedException e) {
                 mLogger.d(TAG, "stop -| join interrupted: " + e);
             }
@@ -367,10 +833,72 @@ public class KeyValueClient implements IConnection, IKeyValue {
 
     public void join() throws InterruptedException {
         if (mIsRunning) {
+            joinConnection();
+        }
+    }
+
+    private void joinConnection() throws InterruptedException {
+        if (mGroup != null) {
+            mGroup.join(this);
+        } else {
+            assert mSocketThread != null;
             mSocketThread.join();
         }
     }
 
+    boolean isRunning() {
+        return mIsRunning;
+    }
+
+    @NonNull
+    SocketAddress getAddress() {
+        return mAddress;
+    }
+
+    @NonNull
+    KeyValueProtocol getProtocol() {
+        return mProtocol;
+    }
+
+    @NonNull
+    KeyValueProtocol.Sender getSender() {
+        return mSender;
+    }
+
+    int getCompressionThreshold() {
+        return mCompressionThreshold;
+    }
+
+    /** Sets the runnable invoked when a frame is queued, or null. */
+    void setOnQueued(@Null Runnable onQueued) {
+        mOnQueued = onQueued;
+    }
+
+    private void notifyQueued() {
+        Runnable onQueued = mOnQueued;
+        if (onQueued != null) {
+            onQueued.run();
+        }
+    }
+
+    /** Returns the next frame to write or null if there is none. Does not block. */
+    @Null
+    byte[] pollFrame() {
+        byte[] frame;
+        do {
+            frame = mOutCommands.pollFirst();
+        } while (frame == BINARY_MARKER);
+        return frame;
+    }
+
+    boolean hasQueuedFrames() {
+        return !mOutCommands.isEmpty();
+    }
+
+    void updateCnxMessage(@Null String msg) {
+        mStatsListener.setMessage(msg);
+    }
+
     private void setSocketParams(@NonNull Socket socket) {
         // Set initial parameters: Disable nagle algorithm,
         // enable keep alive and allow infinite read timeout.
@@ -406,24 +934,33 @@ public class KeyValueClient implements IConnection, IKeyValue {
     }
 
     private void writeLoop(@NonNull Socket socket) throws IOException, InterruptedException {
-        PrintWriter out = new PrintWriter(socket.getOutputStream());
-        while (mIsRunning &&
-                !socket.isClosed() &&
-                !Thread.interrupted()) {
-            String line = getNextWriterLine();
-            if (line == null) {
-                if (DEBUG_VERBOSE) mLogger.d(TAG, "WRITE NULL");
-                continue;
+        OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+        FrameCompressor compressor = new FrameCompressor(mCompressionThreshold);
+        try {
+            while (mIsRunning &&
+                    !socket.isClosed() &&
+                    !Thread.interrupted()) {
+                byte[] frame = getNextWriterFrame();
+                if (frame == null) {
+                    if (DEBUG_VERBOSE) mLogger.d(TAG, "WRITE NULL");
+                    continue;
+                }
+                if (frame == BINARY_MARKER) continue;
+                int written = compressor.write(out, frame);
+                // Only flush once the queue is drained to batch consecutive frames.
+                if (mOutCommands.isEmpty()) {
+                    written += compressor.flush(out);
+                    out.flush();
+                }
+                mStatsListener.addBandwidthTXBytes(written);
             }
-            if (DEBUG_VERBOSE) mLogger.d(TAG, "WRITE >> " + line.trim());
-            out.println(line);
-            out.flush();
-            mStatsListener.addBandwidthTXBytes(line.length() + 1);
+        } finally {
+            compressor.close();
         }
     }
 
     /**
-     * Returns the next line to write to the output stream/socket.
+     * Returns the next encoded frame to write to the output stream/socket.
      * <p/>
      * This call will partially block:
      * - After a timeout, null is returned to indicate the timeout expired.
@@ -431,7 +968,7 @@ public class KeyValueClient implements IConnection, IKeyValue {
      * - Otherwise it returns a non-null value immediately when available.
      */
     @Null
-    private String getNextWriterLine() throws InterruptedException {
+    private byte[] getNextWriterFrame() throws InterruptedException {
         return mOutCommands.pollFirst(1, TimeUnit.SECONDS);
     }
 
@@ -450,6 +987,7 @@ public class KeyValueClient implements IConnection, IKeyValue {
                 if (DEBUG) mLogger.d(TAG, "writeSocket socket.close: " + e);
             }
             readWriteLatch.countDown();
+            onConnectionClosed();
             if (DEBUG) mLogger.d(TAG, "end of readSocket thread.");
         }, TAG + "-Reader");
         t.start();
@@ -457,37 +995,40 @@ public class KeyValueClient implements IConnection, IKeyValue {
     }
 
     private void readLoop(@NonNull Socket socket) throws IOException {
-        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        while (mIsRunning &&
-                !socket.isClosed() &&
-                !Thread.interrupted()) {
-            try {
-                // We've set SO_TIMEOUT to zero meaning reads will block forever.
-                String line = in.readLine();
-                if (line == null) {
-                    // readLine returns "null if the end of the stream has been reached"
-                    // or in this case when the connection is gone or it has been interrupted.
-                    if (DEBUG) mLogger.d(TAG, "readLoop end");
-                    return;
+        InputStream in = socket.getInputStream();
+        FrameDecoder decoder = new FrameDecoder(mLogger, mProtocol, mSender);
+        byte[] buffer = new byte[8192];
+        try {
+            while (mIsRunning &&
+                    !socket.isClosed() &&
+                    !Thread.interrupted()) {
+                try {
+                    // We've set SO_TIMEOUT to zero meaning reads will block forever.
+                    int n = in.read(buffer);
+                    if (n < 0) {
+                        // read returns -1 when the end of the stream has been reached
+                        // or in this case when the connection is gone or it has been interrupted.
+                        if (DEBUG) mLogger.d(TAG, "readLoop end");
+                        return;
+                    }
+                    mStatsListener.addBandwidthRXBytes(n);
+                    decoder.feed(buffer, 0, n);
+                } catch (SocketTimeoutException e) {
+                    // We're blocking on input, this should never happen
+                    if (DEBUG_VERBOSE) mLogger.d(TAG, "READ SO Timeout Exception: " + e);
                 }
-                mStatsListener.addBandwidthRXBytes(line.length() + 1);
-                if (DEBUG_VERBOSE) mLogger.d(TAG, "READ << " + line.trim());
-                mProtocol.processLine(mSender, line);
-            } catch (SocketTimeoutException e) {
-                // We're blocking on input, this should never happen
-                if (DEBUG_VERBOSE) mLogger.d(TAG, "READ SO Timeout Exception: " + e);
             }
+        } finally {
+            decoder.close();
         }
     }
 
-    private void updateCnxMessage(@Null String msg) {
-        mStatsListener.setMessage(msg);
-    }
 
     private void sendClientHeartBeat() {
         synchronized (mStatsListener) {
             if (mHBValue > 0) {
                 if (DEBUG_VERBOSE) mLogger.d(TAG, "HB SEND value " + mHBValue);
+                mHeartBeatSentNanos = mClock.nanoTime();
                 mSender.sendPing(Long.toString(mHBValue));
                 mStatsListener.HBLatencyRequestSent();
                 mHBValue = -mHBValue; // make it negative while waiting for an answer
@@ -503,6 +1044,7 @@ public class KeyValueClient implements IConnection, IKeyValue {
                 String expected = "PR" + value;
                 if (DEBUG_VERBOSE) mLogger.d(TAG, "HB RECEIVE, expected '" + expected + "', got '" + line + "'");
                 if (expected.equals(line)) {
+                    mHeartBeatLatency.record(mClock.nanoTime() - mHeartBeatSentNanos);
                     mStatsListener.HBLatencyReplyReceived();
                     mHBValue = (1 + value) % Integer.MAX_VALUE;
                     mStatsListener.setMessage(null);
@@ -511,6 +1053,66 @@ public class KeyValueClient implements IConnection, IKeyValue {
         }
     }
 
+    /** The handshake of one connection: the server version then, when requested, all its values. */
+    private final class Handshake {
+        private final CountDownLatch mVersionLatch = new CountDownLatch(1);
+        private final CountDownLatch mSnapshotLatch = new CountDownLatch(1);
+        private volatile boolean mSnapshotRequested;
+        private volatile boolean mClosed;
+
+        void onServerVersion() {
+            mVersionLatch.countDown();
+        }
+
+        void requestSnapshot() {
+            mSnapshotRequested = true;
+            mSender.requestAllKeys();
+            sendBarrier(replied -> mSnapshotLatch.countDown());
+        }
+
+        void onClosed() {
+            mClosed = true;
+            mVersionLatch.countDown();
+            mSnapshotLatch.countDown();
+        }
+
+        /** Returns true once the handshake completed, false if the connection closed or it timed out. */
+        boolean await(long timeoutMs) throws InterruptedException {
+            long deadline = mClock.elapsedRealtime() + timeoutMs;
+            if (!mVersionLatch.await(timeoutMs, TimeUnit.MILLISECONDS)) return false;
+            if (mSnapshotRequested) {
+                long remaining = Math.max(0, deadline - mClock.elapsedRealtime());
+                if (!mSnapshotLatch.await(remaining, TimeUnit.MILLISECONDS)) return false;
+            }
+            return !mClosed;
+        }
+    }
+
+    /**
+     * Subscribes to the changes of the keys matching that pattern.
+     * <p/>
+     * By default the server broadcasts all changes to all clients. Once a client subscribed to
+     * at least one pattern, the server only broadcasts to it the changes of the keys matching
+     * one of its patterns. Patterns are key names which can contain the '*' and '?' glob
+     * wildcards, e.g. "block.*". Subscriptions are kept when reconnecting. Older servers
+     * ignore subscriptions and keep broadcasting all changes.
+     * <p/>
+     * Subscriptions do not filter {@link #requestAllKeys()} nor {@link #requestKey(String)}.
+     */
+    public void subscribe(@NonNull String pattern) {
+        if (!pattern.isEmpty() && mSubscriptions.add(pattern)) {
+            mSender.subscribe(pattern);
+        }
+    }
+
+    /** Clears all subscriptions: the server broadcasts all changes to this client again. */
+    public void clearSubscriptions() {
+        if (!mSubscriptions.isEmpty()) {
+            mSubscriptions.clear();
+            mSender.subscribe("");
+        }
+    }
+
     public void requestAllKeys() {
         mSender.requestAllKeys();
     }
@@ -518,4 +1120,65 @@ public class KeyValueClient implements IConnection, IKeyValue {
     public void requestKey(@NonNull String key) {
         mSender.requestKey(key);
     }
+
+    /**
+     * Requests the value of the key from the server, like {@link #requestKey}, and returns a future
+     * completed once the reply has been received. The value is then the one returned by {@link #getValue},
+     * which is an empty string when the server does not know the key.
+     * <p/>
+     * Requests for the same key are coalesced: while a request is in flight, other callers wait for
+     * its reply instead of sending another request. Each caller gets its own future, so that cancelling
+     * one does not affect the others. Requests made while disconnected are sent once connected.
+     * The future completes exceptionally with an {@link IOException} if the connection is lost
+     * before the reply.
+     * <p/>
+     * The future is completed on the thread reading the connection: dependent actions should not block.
+     */
+    @NonNull
+    public CompletableFuture<String> getAsync(@NonNull String key) {
+        CompletableFuture<String> future = new CompletableFuture<>();
+        CompletableFuture<String> pending = mPendingGets.putIfAbsent(key, future);
+        if (pending == null) {
+            pending = future;
+            mSender.requestKey(key);
+            sendBarrier(replied -> {
+                mPendingGets.remove(key, future);
+                if (replied) {
+                    future.complete(getValue(key));
+                } else {
+                    future.completeExceptionally(new IOException("Connection lost"));
+                }
+            });
+        }
+        return pending.thenApply(value -> value);
+    }
+
+    /**
+     * Requests all the values from the server, like {@link #requestAllKeys}, and returns a future
+     * completed with a snapshot of the client's values once they have all been received.
+     * Concurrent requests are coalesced like {@link #getAsync}.
+     */
+    @NonNull
+    public CompletableFuture<Map<String, String>> getAllAsync() {
+        CompletableFuture<Map<String, String>> future = new CompletableFuture<>();
+        CompletableFuture<Map<String, String>> pending;
+        while (true) {
+            pending = mPendingGetAll.get();
+            if (pending != null) break;
+            if (mPendingGetAll.compareAndSet(null, future)) {
+                pending = future;
+                mSender.requestAllKeys();
+                sendBarrier(replied -> {
+                    mPendingGetAll.compareAndSet(future, null);
+                    if (replied) {
+                        future.complete(getSnapshot());
+                    } else {
+                        future.completeExceptionally(new IOException("Connection lost"));
+                    }
+                });
+                break;
+            }
+        }
+        return pending.thenApply(values -> values);
+    }
 }
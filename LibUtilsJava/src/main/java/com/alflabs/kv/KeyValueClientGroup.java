@@ -0,0 +1,431 @@
+/*
+ * Project: Lib Utils
+ * Copyright (C) 2017 alf.labs gmail com,
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.alflabs.kv;
+
+import com.alflabs.annotations.NonNull;
+import com.alflabs.annotations.Null;
+import com.alflabs.utils.IClock;
+import com.alflabs.utils.ILogger;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives many {@link KeyValueClient} connections from a small fixed number of NIO selector loops.
+ * <p/>
+ * A regular client uses one thread to connect plus a reader and a writer thread per connection.
+ * Clients created by {@link #createClient} instead share the {@link SelectorLoop}s of the group,
+ * which connect, read, write and send the heartbeats of all their connections. This is more
+ * appropriate for a process connecting to hundreds of mostly-idle servers.
+ * <p/>
+ * Each client keeps the same API: {@link KeyValueClient#startAsync()}, {@link KeyValueClient#startSync()},
+ * {@link KeyValueClient#stopSync()}, {@link IKeyValue} and {@link KeyValueClient#getChangedStream()}.
+ * Clients also reconnect and resync the same way, following their {@link KeyValueClient.IReconnectPolicy}.
+ * <p/>
+ * The group must be started before its clients can connect.
+ */
+public class KeyValueClientGroup {
+    private static final String TAG = KeyValueClientGroup.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    private static final int BUFFER_SIZE = 8192;
+    /** How long a stopping connection can take to write the quit request. */
+    private static final long QUIT_TIMEOUT_MS = 250;
+
+    @NonNull private final IClock mClock;
+    @NonNull private final ILogger mLogger;
+    @NonNull private final SelectorLoop[] mLoops;
+    private final AtomicInteger mNextLoop = new AtomicInteger();
+    private final AtomicInteger mNumConnected = new AtomicInteger();
+    private final Map<KeyValueClient, Session> mSessions = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a new group.
+     *
+     * @param clock The clock of the clients. The loops also use it to time the connection timeouts,
+     *              the reconnect delays and the heartbeats.
+     * @param numLoops The number of selector loops, each using one thread.
+     */
+    public KeyValueClientGroup(@NonNull IClock clock, @NonNull ILogger logger, int numLoops) throws IOException {
+        mClock = clock;
+        mLogger = logger;
+        mLoops = new SelectorLoop[Math.max(1, numLoops)];
+        for (int i = 0; i < mLoops.length; i++) {
+            mLoops[i] = new SelectorLoop(clock, logger, TAG + "-Loop" + i);
+        }
+    }
+
+    /** Starts the selector loops. Returns immediately. */
+    public void start() {
+        for (SelectorLoop loop : mLoops) {
+            loop.start();
+        }
+    }
+
+    /** Stops all the clients of the group and returns once the selector loops have ended. */
+    public void stopSync() {
+        List<Session> sessions = new ArrayList<>(mSessions.values());
+        for (Session session : sessions) {
+            // Queues the quit request, which the loops write before closing the connections.
+            session.mClient.stopAsync();
+        }
+        for (SelectorLoop loop : mLoops) {
+            loop.stopSync();
+        }
+        for (Session session : sessions) {
+            session.finish();
+        }
+    }
+
+    /**
+     * Creates a new client driven by this group.
+     * The client doesn't connect till it is started.
+     */
+    @NonNull
+    public KeyValueClient createClient(
+            @NonNull SocketAddress address,
+            @NonNull KeyValueClient.IStatsListener statsListener) {
+        return new KeyValueClient(mClock, mLogger, address, statsListener, this);
+    }
+
+    /** Returns the number of clients currently connected to their server. */
+    public int getNumConnected() {
+        return mNumConnected.get();
+    }
+
+    /** Invoked when a client of the group is started. */
+    void connect(@NonNull KeyValueClient client) {
+        SelectorLoop loop = mLoops[(mNextLoop.getAndIncrement() & Integer.MAX_VALUE) % mLoops.length];
+        Session session = new Session(client, loop);
+        mSessions.put(client, session);
+        loop.execute(session::open);
+    }
+
+    /** Invoked when a client of the group is stopped, after it queued its quit request. */
+    void disconnect(@NonNull KeyValueClient client) {
+        Session session = mSessions.get(client);
+        if (session != null) {
+            session.mLoop.execute(session::stop);
+        }
+    }
+
+    /** Waits till the connection of the stopped client is closed. */
+    void join(@NonNull KeyValueClient client) throws InterruptedException {
+        Session session = mSessions.get(client);
+        if (session != null) {
+            session.mClosed.await();
+        }
+    }
+
+    /**
+     * The connection state of one started client, across reconnections.
+     * All methods except {@link #requestWrite()} and {@link #finish()} run on the loop thread.
+     */
+    private class Session implements SelectorLoop.IHandler, ChannelWriter.IFrameSource {
+        @NonNull private final KeyValueClient mClient;
+        @NonNull private final SelectorLoop mLoop;
+        private final CountDownLatch mClosed = new CountDownLatch(1);
+        private final AtomicBoolean mWritePending = new AtomicBoolean();
+        private final ByteBuffer mInBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private SocketChannel mChannel;
+        private SelectionKey mKey;
+        private FrameDecoder mDecoder;
+        private ChannelWriter mWriter;
+        /** Incremented for each channel, so that the timers of a closed channel do nothing. */
+        private int mGeneration;
+        /** The number of consecutive failed connection attempts. */
+        private int mFailures;
+        private boolean mResyncScheduled;
+        private boolean mConnected;
+        private boolean mStopping;
+
+        Session(@NonNull KeyValueClient client, @NonNull SelectorLoop loop) {
+            mClient = client;
+            mLoop = loop;
+        }
+
+        /** Starts a connection attempt. */
+        void open() {
+            if (mStopping || !mClient.isRunning()) {
+                finish();
+                return;
+            }
+            if (mFailures == 0) {
+                mClient.updateCnxMessage("Opening connection...");
+            }
+            final int generation = ++mGeneration;
+            try {
+                mChannel = SocketChannel.open();
+                mChannel.configureBlocking(false);
+                // Same parameters as the thread-based client: disable nagle algorithm, enable keep alive.
+                mChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                mChannel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+                if (DEBUG) mLogger.d(TAG, "[" + mFailures + "] Trying to connect to " + mClient.getAddress());
+                if (mChannel.connect(mClient.getAddress())) {
+                    mKey = mLoop.register(mChannel, SelectionKey.OP_READ, this);
+                    onConnected();
+                } else {
+                    mKey = mLoop.register(mChannel, SelectionKey.OP_CONNECT, this);
+                    mLoop.schedule(() -> {
+                        if (generation == mGeneration && !mConnected) {
+                            onConnectFailed("timeout");
+                        }
+                    }, KeyValueClient.CONNECT_TIMEOUT_MS);
+                }
+            } catch (IOException e) {
+                onConnectFailed(e.toString());
+            }
+        }
+
+        private void onConnectFailed(@NonNull String reason) {
+            closeChannel();
+            if (DEBUG) mLogger.d(TAG, "[" + mFailures + "] Connect failed: " + reason);
+            mClient.onConnectFailed(mFailures++);
+            if (!mClient.onConnectResult(false)) {
+                mLogger.d(TAG, "Connect failed [startSync failed]");
+                finish();
+                return;
+            }
+            mLogger.d(TAG, "Connect failed [wait before retrying]");
+            mLoop.schedule(this::open, mClient.getReconnectPolicy().getRetryDelayMs(mFailures));
+        }
+
+        private void onConnected() {
+            mLogger.d(TAG, "Socket opened to " + mClient.getAddress());
+            mConnected = true;
+            mFailures = 0;
+            mNumConnected.incrementAndGet();
+            mKey.interestOps(SelectionKey.OP_READ);
+            mDecoder = new FrameDecoder(mLogger, mClient.getProtocol(), mClient.getSender());
+            mWriter = new ChannelWriter(mChannel, this, mClient.getCompressionThreshold());
+            mClient.prepareConnection();
+            mClient.setOnQueued(this::requestWrite);
+            mClient.onConnectResult(true);
+            mClient.updateCnxMessage("Reading server information...");
+            requestWrite();
+            scheduleHeartBeat(mGeneration);
+        }
+
+        private void scheduleHeartBeat(final int generation) {
+            mLoop.schedule(() -> {
+                if (generation != mGeneration || mStopping) return;
+                if (!mClient.heartBeat()) {
+                    onConnectionLost();
+                    return;
+                }
+                scheduleHeartBeat(generation);
+            }, KeyValueClient.HB_PERIOD_MS);
+        }
+
+        @Override
+        public void onSelected(@NonNull SelectionKey key) throws IOException {
+            if (!mConnected) {
+                if (key.isConnectable()) {
+                    try {
+                        if (mChannel.finishConnect()) {
+                            onConnected();
+                        }
+                    } catch (IOException e) {
+                        onConnectFailed(e.toString());
+                    }
+                }
+                return;
+            }
+            if (key.isReadable()) {
+                read();
+            }
+            if (mConnected && key.isValid() && key.isWritable()) {
+                flush();
+            }
+        }
+
+        private void read() throws IOException {
+            mInBuffer.clear();
+            int n = mChannel.read(mInBuffer);
+            if (n < 0) {
+                if (DEBUG) mLogger.d(TAG, "READ EOF");
+                onConnectionLost();
+                return;
+            }
+            mClient.getStatsListener().addBandwidthRXBytes(n);
+            mDecoder.feed(mInBuffer.array(), 0, n);
+            sendPendingResync();
+        }
+
+        /** Sends the resync delayed by the reconnect policy, or schedules it once due. */
+        private void sendPendingResync() {
+            long delay = mClient.sendPendingResync();
+            if (delay > 0 && !mResyncScheduled) {
+                mResyncScheduled = true;
+                final int generation = mGeneration;
+                mLoop.schedule(() -> {
+                    if (generation == mGeneration) {
+                        mResyncScheduled = false;
+                        sendPendingResync();
+                    }
+                }, delay);
+            }
+        }
+
+        /** Invoked by the client when a new frame has been queued, from any thread. */
+        private void requestWrite() {
+            if (mWritePending.compareAndSet(false, true)) {
+                mLoop.execute(this::flush);
+            }
+        }
+
+        /** Writes as much of the queued frames as the channel accepts without blocking. */
+        private void flush() {
+            if (!mConnected) {
+                mWritePending.set(false);
+                return;
+            }
+            try {
+                while (true) {
+                    if (!mWriter.write()) {
+                        // Socket buffer is full. Wait till the channel is writable again.
+                        mKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    // Nothing left to write.
+                    mKey.interestOps(SelectionKey.OP_READ);
+                    mWritePending.set(false);
+                    if (mStopping) {
+                        // The quit request has been written.
+                        onConnectionLost();
+                        return;
+                    }
+                    // A frame may have been queued between the last poll and the reset of the flag.
+                    if (!mClient.hasQueuedFrames() || !mWritePending.compareAndSet(false, true)) {
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                if (DEBUG) mLogger.d(TAG, "WRITE failed: " + e);
+                onConnectionLost();
+            }
+        }
+
+        @Override
+        public byte[] pollFrame() {
+            return mClient.pollFrame();
+        }
+
+        @Override
+        public void onFrameWritten(@NonNull byte[] frame, long nowNanos) {}
+
+        @Override
+        public void onBytesWritten(int count) {
+            if (count > 0) {
+                mClient.getStatsListener().addBandwidthTXBytes(count);
+            }
+        }
+
+        /** Invoked when the client is stopped: writes the quit request then closes the connection. */
+        void stop() {
+            mStopping = true;
+            if (!mConnected) {
+                closeChannel();
+                finish();
+                return;
+            }
+            final int generation = mGeneration;
+            mLoop.schedule(() -> {
+                if (generation == mGeneration) {
+                    onConnectionLost();
+                }
+            }, QUIT_TIMEOUT_MS);
+            flush();
+        }
+
+        /** Invoked by the loop on errors or when it stops. */
+        @Override
+        public void close() {
+            if (!mLoop.isRunning()) {
+                closeChannel();
+                finish();
+            } else if (mConnected) {
+                onConnectionLost();
+            } else {
+                onConnectFailed("closed");
+            }
+        }
+
+        private void onConnectionLost() {
+            boolean wasConnected = mConnected;
+            closeChannel();
+            if (wasConnected) {
+                mLogger.d(TAG, "Socket lost: | isRunning=" + mClient.isRunning());
+            }
+            if (mStopping || !mClient.isRunning() || !mLoop.isRunning()) {
+                finish();
+            } else {
+                // Spread the reconnections of clients which lost the same server.
+                mLoop.schedule(this::open, mClient.getReconnectPolicy().getRetryDelayMs(0));
+            }
+        }
+
+        private void closeChannel() {
+            mGeneration++;
+            if (mConnected) {
+                mConnected = false;
+                mNumConnected.decrementAndGet();
+                mClient.setOnQueued(null);
+                mClient.onConnectionClosed();
+            }
+            mResyncScheduled = false;
+            if (mKey != null) {
+                mKey.cancel();
+                mKey = null;
+            }
+            if (mChannel != null) {
+                try {
+                    mChannel.close();
+                } catch (IOException ignore) {}
+                mChannel = null;
+            }
+            if (mDecoder != null) {
+                mDecoder.close();
+                mDecoder = null;
+            }
+            if (mWriter != null) {
+                mWriter.close();
+                mWriter = null;
+            }
+            mWritePending.set(false);
+        }
+
+        /** Ends the session: the client no longer tries to connect. Can be called from any thread. */
+        void finish() {
+            mSessions.remove(mClient, this);
+            mClosed.countDown();
+        }
+    }
+}
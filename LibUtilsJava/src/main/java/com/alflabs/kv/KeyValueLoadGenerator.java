@@ -0,0 +1,364 @@
+/*
+ * Project: Lib Utils
+ * Copyright (C) 2017 alf.labs gmail com,
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.alflabs.kv;
+
+import com.alflabs.annotations.NonNull;
+import com.alflabs.annotations.Null;
+import com.alflabs.rx.Schedulers;
+import com.alflabs.utils.IClock;
+import com.alflabs.utils.ILogger;
+import com.alflabs.utils.JavaClock;
+import com.alflabs.utils.JavaLogger;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A load generator measuring the write throughput of a {@link KeyValueServer} and the latency of
+ * its broadcasts, entirely over the loopback interface.
+ * <p/>
+ * It starts a server and a number of {@link KeyValueClient}s. Each client writes random keys out of
+ * a fixed number of keys at a fixed rate. Values start with the {@link System#nanoTime()} of their
+ * write and are padded to the value size. Subscribers are notified of the values written by the
+ * other clients via {@link KeyValueClient#getChangedStream()}, and the time between the write and
+ * the notification is recorded in a {@link LatencyHistogram}. The other clients subscribe to a
+ * pattern matching no key, so the server does not broadcast anything to them.
+ * <p/>
+ * Values changing again before a subscriber is notified are only measured once, with the time of
+ * the last write. Nothing is measured during the warm-up, which lets connections and JIT settle.
+ * <p/>
+ * Usage from the command line, all the arguments being optional:
+ * <pre>
+ * java com.alflabs.kv.KeyValueLoadGenerator --clients=10 --rate=100 --keys=1000 --value-size=32
+ *      --subscribers=1.0 --duration=10 --warmup=2 --selector-loops=0 --partitions=1 --binary=false
+ * </pre>
+ */
+public final class KeyValueLoadGenerator {
+    private static final String TAG = KeyValueLoadGenerator.class.getSimpleName();
+
+    /** Prefix of all the keys written. */
+    static final String KEY_PREFIX = "load.";
+    /** Subscription pattern of the clients which are not subscribers, matching no key. */
+    private static final String NO_KEYS = "none";
+
+    @NonNull private final ILogger mLogger;
+    @NonNull private final IClock mClock = new JavaClock();
+    private int mNumClients = 10;
+    private int mWriteRate = 100;
+    private int mNumKeys = 1000;
+    private int mValueSize = 32;
+    private double mSubscriberRatio = 1;
+    private long mDurationMs = 10000;
+    private long mWarmupMs = 2000;
+    private int mSelectorLoops = 0;
+    private int mPartitions = 1;
+    private boolean mBinaryProtocol;
+
+    /** The results of a run. Latencies are in nanoseconds. */
+    public static final class Report {
+        private final long mWrites;
+        private final long mDurationMs;
+        @NonNull private final LatencyHistogram mLatency;
+        @NonNull private final KeyValueServerStats mServerStats;
+
+        Report(long writes, long durationMs, @NonNull LatencyHistogram latency, @NonNull KeyValueServerStats serverStats) {
+            mWrites = writes;
+            mDurationMs = durationMs;
+            mLatency = latency;
+            mServerStats = serverStats;
+        }
+
+        /** Returns the number of values written by all the clients. */
+        public long getWrites() {
+            return mWrites;
+        }
+
+        public long getDurationMs() {
+            return mDurationMs;
+        }
+
+        public double getWritesPerSecond() {
+            return mDurationMs == 0 ? 0 : mWrites * 1000.0 / mDurationMs;
+        }
+
+        /** Time between a write and the change notification of each subscriber. */
+        @NonNull
+        public LatencyHistogram getLatency() {
+            return mLatency;
+        }
+
+        @NonNull
+        public KeyValueServerStats getServerStats() {
+            return mServerStats;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("writes=%d (%.0f/s) notifications=%d latency p50=%dus p99=%dus p999=%dus max=%dus",
+                    mWrites,
+                    getWritesPerSecond(),
+                    mLatency.getCount(),
+                    TimeUnit.NANOSECONDS.toMicros(mLatency.getP50()),
+                    TimeUnit.NANOSECONDS.toMicros(mLatency.getP99()),
+                    TimeUnit.NANOSECONDS.toMicros(mLatency.getP999()),
+                    TimeUnit.NANOSECONDS.toMicros(mLatency.getMax()));
+        }
+    }
+
+    public KeyValueLoadGenerator(@NonNull ILogger logger) {
+        mLogger = logger;
+    }
+
+    public void setNumClients(int numClients) {
+        mNumClients = Math.max(1, numClients);
+    }
+
+    /** Sets the number of writes per second of each client, or zero to write as fast as possible. */
+    public void setWriteRate(int writesPerSecond) {
+        mWriteRate = Math.max(0, writesPerSecond);
+    }
+
+    /** Sets the number of distinct keys written by the clients. */
+    public void setNumKeys(int numKeys) {
+        mNumKeys = Math.max(1, numKeys);
+    }
+
+    /** Sets the length of the values, at least long enough to hold their write time. */
+    public void setValueSize(int valueSize) {
+        mValueSize = Math.max(0, valueSize);
+    }
+
+    /** Sets the fraction of the clients which are notified of all the changes, between 0 and 1. */
+    public void setSubscriberRatio(double ratio) {
+        mSubscriberRatio = Math.min(1, Math.max(0, ratio));
+    }
+
+    /** Sets how long to measure and how long to write before measuring. */
+    public void setDurationMs(long durationMs, long warmupMs) {
+        mDurationMs = Math.max(0, durationMs);
+        mWarmupMs = Math.max(0, warmupMs);
+    }
+
+    /** See {@link KeyValueServer#setSelectorLoops(int)}. */
+    public void setSelectorLoops(int numLoops) {
+        mSelectorLoops = numLoops;
+    }
+
+    /** See {@link KeyValueServer#setPartitions(int)}. */
+    public void setPartitions(int numPartitions) {
+        mPartitions = numPartitions;
+    }
+
+    /** See {@link KeyValueServer#setBinaryProtocol(boolean)}. */
+    public void setBinaryProtocol(boolean enabled) {
+        mBinaryProtocol = enabled;
+    }
+
+    /** Starts a server and the clients, writes for the warm-up and the duration, then stops everything. */
+    @NonNull
+    public Report run() throws IOException, InterruptedException {
+        KeyValueServerStats serverStats = new KeyValueServerStats();
+        KeyValueServer server = new KeyValueServer(mLogger);
+        server.setStatsListener(serverStats);
+        server.setSelectorLoops(mSelectorLoops);
+        server.setPartitions(mPartitions);
+        server.setBinaryProtocol(mBinaryProtocol);
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        InetSocketAddress address = server.start(loopback, 0 /*any port*/);
+        if (address == null) {
+            throw new IOException("Failed to start the server");
+        }
+        address = new InetSocketAddress(loopback, address.getPort());
+
+        LatencyHistogram latency = new LatencyHistogram();
+        AtomicLong writes = new AtomicLong();
+        AtomicBoolean measuring = new AtomicBoolean();
+        AtomicBoolean running = new AtomicBoolean(true);
+        List<KeyValueClient> clients = new ArrayList<>();
+        List<Thread> writers = new ArrayList<>();
+        try {
+            int numSubscribers = (int) Math.round(mNumClients * mSubscriberRatio);
+            for (int i = 0; i < mNumClients; i++) {
+                KeyValueClient client = new KeyValueClient(mClock, mLogger, address, new NoStats());
+                client.setBinaryProtocol(mBinaryProtocol);
+                clients.add(client);
+                if (i < numSubscribers) {
+                    client.getChangedStream().subscribe(Schedulers.sync(), (stream, key) -> {
+                        if (key == null || !measuring.get()) return;
+                        long written = parseWriteTime(client.getValue(key));
+                        if (written != 0) {
+                            latency.record(System.nanoTime() - written);
+                        }
+                    });
+                } else {
+                    client.subscribe(NO_KEYS);
+                }
+                if (!client.startSync()) {
+                    throw new IOException("Client " + i + " failed to connect to " + address);
+                }
+            }
+
+            for (int i = 0; i < mNumClients; i++) {
+                KeyValueClient client = clients.get(i);
+                Random random = new Random(i);
+                Thread writer = new Thread(() -> {
+                    long intervalNs = mWriteRate == 0 ? 0 : TimeUnit.SECONDS.toNanos(1) / mWriteRate;
+                    long next = System.nanoTime();
+                    while (running.get()) {
+                        if (intervalNs > 0) {
+                            // Paced against a fixed schedule so that slow writes don't lower the rate.
+                            next += intervalNs;
+                            long delay = next - System.nanoTime();
+                            if (delay > 0) {
+                                LockSupport.parkNanos(delay);
+                            }
+                        }
+                        String key = KEY_PREFIX + random.nextInt(mNumKeys);
+                        client.putValue(key, createValue(System.nanoTime(), mValueSize), true /*broadcast*/);
+                        if (measuring.get()) {
+                            writes.incrementAndGet();
+                        }
+                    }
+                }, TAG + "-writer-" + i);
+                writers.add(writer);
+                writer.start();
+            }
+
+            Thread.sleep(mWarmupMs);
+            measuring.set(true);
+            long start = System.nanoTime();
+            Thread.sleep(mDurationMs);
+            measuring.set(false);
+            long durationMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            return new Report(writes.get(), durationMs, latency, serverStats);
+
+        } finally {
+            running.set(false);
+            for (Thread writer : writers) {
+                writer.join();
+            }
+            for (KeyValueClient client : clients) {
+                client.stopSync();
+            }
+            server.stopSync();
+        }
+    }
+
+    /** Returns a value with the write time followed by padding, of the given size if it fits. */
+    @NonNull
+    static String createValue(long nanoTime, int size) {
+        StringBuilder sb = new StringBuilder(Math.max(size, 24));
+        sb.append(nanoTime).append(' ');
+        while (sb.length() < size) {
+            sb.append('x');
+        }
+        return sb.toString();
+    }
+
+    /** Returns the write time of a value created by {@link #createValue}, or zero if invalid. */
+    static long parseWriteTime(@Null String value) {
+        if (value == null) return 0;
+        int end = value.indexOf(' ');
+        if (end <= 0) return 0;
+        try {
+            return Long.parseLong(value.substring(0, end));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static class NoStats implements KeyValueClient.IStatsListener {
+        @Override
+        public void addBandwidthTXBytes(int count) {}
+
+        @Override
+        public void addBandwidthRXBytes(int count) {}
+
+        @Override
+        public void setMessage(@Null String msg) {}
+
+        @Override
+        public void HBLatencyRequestSent() {}
+
+        @Override
+        public void HBLatencyReplyReceived() {}
+    }
+
+    public static void main(String[] args) throws Exception {
+        KeyValueLoadGenerator generator = new KeyValueLoadGenerator(new JavaLogger());
+        long durationMs = generator.mDurationMs;
+        long warmupMs = generator.mWarmupMs;
+        for (String arg : args) {
+            String[] fields = arg.split("=", 2);
+            if (fields.length != 2 || !fields[0].startsWith("--")) {
+                throw new IllegalArgumentException("Invalid argument: " + arg);
+            }
+            String value = fields[1];
+            switch (fields[0]) {
+                case "--clients":
+                    generator.setNumClients(Integer.parseInt(value));
+                    break;
+                case "--rate":
+                    generator.setWriteRate(Integer.parseInt(value));
+                    break;
+                case "--keys":
+                    generator.setNumKeys(Integer.parseInt(value));
+                    break;
+                case "--value-size":
+                    generator.setValueSize(Integer.parseInt(value));
+                    break;
+                case "--subscribers":
+                    generator.setSubscriberRatio(Double.parseDouble(value));
+                    break;
+                case "--duration":
+                    durationMs = TimeUnit.SECONDS.toMillis(Long.parseLong(value));
+                    break;
+                case "--warmup":
+                    warmupMs = TimeUnit.SECONDS.toMillis(Long.parseLong(value));
+                    break;
+                case "--selector-loops":
+                    generator.setSelectorLoops(Integer.parseInt(value));
+                    break;
+                case "--partitions":
+                    generator.setPartitions(Integer.parseInt(value));
+                    break;
+                case "--binary":
+                    generator.setBinaryProtocol(Boolean.parseBoolean(value));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown argument: " + arg + ", expected one of "
+                            + Arrays.asList("--clients", "--rate", "--keys", "--value-size", "--subscribers",
+                            "--duration", "--warmup", "--selector-loops", "--partitions", "--binary"));
+            }
+        }
+        generator.setDurationMs(durationMs, warmupMs);
+        Report report = generator.run();
+        System.out.println(report);
+        System.out.println("server: " + report.getServerStats());
+    }
+}
@@ -0,0 +1,485 @@
+/*
+ * Project: Lib Utils
+ * Copyright (C) 2017 alf.labs gmail com,
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.alflabs.kv;
+
+import com.alflabs.annotations.NonNull;
+import com.alflabs.annotations.Null;
+import com.alflabs.utils.FileOps;
+import com.alflabs.utils.ILogger;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Persists a {@link KeyValueProtocol} store using a write-ahead log and compacted snapshots.
+ * <p/>
+ * Every change of the store is appended to the current log file. Once enough changes have been
+ * logged, a snapshot of the whole store is written and older log files are deleted. On open the
+ * store is recovered by mapping the snapshot in memory then replaying the log files written after
+ * it. The snapshot is not loaded: the store serves reads straight from the mapped file and keeps
+ * the changes in memory on top of it, so opening does not depend on the size of the snapshot.
+ * <p/>
+ * Files are named after the base file: {@code base.snap} is the snapshot and {@code base.N.log}
+ * are the log files, where N is a generation number incremented on each compaction. The snapshot
+ * indicates the first log generation to replay. Snapshots are written to a temporary file which
+ * is synced then renamed, so a crash leaves either the previous or the new snapshot.
+ * <p/>
+ * Snapshots use the {@link MappedSnapshot} format with a sorted key index.
+ * Log files are a sequence of records. A record is a binary frame as defined in {@link FrameCodec}
+ * followed by the 4-byte big-endian CRC32 of the frame. A truncated or corrupted record at the end
+ * of a log, e.g. a write interrupted by a crash, ends the replay of that log.
+ * <ul>
+ * <li> {@code W key value}: sets the key to that value.
+ * <li> {@code X key}: removes the key.
+ * </ul>
+ * Log records are added to an in-memory buffer and written by a group commit: writers which need
+ * their record to be synced wait while a single thread writes and syncs all the pending records.
+ * The {@link SyncPolicy} controls when records are synced to the storage device.
+ * <p/>
+ * This uses {@link FileOps} for all file accesses, which allows tests to use a fake file system.
+ */
+public class KeyValuePersistence {
+    private static final String TAG = KeyValuePersistence.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    /** When to sync log records to the storage device. */
+    public enum SyncPolicy {
+        /** Writers wait till their record is synced. Concurrent writers share the same sync. */
+        EVERY_WRITE,
+        /** Records are written and synced by a background thread every N milliseconds. */
+        INTERVAL,
+        /** Records are written right away without syncing, leaving it to the OS. */
+        NEVER
+    }
+
+    static final char OP_SET = 'W';
+    static final char OP_REMOVE = 'X';
+
+    @NonNull private final ILogger mLogger;
+    @NonNull private final FileOps mFileOps;
+    @NonNull private final File mBaseFile;
+    private volatile SyncPolicy mSyncPolicy = SyncPolicy.INTERVAL;
+    private volatile long mSyncIntervalMs = 100;
+    private volatile int mCompactionThreshold = 10000;
+
+    /** Lock for the pending records and the background thread requests. */
+    private final Object mLock = new Object();
+    /** Records not written yet. Guarded by {@link #mLock}. */
+    private final ByteArrayOutputStream mPending = new ByteArrayOutputStream();
+    /** Number of records appended since open. Guarded by {@link #mLock}. */
+    private long mAppended;
+    /** Number of records appended since the last snapshot. Guarded by {@link #mLock}. */
+    private int mSinceSnapshot;
+    /** Guarded by {@link #mLock}. */
+    private boolean mCompactionRequested;
+
+    /** Lock held while writing to the log file. Only one thread writes at a time. */
+    private final Object mCommitLock = new Object();
+    /** Number of records written to the log file. Guarded by {@link #mCommitLock}. */
+    private long mCommitted;
+    /** The current log file. Guarded by {@link #mCommitLock}. */
+    @Null private OutputStream mLog;
+    /** Generation of the current log file. Guarded by {@link #mCommitLock}. */
+    private int mGeneration;
+
+    /** Lock held during a compaction. */
+    private final Object mCompactLock = new Object();
+    /** First log generation needed by the snapshot. Guarded by {@link #mCompactLock}. */
+    private int mSnapshotGeneration;
+
+    @Null private volatile KeyValueProtocol mProtocol;
+    @Null private volatile Thread mThread;
+
+    /**
+     * Creates a new persistence for the given base file. The files are only accessed once
+     * the persistence is opened.
+     */
+    public KeyValuePersistence(@NonNull ILogger logger, @NonNull FileOps fileOps, @NonNull File baseFile) {
+        mLogger = logger;
+        mFileOps = fileOps;
+        mBaseFile = baseFile;
+    }
+
+    /**
+     * Sets when log records are synced to the storage device. Default is {@link SyncPolicy#INTERVAL}
+     * with 100 ms. Must be called before the persistence is opened.
+     *
+     * @param policy The sync policy.
+     * @param intervalMs The interval between syncs, only used with {@link SyncPolicy#INTERVAL}.
+     */
+    public void setSyncPolicy(@NonNull SyncPolicy policy, long intervalMs) {
+        mSyncPolicy = policy;
+        mSyncIntervalMs = Math.max(1, intervalMs);
+    }
+
+    @NonNull
+    public SyncPolicy getSyncPolicy() {
+        return mSyncPolicy;
+    }
+
+    /**
+     * Sets the number of log records after which a new snapshot is written by the background
+     * thread. Default is 10000. Zero disables the automatic compaction.
+     */
+    public void setCompactionThreshold(int numRecords) {
+        mCompactionThreshold = Math.max(0, numRecords);
+    }
+
+    public boolean isOpen() {
+        return mProtocol != null;
+    }
+
+    /**
+     * Recovers the store from the snapshot and log files into the given protocol, then logs all
+     * the subsequent changes of the protocol store. Changes are logged to a new log file. When
+     * log files were replayed, a new snapshot is written in the background so that the next
+     * recovery does not need to replay them again.
+     * <p/>
+     * The recovered values are set without broadcast and should be loaded before clients connect.
+     * When the protocol store is empty, it is backed by the mapped snapshot file. Otherwise the
+     * snapshot values are copied over the existing ones.
+     */
+    void open(@NonNull KeyValueProtocol protocol) throws IOException {
+        if (mProtocol != null) return;
+        mFileOps.createParentDirs(mBaseFile);
+
+        int generation = 0;
+        File snapshot = getSnapshotFile();
+        if (mFileOps.isFile(snapshot)) {
+            generation = loadSnapshot(protocol, snapshot);
+        }
+        int first = generation;
+        while (mFileOps.isFile(getLogFile(generation))) {
+            replayLog(protocol, getLogFile(generation));
+            generation++;
+        }
+
+        synchronized (mCompactLock) {
+            synchronized (mCommitLock) {
+                mGeneration = generation;
+                mLog = mFileOps.openOutputStream(getLogFile(generation), false /*append*/);
+            }
+            mSnapshotGeneration = first;
+        }
+        synchronized (mLock) {
+            mCompactionRequested = generation > first;
+        }
+
+        mProtocol = protocol;
+        protocol.setChangeLog(this::onKeyChanged);
+
+        Thread thread = new Thread(this::runLoop, TAG + "-Thread");
+        thread.setDaemon(true);
+        mThread = thread;
+        thread.start();
+    }
+
+    /**
+     * Stops logging changes, then writes and syncs all the pending records and closes the log file.
+     */
+    void close() {
+        KeyValueProtocol protocol = mProtocol;
+        if (protocol == null) return;
+        protocol.setChangeLog(null);
+        mProtocol = null;
+
+        Thread thread;
+        synchronized (mLock) {
+            thread = mThread;
+            mThread = null;
+            mLock.notifyAll();
+        }
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                mLogger.d(TAG, "close: join interrupted: " + e);
+            }
+        }
+
+        synchronized (mCommitLock) {
+            try {
+                commit(Long.MAX_VALUE, true /*sync*/);
+            } catch (IOException e) {
+                mLogger.d(TAG, "close: commit failed: " + e);
+            }
+            if (mLog != null) {
+                try {
+                    mLog.close();
+                } catch (IOException e) {
+                    mLogger.d(TAG, "close: " + e);
+                }
+                mLog = null;
+            }
+        }
+    }
+
+    /** Writes and syncs all the pending records. */
+    public void flush() throws IOException {
+        commit(Long.MAX_VALUE, true /*sync*/);
+    }
+
+    /**
+     * Writes a snapshot of the store and deletes the log files which are no longer needed.
+     * This is normally done by the background thread, see {@link #setCompactionThreshold(int)}.
+     */
+    public void compact() throws IOException {
+        KeyValueProtocol protocol = mProtocol;
+        if (protocol == null) return;
+
+        synchronized (mCompactLock) {
+            Map<String, String> snapshot;
+            int generation;
+            synchronized (mCommitLock) {
+                if (mLog == null) return;
+                byte[] data;
+                long appended;
+                synchronized (mLock) {
+                    // Records appended from now on go to the new log file, and any change they
+                    // log is either in this snapshot or re-logged after it.
+                    snapshot = protocol.getSnapshot();
+                    data = mPending.toByteArray();
+                    mPending.reset();
+                    appended = mAppended;
+                    mSinceSnapshot = 0;
+                    mCompactionRequested = false;
+                }
+                // The old log file is needed till the new snapshot is written.
+                mLog.write(data);
+                mFileOps.sync(mLog);
+                mLog.close();
+                mCommitted = appended;
+                generation = ++mGeneration;
+                mLog = mFileOps.openOutputStream(getLogFile(generation), false /*append*/);
+            }
+
+            writeSnapshot(snapshot, generation);
+        }
+    }
+
+    /** Logs the current value of the key. Called by the protocol after the key changed. */
+    private void onKeyChanged(@NonNull String key) {
+        KeyValueProtocol protocol = mProtocol;
+        if (protocol == null) return;
+        long ticket;
+        synchronized (mLock) {
+            // The value is read under the lock so that the last record of a key always has
+            // the latest value, even when concurrent writers log in a different order.
+            String value = protocol.getValue(key);
+            byte[] frame = value == null
+                    ? FrameCodec.encodeFrame(OP_REMOVE, key, "")
+                    : FrameCodec.encodeFrame(OP_SET, key, value);
+            appendRecord(mPending, frame);
+            ticket = ++mAppended;
+            int threshold = mCompactionThreshold;
+            if (threshold > 0 && ++mSinceSnapshot >= threshold && !mCompactionRequested) {
+                mCompactionRequested = true;
+                mLock.notifyAll();
+            }
+        }
+
+        SyncPolicy policy = mSyncPolicy;
+        if (policy == SyncPolicy.INTERVAL) return;
+        try {
+            commit(ticket, policy == SyncPolicy.EVERY_WRITE);
+        } catch (IOException e) {
+            mLogger.d(TAG, "Log write failed for " + key + ": " + e);
+        }
+    }
+
+    /**
+     * Writes all the pending records unless the given record ticket has already been written.
+     * <p/>
+     * This is the group commit: while one thread writes and syncs, the other writers append
+     * their records and wait for the commit lock. The next one to get it writes all of them.
+     */
+    private void commit(long ticket, boolean sync) throws IOException {
+        synchronized (mCommitLock) {
+            if (mCommitted >= ticket || mLog == null) return;
+            byte[] data;
+            long appended;
+            synchronized (mLock) {
+                data = mPending.toByteArray();
+                mPending.reset();
+                appended = mAppended;
+            }
+            if (mCommitted == appended) return;
+            mLog.write(data);
+            if (sync) {
+                mFileOps.sync(mLog);
+            } else {
+                mLog.flush();
+            }
+            mCommitted = appended;
+        }
+    }
+
+    /** Background thread: syncs the log with the INTERVAL policy and runs the compactions. */
+    private void runLoop() {
+        if (DEBUG) mLogger.d(TAG, "thread [start]");
+        while (true) {
+            boolean compact;
+            synchronized (mLock) {
+                if (mThread != Thread.currentThread()) break;
+                if (!mCompactionRequested) {
+                    try {
+                        if (mSyncPolicy == SyncPolicy.INTERVAL) {
+                            mLock.wait(mSyncIntervalMs);
+                        } else {
+                            mLock.wait();
+                        }
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+                compact = mCompactionRequested;
+            }
+            try {
+                if (mSyncPolicy == SyncPolicy.INTERVAL) {
+                    flush();
+                }
+                if (compact) {
+                    compact();
+                }
+            } catch (IOException e) {
+                mLogger.d(TAG, "thread: " + e);
+            }
+        }
+        if (DEBUG) mLogger.d(TAG, "thread [end]");
+    }
+
+    /**
+     * Writes a snapshot starting at the given log generation then deletes the older log files.
+     * Must be called with {@link #mCompactLock} held.
+     */
+    private void writeSnapshot(@NonNull Map<String, String> snapshot, int generation) throws IOException {
+        File tmp = new File(mBaseFile.getPath() + ".snap.tmp");
+        try (OutputStream out = mFileOps.openOutputStream(tmp, false /*append*/)) {
+            BufferedOutputStream buffered = new BufferedOutputStream(out, 65536);
+            MappedSnapshot.write(buffered, snapshot, generation);
+            buffered.flush();
+            mFileOps.sync(out);
+        }
+        mFileOps.rename(tmp, getSnapshotFile());
+
+        for (int g = mSnapshotGeneration; g < generation; g++) {
+            mFileOps.delete(getLogFile(g));
+        }
+        mSnapshotGeneration = generation;
+        if (DEBUG) mLogger.d(TAG, "Snapshot: " + snapshot.size() + " keys, generation " + generation);
+    }
+
+    /** Maps the snapshot in the protocol and returns the first log generation to replay. */
+    private int loadSnapshot(@NonNull KeyValueProtocol protocol, @NonNull File file) throws IOException {
+        MappedSnapshot snapshot;
+        try {
+            snapshot = MappedSnapshot.open(mFileOps.mapReadOnly(file));
+        } catch (IOException e) {
+            throw new IOException(e.getMessage() + ": " + file, e);
+        }
+        if (protocol.getSnapshot().isEmpty()) {
+            protocol.setBase(snapshot);
+        } else {
+            for (Map.Entry<String, String> entry : snapshot.entrySet()) {
+                protocol.putValue(entry.getKey(), entry.getValue());
+            }
+        }
+        return snapshot.getGeneration();
+    }
+
+    /** Replays the records of a log file in the protocol. */
+    private void replayLog(@NonNull KeyValueProtocol protocol, @NonNull File file) throws IOException {
+        byte[] data = mFileOps.readBytes(file);
+        int[] pos = new int[1];
+        String[] kv = new String[2];
+        int count = 0;
+        while (pos[0] < data.length) {
+            char op = readRecord(data, pos, kv);
+            if (op == OP_SET) {
+                protocol.putValue(kv[0], kv[1]);
+            } else if (op == OP_REMOVE) {
+                protocol.putValue(kv[0], null);
+            } else {
+                mLogger.d(TAG, "Ignoring " + (data.length - pos[0]) + " bytes of truncated log " + file);
+                break;
+            }
+            count++;
+        }
+        if (DEBUG) mLogger.d(TAG, "Replayed " + count + " records from " + file);
+    }
+
+    @NonNull
+    File getSnapshotFile() {
+        return new File(mBaseFile.getPath() + ".snap");
+    }
+
+    @NonNull
+    File getLogFile(int generation) {
+        return new File(mBaseFile.getPath() + "." + generation + ".log");
+    }
+
+    private static void appendRecord(@NonNull ByteArrayOutputStream out, @NonNull byte[] frame) {
+        CRC32 crc = new CRC32();
+        crc.update(frame, 0, frame.length);
+        long value = crc.getValue();
+        out.write(frame, 0, frame.length);
+        out.write((int) (value >>> 24));
+        out.write((int) (value >>> 16));
+        out.write((int) (value >>> 8));
+        out.write((int) value);
+    }
+
+    /**
+     * Reads the record at pos[0], stores its key and value in kv and returns its op.
+     * Returns 0 if the record is truncated or corrupted, in which case pos[0] is not changed.
+     */
+    static char readRecord(@NonNull byte[] data, @NonNull int[] pos, @NonNull String[] kv) {
+        int start = pos[0];
+        int end = data.length;
+        int[] p = { start + 1 };
+        if (p[0] > end) return 0;
+        int keyLen = FrameCodec.readVarint(data, p, end);
+        if (keyLen < 0 || p[0] + keyLen > end) return 0;
+        int keyStart = p[0];
+        p[0] += keyLen;
+        int valueLen = FrameCodec.readVarint(data, p, end);
+        if (valueLen < 0 || p[0] + valueLen + 4 > end) return 0;
+        int valueStart = p[0];
+        int frameEnd = valueStart + valueLen;
+
+        CRC32 crc = new CRC32();
+        crc.update(data, start, frameEnd - start);
+        long expected = ((data[frameEnd] & 0xFFL) << 24)
+                | ((data[frameEnd + 1] & 0xFFL) << 16)
+                | ((data[frameEnd + 2] & 0xFFL) << 8)
+                | (data[frameEnd + 3] & 0xFFL);
+        if (crc.getValue() != expected) return 0;
+
+        kv[0] = new String(data, keyStart, keyLen, StandardCharsets.UTF_8);
+        kv[1] = new String(data, valueStart, valueLen, StandardCharsets.UTF_8);
+        pos[0] = frameEnd + 4;
+        return (char) (data[start] & 0xFF);
+    }
+}
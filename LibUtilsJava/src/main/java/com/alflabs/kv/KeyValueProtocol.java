@@ -20,22 +20,34 @@ package com.alflabs.kv;
 
 import com.alflabs.annotations.NonNull;
 import com.alflabs.annotations.Null;
+import com.alflabs.func.RConsumer;
 import com.alflabs.rx.IPublisher;
 import com.alflabs.rx.IStream;
 import com.alflabs.rx.Publishers;
 import com.alflabs.rx.Schedulers;
 import com.alflabs.rx.Streams;
+import com.alflabs.utils.IClock;
 import com.alflabs.utils.ILogger;
+import com.alflabs.utils.JavaClock;
 
 import java.io.IOException;
-import java.util.Arrays;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * Protocol is text & line-oriented. <br/>
+ * Protocol is text & line-oriented, with an optional binary framing. <br/>
  * <pre>
  * All communication should be UTF-8.
  * Server > Client.
@@ -53,6 +65,50 @@ import java.util.TreeMap;
  * - Client writes value: "Wname:value".
  * - Client ping for keep-alives: "PSstring" (ping send) ==> server replies with PR (ping reply) + rest of the line.
  * - Client close: "Q" ==> server closes this client connection.
+ * - Server sync marker: "Sposition" ==> the client received all changes up to that position (see below).
+ * - Client resync: "Sposition" ==> server replies with the values changed since that position then a sync marker.
+ * - Client subscribe: "Fpattern" ==> server only broadcasts changes of keys matching one of the client's patterns.
+ *   Patterns are key names which can contain the '*' and '?' glob wildcards, e.g. "block.*".
+ *   By default clients receive all changes. "F" without a pattern clears all patterns and restores this default.
+ *   Subscriptions only filter broadcasts, not replies to read or resync requests.
+ * - Batch write: "Bcount" followed by count "Wname:value" lines ==> all the values are applied atomically.
+ *   The server relays a batch as a batch. Older peers ignore the "B" line and apply each value on its own.
+ * - Time-to-live: "Tname:ms" ==> the key is removed once that many milliseconds elapsed, "Tname:0" cancels it.
+ *   It's sent before the "W" of the value, which keeps the key alive when refreshed just before it expires.
+ *   The TTL belongs to the key: writing a value does not change it. Only the server expires keys and
+ *   broadcasts their removal like any other removal. Older servers ignore the "T" line.
+ * </pre><pre>
+ * Feature negotiation:
+ * - Client request: "JuniorDayModelClient:version:feature,feature..." sent right after connecting.
+ *   Older servers ignore it and the connection stays in plain text.
+ * - Server reply: "JuniorDayModelAccept:feature,..." with the subset of features it accepts, possibly none.
+ *   This is the last text line sent by the server, which then applies these features to what it sends.
+ * - Client reply: "JuniorDayModelAccept:feature,..." with the same features.
+ *   This is the last text line sent by the client, which then applies these features to what it sends.
+ *   Each side applies the features to what it receives once it has received the other side's Accept line.
+ * </pre><pre>
+ * Binary framing ("bin" feature):
+ * Each frame is an opcode byte with the same letter as the text command, followed by the varint
+ * length & UTF-8 bytes of the key, then the varint length & UTF-8 bytes of the value.
+ * See {@link FrameCodec}. Ping frames use "S" or "R" as the key. Keys and values are not trimmed
+ * and values can contain any characters, including EOLs. When a value containing EOLs is sent to
+ * a text-only peer, the EOLs are replaced by spaces.
+ * </pre><pre>
+ * Compression ("zip" feature, only with "bin"):
+ * Once binary frames are used, each side can send "Z" frames holding a chunk of a deflate stream
+ * which carries regular binary frames. There is a single deflate stream per connection and direction,
+ * sync-flushed at the end of each chunk. Small bursts of frames are sent uncompressed, which is why
+ * "Z" frames are interleaved with regular frames. See {@link FrameCompressor}.
+ * </pre><pre>
+ * Incremental resync ("seq" feature):
+ * Every change of the store gets a monotonically increasing sequence number. A position is "epoch:seq"
+ * where the epoch identifies the store instance, so positions of a restarted server are never reused.
+ * - The server sends a sync marker "Sposition" after each "R*" dump and, when the position has moved,
+ *   after each ping reply. Markers are sent once all changes up to that position have been sent.
+ * - A reconnecting client sends "Sposition" with the last marker it received. If the server still
+ *   has the history since that position, it only replies with the values changed since, otherwise
+ *   with all values like "R*". Both end with a new sync marker.
+ * Removed keys are sent with an empty value.
  * </pre>
  * The protocol object actually holds the current state of all key-values in a map. <br/>
  * It provides the logic to decode command lines received from the network. <br/>
@@ -94,25 +150,117 @@ public class KeyValueProtocol {
     private static final boolean DEBUG = false;
     private static final boolean DEBUG_VERBOSE = false;
 
+    /** Name of the version line sent by the server when a client connects. */
+    static final String SERVER_NAME = "JuniorDayModelServer";
+    /** Name of the version line sent by the client to request features. */
+    static final String CLIENT_NAME = "JuniorDayModelClient";
+    /** Name of the version line sent by both sides to end the feature negotiation. */
+    static final String ACCEPT_NAME = "JuniorDayModelAccept";
+    /** Feature: binary length-prefixed frames. */
+    public static final String FEATURE_BINARY = "bin";
+    /** Feature: sequence-numbered incremental resync. */
+    public static final String FEATURE_RESYNC = "seq";
+    /** Feature: deflate compression of the binary frames. */
+    public static final String FEATURE_COMPRESS = "zip";
+    /** Resolution of the TTLs, see {@link #expireKeys()}. */
+    public static final long EXPIRY_TICK_MS = 100;
+    /** Number of slots of the expiry wheel: TTLs up to about 100 seconds expire in a single turn. */
+    private static final int EXPIRY_SLOTS = 1024;
+
+    /**
+     * A partition of the store: the keys it holds are given by {@link PartitionedMap#indexOf}.
+     * <p/>
+     * The current snapshot of the values of the partition is an immutable map: writers atomically
+     * replace it by a new map which shares most of its nodes with the previous one. Reads never lock
+     * and any snapshot can be iterated in key order while writers keep going.
+     * <p/>
+     * The store can also be loaded from a read-only base, e.g. a memory-mapped snapshot file, in which
+     * case the maps only hold the changes made on top of that base.
+     */
+    private static final class Partition {
+        final AtomicReference<LayeredMap> mValues;
+        /**
+         * Held by writers while they replace the snapshot, only when there are several partitions.
+         * Holding the locks of all the partitions gives a consistent view of the whole store.
+         */
+        final ReentrantLock mLock = new ReentrantLock();
+        /** Notified of the batches of this partition, see {@link #getBatchChangedStream(int)}. */
+        final IStream<Set<String>> mBatchChangedStream;
+        final IPublisher<Set<String>> mBatchChangedPublisher;
+
+        Partition(
+                @NonNull LayeredMap values,
+                @NonNull IStream<Set<String>> batchChangedStream,
+                @NonNull IPublisher<Set<String>> batchChangedPublisher) {
+            mValues = new AtomicReference<>(values);
+            mBatchChangedStream = batchChangedStream;
+            mBatchChangedPublisher = batchChangedPublisher;
+        }
+    }
+
     /**
-     * Synchronized value map. <br/>
-     * Simple operations are synchronized by the collection on the map itself.
-     * Non-"atomic" operations such as iterators much synchronize on the map itself.
-     * The map is a tree map so iterator is stable on the key ordering.
+     * The partitions of the store, a single one by default. <br/>
+     * With a single partition, writes never block readers nor each other. With several partitions,
+     * writes only block the writes of the same partitions and the snapshots of the whole store.
      */
-    private final Map<String, String> mValues = Collections.synchronizedMap(new TreeMap<String, String>());
+    @NonNull private volatile Partition[] mPartitions;
     @NonNull private final ILogger mLogger;
     private int mServerVersion = 0;
+    /** Features enabled locally, i.e. requested by a client or accepted by a server. */
+    private final Set<String> mFeatures = new CopyOnWriteArraySet<>();
+    /** Identifies this store instance in sync positions. */
+    private final String mEpoch = Long.toString(new Random().nextLong() & Long.MAX_VALUE, 36);
+    /**
+     * Sequence number of the last change. It's incremented after the change has been applied to
+     * the store, so all changes up to the value read have been applied.
+     */
+    private final AtomicLong mSeq = new AtomicLong();
+    /** Lock for the history, only used by writers when the history is enabled. */
+    private final Object mHistoryLock = new Object();
+    /**
+     * Sequence number of the last change of each key, in sequence order. Null when the history
+     * is disabled. Guarded by {@link #mHistoryLock}.
+     */
+    @Null private volatile ResyncHistory mHistory;
+    /** Changes which are being broadcast. Guarded by {@link #mHistoryLock}. */
+    private final TreeSet<Long> mInFlight = new TreeSet<>();
+    /** The last sync marker received from the server. */
+    private volatile String mSyncPosition;
+    /** Notified of all the changes of the store, e.g. to persist them. */
+    @Null private volatile IChangeLog mChangeLog;
+    @Null private volatile IWriteForwarder mWriteForwarder;
+    @NonNull private final IClock mClock;
+    /** Canonical strings of the keys received from the network. */
+    private final KeyTable mKeyTable = new KeyTable(KeyTable.DEFAULT_MAX_KEYS);
+    /** Lock for the TTLs, only used by writers of TTLs and by {@link #expireKeys()}. */
+    private final Object mExpiryLock = new Object();
+    /** Deadlines of the keys with a TTL, created on the first TTL. Guarded by {@link #mExpiryLock}. */
+    @Null private ExpiryWheel mExpiry;
+    /** Notified when a TTL is set, see {@link #setTtlListener(Runnable)}. */
+    @Null private volatile Runnable mTtlListener;
 
     private final IStream<String> mChangedStream = Streams.stream();
     private final IPublisher<String> mChangedPublisher = Publishers.publisher();
+    private final IStream<Set<String>> mBatchChangedStream = Streams.stream();
+    private final IPublisher<Set<String>> mBatchChangedPublisher = Publishers.publisher();
 
     /** Creates a new {@link KeyValueProtocol} with the specified logger. */
     public KeyValueProtocol(@NonNull ILogger logger) {
+        this(logger, new JavaClock());
+    }
+
+    /** Creates a new {@link KeyValueProtocol} with the specified logger and the clock used by TTLs. */
+    public KeyValueProtocol(@NonNull ILogger logger, @NonNull IClock clock) {
         mLogger = logger;
+        mClock = clock;
         mChangedStream
                 .on(Schedulers.sync())
                 .publishWith(mChangedPublisher);
+        mBatchChangedStream
+                .on(Schedulers.sync())
+                .publishWith(mBatchChangedPublisher);
+        mPartitions = new Partition[] {
+                new Partition(LayeredMap.EMPTY, mBatchChangedStream, mBatchChangedPublisher) };
     }
 
     /**
@@ -125,16 +273,125 @@ public class KeyValueProtocol {
         return mChangedStream;
     }
 
-    /** Returns all the keys available. */
+    /**
+     * Retrieves the stream notified once per write command or batch which changed the store.
+     * The published set has the names of the keys that changed, a single one for a write command.
+     * <p/>
+     * A batch is fully applied before any notification, so observers never see a partial batch.
+     * The batch stream is notified first, then {@link #getChangedStream()} once per key.
+     */
+    @NonNull
+    public IStream<Set<String>> getBatchChangedStream() {
+        return mBatchChangedStream;
+    }
+
+    /**
+     * Retrieves the stream notified of the batches of one partition, see {@link #setPartitions(int)}.
+     * A batch changing several partitions is only published on the stream of the partition of its
+     * first key. With a single partition, this is the {@link #getBatchChangedStream()}.
+     * <p/>
+     * The streams of different partitions are published independently, without sharing any queue.
+     */
+    @NonNull
+    IStream<Set<String>> getBatchChangedStream(int partition) {
+        return mPartitions[partition].mBatchChangedStream;
+    }
+
+    /**
+     * Splits the store in numPartitions partitions, each with its own lock and batch stream.
+     * <p/>
+     * Keys are hashed across the partitions, and writes of keys in different partitions proceed in
+     * parallel. Batches lock all the partitions they change, in index order, and are still atomic.
+     * Snapshots briefly lock all the partitions to read them at once, so {@link #getKeys()},
+     * {@link #getSnapshot()} and "R*" are still consistent point-in-time views of the whole store.
+     * With a single partition, the default, writes and snapshots never lock.
+     * <p/>
+     * Must be called before the store is shared with other threads. The current values are moved
+     * to the new partitions, without being logged or broadcast.
+     */
+    public void setPartitions(int numPartitions) {
+        numPartitions = Math.max(1, numPartitions);
+        if (numPartitions == mPartitions.length) return;
+        Map<String, String> values = getSnapshot();
+        Partition[] partitions = new Partition[numPartitions];
+        if (numPartitions == 1) {
+            partitions[0] = new Partition(LayeredMap.EMPTY, mBatchChangedStream, mBatchChangedPublisher);
+        } else {
+            for (int i = 0; i < numPartitions; i++) {
+                IStream<Set<String>> stream = Streams.stream();
+                IPublisher<Set<String>> publisher = Publishers.publisher();
+                stream.on(Schedulers.sync()).publishWith(publisher);
+                partitions[i] = new Partition(LayeredMap.EMPTY, stream, publisher);
+            }
+        }
+        copyValues(partitions, values);
+        mPartitions = partitions;
+    }
+
+    public int getPartitions() {
+        return mPartitions.length;
+    }
+
+    @NonNull
+    private static Partition getPartition(@NonNull Partition[] partitions, @NonNull String key) {
+        return partitions.length == 1
+                ? partitions[0]
+                : partitions[PartitionedMap.indexOf(key, partitions.length)];
+    }
+
+    private static void copyValues(@NonNull Partition[] partitions, @NonNull Map<String, String> values) {
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            Partition partition = getPartition(partitions, entry.getKey());
+            partition.mValues.set(partition.mValues.get().with(entry.getKey(), entry.getValue()));
+        }
+    }
+
+    /** Returns all the keys available. This is an immutable point-in-time snapshot, sorted by key. */
     @NonNull
     public Set<String> getKeys() {
-        return Collections.unmodifiableSet(mValues.keySet());
+        return getSnapshot().keySet();
+    }
+
+    /**
+     * Returns an immutable point-in-time snapshot of all the key-values, sorted by key.
+     * With a single partition, this is O(1) and never blocks writers, which makes it suitable
+     * for full dumps or backups. With several partitions, this briefly blocks writers to read the
+     * snapshots of all the partitions, and iterating merges them.
+     */
+    @NonNull
+    public Map<String, String> getSnapshot() {
+        Partition[] partitions = mPartitions;
+        if (partitions.length == 1) {
+            return partitions[0].mValues.get();
+        }
+        List<Map<String, String>> maps = new ArrayList<>(partitions.length);
+        lockAll(partitions, partitions.length);
+        try {
+            for (Partition partition : partitions) {
+                maps.add(partition.mValues.get());
+            }
+        } finally {
+            unlockAll(partitions, partitions.length);
+        }
+        return new PartitionedMap(maps);
+    }
+
+    private static void lockAll(@NonNull Partition[] partitions, int count) {
+        for (int i = 0; i < count; i++) {
+            partitions[i].mLock.lock();
+        }
+    }
+
+    private static void unlockAll(@NonNull Partition[] partitions, int count) {
+        for (int i = count - 1; i >= 0; i--) {
+            partitions[i].mLock.unlock();
+        }
     }
 
     /** Returns the value for the given key or null if it doesn't exist. */
     @Null
     public String getValue(@NonNull String key) {
-        return mValues.get(key);
+        return getPartition(mPartitions, key).mValues.get().get(key);
     }
 
     /**
@@ -142,15 +399,366 @@ public class KeyValueProtocol {
      * Returns true if the value has been changed.
      */
     public boolean putValue(@NonNull String key, @Null String value) {
-        synchronized (mValues) {
-            String existing = mValues.get(key);
-            if (value == null) {
-                mValues.remove(key);
-                return existing != null && !existing.isEmpty();
+        return putValue(key, value, null);
+    }
+
+    /**
+     * Sets the non-value for the given key. A null value removes the key if it existed.
+     * Returns true if the value has been changed.
+     * <p/>
+     * When the value has been changed, onChanged is invoked before the change is considered as
+     * sent in sync markers. Servers use it to broadcast the change.
+     */
+    boolean putValue(@NonNull String key, @Null String value, @Null Runnable onChanged) {
+        String existing = store(key, value);
+        boolean changed = value == null
+                ? existing != null && !existing.isEmpty()
+                : !value.equals(existing);
+        if (!changed) return false;
+        long seq = recordChange(key, onChanged != null);
+        logChange(key);
+        if (onChanged != null) {
+            try {
+                onChanged.run();
+            } finally {
+                completeChange(seq);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Atomically sets the non-values for the given keys. Null values remove the keys if they existed.
+     * Other threads either see none or all of the changes.
+     * Returns true if any value has been changed.
+     */
+    public boolean putValues(@NonNull Map<String, String> values) {
+        return !putValues(values, null).isEmpty();
+    }
+
+    /**
+     * Atomically sets the non-values for the given keys. Null values remove the keys if they existed.
+     * Returns the changed keys with their new values, null for removed keys, sorted by key.
+     * <p/>
+     * When values have been changed, onChanged is invoked with the changed keys before the changes
+     * are considered as sent in sync markers. Servers use it to broadcast the changes.
+     */
+    @NonNull
+    Map<String, String> putValues(@NonNull Map<String, String> values, @Null RConsumer<Map<String, String>> onChanged) {
+        Map<String, String> changed = storeAll(values);
+        if (changed.isEmpty()) return changed;
+        long[] seqs = recordChanges(changed.keySet(), onChanged != null);
+        if (onChanged != null) {
+            try {
+                onChanged.accept(changed);
+            } finally {
+                for (long seq : seqs) {
+                    completeChange(seq);
+                }
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Sets the time-to-live of a key, after which {@link #expireKeys()} removes it.
+     * The TTL belongs to the key: writing a new value does not change it. Setting a new TTL
+     * replaces the previous one and a TTL of zero or less cancels it.
+     * <p/>
+     * A TTL can be set before the key has a value, in which case it is removed when it expires if
+     * a value has been set in between. TTLs are not persisted.
+     */
+    public void setTtl(@NonNull String key, long ttlMs) {
+        synchronized (mExpiryLock) {
+            if (ttlMs <= 0) {
+                if (mExpiry != null) {
+                    mExpiry.cancel(key);
+                }
+                return;
+            }
+            long now = mClock.elapsedRealtime();
+            if (mExpiry == null) {
+                mExpiry = new ExpiryWheel(EXPIRY_TICK_MS, EXPIRY_SLOTS, now);
+            }
+            mExpiry.schedule(key, now + ttlMs);
+        }
+        Runnable listener = mTtlListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Sets the listener invoked after each new TTL, or null to remove it.
+     * Servers use it to run {@link #expireKeys()} only while there are TTLs, see {@link #hasTtls()}.
+     */
+    void setTtlListener(@Null Runnable listener) {
+        mTtlListener = listener;
+    }
+
+    /** Returns true if some keys have a TTL which did not expire yet. */
+    boolean hasTtls() {
+        synchronized (mExpiryLock) {
+            return mExpiry != null && mExpiry.size() > 0;
+        }
+    }
+
+    /** Returns the remaining time-to-live of the key in milliseconds, or -1 if it has none. */
+    public long getTtl(@NonNull String key) {
+        synchronized (mExpiryLock) {
+            long deadline = mExpiry == null ? -1 : mExpiry.getDeadline(key);
+            return deadline < 0 ? -1 : Math.max(0, deadline - mClock.elapsedRealtime());
+        }
+    }
+
+    /**
+     * Removes the keys whose TTL expired. This must be called regularly by the owner of the store,
+     * typically every {@link #EXPIRY_TICK_MS}, and only costs the keys expiring at that time.
+     * <p/>
+     * The removals are published like a batch received from the network, which servers
+     * broadcast to their clients.
+     *
+     * @return The number of keys removed.
+     */
+    public int expireKeys() {
+        Map<String, String> changed;
+        synchronized (mExpiryLock) {
+            if (mExpiry == null || mExpiry.size() == 0) return 0;
+            List<String> expired = mExpiry.advance(mClock.elapsedRealtime());
+            if (expired.isEmpty()) return 0;
+            Map<String, String> removals = new TreeMap<>();
+            for (String key : expired) {
+                removals.put(key, null);
+            }
+            // Removed under the lock so that a concurrent new TTL either prevents the removal
+            // or applies to the next value.
+            changed = storeAll(removals);
+        }
+        if (DEBUG) mLogger.d(TAG, "Expired keys: " + changed.keySet());
+        publishChanges(changed);
+        return changed.size();
+    }
+
+    /** Returns the sequence number of the last change of the store. */
+    public long getSequence() {
+        return mSeq.get();
+    }
+
+    /**
+     * Keeps the history of the changes of the last historySize keys, or zero to disable it.
+     * This is needed to reply to incremental resync requests and is only used by servers.
+     */
+    public void setResyncHistorySize(final int historySize) {
+        synchronized (mHistoryLock) {
+            if (historySize <= 0) {
+                mHistory = null;
+                mInFlight.clear();
             } else {
-                mValues.put(key, value);
-                return !value.equals(existing);
+                // Keys changed before now are not in the history.
+                mHistory = new ResyncHistory(historySize, mSeq.get());
+            }
+        }
+    }
+
+    /** Keeps the sequence number of the last change of the most recently changed keys, see {@link #setResyncHistorySize(int)}. */
+    private static class ResyncHistory extends LinkedHashMap<String, Long> {
+        static final long serialVersionUID = 1L;
+
+        private final int mMaxSize;
+        /** Changes up to this sequence number may have been evicted from the history. */
+        private long mFloor;
+
+        ResyncHistory(int maxSize, long floor) {
+            mMaxSize = maxSize;
+            mFloor = floor;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            if (size() > mMaxSize) {
+                mFloor = eldest.getValue();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /** Returns the last sync position received from the server, or null if none. */
+    @Null
+    public String getSyncPosition() {
+        return mSyncPosition;
+    }
+
+    /**
+     * Atomically sets or removes (when value is null) the value of the key.
+     * Returns the previous value or null if it didn't exist.
+     */
+    @Null
+    private String store(@NonNull String key, @Null String value) {
+        Partition[] partitions = mPartitions;
+        if (partitions.length == 1) {
+            return store(partitions[0], key, value);
+        }
+        Partition partition = getPartition(partitions, key);
+        partition.mLock.lock();
+        try {
+            return store(partition, key, value);
+        } finally {
+            partition.mLock.unlock();
+        }
+    }
+
+    @Null
+    private static String store(@NonNull Partition partition, @NonNull String key, @Null String value) {
+        AtomicReference<LayeredMap> root = partition.mValues;
+        while (true) {
+            LayeredMap current = root.get();
+            String existing = current.get(key);
+            LayeredMap next = value == null ? current.without(key) : current.with(key, value);
+            if (next == current || root.compareAndSet(current, next)) {
+                return existing;
+            }
+        }
+    }
+
+    /**
+     * Atomically sets or removes (when null) the values of the keys in a single store operation.
+     * Returns the changed keys with their new values, using the same notion of change as {@link #putValue}.
+     */
+    @NonNull
+    private Map<String, String> storeAll(@NonNull Map<String, String> values) {
+        Partition[] partitions = mPartitions;
+        if (partitions.length == 1) {
+            return storeAll(partitions[0], values);
+        }
+        // Split the batch by partition. The partitions are locked in index order, which makes
+        // the batch atomic for snapshots and can't deadlock with other batches.
+        TreeMap<Integer, Map<String, String>> split = new TreeMap<>();
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            int index = PartitionedMap.indexOf(entry.getKey(), partitions.length);
+            Map<String, String> map = split.get(index);
+            if (map == null) {
+                map = new LinkedHashMap<>();
+                split.put(index, map);
+            }
+            map.put(entry.getKey(), entry.getValue());
+        }
+        for (int index : split.keySet()) {
+            partitions[index].mLock.lock();
+        }
+        try {
+            Map<String, String> changed = new TreeMap<>();
+            for (Map.Entry<Integer, Map<String, String>> entry : split.entrySet()) {
+                changed.putAll(storeAll(partitions[entry.getKey()], entry.getValue()));
+            }
+            return changed;
+        } finally {
+            for (int index : split.descendingKeySet()) {
+                partitions[index].mLock.unlock();
+            }
+        }
+    }
+
+    @NonNull
+    private static Map<String, String> storeAll(@NonNull Partition partition, @NonNull Map<String, String> values) {
+        AtomicReference<LayeredMap> root = partition.mValues;
+        while (true) {
+            LayeredMap current = root.get();
+            LayeredMap next = current;
+            Map<String, String> changed = new TreeMap<>();
+            for (Map.Entry<String, String> entry : values.entrySet()) {
+                String key = entry.getKey();
+                String value = entry.getValue();
+                String existing = next.get(key);
+                if (value == null) {
+                    next = next.without(key);
+                    if (existing != null && !existing.isEmpty()) changed.put(key, null);
+                } else {
+                    next = next.with(key, value);
+                    if (!value.equals(existing)) changed.put(key, value);
+                }
+            }
+            if (next == current || root.compareAndSet(current, next)) {
+                return changed;
+            }
+        }
+    }
+
+    /** Records and logs the changes of these keys. Returns their sequence numbers. */
+    @NonNull
+    private long[] recordChanges(@NonNull Set<String> keys, boolean inFlight) {
+        long[] seqs = new long[keys.size()];
+        int n = 0;
+        for (String key : keys) {
+            seqs[n++] = recordChange(key, inFlight);
+            logChange(key);
+        }
+        return seqs;
+    }
+
+    /**
+     * Assigns a sequence number to a change once applied to the store. This is lock-free
+     * unless the history is enabled. Returns the sequence number of the change.
+     */
+    private long recordChange(@NonNull String key, boolean inFlight) {
+        if (mHistory == null) {
+            return mSeq.incrementAndGet();
+        }
+        synchronized (mHistoryLock) {
+            // Assigned under the lock so that the history is in sequence order.
+            long seq = mSeq.incrementAndGet();
+            ResyncHistory history = mHistory;
+            if (history != null) {
+                // Re-insert to move the key at the end.
+                history.remove(key);
+                history.put(key, seq);
+                if (inFlight) {
+                    mInFlight.add(seq);
+                }
+            }
+            return seq;
+        }
+    }
+
+    /**
+     * Replaces the whole store by a read-only base map, which must iterate in key order.
+     * Reads are served from the base and changes are kept in memory on top of it.
+     * <p/>
+     * This is meant to load a store without copying it, e.g. from a memory-mapped snapshot, and
+     * must be called before any change. The base is not a change: nothing is logged or broadcast.
+     * With several partitions, the base is copied in the partitions.
+     */
+    void setBase(@NonNull Map<String, String> base) {
+        Partition[] partitions = mPartitions;
+        if (partitions.length == 1) {
+            partitions[0].mValues.set(LayeredMap.onTopOf(base));
+        } else {
+            for (Partition partition : partitions) {
+                partition.mValues.set(LayeredMap.EMPTY);
             }
+            copyValues(partitions, base);
+        }
+    }
+
+    /**
+     * Sets the change log notified after each change of the store, or null to remove it.
+     * It is notified in the thread which made the change, before the change is broadcast.
+     */
+    void setChangeLog(@Null IChangeLog changeLog) {
+        mChangeLog = changeLog;
+    }
+
+    private void logChange(@NonNull String key) {
+        IChangeLog changeLog = mChangeLog;
+        if (changeLog != null) {
+            changeLog.onKeyChanged(key);
+        }
+    }
+
+    private void completeChange(long seq) {
+        if (mHistory == null) return;
+        synchronized (mHistoryLock) {
+            mInFlight.remove(seq);
         }
     }
 
@@ -158,13 +766,65 @@ public class KeyValueProtocol {
         return mServerVersion;
     }
 
+    /** Enables or disables a feature to be negotiated with the other side of new connections. */
+    public void setFeatureEnabled(@NonNull String feature, boolean enabled) {
+        if (enabled) {
+            mFeatures.add(feature);
+        } else {
+            mFeatures.remove(feature);
+        }
+    }
+
+    public boolean isFeatureEnabled(@NonNull String feature) {
+        return mFeatures.contains(feature);
+    }
+
+    /** Returns the features enabled locally. */
+    @NonNull
+    public Set<String> getEnabledFeatures() {
+        return Collections.unmodifiableSet(mFeatures);
+    }
+
     /** Protocol command was received that requested the client/server connection to be closed. */
     static class QCloseRequestException extends IOException {
     }
 
+    /** Notified of the changes of the store, see {@link #setChangeLog(IChangeLog)}. */
+    interface IChangeLog {
+        /** The key has been changed or removed. Its current value can be read from the store. */
+        void onKeyChanged(@NonNull String key);
+    }
+
+    /** Receives the writes of the other side instead of the store, see {@link #setWriteForwarder}. */
+    interface IWriteForwarder {
+        /** A write command. Removals have an empty value. */
+        void forwardValue(@NonNull String key, @NonNull String value);
+
+        /** A batch of write commands. Removals have an empty value. */
+        void forwardBatch(@NonNull Map<String, String> values);
+
+        /** A TTL command. */
+        void forwardTtl(@NonNull String key, long ttlMs);
+    }
+
     /**
-     * Decodes a command line received from the network. <br/>
-     * This is the counterpart to {@link Sender}.
+     * Sets the forwarder receiving the write and TTL commands decoded by {@link #processLine} and
+     * {@link #processFrame}, or null to apply them to the store. While set, these commands do not
+     * change the store; local calls like {@link #putValue} still do.
+     */
+    void setWriteForwarder(@Null IWriteForwarder forwarder) {
+        mWriteForwarder = forwarder;
+    }
+
+    /** Returns the table of the keys received from the network, see {@link #decodeKey}. */
+    @NonNull
+    KeyTable getKeyTable() {
+        return mKeyTable;
+    }
+
+    /**
+     * Decodes a command line already decoded as a string. <br/>
+     * Lines received from the network are decoded from their bytes, see {@link #processLine(Sender, byte[], int, int)}.
      *
      * @param sender Sender to use for replies.
      * @param line The line received from the network, as-is.
@@ -172,47 +832,260 @@ public class KeyValueProtocol {
      */
     void processLine(@NonNull Sender sender, @Null String line) throws QCloseRequestException {
         if (line == null) return;
-        line = line.trim();
-        if (line.isEmpty()) return;
-        if (DEBUG_VERBOSE) mLogger.d(TAG, "Input: " + line);
+        byte[] data = line.getBytes(StandardCharsets.UTF_8);
+        processLine(sender, data, 0, data.length);
+    }
 
-        char prefix = line.charAt(0);
+    /**
+     * Decodes a command line received from the network. <br/>
+     * This is the counterpart to {@link Sender}.
+     * <p/>
+     * The line is parsed in place: separators are found by scanning the bytes and only the final
+     * fields are decoded as strings, already trimmed. Trimming the bytes is the same as trimming the
+     * decoded line since UTF-8 multi-byte sequences never contain ASCII bytes. Keys are looked up in
+     * the {@link KeyTable} and known keys are not decoded at all.
+     *
+     * @param sender Sender to use for replies.
+     * @param data The UTF-8 bytes received from the network.
+     * @param start The offset of the line in data.
+     * @param end The offset after the line in data, excluding any line separator.
+     * @throws QCloseRequestException
+     */
+    void processLine(@NonNull Sender sender, @NonNull byte[] data, int start, int end) throws QCloseRequestException {
+        while (start < end && isSpace(data[start])) start++;
+        while (end > start && isSpace(data[end - 1])) end--;
+        if (start == end) return;
+        if (DEBUG_VERBOSE) mLogger.d(TAG, "Input: " + new String(data, start, end - start, StandardCharsets.UTF_8));
+
+        char prefix = (char) (data[start] & 0xFF);
+        int first = start + 1;
+        if (sender.mBatch != null) {
+            if (prefix == 'W') {
+                int colon = indexOf(data, first, end, ':');
+                // Malformed lines still count as part of the batch.
+                boolean valid = colon >= 0;
+                addToBatch(sender,
+                        valid ? decodeKey(data, first, colon, true /*add*/) : "",
+                        valid ? decodeField(data, colon + 1, end) : "");
+                return;
+            }
+            endBatch(sender);
+        }
         switch (prefix) {
             case 'V': {
-                // Server version
-                String key = line.substring(1);
-                String fields[] = key.split(":", 2);
-                if (DEBUG_VERBOSE) mLogger.d(TAG, "Process V: " + Arrays.toString(fields));
-                if (fields.length < 2) break;
-                key = fields[0].trim();
-                if ("JuniorDayModelServer".equals(key)) {
-                    try {
-                        mServerVersion = Integer.parseInt(fields[1].trim());
-                    } catch (NumberFormatException ignore) {}
-                }
+                // Version & features
+                int colon = indexOf(data, first, end, ':');
+                if (colon < 0) break;
+                processVersion(sender, decodeField(data, first, colon), decodeField(data, colon + 1, end));
                 break;
             }
 
             case 'R':
                 // Read value
-                processRead(sender, line);
+                processReadKey(sender, decodeKey(data, first, end, false /*add*/));
                 break;
 
-            case 'W':
+            case 'W': {
                 // Write (change) value
-                processWrite(line);
+                int colon = indexOf(data, first, end, ':');
+                if (colon < 0) {
+                    processWriteKeyValue(decodeField(data, first, end), null);
+                } else {
+                    processWriteKeyValue(decodeKey(data, first, colon, true /*add*/), decodeField(data, colon + 1, end));
+                }
+                break;
+            }
+
+            case 'P':
+                processPing(sender, new String(data, start, end - start, StandardCharsets.UTF_8));
+                break;
+
+            case 'Q':
+                processQuit();
+                break;
+
+            case 'S':
+                processSync(sender, decodeField(data, first, end));
+                break;
+
+            case 'F':
+                processSubscribe(sender, decodeField(data, first, end));
+                break;
+
+            case 'B':
+                processBatch(sender, decodeField(data, first, end));
+                break;
+
+            case 'T': {
+                int colon = indexOf(data, first, end, ':');
+                if (colon < 0) break;
+                processTtl(decodeKey(data, first, colon, false /*add*/), decodeField(data, colon + 1, end));
+                break;
+            }
+        }
+    }
+
+    /** Same as the characters removed by {@link String#trim()}. */
+    private static boolean isSpace(byte b) {
+        return (b & 0xFF) <= ' ';
+    }
+
+    /** Returns the offset of the first c between start and end, or -1. */
+    private static int indexOf(@NonNull byte[] data, int start, int end, char c) {
+        for (int i = start; i < end; i++) {
+            if (data[i] == c) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the canonical string of the trimmed UTF-8 key between start and end.
+     *
+     * @param add True to add the key to the {@link KeyTable}, which is only done for keys that get
+     *            stored by writes. Otherwise keys not in the table are simply decoded.
+     */
+    @NonNull
+    String decodeKey(@NonNull byte[] data, int start, int end, boolean add) {
+        while (start < end && isSpace(data[start])) start++;
+        while (end > start && isSpace(data[end - 1])) end--;
+        return add ? mKeyTable.intern(data, start, end) : mKeyTable.lookup(data, start, end);
+    }
+
+    /** Decodes the trimmed UTF-8 string between start and end. */
+    @NonNull
+    private static String decodeField(@NonNull byte[] data, int start, int end) {
+        while (start < end && isSpace(data[start])) start++;
+        while (end > start && isSpace(data[end - 1])) end--;
+        return start == end ? "" : new String(data, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decodes a binary frame received from the network. <br/>
+     * This is the counterpart to {@link Sender} once the binary framing has been negotiated.
+     *
+     * @param sender Sender to use for replies.
+     * @param op The frame opcode, the same letter as the equivalent text command.
+     * @param key The frame key, as-is. Write, read and TTL frames are ignored when their key
+     *            is not valid in a text line, see {@link FrameCodec#isValidKey}.
+     * @param value The frame value, as-is.
+     * @throws QCloseRequestException
+     */
+    void processFrame(
+            @NonNull Sender sender,
+            char op,
+            @NonNull String key,
+            @NonNull String value) throws QCloseRequestException {
+        if (sender.mBatch != null) {
+            if (op == 'W') {
+                addToBatch(sender, key, value);
+                return;
+            }
+            endBatch(sender);
+        }
+        switch (op) {
+            case 'W':
+                if (FrameCodec.isValidKey(key)) {
+                    writeValue(key, value);
+                }
+                break;
+
+            case 'R':
+                if (FrameCodec.isValidKey(key)) {
+                    readValue(sender, key);
+                }
                 break;
 
             case 'P':
-                processPing(sender, line);
+                // Rare enough to go through the text handler, which clients can override.
+                processPing(sender, FrameCodec.toLine(op, key, value));
+                break;
+
+            case 'V':
+                processVersion(sender, key, value);
                 break;
 
             case 'Q':
                 processQuit();
                 break;
+
+            case 'S':
+                processSync(sender, key);
+                break;
+
+            case 'F':
+                processSubscribe(sender, key);
+                break;
+
+            case 'B':
+                processBatch(sender, key);
+                break;
+
+            case 'T':
+                if (FrameCodec.isValidKey(key)) {
+                    writeTtl(key, value);
+                }
+                break;
         }
     }
 
+    private void processVersion(@NonNull Sender sender, @NonNull String name, @NonNull String value) {
+        switch (name) {
+            case SERVER_NAME:
+                try {
+                    mServerVersion = Integer.parseInt(value);
+                    onServerVersion(mServerVersion);
+                } catch (NumberFormatException ignore) {}
+                break;
+
+            case CLIENT_NAME: {
+                // "version:features"
+                String fields[] = value.split(":", 2);
+                Set<String> accepted = new TreeSet<>();
+                if (fields.length == 2) {
+                    for (String feature : parseFeatures(fields[1])) {
+                        if (mFeatures.contains(feature) && sender.supportsFeature(feature)) {
+                            accepted.add(feature);
+                        }
+                    }
+                }
+                if (!accepted.contains(FEATURE_BINARY)) {
+                    // Only binary frames can be compressed.
+                    accepted.remove(FEATURE_COMPRESS);
+                }
+                if (DEBUG) mLogger.d(TAG, "Features accepted: " + accepted);
+                sender.acceptFeatures(accepted);
+                break;
+            }
+
+            case ACCEPT_NAME: {
+                Set<String> accepted = new TreeSet<>();
+                for (String feature : parseFeatures(value)) {
+                    // Never apply a feature which was not requested.
+                    if (mFeatures.contains(feature) && sender.supportsFeature(feature)) {
+                        accepted.add(feature);
+                    }
+                }
+                sender.onFeaturesAccepted(accepted);
+                break;
+            }
+        }
+    }
+
+    @NonNull
+    private static Set<String> parseFeatures(@NonNull String features) {
+        Set<String> result = new TreeSet<>();
+        for (String feature : features.split(",")) {
+            feature = feature.trim();
+            if (!feature.isEmpty()) {
+                result.add(feature);
+            }
+        }
+        return result;
+    }
+
+    /** Invoked when the server version is received, which servers send first on each connection. */
+    protected void onServerVersion(int version) {}
+
     protected void processQuit() throws QCloseRequestException {
         if (DEBUG_VERBOSE) mLogger.d(TAG, "Process Q");
         throw new QCloseRequestException();
@@ -225,28 +1098,147 @@ public class KeyValueProtocol {
         if (line.length() > 2) {
             char prefix = line.charAt(1);
             if (prefix == 'S') {
-                sender.sendLine("PR" + line.substring(2));
+                sender.sendPingReply(line.substring(2));
+                if (mHistory != null && sender.isResyncEnabled()) {
+                    long seq;
+                    synchronized (mHistoryLock) {
+                        seq = mInFlight.isEmpty() ? mSeq.get() : mInFlight.first() - 1;
+                    }
+                    sender.sendSyncMarker(mEpoch, seq, true /*onlyIfChanged*/);
+                }
+            }
+        }
+    }
+
+    /**
+     * Processes a sync position. Servers reply to a resync request whereas clients remember
+     * the sync marker sent by the server.
+     */
+    private void processSync(@NonNull Sender sender, @NonNull String position) {
+        if (DEBUG_VERBOSE) mLogger.d(TAG, "Process S: " + position);
+        if (!sender.isResyncEnabled()) return;
+        ResyncHistory history = mHistory;
+        if (history == null) {
+            if (!position.isEmpty()) {
+                mSyncPosition = position;
+            }
+            return;
+        }
+
+        long since = -1;
+        String fields[] = position.split(":", 2);
+        if (fields.length == 2 && mEpoch.equals(fields[0])) {
+            try {
+                since = Long.parseLong(fields[1]);
+            } catch (NumberFormatException ignore) {}
+        }
+
+        long seq;
+        List<String> keys = null;
+        synchronized (mHistoryLock) {
+            seq = mSeq.get();
+            if (since >= history.mFloor && since <= seq) {
+                keys = new ArrayList<>();
+                for (Map.Entry<String, Long> entry : history.entrySet()) {
+                    if (entry.getValue() > since) {
+                        keys.add(entry.getKey());
+                    }
+                }
+            }
+        }
+        // Values are sent without holding the lock. They are at least as recent as the position.
+        if (keys == null) {
+            if (DEBUG) mLogger.d(TAG, "Resync from " + position + " not in history, sending all values.");
+            sendAllValues(sender);
+        } else {
+            for (String key : keys) {
+                String value = getValue(key);
+                sender.sendValue(key, value == null ? "" : value);
+            }
+        }
+        sender.sendSyncMarker(mEpoch, seq, false /*onlyIfChanged*/);
+    }
+
+    /** Starts collecting the next count write commands of that sender into a batch. */
+    private void processBatch(@NonNull Sender sender, @NonNull String count) {
+        if (DEBUG_VERBOSE) mLogger.d(TAG, "Process B: " + count);
+        try {
+            int n = Integer.parseInt(count);
+            if (n > 0) {
+                sender.mBatch = new TreeMap<>();
+                sender.mBatchRemaining = n;
+            }
+        } catch (NumberFormatException ignore) {}
+    }
+
+    private void addToBatch(@NonNull Sender sender, @NonNull String key, @NonNull String value) {
+        Map<String, String> batch = sender.mBatch;
+        assert batch != null;
+        if (FrameCodec.isValidKey(key)) {
+            batch.put(key, value);
+        }
+        if (--sender.mBatchRemaining <= 0) {
+            endBatch(sender);
+        }
+    }
+
+    /**
+     * Applies the batch collected for that sender. This is also called when another command
+     * interrupts an incomplete batch, in which case the values already received are applied.
+     */
+    private void endBatch(@NonNull Sender sender) {
+        Map<String, String> batch = sender.mBatch;
+        sender.mBatch = null;
+        sender.mBatchRemaining = 0;
+        if (batch != null && !batch.isEmpty()) {
+            writeBatch(batch);
+        }
+    }
+
+    private void processTtl(@NonNull String key, @NonNull String ttl) {
+        if (DEBUG_VERBOSE) mLogger.d(TAG, "Process T: " + key + ":" + ttl);
+        if (key.isEmpty()) return;  // ignore empty names
+        writeTtl(key, ttl);
+    }
+
+    private void writeTtl(@NonNull String key, @NonNull String ttl) {
+        try {
+            long ttlMs = Long.parseLong(ttl);
+            IWriteForwarder forwarder = mWriteForwarder;
+            if (forwarder != null) {
+                forwarder.forwardTtl(key, ttlMs);
+                return;
             }
+            setTtl(key, ttlMs);
+        } catch (NumberFormatException e) {
+            if (DEBUG) mLogger.d(TAG, "Invalid TTL for " + key + ": " + ttl);
         }
     }
 
-    protected void processRead(@NonNull Sender sender, @NonNull String line) {
-        String key = line.substring(1).trim();
+    private void processSubscribe(@NonNull Sender sender, @NonNull String pattern) {
+        if (DEBUG_VERBOSE) mLogger.d(TAG, "Process F: " + pattern);
+        sender.onSubscribe(pattern);
+    }
+
+    /**
+     * Processes a read command line, once parsed. The key is trimmed and can be empty for malformed lines.
+     * This used to be {@code processRead(Sender, String)}, which received the whole line.
+     */
+    protected void processReadKey(@NonNull Sender sender, @NonNull String key) {
         if (DEBUG_VERBOSE) mLogger.d(TAG, "Process R: " + key);
         if (key.isEmpty()) return;  // ignore empty names
+        readValue(sender, key);
+    }
+
+    private void readValue(@NonNull Sender sender, @NonNull String key) {
         if ("*".equals(key)) {
-            synchronized (mValues) {
-                for (Map.Entry<String, String> entry : mValues.entrySet()) {
-                    key = entry.getKey();
-                    String value = entry.getValue();
-                    if (value == null) {
-                        value = "";
-                    }
-                    sender.sendValue(key, value);
-                }
+            long seq = mSeq.get();
+            sendAllValues(sender);
+            if (mHistory != null && sender.isResyncEnabled()) {
+                sender.sendSyncMarker(mEpoch, seq, false /*onlyIfChanged*/);
             }
         } else {
-            String value = mValues.get(key);
+            String value = getValue(key);
             if (value == null) {
                 value = "";
             }
@@ -254,62 +1246,340 @@ public class KeyValueProtocol {
         }
     }
 
-    protected void processWrite(@NonNull String line) {
-        String key = line.substring(1);
-        String fields[] = key.split(":", 2);
-        if (DEBUG_VERBOSE) mLogger.d(TAG, "Process W: " + Arrays.toString(fields));
-        if (fields.length < 2) return;
-        key = fields[0].trim();
+    /** Sends all values from a snapshot, without blocking writers. Values are at least as recent as when called. */
+    private void sendAllValues(@NonNull Sender sender) {
+        for (Map.Entry<String, String> entry : getSnapshot().entrySet()) {
+            sender.sendValue(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Processes a write command line, once parsed. The key and value are trimmed. The key can be
+     * empty and the value is null for malformed lines.
+     * This used to be {@code processWrite(String)}, which received the whole line.
+     */
+    protected void processWriteKeyValue(@NonNull String key, @Null String value) {
+        if (DEBUG_VERBOSE) mLogger.d(TAG, "Process W: " + key + ":" + value);
+        if (value == null) return;
         if (key.isEmpty()) return;  // ignore empty names
-        String value = fields[1].trim();
-        boolean changed;
-        synchronized (mValues) {
-            String existing = mValues.get(key);
-            changed = existing == null || !existing.equals(value);
-            if (changed) {
-                mValues.put(key, value);
-            }
+        writeValue(key, value);
+    }
+
+    private void writeValue(@NonNull String key, @NonNull String value) {
+        IWriteForwarder forwarder = mWriteForwarder;
+        if (forwarder != null) {
+            forwarder.forwardValue(key, value);
+            return;
         }
-        if (changed) {
-            try {
+        // Most writes repeat the current value, which is checked without writing.
+        if (value.equals(getValue(key))) return;
+        String existing = store(key, value);
+        if (value.equals(existing)) return;
+        long seq = recordChange(key, true /*inFlight*/);
+        logChange(key);
+        try {
+            publishBatch(Collections.singleton(key));
+            mChangedPublisher.publish(key);
+        } catch (Exception e) {
+            mLogger.d(TAG, "Exception during publish(" + key + "): " + e);
+        } finally {
+            completeChange(seq);
+        }
+    }
+
+    private void writeBatch(@NonNull Map<String, String> values) {
+        if (DEBUG_VERBOSE) mLogger.d(TAG, "Write batch: " + values.keySet());
+        IWriteForwarder forwarder = mWriteForwarder;
+        if (forwarder != null) {
+            forwarder.forwardBatch(values);
+            return;
+        }
+        publishChanges(storeAll(values));
+    }
+
+    /**
+     * Applies the values like a batch received from the network, without using the write
+     * forwarder: the changes are published on the change streams. Null values remove the keys
+     * if they existed. Replicas use it for the changes received from their primary.
+     */
+    void applyValues(@NonNull Map<String, String> values) {
+        publishChanges(storeAll(values));
+    }
+
+    /** Records and publishes changes already applied to the store, as a single batch. */
+    private void publishChanges(@NonNull Map<String, String> changed) {
+        if (changed.isEmpty()) return;
+        Set<String> keys = Collections.unmodifiableSet(changed.keySet());
+        long[] seqs = recordChanges(keys, true /*inFlight*/);
+        try {
+            publishBatch(keys);
+            for (String key : keys) {
                 mChangedPublisher.publish(key);
-            } catch (Exception e) {
-                mLogger.d(TAG, "Exception during publish(" + key + "): " + e);
+            }
+        } catch (Exception e) {
+            mLogger.d(TAG, "Exception during publish(" + keys + "): " + e);
+        } finally {
+            for (long seq : seqs) {
+                completeChange(seq);
             }
         }
     }
 
+    /** Publishes a batch on the stream of the partition of its first key, then on the batch stream. */
+    private void publishBatch(@NonNull Set<String> keys) {
+        Partition[] partitions = mPartitions;
+        if (partitions.length > 1) {
+            getPartition(partitions, keys.iterator().next()).mBatchChangedPublisher.publish(keys);
+        }
+        mBatchChangedPublisher.publish(keys);
+    }
+
     /**
      * A "sender" is an utility class that implements the various commands that can be
      * exchanged between clients and servers. It formats the commands appropriately and
-     * generates the text line to be sent on the network.
+     * generates the text line or binary frame to be sent on the network.
+     * <p/>
+     * There is one sender per connection and it also holds the features negotiated for that
+     * connection. Commands are encoded and queued atomically with respect to a switch of the
+     * framing, which guarantees the other side never receives a frame in the wrong framing.
      * <p/>
      * This is an abstract class. Derived implementations perform the actual network
-     * operation needed to send the formatted command line.
+     * operation needed to send the formatted command line. Implementations which support
+     * binary frames override {@link #supportsFeature} and {@link #sendFrame}.
      */
     abstract static class Sender {
+        private volatile boolean mBinaryOutbound;
+        private volatile boolean mBinaryInbound;
+        private volatile boolean mResync;
+        private volatile boolean mCompressedOutbound;
+        private volatile boolean mCompressedInbound;
+        private boolean mAcceptSent;
+        private long mLastSyncSeq = -1;
+        /** Batch being received, only accessed by the thread reading the connection. */
+        @Null private Map<String, String> mBatch;
+        private int mBatchRemaining;
+
         /** Implemented by actual implementations to send the text line on a network socket. */
         public abstract void sendLine(@NonNull String line);
 
-        public void sendValue(@NonNull String key, @NonNull String value) {
-            sendLine("W" + key + ":" + value);
+        /**
+         * Sends the text line for a value. Implementations can override this to know which key
+         * the line is for. The default is to call {@link #sendLine}.
+         */
+        protected void sendValueLine(@NonNull String key, @NonNull String line) {
+            sendLine(line);
+        }
+
+        /**
+         * Sends an encoded binary frame. Only called once the binary framing has been negotiated.
+         * The default converts the frame back to text lines, see {@link FrameCodec#binaryToText},
+         * and calls {@link #sendLine}.
+         *
+         * @param key The key of the value sent by this frame, or null if this frame is not a value.
+         * @param frame The encoded frame.
+         */
+        protected void sendFrame(@Null String key, @NonNull byte[] frame) {
+            if (frame == FrameCodec.COMPRESS_MARKER) return;
+            String lines = FrameCodec.binaryToText(frame);
+            if (lines != null) {
+                sendLine(lines);
+            }
+        }
+
+        /**
+         * Invoked when the other side subscribed to a key pattern, or cleared all its patterns when
+         * the pattern is empty. Only servers filter their broadcasts. The default does nothing.
+         */
+        protected void onSubscribe(@NonNull String pattern) {
+        }
+
+        /** Returns true if this sender can handle that feature. */
+        protected boolean supportsFeature(@NonNull String feature) {
+            return false;
+        }
+
+        /** True once what this side sends uses binary frames. */
+        public boolean isBinaryOutbound() {
+            return mBinaryOutbound;
+        }
+
+        /** True once what this side receives uses binary frames. */
+        public boolean isBinaryInbound() {
+            return mBinaryInbound;
+        }
+
+        /** True once what this side sends is compressed. */
+        public boolean isCompressedOutbound() {
+            return mCompressedOutbound;
+        }
+
+        /** True once what this side receives can contain compressed frames. */
+        public boolean isCompressedInbound() {
+            return mCompressedInbound;
+        }
+
+        /** True once the incremental resync has been negotiated. */
+        public boolean isResyncEnabled() {
+            return mResync;
+        }
+
+        /** Resets all negotiated features, e.g. when a client reconnects. */
+        public synchronized void resetFeatures() {
+            mBinaryOutbound = false;
+            mBinaryInbound = false;
+            mResync = false;
+            mCompressedOutbound = false;
+            mCompressedInbound = false;
+            mAcceptSent = false;
+            mLastSyncSeq = -1;
+        }
+
+        @NonNull
+        private static String joinFeatures(@NonNull Set<String> features) {
+            StringBuilder sb = new StringBuilder();
+            for (String feature : features) {
+                if (sb.length() > 0) sb.append(',');
+                sb.append(feature);
+            }
+            return sb.toString();
+        }
+
+        /** Requests features from the server. Only sent by clients. */
+        public void requestFeatures(@NonNull Set<String> features) {
+            sendLine("V" + CLIENT_NAME + ":1:" + joinFeatures(features));
+        }
+
+        /**
+         * Sends the Accept line for these features, then applies them to what this side sends.
+         * Does nothing if this side already sent its Accept line.
+         */
+        public synchronized void acceptFeatures(@NonNull Set<String> features) {
+            if (mAcceptSent) return;
+            sendLine("V" + ACCEPT_NAME + ":" + joinFeatures(features));
+            mAcceptSent = true;
+            mBinaryOutbound = features.contains(FEATURE_BINARY);
+            mResync = features.contains(FEATURE_RESYNC);
+            mCompressedOutbound = mBinaryOutbound && features.contains(FEATURE_COMPRESS);
+            if (mCompressedOutbound) {
+                // The frames which follow are compressed by the writer of the connection.
+                sendFrame(null, FrameCodec.COMPRESS_MARKER);
+            }
+        }
+
+        /**
+         * Invoked when the other side sent its Accept line. Replies with this side's Accept line
+         * if not done yet, then applies the features to what this side receives.
+         */
+        public synchronized void onFeaturesAccepted(@NonNull Set<String> features) {
+            acceptFeatures(features);
+            mBinaryInbound = features.contains(FEATURE_BINARY);
+            mCompressedInbound = mBinaryInbound && features.contains(FEATURE_COMPRESS);
+        }
+
+        public synchronized void sendValue(@NonNull String key, @NonNull String value) {
+            if (mBinaryOutbound) {
+                sendFrame(key, FrameCodec.encodeFrame('W', key, value));
+                return;
+            }
+            String line = FrameCodec.valueLine(key, value);
+            if (line != null) {
+                sendValueLine(key, line);
+            }
+        }
+
+        /**
+         * Sends a value shared with other senders. Implementations which queue encoded frames
+         * override this to reuse the frames of the shared value. The default is to call
+         * {@link #sendValue(String, String)}.
+         */
+        public void sendValue(@NonNull FrameCodec.SharedValue value) {
+            sendValue(value.getKey(), value.getValue());
+        }
+
+        /** Sends the time-to-live of a key, or cancels it with zero. */
+        public synchronized void sendTtl(@NonNull String key, long ttlMs) {
+            String ttl = Long.toString(Math.max(0, ttlMs));
+            if (mBinaryOutbound) {
+                sendFrame(null, FrameCodec.encodeFrame('T', key, ttl));
+                return;
+            }
+            if (FrameCodec.isValidKey(key)) {
+                sendLine("T" + key + ":" + ttl);
+            }
+        }
+
+        /** Sends a batch of values which the other side applies atomically. Values must not be null. */
+        public synchronized void sendBatch(@NonNull Map<String, String> values) {
+            if (mBinaryOutbound) {
+                sendFrame(null, FrameCodec.encodeBatchFrame(values));
+                return;
+            }
+            String lines = FrameCodec.batchLines(values);
+            if (lines != null) {
+                sendLine(lines);
+            }
+        }
+
+        /**
+         * Sends a batch shared with other senders, like {@link #sendValue(FrameCodec.SharedValue)}.
+         * The default is to call {@link #sendBatch(Map)}.
+         */
+        public void sendBatch(@NonNull FrameCodec.SharedBatch batch) {
+            sendBatch(batch.getValues());
         }
 
         public void sendPing(@NonNull String value) {
             // Ping Send ... server will reply with Ping Reply + value
-            sendLine("PS" + value);
+            sendCommand('P', "S", value, "PS" + value);
+        }
+
+        public void sendPingReply(@NonNull String value) {
+            sendCommand('P', "R", value, "PR" + value);
         }
 
         public void sendCnxQuit() {
-            sendLine("Q");
+            sendCommand('Q', "", "", "Q");
         }
 
         public void requestAllKeys() {
-            sendLine("R*");
+            sendCommand('R', "*", "", "R*");
         }
 
         public void requestKey(@NonNull String key) {
-            sendLine("R" + key);
+            sendCommand('R', key, "", "R" + key);
+        }
+
+        /**
+         * Subscribes to the changes of the keys matching that pattern, or clears all the patterns
+         * when the pattern is empty. Only sent by clients.
+         */
+        public void subscribe(@NonNull String pattern) {
+            sendCommand('F', pattern, "", "F" + pattern);
+        }
+
+        /** Requests the values changed since the given sync position. Only sent by clients. */
+        public void requestResync(@NonNull String position) {
+            sendCommand('S', position, "", "S" + position);
+        }
+
+        /**
+         * Sends a sync marker. Only sent by servers once all changes up to that sequence number have been sent.
+         *
+         * @param onlyIfChanged True to do nothing if the last marker sent has the same sequence number.
+         */
+        public synchronized void sendSyncMarker(@NonNull String epoch, long seq, boolean onlyIfChanged) {
+            if (onlyIfChanged && seq == mLastSyncSeq) return;
+            mLastSyncSeq = seq;
+            String position = epoch + ":" + seq;
+            sendCommand('S', position, "", "S" + position);
+        }
+
+        private synchronized void sendCommand(char op, @NonNull String key, @NonNull String value, @NonNull String line) {
+            if (mBinaryOutbound) {
+                sendFrame(null, FrameCodec.encodeFrame(op, key, value));
+            } else {
+                sendLine(line);
+            }
         }
     }
 }
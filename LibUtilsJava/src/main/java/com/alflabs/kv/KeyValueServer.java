@@ -21,25 +21,34 @@ package com.alflabs.kv;
 import com.alflabs.annotations.NonNull;
 import com.alflabs.annotations.Null;
 import com.alflabs.rx.IStream;
+import com.alflabs.rx.ISubscriber;
+import com.alflabs.utils.IClock;
 import com.alflabs.utils.ILogger;
+import com.alflabs.utils.JavaClock;
 import com.alflabs.utils.RSparseArray;
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * A single {@link KeyValueProtocol} server.
@@ -57,26 +66,205 @@ public class KeyValueServer implements IKeyValue {
     private static final boolean DEBUG = true;
     private static final boolean DEBUG_VERBOSE = false;
 
+    /** What to do when the outbound queue of a client connection is full. */
+    public enum SlowConsumerPolicy {
+        /** Closes the client connection. */
+        DISCONNECT,
+        /** Drops the oldest values queued for the client to make room for the new line. Other lines are kept. */
+        DROP_OLDEST,
+        /** Blocks the broadcaster till the client catches up, then disconnects it after a timeout. */
+        BLOCK,
+    }
+
+    public interface IEvictionListener {
+        /**
+         * Invoked when a client connection is closed because its outbound queue is full.
+         * This is called on the thread which tried to queue the line, and just before the
+         * connection is closed.
+         *
+         * @param clientAddress The remote address of the client, if known.
+         * @param policy The policy which resulted in the eviction.
+         */
+        void onClientEvicted(@Null SocketAddress clientAddress, @NonNull SlowConsumerPolicy policy);
+    }
+
+    /**
+     * Receives the server metrics, the counterpart of {@link KeyValueClient.IStatsListener}.
+     * <p/>
+     * Methods are invoked from the connection threads or selector loops, and from any thread
+     * which broadcasts a value, so implementations must be multi-thread safe and must not block.
+     * Durations are in nanoseconds. The default implementation is {@link KeyValueServerStats}.
+     */
+    public interface IStatsListener {
+        void setNumConnections(int count);
+
+        void addBandwidthTXBytes(int count);
+
+        void addBandwidthRXBytes(int count);
+
+        /** Lines or binary frames written to clients. */
+        void addLinesTX(int count);
+
+        /** Lines or binary frames received from clients. */
+        void addLinesRX(int count);
+
+        /** Time spent processing one line or binary frame received from a client. */
+        void addProcessLineTime(long nanos);
+
+        /** Time spent queuing one broadcast for the given number of clients. */
+        void addBroadcastTime(int fanOut, long nanos);
+
+        /** Time between a frame being queued for a client and it being written to the client socket. */
+        void addWriteDelay(long nanos);
+    }
+
+    /** A point-in-time view of the outbound queue of one client connection. */
+    public static final class ConnectionStats {
+        @Null private final SocketAddress mAddress;
+        private final int mQueuedFrames;
+        private final int mQueuedBytes;
+        private final int mHighWater;
+
+        ConnectionStats(@Null SocketAddress address, int queuedFrames, int queuedBytes, int highWater) {
+            mAddress = address;
+            mQueuedFrames = queuedFrames;
+            mQueuedBytes = queuedBytes;
+            mHighWater = highWater;
+        }
+
+        /** The remote address of the client, if known. */
+        @Null
+        public SocketAddress getAddress() {
+            return mAddress;
+        }
+
+        public int getQueuedFrames() {
+            return mQueuedFrames;
+        }
+
+        public int getQueuedBytes() {
+            return mQueuedBytes;
+        }
+
+        /** The largest number of frames queued at once since the client connected. */
+        public int getHighWater() {
+            return mHighWater;
+        }
+
+        @Override
+        public String toString() {
+            return mAddress + " queued=" + mQueuedFrames + "/" + mQueuedBytes + "B highWater=" + mHighWater;
+        }
+    }
+
     @NonNull private final ILogger mLogger;
+    @NonNull private final IClock mClock;
 
     private volatile Thread mSocketThread;
     private volatile boolean mIsRunning;
     private volatile ServerSocket mServerSocket;
     private volatile int mNextSender = 0;
     private final RSparseArray<Sender> mSenders = new RSparseArray<>();
+    /** Routes built from the {@link #mSenders} values, updated when they change, used to broadcast without locking. */
+    private volatile BroadcastRoutes mRoutes = new BroadcastRoutes(new Sender[0], null);
     private final KeyValueProtocol mProtocol;
     private final ExecutorService mThreadPool = Executors.newCachedThreadPool();
     private Runnable mOnClientConnectedRunnable;
+    private int mSelectorLoops = 0;
+    private volatile boolean mConflating;
+    private volatile int mMaxOutboundLines;
+    private volatile int mMaxOutboundBytes;
+    private volatile SlowConsumerPolicy mSlowConsumerPolicy = SlowConsumerPolicy.DISCONNECT;
+    private volatile long mBlockTimeoutMs;
+    private volatile IEvictionListener mEvictionListener;
+    private volatile SelectorEngine mSelectorEngine;
+    @Null private volatile KeyValuePersistence mPersistence;
+    /** Guards the start and end of {@link #mExpiryThread}. */
+    private final Object mExpiryLock = new Object();
+    /** True while the server runs expiry. Guarded by {@link #mExpiryLock}. */
+    private boolean mExpiryEnabled;
+    /** The expiry thread, only running while there are TTLs. */
+    @Null private volatile Thread mExpiryThread;
+    private volatile int mCompressionThreshold = FrameCompressor.DEFAULT_THRESHOLD;
+    @NonNull private volatile IStatsListener mStatsListener = new KeyValueServerStats();
+    @Null private volatile SocketAddress mPrimary;
+    /** The client connected to the primary while a replica is running. */
+    @Null private volatile KeyValueClient mReplicationClient;
+    /** Relays write commands and batches received from clients, subscribed to the stream of each partition. */
+    private final ISubscriber<Set<String>> mRelay;
 
     public KeyValueServer(@NonNull ILogger logger) {
+        this(logger, new JavaClock());
+    }
+
+    /** Creates a new server. Key TTLs are measured with the given clock. */
+    public KeyValueServer(@NonNull ILogger logger, @NonNull IClock clock) {
         mLogger = logger;
-        mProtocol = new KeyValueProtocol(logger);
+        mClock = clock;
+        mProtocol = new KeyValueProtocol(logger, clock) {
+            @Override
+            void processLine(@NonNull Sender sender, @NonNull byte[] data, int start, int end) throws QCloseRequestException {
+                long startNs = System.nanoTime();
+                try {
+                    super.processLine(sender, data, start, end);
+                } finally {
+                    onProcessed(startNs);
+                }
+            }
 
-        mProtocol.getChangedStream().subscribe((stream, key) -> {
-            assert key != null;
-            String value = mProtocol.getValue(key);
-            broadcastChangeViaAllSenders(key, value);
-        });
+            @Override
+            void processFrame(
+                    @NonNull Sender sender,
+                    char op,
+                    @NonNull String key,
+                    @NonNull String value) throws QCloseRequestException {
+                long start = System.nanoTime();
+                try {
+                    super.processFrame(sender, op, key, value);
+                } finally {
+                    onProcessed(start);
+                }
+            }
+        };
+
+        mRelay = (stream, keys) -> {
+            assert keys != null;
+            if (keys.size() == 1) {
+                String key = keys.iterator().next();
+                broadcastChangeViaAllSenders(key, mProtocol.getValue(key));
+            } else {
+                // Read all the values from the same snapshot so that the batch stays consistent.
+                Map<String, String> snapshot = mProtocol.getSnapshot();
+                Map<String, String> values = new TreeMap<>();
+                for (String key : keys) {
+                    values.put(key, snapshot.get(key));
+                }
+                broadcastBatchViaAllSenders(values);
+            }
+        };
+        mProtocol.getBatchChangedStream(0).subscribe(mRelay);
+    }
+
+    /**
+     * Splits the store in that number of partitions, one by default. Must be called before {@link #start(int)}.
+     * <p/>
+     * Keys are hashed across the partitions, each with its own lock and broadcast path, so that
+     * client writes of keys in different partitions are applied and broadcast in parallel by
+     * their connection threads. "R*" and {@link #getKeys()} still return consistent views
+     * of the whole store. See {@link KeyValueProtocol#setPartitions(int)}.
+     */
+    public void setPartitions(int numPartitions) {
+        for (int i = 0; i < mProtocol.getPartitions(); i++) {
+            mProtocol.getBatchChangedStream(i).remove(mRelay);
+        }
+        mProtocol.setPartitions(numPartitions);
+        for (int i = 0; i < mProtocol.getPartitions(); i++) {
+            mProtocol.getBatchChangedStream(i).subscribe(mRelay);
+        }
+    }
+
+    public int getPartitions() {
+        return mProtocol.getPartitions();
     }
 
     public boolean isRunning() {
@@ -90,10 +278,309 @@ public class KeyValueServer implements IKeyValue {
         }
     }
 
+    /**
+     * Sets the listener receiving the server metrics.
+     * <p/>
+     * By default, the metrics are accumulated by a {@link KeyValueServerStats}, which only uses
+     * lock-free counters and is cheap enough to be left enabled.
+     */
+    public void setStatsListener(@NonNull IStatsListener listener) {
+        mStatsListener = listener;
+        listener.setNumConnections(getNumConnections());
+    }
+
+    @NonNull
+    public IStatsListener getStatsListener() {
+        return mStatsListener;
+    }
+
+    /** Returns a snapshot of the outbound queue of each client connection. */
+    @NonNull
+    public List<ConnectionStats> getConnectionStats() {
+        List<ConnectionStats> stats = new ArrayList<>();
+        synchronized (mSenders) {
+            for (int n = 0; n < mSenders.size(); n++) {
+                stats.add(mSenders.valueAt(n).getStats());
+            }
+        }
+        return stats;
+    }
+
+    private void onProcessed(long startNanos) {
+        IStatsListener listener = mStatsListener;
+        listener.addProcessLineTime(System.nanoTime() - startNanos);
+        listener.addLinesRX(1);
+    }
+
+    /** Reports a frame polled from the sender once it has been written. Must be called by the writer. */
+    void onFrameWritten(@NonNull Sender sender, @NonNull byte[] frame, long nowNanos) {
+        if (frame == FrameCodec.COMPRESS_MARKER) return;
+        IStatsListener listener = mStatsListener;
+        listener.addLinesTX(1);
+        listener.addWriteDelay(nowNanos - sender.getLastPolledNanos());
+    }
+
+    void onBytesWritten(int count) {
+        if (count > 0) {
+            mStatsListener.addBandwidthTXBytes(count);
+        }
+    }
+
+    void onBytesRead(int count) {
+        mStatsListener.addBandwidthRXBytes(count);
+    }
+
     public void setOnClientConnected(@Null Runnable runnable) {
         mOnClientConnectedRunnable = runnable;
     }
 
+    /**
+     * Selects the connection engine used by the next call to {@link #start}.
+     * <p/>
+     * By default (zero), the server uses two threads per client connection: a blocking reader
+     * and a writer. With a value greater than zero, the server instead uses a selector-based
+     * engine that multiplexes all the client connections on that number of NIO event loops,
+     * which is more appropriate for thousands of mostly-idle clients.
+     * <p/>
+     * Both engines use the same {@link KeyValueProtocol} semantics.
+     */
+    public void setSelectorLoops(int numLoops) {
+        mSelectorLoops = Math.max(0, numLoops);
+    }
+
+    /**
+     * Enables or disables the conflating sender mode for new client connections.
+     * <p/>
+     * By default, every value broadcast to a client is queued till that client can receive it.
+     * When conflating, the outbound queue of a client holds at most one pending value per key:
+     * a newer value replaces the older one in place. A slow client thus skips stale values and
+     * its queue is bounded by the number of keys rather than by the rate of changes.
+     */
+    public void setConflating(boolean conflating) {
+        mConflating = conflating;
+    }
+
+    public boolean isConflating() {
+        return mConflating;
+    }
+
+    /**
+     * Enables or disables the binary framing for new client connections.
+     * <p/>
+     * When enabled, clients which request it during the version handshake exchange binary
+     * length-prefixed frames with the server instead of text lines. This is cheaper to encode
+     * and decode, and values can contain any characters. Other clients keep using text lines.
+     * See {@link KeyValueProtocol}.
+     */
+    public void setBinaryProtocol(boolean enabled) {
+        mProtocol.setFeatureEnabled(KeyValueProtocol.FEATURE_BINARY, enabled);
+    }
+
+    public boolean isBinaryProtocol() {
+        return mProtocol.isFeatureEnabled(KeyValueProtocol.FEATURE_BINARY);
+    }
+
+    /**
+     * Enables or disables the incremental resync for new client connections.
+     * <p/>
+     * When enabled, the server keeps the sequence numbers of the last changes of up to historySize
+     * keys. Clients which request it during the version handshake can then resync after a reconnection
+     * by only receiving the values changed since their last connection. When the history does not go
+     * back far enough, they receive all the values like with "R*". See {@link KeyValueProtocol}.
+     *
+     * @param historySize The maximum number of keys in the history, or zero to disable the incremental resync.
+     */
+    public void setIncrementalResync(int historySize) {
+        mProtocol.setResyncHistorySize(historySize);
+        mProtocol.setFeatureEnabled(KeyValueProtocol.FEATURE_RESYNC, historySize > 0);
+    }
+
+    public boolean isIncrementalResync() {
+        return mProtocol.isFeatureEnabled(KeyValueProtocol.FEATURE_RESYNC);
+    }
+
+    /**
+     * Enables or disables the compression for new client connections.
+     * <p/>
+     * When enabled, clients which request it during the version handshake exchange deflated frames
+     * with the server. This trades CPU for bandwidth and is only used with the binary framing,
+     * see {@link #setBinaryProtocol(boolean)}. See {@link KeyValueProtocol}.
+     *
+     * @param enabled Whether clients can request the compression.
+     * @param threshold Writes smaller than this number of bytes are sent uncompressed, e.g. pings.
+     */
+    public void setCompression(boolean enabled, int threshold) {
+        mCompressionThreshold = Math.max(0, threshold);
+        mProtocol.setFeatureEnabled(KeyValueProtocol.FEATURE_COMPRESS, enabled);
+    }
+
+    public boolean isCompression() {
+        return mProtocol.isFeatureEnabled(KeyValueProtocol.FEATURE_COMPRESS);
+    }
+
+    int getCompressionThreshold() {
+        return mCompressionThreshold;
+    }
+
+    /**
+     * Limits the outbound queue of new client connections.
+     * <p/>
+     * By default the queues are unbounded, which means a single stuck client can make the server
+     * run out of memory. When a limit is set and a new line does not fit in the queue of a client,
+     * the policy decides what happens:
+     * <ul>
+     * <li> {@link SlowConsumerPolicy#DISCONNECT} closes the client connection right away.
+     * <li> {@link SlowConsumerPolicy#DROP_OLDEST} drops the oldest queued values of that client.
+     * <li> {@link SlowConsumerPolicy#BLOCK} blocks the broadcaster up to blockTimeoutMs till the client
+     *      catches up, after which the client connection is closed. Note that with the selector
+     *      engine, the broadcaster may be the loop thread of the slow client, in which case the
+     *      client can't catch up and is disconnected once the timeout expires.
+     * </ul>
+     * Closed connections are reported via {@link #setOnClientEvicted(IEvictionListener)}.
+     *
+     * @param maxLines The maximum number of queued lines per client, or zero for no limit.
+     * @param maxBytes The approximate maximum number of queued bytes per client, or zero for no limit.
+     * @param policy What to do when a client queue is full.
+     * @param blockTimeoutMs How long to block with the {@code BLOCK} policy.
+     */
+    public void setOutboundLimits(
+            int maxLines,
+            int maxBytes,
+            @NonNull SlowConsumerPolicy policy,
+            long blockTimeoutMs) {
+        mMaxOutboundLines = Math.max(0, maxLines);
+        mMaxOutboundBytes = Math.max(0, maxBytes);
+        mSlowConsumerPolicy = policy;
+        mBlockTimeoutMs = Math.max(0, blockTimeoutMs);
+    }
+
+    /**
+     * Sets the persistence of the store, or null for a store only kept in memory.
+     * <p/>
+     * The store is recovered from the persistence files when the server starts, before accepting
+     * client connections, and all changes are logged till {@link #stopSync()}. The recovered values
+     * are not broadcast. Must be called before {@link #start(int)}.
+     */
+    public void setPersistence(@Null KeyValuePersistence persistence) {
+        mPersistence = persistence;
+    }
+
+    @Null
+    public KeyValuePersistence getPersistence() {
+        return mPersistence;
+    }
+
+    /**
+     * Makes this server a replica of the given primary server, or null for a primary server.
+     * Must be called before {@link #start(int)}.
+     * <p/>
+     * Once started, a replica connects to the primary with a {@link KeyValueClient} and keeps a full
+     * copy of its store: it gets all the values on the first connection, then applies and broadcasts
+     * to its own clients the changes broadcast by the primary. Reads are served from the copy.
+     * Writes, batches and TTLs received from the replica's clients are forwarded to the primary and
+     * only change the copy once the primary broadcasts them back, so that all the replicas apply the
+     * changes in the order of the primary.
+     * <p/>
+     * Reconnections use the incremental resync when enabled on the primary, see
+     * {@link #setIncrementalResync(int)}, which is recommended: otherwise the replica gets all the values
+     * again and does not learn about the keys removed while it was disconnected.
+     * Changes made on the replica with {@link #putValue} only change the copy and are not forwarded.
+     */
+    public void setPrimary(@Null SocketAddress primary) {
+        mPrimary = primary;
+    }
+
+    @Null
+    public SocketAddress getPrimary() {
+        return mPrimary;
+    }
+
+    /** Returns the client connected to the primary while a replica is running, or null. */
+    @Null
+    KeyValueClient getReplicationClient() {
+        return mReplicationClient;
+    }
+
+    private void startReplication() {
+        SocketAddress primary = mPrimary;
+        if (primary == null) return;
+        KeyValueClient client = new KeyValueClient(mClock, mLogger, primary, new KeyValueClient.IStatsListener() {
+            @Override
+            public void addBandwidthTXBytes(int count) {}
+
+            @Override
+            public void addBandwidthRXBytes(int count) {}
+
+            @Override
+            public void setMessage(@Null String msg) {}
+
+            @Override
+            public void HBLatencyRequestSent() {}
+
+            @Override
+            public void HBLatencyReplyReceived() {}
+        });
+        client.setIncrementalResync(true);
+        client.setRequestAllOnConnect(true);
+        // A replica has no reason to delay its resync.
+        client.setReconnectPolicy(new BackoffReconnectPolicy(
+                BackoffReconnectPolicy.DEFAULT_BASE_MS,
+                BackoffReconnectPolicy.DEFAULT_MAX_MS,
+                0 /*resyncWindowMs*/));
+        client.getProtocol().getBatchChangedStream().subscribe((stream, keys) -> {
+            assert keys != null;
+            applyReplicatedChanges(client, keys);
+        });
+        mProtocol.setWriteForwarder(new KeyValueProtocol.IWriteForwarder() {
+            @Override
+            public void forwardValue(@NonNull String key, @NonNull String value) {
+                // The copy is only changed when the primary broadcasts the value back.
+                client.broadcastValue(key, value);
+            }
+
+            @Override
+            public void forwardBatch(@NonNull Map<String, String> values) {
+                client.broadcastValues(values);
+            }
+
+            @Override
+            public void forwardTtl(@NonNull String key, long ttlMs) {
+                client.getSender().sendTtl(key, ttlMs);
+            }
+        });
+        mReplicationClient = client;
+        client.startAsync();
+    }
+
+    /**
+     * Applies the changes received from the primary to the copy, like writes received from
+     * the network: they are published on the change streams and broadcast to the clients.
+     */
+    private void applyReplicatedChanges(@NonNull KeyValueClient client, @NonNull Set<String> keys) {
+        Map<String, String> snapshot = client.getSnapshot();
+        Map<String, String> values = new TreeMap<>();
+        for (String key : keys) {
+            String value = snapshot.get(key);
+            // The primary sends removed keys with an empty value.
+            values.put(key, value == null || value.isEmpty() ? null : value);
+        }
+        mProtocol.applyValues(values);
+    }
+
+    private void stopReplication() {
+        KeyValueClient client = mReplicationClient;
+        mReplicationClient = null;
+        if (client != null) {
+            mProtocol.setWriteForwarder(null);
+            client.stopSync();
+        }
+    }
+
+    /** Sets the listener notified when a client connection is closed because its outbound queue is full. */
+    public void setOnClientEvicted(@Null IEvictionListener listener) {
+        mEvictionListener = listener;
+    }
+
     @NonNull
     public IStream<String> getChangedStream() {
         return mProtocol.getChangedStream();
@@ -106,6 +593,15 @@ public class KeyValueServer implements IKeyValue {
         return mProtocol.getKeys();
     }
 
+    /**
+     * Returns an immutable point-in-time snapshot of all the key-values, sorted by key.
+     * This is O(1) and never blocks writers.
+     */
+    @NonNull
+    public Map<String, String> getSnapshot() {
+        return mProtocol.getSnapshot();
+    }
+
     /** Returns the value for the given key or null if it doesn't exist. */
     @Override
     @Null
@@ -121,11 +617,33 @@ public class KeyValueServer implements IKeyValue {
      */
     @Override
     public void putValue(@NonNull String key, @Null String value, boolean broadcast) {
-        if (mProtocol.putValue(key, value)) {
-            if (broadcast) {
-                broadcastChangeViaAllSenders(key, value);
-            }
-        }
+        mProtocol.putValue(key, value, broadcast ? () -> broadcastChangeViaAllSenders(key, value) : null);
+    }
+
+    /**
+     * Sets the non-value for the given key with a time-to-live. <br/>
+     * Once it expires, the key is removed and its removal is broadcast to all clients, whatever
+     * the broadcast parameter. Expiry runs while the server is running and there are TTLs.
+     * See {@link KeyValueProtocol#setTtl(String, long)}.
+     */
+    @Override
+    public void putValue(@NonNull String key, @Null String value, boolean broadcast, long ttlMs) {
+        mProtocol.setTtl(key, ttlMs);
+        putValue(key, value, broadcast);
+    }
+
+    /** Removes the keys whose TTL expired. Returns the number of keys removed. */
+    public int expireKeys() {
+        return mProtocol.expireKeys();
+    }
+
+    /**
+     * Atomically sets the non-values for the given keys. Null values remove the keys if they existed.
+     * When broadcast is true, the changed values are sent to all clients as a single batch.
+     */
+    @Override
+    public void putValues(@NonNull Map<String, String> values, boolean broadcast) {
+        mProtocol.putValues(values, broadcast ? this::broadcastBatchViaAllSenders : null);
     }
 
     /**
@@ -156,6 +674,23 @@ public class KeyValueServer implements IKeyValue {
         if (DEBUG) mLogger.d(TAG, "start | isRunning=" + mIsRunning);
         if (mIsRunning) return null;
 
+        KeyValuePersistence persistence = mPersistence;
+        if (persistence != null) {
+            try {
+                persistence.open(mProtocol);
+            } catch (IOException e) {
+                mLogger.d(TAG, "start: persistence recovery failed: " + e);
+                return null;
+            }
+        }
+
+        startExpiry();
+        startReplication();
+
+        if (mSelectorLoops > 0) {
+            return startSelectorEngine(ip, port);
+        }
+
         final CountDownLatch latch = new CountDownLatch(1);
         mIsRunning = true;
         mSocketThread = new Thread(() -> {
@@ -202,6 +737,8 @@ public class KeyValueServer implements IKeyValue {
                     } catch (IOException ignore) {}
                     mServerSocket = null;
                 }
+                // Unlocks start() without waiting for the timeout when the bind failed.
+                latch.countDown();
                 // any connection handler is likely to terminate itself
                 // quite quickly since the socket has been shutdown so
                 // we'll wait shortly for them, shouldn't be blocking much.
@@ -224,20 +761,55 @@ public class KeyValueServer implements IKeyValue {
             if (!latch.await(5, TimeUnit.SECONDS)) {
                 // latch expired
                 if (DEBUG) mLogger.d(TAG, "socket-thread [latch expired]");
+                stopSync();
                 return null;
             }
         } catch (InterruptedException e) {
             // Interrupted while waiting...
             if (DEBUG) mLogger.d(TAG, "socket-thread [latch interrupted] " + e);
+            stopSync();
+            return null;
+        }
+        ServerSocket serverSocket = mServerSocket;
+        if (serverSocket == null) {
+            // The socket thread ended without binding.
+            if (DEBUG) mLogger.d(TAG, "socket-thread [bind failed]");
+            stopSync();
             return null;
         }
-        InetSocketAddress address = (InetSocketAddress) mServerSocket.getLocalSocketAddress();
+        InetSocketAddress address = (InetSocketAddress) serverSocket.getLocalSocketAddress();
         if (DEBUG) mLogger.d(TAG, "socket-thread listening on " + address);
         return address;
     }
 
+    @Null
+    private InetSocketAddress startSelectorEngine(@Null InetAddress ip, int port) {
+        mIsRunning = true;
+        try {
+            SelectorEngine engine = new SelectorEngine(mLogger, this, mProtocol, mSelectorLoops);
+            mSelectorEngine = engine;
+            InetSocketAddress address = engine.start(ip, port);
+            if (DEBUG) mLogger.d(TAG, "selector-engine listening on " + address);
+            return address;
+        } catch (IOException e) {
+            if (DEBUG) mLogger.d(TAG, "selector-engine [start failed] " + e);
+            stopSync();
+            return null;
+        }
+    }
+
     /** Ask server to stop. Returns once the server is stopped. */
     public void stopSync() {
+        SelectorEngine engine = mSelectorEngine;
+        if (engine != null) {
+            mIsRunning = false;
+            engine.stopSync();
+            mSelectorEngine = null;
+            stopReplication();
+            stopExpiry();
+            closePersistence();
+            return;
+        }
         if (mIsRunning) {
             stopAsync();
             try {
@@ -249,11 +821,91 @@ public class KeyValueServer implements IKeyValue {
                 mLogger.d(TAG, "stop -| join interrupted: " + t);
             }
         }
+        stopReplication();
+        stopExpiry();
+        closePersistence();
+    }
+
+    /** Enables expiry, which runs as soon as and as long as there are TTLs. */
+    private void startExpiry() {
+        synchronized (mExpiryLock) {
+            mExpiryEnabled = true;
+        }
+        mProtocol.setTtlListener(this::wakeExpiry);
+        wakeExpiry();
+    }
+
+    /**
+     * Starts the thread which removes the keys whose TTL expired, every tick of the TTLs, unless
+     * it's already running. The thread ends once there are no TTLs left.
+     */
+    private void wakeExpiry() {
+        synchronized (mExpiryLock) {
+            if (!mExpiryEnabled || mExpiryThread != null || !mProtocol.hasTtls()) return;
+            Thread thread = new Thread(() -> {
+                if (DEBUG) mLogger.d(TAG, "expiry-thread [start]");
+                while (mExpiryThread == Thread.currentThread()) {
+                    try {
+                        Thread.sleep(KeyValueProtocol.EXPIRY_TICK_MS);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    mProtocol.expireKeys();
+                    synchronized (mExpiryLock) {
+                        // A new TTL set after this check starts a new thread.
+                        if (!mProtocol.hasTtls() && mExpiryThread == Thread.currentThread()) {
+                            mExpiryThread = null;
+                        }
+                    }
+                }
+                if (DEBUG) mLogger.d(TAG, "expiry-thread [end]");
+            }, TAG + "-Expiry");
+            thread.setDaemon(true);
+            mExpiryThread = thread;
+            thread.start();
+        }
+    }
+
+    /** Returns true if the expiry thread is running. */
+    boolean isExpiryRunning() {
+        return mExpiryThread != null;
+    }
+
+    private void stopExpiry() {
+        mProtocol.setTtlListener(null);
+        Thread thread;
+        synchronized (mExpiryLock) {
+            mExpiryEnabled = false;
+            thread = mExpiryThread;
+            mExpiryThread = null;
+        }
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                mLogger.d(TAG, "stop -| expiry join interrupted: " + e);
+            }
+        }
+    }
+
+    /** Writes the pending changes and stops logging them. */
+    private void closePersistence() {
+        KeyValuePersistence persistence = mPersistence;
+        if (persistence != null) {
+            persistence.close();
+        }
     }
 
     /** Ask server to stop. Returns immediately. */
     public void stopAsync() {
         if (DEBUG) mLogger.d(TAG, "stop -| isRunning=" + mIsRunning);
+        SelectorEngine engine = mSelectorEngine;
+        if (engine != null) {
+            mIsRunning = false;
+            engine.stopAsync();
+            return;
+        }
         if (mIsRunning) {
             mIsRunning = false;
             if (DEBUG) mLogger.d(TAG, "stop -| socket.close, thread.state=" + mSocketThread.getState());
@@ -269,14 +921,15 @@ public class KeyValueServer implements IKeyValue {
     }
 
     /**
-     * Waits for incoming lines.
+     * Waits for incoming frames.
      * Passes any IOException from the reader to the caller, including possibly
      * the thread being interrupted.
      * @throws IOException
      */
     private void processConnection(@NonNull final Socket socket) throws IOException {
-        BufferedReader in = null;
-        PrintWriter out = null;
+        InputStream in = null;
+        OutputStream out = null;
+        FrameDecoder decoder = null;
         Sender sender = null;
         int senderIndex = -1;
 
@@ -287,71 +940,70 @@ public class KeyValueServer implements IKeyValue {
             socket.setKeepAlive(true);  // try to keep alive
             socket.setSoTimeout(0 /*ms*/);
 
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            final PrintWriter out_ = out = new PrintWriter(socket.getOutputStream());
-            final LinkedBlockingDeque<String> outCommands = new LinkedBlockingDeque<>();
-            sender = new Sender(outCommands);
-
-            synchronized (mSenders) {
-                senderIndex = mNextSender++;
-                mSenders.put(senderIndex, sender);
-            }
-            if (DEBUG) mLogger.d(TAG, "Added sender " + senderIndex);
-
-            if (mOnClientConnectedRunnable != null) {
-                try {
-                    mOnClientConnectedRunnable.run();
-                } catch (Exception ignore) {}
-            }
+            in = socket.getInputStream();
+            final OutputStream out_ = out = new BufferedOutputStream(socket.getOutputStream());
+            final Sender sender_ = sender = createSender(
+                    socket.getRemoteSocketAddress(),
+                    null /*onQueued*/,
+                    () -> {
+                        try {
+                            socket.close();
+                        } catch (IOException ignore) {}
+                    });
+            senderIndex = addSender(sender);
 
             mThreadPool.execute(() -> {
                 if (DEBUG) mLogger.d(TAG, "Writer thread started");
+                FrameCompressor compressor = new FrameCompressor(mCompressionThreshold);
                 while (mIsRunning && !socket.isClosed() && !Thread.interrupted()) {
                     try {
                         // Loop trying to grab commands. Returns null when timeout expired.
-                        String line = outCommands.pollFirst(1, TimeUnit.SECONDS);
-                        if (line != null) {
-                            if (DEBUG_VERBOSE) mLogger.d(TAG, "WRITE >> " + line.trim());
-                            out_.println(line);
-                            out_.flush();
+                        byte[] frame = sender_.pollFrame(1, TimeUnit.SECONDS);
+                        if (frame != null) {
+                            onBytesWritten(compressor.write(out_, frame));
+                            onFrameWritten(sender_, frame, System.nanoTime());
+                            // Only flush once the queue is drained to batch consecutive frames.
+                            if (sender_.isEmpty()) {
+                                onBytesWritten(compressor.flush(out_));
+                                out_.flush();
+                            }
                         }
                     } catch (InterruptedException e) {
                         break;
+                    } catch (IOException e) {
+                        if (DEBUG) mLogger.d(TAG, "WRITE failed: " + e);
+                        break;
                     }
                 }
+                compressor.close();
                 if (DEBUG) mLogger.d(TAG, "Writer thread ended");
             });
 
             sender.sendInit();
 
+            decoder = new FrameDecoder(mLogger, mProtocol, sender);
+            byte[] buffer = new byte[8192];
             while (mIsRunning && !socket.isClosed() && !Thread.interrupted()) {
-                String line = in.readLine();
-                if (line == null) {
-                    // BufferedReader.readLine returns null when the socket is dead.
-                    if (DEBUG) mLogger.d(TAG, "READ NULL");
+                int n = in.read(buffer);
+                if (n < 0) {
+                    // read returns -1 when the socket is dead.
+                    if (DEBUG) mLogger.d(TAG, "READ EOF");
                     break;
                 }
+                onBytesRead(n);
                 try {
-                    mProtocol.processLine(sender, line);
+                    decoder.feed(buffer, 0, n);
                 } catch (KeyValueProtocol.QCloseRequestException e) {
                     if (DEBUG) mLogger.d(TAG, "Q Close Request received.");
                     break;
-                } catch (Exception e) {
-                    if (DEBUG) mLogger.d(TAG, "Malformed line '" + line + "': " + e);
                 }
             }
         } finally {
             if (senderIndex != -1) {
-                synchronized (mSenders) {
-                    mSenders.remove(senderIndex);
-                }
-                if (DEBUG) mLogger.d(TAG, "Removed sender " + senderIndex);
-
-                if (mOnClientConnectedRunnable != null) {
-                    try {
-                        mOnClientConnectedRunnable.run();
-                    } catch (Exception ignore) {}
-                }
+                removeSender(senderIndex);
+            }
+            if (decoder != null) {
+                decoder.close();
             }
             if (in != null) {
                 try {
@@ -359,7 +1011,9 @@ public class KeyValueServer implements IKeyValue {
                 } catch (IOException ignore) {}
             }
             if (out != null) {
-                out.close();
+                try {
+                    out.close();
+                } catch (IOException ignore) {}
             }
             try {
                 socket.close();
@@ -368,30 +1022,359 @@ public class KeyValueServer implements IKeyValue {
         if (DEBUG) mLogger.d(TAG, "processConnection ended for sender " + senderIndex);
     }
 
+    /**
+     * Creates the sender for a new client connection using the current server configuration.
+     *
+     * @param clientAddress The remote address of the client, if known.
+     * @param onQueued Optional runnable invoked every time a frame is queued.
+     * @param closeConnection Closes the client connection when its queue is full. Can be invoked from any thread.
+     */
+    @NonNull
+    Sender createSender(
+            @Null SocketAddress clientAddress,
+            @Null Runnable onQueued,
+            @NonNull Runnable closeConnection) {
+        final SlowConsumerPolicy policy = mSlowConsumerPolicy;
+        final Sender[] sender = new Sender[1];
+        OutboundQueue queue = new OutboundQueue(
+                mConflating,
+                mMaxOutboundLines,
+                mMaxOutboundBytes,
+                policy,
+                mBlockTimeoutMs);
+        sender[0] = new Sender(clientAddress, queue, onQueued, () -> {
+            if (DEBUG) mLogger.d(TAG, "Evicting slow client " + clientAddress);
+            IEvictionListener listener = mEvictionListener;
+            if (listener != null) {
+                try {
+                    listener.onClientEvicted(clientAddress, policy);
+                } catch (Exception ignore) {}
+            }
+            closeConnection.run();
+        }, () -> {
+            synchronized (mSenders) {
+                // Only registered senders are routed.
+                if (mSenders.indexOfValue(sender[0]) >= 0) {
+                    updateRoutes();
+                }
+            }
+        });
+        return sender[0];
+    }
+
+    /**
+     * Registers the sender of a new client connection and notifies the on-connected listener.
+     * Returns the index to use with {@link #removeSender(int)}.
+     */
+    int addSender(@NonNull Sender sender) {
+        int senderIndex;
+        synchronized (mSenders) {
+            senderIndex = mNextSender++;
+            mSenders.put(senderIndex, sender);
+            updateRoutes();
+            mStatsListener.setNumConnections(mSenders.size());
+        }
+        if (DEBUG) mLogger.d(TAG, "Added sender " + senderIndex);
+        notifyClientConnected();
+        return senderIndex;
+    }
+
+    /** Unregisters the sender of a closed client connection and notifies the on-connected listener. */
+    void removeSender(int senderIndex) {
+        synchronized (mSenders) {
+            mSenders.remove(senderIndex);
+            updateRoutes();
+            mStatsListener.setNumConnections(mSenders.size());
+        }
+        if (DEBUG) mLogger.d(TAG, "Removed sender " + senderIndex);
+        notifyClientConnected();
+    }
+
+    /** Must be called with the {@link #mSenders} lock held. */
+    private void updateRoutes() {
+        List<Sender> all = new ArrayList<>();
+        SubscriptionTrie<Sender> trie = new SubscriptionTrie<>();
+        for (int n = mSenders.size() - 1; n >= 0; n--) {
+            Sender sender = mSenders.valueAt(n);
+            Set<String> patterns = sender.getPatterns();
+            if (patterns.isEmpty()) {
+                all.add(sender);
+            } else {
+                for (String pattern : patterns) {
+                    trie.add(pattern, sender);
+                }
+            }
+        }
+        mRoutes = new BroadcastRoutes(all.toArray(new Sender[0]), trie.size() == 0 ? null : trie);
+    }
+
+    private void notifyClientConnected() {
+        if (mOnClientConnectedRunnable != null) {
+            try {
+                mOnClientConnectedRunnable.run();
+            } catch (Exception ignore) {}
+        }
+    }
+
     private void broadcastChangeViaAllSenders(@NonNull String key, @Null String value) {
         if (value == null) value = "";
-        synchronized (mSenders) {
-            for (int n = mSenders.size() - 1; n >= 0; n--) {
-                mSenders.valueAt(n).sendValue(key, value);
+        long start = System.nanoTime();
+        // Use the snapshot rather than locking mSenders since a sender may block on a full queue.
+        BroadcastRoutes routes = mRoutes;
+        // Frames are encoded once and shared by all senders.
+        FrameCodec.SharedValue shared = new FrameCodec.SharedValue(key, value);
+        Sender[] senders = routes.mAll;
+        int fanOut = senders.length;
+        for (int n = senders.length - 1; n >= 0; n--) {
+            senders[n].sendValue(shared);
+        }
+        if (routes.mSubscribed != null) {
+            List<Sender> subscribed = new ArrayList<>();
+            routes.mSubscribed.collect(key, subscribed);
+            fanOut += subscribed.size();
+            for (int n = subscribed.size() - 1; n >= 0; n--) {
+                subscribed.get(n).sendValue(shared);
             }
         }
+        mStatsListener.addBroadcastTime(fanOut, System.nanoTime() - start);
     }
 
-    private static class Sender extends KeyValueProtocol.Sender {
-        @NonNull
-        private final LinkedBlockingDeque<String> mCommands;
+    /** Broadcasts a batch of values. Null values are sent as empty values. */
+    private void broadcastBatchViaAllSenders(@NonNull Map<String, String> values) {
+        if (values.size() == 1) {
+            Map.Entry<String, String> entry = values.entrySet().iterator().next();
+            broadcastChangeViaAllSenders(entry.getKey(), entry.getValue());
+            return;
+        }
+        long start = System.nanoTime();
+        Map<String, String> batch = new TreeMap<>();
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            String value = entry.getValue();
+            batch.put(entry.getKey(), value == null ? "" : value);
+        }
+        BroadcastRoutes routes = mRoutes;
+        FrameCodec.SharedBatch shared = new FrameCodec.SharedBatch(batch);
+        Sender[] senders = routes.mAll;
+        int fanOut = senders.length;
+        for (int n = senders.length - 1; n >= 0; n--) {
+            senders[n].sendBatch(shared);
+        }
+        if (routes.mSubscribed != null) {
+            // Each subscribed sender gets the part of the batch matching its patterns.
+            Map<Sender, Map<String, String>> parts = new IdentityHashMap<>();
+            List<Sender> subscribed = new ArrayList<>();
+            for (Map.Entry<String, String> entry : batch.entrySet()) {
+                subscribed.clear();
+                routes.mSubscribed.collect(entry.getKey(), subscribed);
+                for (Sender sender : subscribed) {
+                    Map<String, String> part = parts.get(sender);
+                    if (part == null) {
+                        parts.put(sender, part = new TreeMap<>());
+                    }
+                    part.put(entry.getKey(), entry.getValue());
+                }
+            }
+            fanOut += parts.size();
+            for (Map.Entry<Sender, Map<String, String>> entry : parts.entrySet()) {
+                Map<String, String> part = entry.getValue();
+                if (part.size() == 1) {
+                    Map.Entry<String, String> value = part.entrySet().iterator().next();
+                    entry.getKey().sendValue(value.getKey(), value.getValue());
+                } else {
+                    entry.getKey().sendBatch(part);
+                }
+            }
+        }
+        mStatsListener.addBroadcastTime(fanOut, System.nanoTime() - start);
+    }
+
+    /** Immutable snapshot of the senders to broadcast to. */
+    private static class BroadcastRoutes {
+        /** Senders without subscriptions, which get all the changes. */
+        @NonNull final Sender[] mAll;
+        /** Senders indexed by their subscription patterns, or null if there are none. */
+        @Null final SubscriptionTrie<Sender> mSubscribed;
+
+        BroadcastRoutes(@NonNull Sender[] all, @Null SubscriptionTrie<Sender> subscribed) {
+            mAll = all;
+            mSubscribed = subscribed;
+        }
+    }
+
+    /**
+     * The sender of one client connection.
+     * Frames are encoded and queued in an {@link OutboundQueue} and then written by the connection engine.
+     */
+    static class Sender extends KeyValueProtocol.Sender {
+        @Null private final SocketAddress mClientAddress;
+        @NonNull private final OutboundQueue mCommands;
+        @Null private final Runnable mOnQueued;
+        @NonNull private final Runnable mOnEvicted;
+        @Null private final Runnable mOnSubscriptionsChanged;
+        private final AtomicBoolean mEvicted = new AtomicBoolean();
+        /** Key patterns subscribed by the client. Empty to receive all changes. Guarded by itself. */
+        private final Set<String> mPatterns = new TreeSet<>();
+
+        /**
+         * Creates a new sender.
+         *
+         * @param commands The outbound queue of the connection.
+         * @param onQueued Optional runnable invoked every time a frame is queued.
+         * @param onEvicted Invoked once when a frame is rejected because the queue is full.
+         */
+        public Sender(
+                @NonNull OutboundQueue commands,
+                @Null Runnable onQueued,
+                @NonNull Runnable onEvicted) {
+            this(null, commands, onQueued, onEvicted, null);
+        }
 
-        public Sender(@NonNull LinkedBlockingDeque<String> commands) {
+        /**
+         * Creates a new sender.
+         *
+         * @param clientAddress The remote address of the client, if known.
+         * @param commands The outbound queue of the connection.
+         * @param onQueued Optional runnable invoked every time a frame is queued.
+         * @param onEvicted Invoked once when a frame is rejected because the queue is full.
+         * @param onSubscriptionsChanged Optional runnable invoked when the client changed its subscriptions.
+         */
+        public Sender(
+                @Null SocketAddress clientAddress,
+                @NonNull OutboundQueue commands,
+                @Null Runnable onQueued,
+                @NonNull Runnable onEvicted,
+                @Null Runnable onSubscriptionsChanged) {
+            mClientAddress = clientAddress;
             mCommands = commands;
+            mOnQueued = onQueued;
+            mOnEvicted = onEvicted;
+            mOnSubscriptionsChanged = onSubscriptionsChanged;
         }
 
+        @Override
         public void sendLine(@NonNull String line) {
-            mCommands.offerLast(line);
+            onOffered(mCommands.offer(null /*key*/, FrameCodec.encodeLine(line)));
+        }
+
+        @Override
+        protected void sendValueLine(@NonNull String key, @NonNull String line) {
+            onOffered(mCommands.offer(key, FrameCodec.encodeLine(line)));
+        }
+
+        @Override
+        protected void sendFrame(@Null String key, @NonNull byte[] frame) {
+            onOffered(mCommands.offer(key, frame));
+        }
+
+        @Override
+        public synchronized void sendValue(@NonNull FrameCodec.SharedValue value) {
+            // Synchronized like all sends so that the framing can't switch in between.
+            byte[] frame = isBinaryOutbound() ? value.getBinaryFrame() : value.getTextFrame();
+            if (frame != null) {
+                onOffered(mCommands.offer(value.getKey(), frame));
+            }
+        }
+
+        @Override
+        public synchronized void sendBatch(@NonNull FrameCodec.SharedBatch batch) {
+            byte[] frame = isBinaryOutbound() ? batch.getBinaryFrame() : batch.getTextFrame();
+            if (frame != null) {
+                onOffered(mCommands.offerBatch(batch.getValues().keySet(), frame));
+            }
+        }
+
+        @Override
+        public void sendBatch(@NonNull Map<String, String> values) {
+            // Queued with its keys, so that newer values are not conflated before the batch.
+            sendBatch(new FrameCodec.SharedBatch(values));
+        }
+
+        @Override
+        protected boolean supportsFeature(@NonNull String feature) {
+            return KeyValueProtocol.FEATURE_BINARY.equals(feature)
+                    || KeyValueProtocol.FEATURE_RESYNC.equals(feature)
+                    || KeyValueProtocol.FEATURE_COMPRESS.equals(feature);
+        }
+
+        @Override
+        public synchronized void sendSyncMarker(@NonNull String epoch, long seq, boolean onlyIfChanged) {
+            // Once frames have been dropped, the client may have missed changes before any new marker.
+            if (mCommands.hasDropped()) return;
+            super.sendSyncMarker(epoch, seq, onlyIfChanged);
+        }
+
+        @Override
+        protected void onSubscribe(@NonNull String pattern) {
+            synchronized (mPatterns) {
+                if (pattern.isEmpty()) {
+                    if (mPatterns.isEmpty()) return;
+                    mPatterns.clear();
+                } else if (!mPatterns.add(pattern)) {
+                    return;
+                }
+            }
+            if (mOnSubscriptionsChanged != null) {
+                mOnSubscriptionsChanged.run();
+            }
+        }
+
+        /** Returns a copy of the key patterns subscribed by the client, empty if it receives all changes. */
+        @NonNull
+        public Set<String> getPatterns() {
+            synchronized (mPatterns) {
+                return new TreeSet<>(mPatterns);
+            }
+        }
+
+        private void onOffered(boolean accepted) {
+            if (accepted) {
+                if (mOnQueued != null) {
+                    mOnQueued.run();
+                }
+            } else if (mEvicted.compareAndSet(false, true)) {
+                mOnEvicted.run();
+            }
+        }
+
+        /** Returns the next encoded frame to write or null if there is none. Does not block. */
+        @Null
+        public byte[] pollFrame() {
+            return mCommands.poll();
+        }
+
+        /** Returns the next encoded frame to write, or null once the timeout expired. */
+        @Null
+        public byte[] pollFrame(long timeout, @NonNull TimeUnit unit) throws InterruptedException {
+            return mCommands.poll(timeout, unit);
+        }
+
+        public boolean isEmpty() {
+            return mCommands.isEmpty();
+        }
+
+        /** Returns when the last polled frame was queued. Must be called by the writer. */
+        long getLastPolledNanos() {
+            return mCommands.getLastPolledNanos();
+        }
+
+        @NonNull
+        public ConnectionStats getStats() {
+            // Each value is read atomically but they are not consistent with each other.
+            return new ConnectionStats(
+                    mClientAddress,
+                    mCommands.size(),
+                    mCommands.sizeBytes(),
+                    mCommands.getHighWater());
+        }
+
+        /** Discards all pending frames. */
+        public void clear() {
+            mCommands.clear();
         }
 
         public void sendInit() {
             // server version
-            sendLine("VJuniorDayModelServer:1");
+            sendLine("V" + KeyValueProtocol.SERVER_NAME + ":1");
         }
     }
 }
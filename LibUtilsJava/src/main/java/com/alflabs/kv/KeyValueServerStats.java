@@ -0,0 +1,139 @@
+/*
+ * Project: Lib Utils
+ * Copyright (C) 2017 alf.labs gmail com,
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.alflabs.kv;
+
+import com.alflabs.annotations.NonNull;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The default {@link KeyValueServer.IStatsListener}, which simply accumulates the server metrics.
+ * <p/>
+ * All the counters are lock-free and can be read at any time from any thread, for example to be
+ * logged or exported periodically. Durations are in nanoseconds.
+ */
+public class KeyValueServerStats implements KeyValueServer.IStatsListener {
+
+    private volatile int mNumConnections;
+    private final AtomicLong mTXBytes = new AtomicLong();
+    private final AtomicLong mRXBytes = new AtomicLong();
+    private final AtomicLong mLinesTX = new AtomicLong();
+    private final AtomicLong mLinesRX = new AtomicLong();
+    private final AtomicLong mBroadcastFanOut = new AtomicLong();
+    private final LatencyHistogram mProcessLineTime = new LatencyHistogram();
+    private final LatencyHistogram mBroadcastTime = new LatencyHistogram();
+    private final LatencyHistogram mWriteDelay = new LatencyHistogram();
+
+    @Override
+    public void setNumConnections(int count) {
+        mNumConnections = count;
+    }
+
+    @Override
+    public void addBandwidthTXBytes(int count) {
+        mTXBytes.addAndGet(count);
+    }
+
+    @Override
+    public void addBandwidthRXBytes(int count) {
+        mRXBytes.addAndGet(count);
+    }
+
+    @Override
+    public void addLinesTX(int count) {
+        mLinesTX.addAndGet(count);
+    }
+
+    @Override
+    public void addLinesRX(int count) {
+        mLinesRX.addAndGet(count);
+    }
+
+    @Override
+    public void addProcessLineTime(long nanos) {
+        mProcessLineTime.record(nanos);
+    }
+
+    @Override
+    public void addBroadcastTime(int fanOut, long nanos) {
+        mBroadcastFanOut.addAndGet(fanOut);
+        mBroadcastTime.record(nanos);
+    }
+
+    @Override
+    public void addWriteDelay(long nanos) {
+        mWriteDelay.record(nanos);
+    }
+
+    public int getNumConnections() {
+        return mNumConnections;
+    }
+
+    public long getTXBytes() {
+        return mTXBytes.get();
+    }
+
+    public long getRXBytes() {
+        return mRXBytes.get();
+    }
+
+    /** Returns the number of lines or binary frames written to clients. */
+    public long getLinesTX() {
+        return mLinesTX.get();
+    }
+
+    /** Returns the number of lines or binary frames received from clients. */
+    public long getLinesRX() {
+        return mLinesRX.get();
+    }
+
+    /** Returns the total number of frames queued by all broadcasts. */
+    public long getBroadcastFanOut() {
+        return mBroadcastFanOut.get();
+    }
+
+    /** Time spent processing each line or binary frame received. */
+    @NonNull
+    public LatencyHistogram getProcessLineTime() {
+        return mProcessLineTime;
+    }
+
+    /** Time spent queuing each broadcast for all its recipients. */
+    @NonNull
+    public LatencyHistogram getBroadcastTime() {
+        return mBroadcastTime;
+    }
+
+    /** Time between a frame being queued for a client and it being written to the client socket. */
+    @NonNull
+    public LatencyHistogram getWriteDelay() {
+        return mWriteDelay;
+    }
+
+    @Override
+    public String toString() {
+        return "connections=" + getNumConnections()
+                + " tx=" + getTXBytes() + "B/" + getLinesTX()
+                + " rx=" + getRXBytes() + "B/" + getLinesRX()
+                + " fanOut=" + getBroadcastFanOut()
+                + " process=[" + mProcessLineTime + "]"
+                + " broadcast=[" + mBroadcastTime + "]"
+                + " writeDelay=[" + mWriteDelay + "]";
+    }
+}
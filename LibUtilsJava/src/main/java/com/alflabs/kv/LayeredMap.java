@@ -0,0 +1,214 @@
+/*
+ * Project: Lib Utils
+ * Copyright (C) 2017 alf.labs gmail com,
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.alflabs.kv;
+
+import com.alflabs.annotations.NonNull;
+import com.alflabs.annotations.Null;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An immutable sorted map of strings made of changes layered on top of a read-only base map.
+ * <p/>
+ * The changes are kept in a {@link PersistentTreeMap}. Keys removed from the base are kept in the
+ * changes with a tombstone value. Without a base, this simply wraps the changes map.
+ * <p/>
+ * Like {@link PersistentTreeMap}, {@link #with} and {@link #without} return a new map and any
+ * instance is a point-in-time snapshot which can be read by any thread without locking.
+ */
+final class LayeredMap extends AbstractMap<String, String> {
+
+    /** The empty map without base. */
+    public static final LayeredMap EMPTY = new LayeredMap(null, PersistentTreeMap.EMPTY, 0);
+
+    /** Marks keys removed from the base. Compared by identity. */
+    @SuppressWarnings("RedundantStringConstructorCall")
+    private static final String TOMBSTONE = new String("");
+
+    @Null private final Map<String, String> mBase;
+    @NonNull private final PersistentTreeMap mChanges;
+    private final int mSize;
+    private Set<Map.Entry<String, String>> mEntrySet;
+
+    private LayeredMap(@Null Map<String, String> base, @NonNull PersistentTreeMap changes, int size) {
+        mBase = base;
+        mChanges = changes;
+        mSize = size;
+    }
+
+    /** Creates a map with no changes on top of the given base, which must iterate in key order. */
+    @NonNull
+    public static LayeredMap onTopOf(@NonNull Map<String, String> base) {
+        return new LayeredMap(base, PersistentTreeMap.EMPTY, base.size());
+    }
+
+    /** Returns the number of keys changed or removed from the base. */
+    public int getNumChanges() {
+        return mChanges.size();
+    }
+
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    /** Returns the value for the given key or null if it doesn't exist. */
+    @Null
+    @Override
+    public String get(Object key) {
+        String value = mChanges.get(key);
+        if (value == TOMBSTONE) return null;
+        if (value != null || mBase == null) return value;
+        return mBase.get(key);
+    }
+
+    /** Returns a map with that key set to that value. Returns this map if the key already has that value. */
+    @NonNull
+    public LayeredMap with(@NonNull String key, @NonNull String value) {
+        if (mBase == null) {
+            PersistentTreeMap changes = mChanges.with(key, value);
+            return changes == mChanges ? this : new LayeredMap(null, changes, changes.size());
+        }
+        String existing = get(key);
+        if (value.equals(existing)) return this;
+        PersistentTreeMap changes = mChanges;
+        if (value.equals(mBase.get(key))) {
+            // Back to the base value, the change is no longer needed.
+            changes = changes.without(key);
+        } else {
+            if (changes.get(key) == TOMBSTONE) {
+                // Tombstones are compared by identity and must be removed explicitly.
+                changes = changes.without(key);
+            }
+            changes = changes.with(key, value);
+        }
+        return new LayeredMap(mBase, changes, existing == null ? mSize + 1 : mSize);
+    }
+
+    /** Returns a map without that key. Returns this map if the key doesn't exist. */
+    @NonNull
+    public LayeredMap without(@NonNull String key) {
+        if (mBase == null) {
+            PersistentTreeMap changes = mChanges.without(key);
+            return changes == mChanges ? this : new LayeredMap(null, changes, changes.size());
+        }
+        if (get(key) == null) return this;
+        PersistentTreeMap changes = mBase.containsKey(key)
+                ? mChanges.without(key).with(key, TOMBSTONE)
+                : mChanges.without(key);
+        return new LayeredMap(mBase, changes, mSize - 1);
+    }
+
+    @NonNull
+    @Override
+    public Set<String> keySet() {
+        return mBase == null ? mChanges.keySet() : super.keySet();
+    }
+
+    @NonNull
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+        if (mBase == null) {
+            return mChanges.entrySet();
+        }
+        if (mEntrySet == null) {
+            mEntrySet = new AbstractSet<Map.Entry<String, String>>() {
+                @Override
+                public Iterator<Map.Entry<String, String>> iterator() {
+                    return new MergeIterator(mBase.entrySet().iterator(), mChanges.entrySet().iterator());
+                }
+
+                @Override
+                public int size() {
+                    return mSize;
+                }
+            };
+        }
+        return mEntrySet;
+    }
+
+    /** Merges the sorted entries of the base and the changes, skipping tombstones. */
+    private static class MergeIterator implements Iterator<Map.Entry<String, String>> {
+        private final Iterator<Map.Entry<String, String>> mBaseIt;
+        private final Iterator<Map.Entry<String, String>> mChangesIt;
+        private Map.Entry<String, String> mNextBase;
+        private Map.Entry<String, String> mNextChange;
+        private Map.Entry<String, String> mNext;
+
+        MergeIterator(
+                @NonNull Iterator<Map.Entry<String, String>> baseIt,
+                @NonNull Iterator<Map.Entry<String, String>> changesIt) {
+            mBaseIt = baseIt;
+            mChangesIt = changesIt;
+            mNextBase = baseIt.hasNext() ? baseIt.next() : null;
+            mNextChange = changesIt.hasNext() ? changesIt.next() : null;
+            advance();
+        }
+
+        private void advance() {
+            mNext = null;
+            while (mNext == null && (mNextBase != null || mNextChange != null)) {
+                int cmp = mNextBase == null ? 1
+                        : mNextChange == null ? -1
+                        : mNextBase.getKey().compareTo(mNextChange.getKey());
+                if (cmp < 0) {
+                    mNext = mNextBase;
+                    mNextBase = mBaseIt.hasNext() ? mBaseIt.next() : null;
+                } else {
+                    if (cmp == 0) {
+                        // The change overrides the base entry.
+                        mNextBase = mBaseIt.hasNext() ? mBaseIt.next() : null;
+                    }
+                    if (mNextChange.getValue() != TOMBSTONE) {
+                        mNext = mNextChange;
+                    }
+                    mNextChange = mChangesIt.hasNext() ? mChangesIt.next() : null;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return mNext != null;
+        }
+
+        @Override
+        public Map.Entry<String, String> next() {
+            if (mNext == null) throw new NoSuchElementException();
+            Map.Entry<String, String> next = mNext;
+            advance();
+            return next;
+        }
+    }
+}
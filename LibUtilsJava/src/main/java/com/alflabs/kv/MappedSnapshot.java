@@ -0,0 +1,255 @@
+/*
+ * Project: Lib Utils
+ * Copyright (C) 2017 alf.labs gmail com,
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.alflabs.kv;
+
+import com.alflabs.annotations.NonNull;
+import com.alflabs.annotations.Null;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An immutable sorted map of strings read straight from a snapshot file, typically mapped in
+ * memory with a {@link java.nio.MappedByteBuffer}.
+ * <p/>
+ * Opening a snapshot only checks its header and footer: its size does not matter. Lookups do a
+ * binary search in the key index and only decode the keys they compare to. Keys and values are
+ * decoded on each access and are not cached.
+ * <p/>
+ * File format, all integers being 4-byte big-endian:
+ * <pre>
+ * - "KVS2" magic.
+ * - Entries sorted by key: varint key length, UTF-8 key, varint value length, UTF-8 value.
+ * - Index: one integer per entry with the file offset of the entry.
+ * - Footer: generation, number of entries, offset of the index, "KVS2" magic.
+ * </pre>
+ * The generation is opaque to this class and is used by {@link KeyValuePersistence}.
+ */
+final class MappedSnapshot extends AbstractMap<String, String> {
+
+    private static final int MAGIC = 0x4B565332; // "KVS2"
+    private static final int FOOTER_SIZE = 16;
+
+    @NonNull private final ByteBuffer mBuffer;
+    private final int mGeneration;
+    private final int mSize;
+    private final int mIndexOffset;
+    private Set<Map.Entry<String, String>> mEntrySet;
+
+    private MappedSnapshot(@NonNull ByteBuffer buffer, int generation, int size, int indexOffset) {
+        mBuffer = buffer;
+        mGeneration = generation;
+        mSize = size;
+        mIndexOffset = indexOffset;
+    }
+
+    /** Opens a snapshot. Only the header and footer are read. */
+    @NonNull
+    public static MappedSnapshot open(@NonNull ByteBuffer buffer) throws IOException {
+        int capacity = buffer.capacity();
+        if (capacity < 4 + FOOTER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(capacity - 4) != MAGIC) {
+            throw new IOException("Invalid snapshot");
+        }
+        int footer = capacity - FOOTER_SIZE;
+        int generation = buffer.getInt(footer);
+        int size = buffer.getInt(footer + 4);
+        int indexOffset = buffer.getInt(footer + 8);
+        if (size < 0 || indexOffset < 4 || (long) indexOffset + 4L * size != footer) {
+            throw new IOException("Invalid snapshot index");
+        }
+        return new MappedSnapshot(buffer, generation, size, indexOffset);
+    }
+
+    /** Writes a snapshot of the given map, which must iterate in key order. */
+    public static void write(
+            @NonNull OutputStream stream,
+            @NonNull Map<String, String> map,
+            int generation) throws IOException {
+        DataOutputStream out = new DataOutputStream(stream);
+        int[] offsets = new int[map.size()];
+        int count = 0;
+        out.writeInt(MAGIC);
+        byte[] buf = new byte[64];
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            offsets[count++] = out.size();
+            buf = writeString(out, entry.getKey(), buf);
+            buf = writeString(out, entry.getValue(), buf);
+        }
+        if (count != offsets.length) {
+            throw new IOException("Map size changed while writing snapshot");
+        }
+        int indexOffset = out.size();
+        for (int offset : offsets) {
+            out.writeInt(offset);
+        }
+        out.writeInt(generation);
+        out.writeInt(count);
+        out.writeInt(indexOffset);
+        out.writeInt(MAGIC);
+        out.flush();
+    }
+
+    @NonNull
+    private static byte[] writeString(@NonNull DataOutputStream out, @NonNull String s, @NonNull byte[] buf) throws IOException {
+        int len = FrameCodec.utf8Length(s);
+        int needed = FrameCodec.varintLength(len) + len;
+        if (buf.length < needed) {
+            buf = new byte[Math.max(needed, buf.length * 2)];
+        }
+        int pos = FrameCodec.writeVarint(len, buf, 0);
+        FrameCodec.writeUtf8(s, buf, pos);
+        out.write(buf, 0, needed);
+        return buf;
+    }
+
+    public int getGeneration() {
+        return mGeneration;
+    }
+
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key instanceof String && indexOf((String) key) >= 0;
+    }
+
+    /** Returns the value for the given key or null if it doesn't exist. */
+    @Null
+    @Override
+    public String get(Object key) {
+        if (!(key instanceof String)) return null;
+        int index = indexOf((String) key);
+        return index < 0 ? null : valueAt(index);
+    }
+
+    /** Binary search of the key in the index. Returns its index or -1 if not found. */
+    private int indexOf(@NonNull String key) {
+        int low = 0;
+        int high = mSize - 1;
+        int[] pos = new int[1];
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            pos[0] = entryOffset(mid);
+            int cmp = readString(pos).compareTo(key);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private int entryOffset(int index) {
+        return mBuffer.getInt(mIndexOffset + 4 * index);
+    }
+
+    @NonNull
+    String keyAt(int index) {
+        int[] pos = { entryOffset(index) };
+        return readString(pos);
+    }
+
+    @NonNull
+    String valueAt(int index) {
+        int[] pos = { entryOffset(index) };
+        skipString(pos);
+        return readString(pos);
+    }
+
+    private int readVarint(@NonNull int[] pos) {
+        int value = 0;
+        int p = pos[0];
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = mBuffer.get(p++);
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) break;
+        }
+        pos[0] = p;
+        return value;
+    }
+
+    private void skipString(@NonNull int[] pos) {
+        int len = readVarint(pos);
+        pos[0] += len;
+    }
+
+    @NonNull
+    private String readString(@NonNull int[] pos) {
+        int len = readVarint(pos);
+        if (len == 0) return "";
+        byte[] bytes = new byte[len];
+        // Absolute bulk reads need a duplicate to be thread-safe.
+        ByteBuffer buffer = mBuffer.duplicate();
+        buffer.position(pos[0]);
+        buffer.get(bytes);
+        pos[0] += len;
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @NonNull
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+        if (mEntrySet == null) {
+            mEntrySet = new AbstractSet<Map.Entry<String, String>>() {
+                @Override
+                public Iterator<Map.Entry<String, String>> iterator() {
+                    return new Iterator<Map.Entry<String, String>>() {
+                        private final int[] mPos = new int[1];
+                        private int mIndex;
+
+                        @Override
+                        public boolean hasNext() {
+                            return mIndex < mSize;
+                        }
+
+                        @Override
+                        public Map.Entry<String, String> next() {
+                            if (mIndex >= mSize) throw new NoSuchElementException();
+                            mPos[0] = entryOffset(mIndex++);
+                            String key = readString(mPos);
+                            String value = readString(mPos);
+                            return new SimpleImmutableEntry<>(key, value);
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return mSize;
+                }
+            };
+        }
+        return mEntrySet;
+    }
+}
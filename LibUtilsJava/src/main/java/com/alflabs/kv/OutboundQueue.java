@@ -0,0 +1,301 @@
+/*
+ * Project: Lib Utils
+ * Copyright (C) 2017 alf.labs gmail com,
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.alflabs.kv;
+
+import com.alflabs.annotations.NonNull;
+import com.alflabs.annotations.Null;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The queue of encoded frames waiting to be written on one connection.
+ * <p/>
+ * This is a FIFO queue which can be polled with or without blocking. It is multi-thread safe:
+ * any thread can offer frames whereas a single writer is expected to poll them.
+ * Frames are either text lines including their EOL or binary frames, as encoded by {@link FrameCodec}.
+ * <p/>
+ * When conflating, the queue holds at most one pending value frame per key: offering a new value
+ * for a key which is still pending replaces the older frame in place, keeping its position in the
+ * queue. The memory used by a slow client is then capped by the number of keys and that client
+ * skips directly to the latest state instead of replaying stale values. Frames which are not
+ * values (e.g. ping replies) are never conflated. A batch is not conflated either and the values
+ * of its keys offered after it are queued after it, so that they are never written before it.
+ * <p/>
+ * The queue can also be bounded by a number of frames and/or bytes. When a new frame does not fit,
+ * the {@link KeyValueServer.SlowConsumerPolicy} decides whether the oldest value frames are dropped, the
+ * caller blocks till the writer makes room, or the queue gets evicted. Once evicted, the queue
+ * stays empty and refuses all new frames: the connection is expected to be closed by the caller.
+ * <p/>
+ * For metrics, the queue keeps its high-water mark and the time each frame was queued at, which
+ * the writer reads after polling it with {@link #getLastPolledNanos()}.
+ */
+class OutboundQueue {
+
+    private static class Entry {
+        @Null final String mKey;
+        @NonNull byte[] mFrame;
+        /** When the entry was queued. A conflated entry keeps the time of its first frame. */
+        final long mQueuedNanos;
+
+        Entry(@Null String key, @NonNull byte[] frame, long queuedNanos) {
+            mKey = key;
+            mFrame = frame;
+            mQueuedNanos = queuedNanos;
+        }
+    }
+
+    private final ArrayDeque<Entry> mEntries = new ArrayDeque<>();
+    /** Pending value entries indexed by key. Null when not conflating. */
+    @Null private final HashMap<String, Entry> mPendingValues;
+    private final int mMaxLines;
+    private final int mMaxBytes;
+    @NonNull private final KeyValueServer.SlowConsumerPolicy mPolicy;
+    private final long mBlockTimeoutMs;
+    private int mBytes;
+    private boolean mEvicted;
+    private boolean mDropped;
+    private int mHighWater;
+    private long mLastPolledNanos;
+
+    /** Creates a new unbounded queue. */
+    public OutboundQueue(boolean conflate) {
+        this(conflate, 0, 0, KeyValueServer.SlowConsumerPolicy.DISCONNECT, 0);
+    }
+
+    /**
+     * Creates a new queue.
+     *
+     * @param conflate True to hold at most one pending value frame per key.
+     * @param maxLines The maximum number of queued frames, or zero for no limit.
+     * @param maxBytes The maximum number of queued bytes, or zero for no limit.
+     * @param policy What to do when a new frame does not fit.
+     * @param blockTimeoutMs How long {@link #offer} blocks with the {@code BLOCK} policy before
+     *                       the queue gets evicted.
+     */
+    public OutboundQueue(
+            boolean conflate,
+            int maxLines,
+            int maxBytes,
+            @NonNull KeyValueServer.SlowConsumerPolicy policy,
+            long blockTimeoutMs) {
+        mPendingValues = conflate ? new HashMap<>() : null;
+        mMaxLines = maxLines;
+        mMaxBytes = maxBytes;
+        mPolicy = policy;
+        mBlockTimeoutMs = blockTimeoutMs;
+    }
+
+    public boolean isConflating() {
+        return mPendingValues != null;
+    }
+
+    /**
+     * Adds a frame at the end of the queue.
+     * With the {@code BLOCK} policy, this waits till there's enough room for the frame.
+     *
+     * @param key The key of the value sent by this frame, or null if this frame is not a value.
+     * @param frame The encoded frame to write.
+     * @return False if the queue has been evicted and the frame was discarded.
+     */
+    public synchronized boolean offer(@Null String key, @NonNull byte[] frame) {
+        if (mEvicted) return false;
+        int size = frame.length;
+        if (key != null && mPendingValues != null) {
+            Entry entry = mPendingValues.get(key);
+            if (entry != null) {
+                // Replacing a value in place never adds a frame so it never triggers the policy.
+                mBytes += size - entry.mFrame.length;
+                entry.mFrame = frame;
+                return true;
+            }
+        }
+        if (!makeRoom(size)) {
+            mEvicted = true;
+            clear();
+            notifyAll();
+            return false;
+        }
+        Entry entry = new Entry(key, frame, System.nanoTime());
+        if (key != null && mPendingValues != null) {
+            mPendingValues.put(key, entry);
+        }
+        mEntries.addLast(entry);
+        mBytes += size;
+        if (mEntries.size() > mHighWater) {
+            mHighWater = mEntries.size();
+        }
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Adds the frame of a batch of values at the end of the queue, like {@link #offer}.
+     * The batch is never conflated, and new values for its keys are queued after it.
+     *
+     * @param keys The keys of the values sent by this frame.
+     * @param frame The encoded frame to write.
+     * @return False if the queue has been evicted and the frame was discarded.
+     */
+    public synchronized boolean offerBatch(@NonNull Collection<String> keys, @NonNull byte[] frame) {
+        if (mPendingValues != null) {
+            for (String key : keys) {
+                mPendingValues.remove(key);
+            }
+        }
+        return offer(null /*key*/, frame);
+    }
+
+    /** Returns true if frames have been dropped to make room for newer ones. */
+    public synchronized boolean hasDropped() {
+        return mDropped;
+    }
+
+    /** Returns true if the queue has been evicted because a frame did not fit. */
+    public synchronized boolean isEvicted() {
+        return mEvicted;
+    }
+
+    private boolean fits(int size) {
+        if (mEntries.isEmpty()) {
+            // A single frame is always accepted even if it's larger than the byte limit.
+            return true;
+        }
+        return (mMaxLines <= 0 || mEntries.size() < mMaxLines)
+                && (mMaxBytes <= 0 || mBytes + size <= mMaxBytes);
+    }
+
+    /** Applies the policy till the frame fits. Returns false if the queue must be evicted. */
+    private boolean makeRoom(int size) {
+        if (fits(size)) return true;
+        switch (mPolicy) {
+            case DROP_OLDEST:
+                // Only value frames can be dropped: the next ones for the same keys supersede them,
+                // whereas control frames (ping replies, feature replies, sync markers...) can't be
+                // replayed. Once only control frames remain, the frame is accepted over the limit.
+                for (Iterator<Entry> it = mEntries.iterator(); it.hasNext() && !fits(size); ) {
+                    Entry entry = it.next();
+                    if (entry.mKey != null) {
+                        it.remove();
+                        removed(entry);
+                        mDropped = true;
+                    }
+                }
+                return true;
+
+            case BLOCK:
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(mBlockTimeoutMs);
+                while (!fits(size)) {
+                    long waitNs = deadline - System.nanoTime();
+                    if (mEvicted || waitNs <= 0) return false;
+                    try {
+                        TimeUnit.NANOSECONDS.timedWait(this, waitNs);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                }
+                return !mEvicted;
+
+            case DISCONNECT:
+            default:
+                return false;
+        }
+    }
+
+    @Null
+    private Entry removeFirst() {
+        Entry entry = mEntries.pollFirst();
+        if (entry != null) {
+            removed(entry);
+        }
+        return entry;
+    }
+
+    private void removed(@NonNull Entry entry) {
+        mBytes -= entry.mFrame.length;
+        // A newer value for the same key may have been queued after a batch.
+        if (entry.mKey != null && mPendingValues != null && mPendingValues.get(entry.mKey) == entry) {
+            mPendingValues.remove(entry.mKey);
+        }
+    }
+
+    /** Returns the next frame to write or null if there is none. Does not block. */
+    @Null
+    public synchronized byte[] poll() {
+        Entry entry = removeFirst();
+        if (entry == null) return null;
+        mLastPolledNanos = entry.mQueuedNanos;
+        if (mPolicy == KeyValueServer.SlowConsumerPolicy.BLOCK) {
+            // Wakes up callers blocked in offer().
+            notifyAll();
+        }
+        return entry.mFrame;
+    }
+
+    /** Returns the next frame to write, waiting if necessary, or null once the timeout expired. */
+    @Null
+    public synchronized byte[] poll(long timeout, @NonNull TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (mEntries.isEmpty()) {
+            long waitNs = deadline - System.nanoTime();
+            if (waitNs <= 0) return null;
+            TimeUnit.NANOSECONDS.timedWait(this, waitNs);
+        }
+        return poll();
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    /** Returns the largest number of frames queued at once since the queue was created. */
+    public synchronized int getHighWater() {
+        return mHighWater;
+    }
+
+    /**
+     * Returns when the last polled frame was queued, as a {@link System#nanoTime()}.
+     * Must be called by the writer thread, which is the one polling, so this is not synchronized.
+     */
+    public long getLastPolledNanos() {
+        return mLastPolledNanos;
+    }
+
+    /** Returns the number of bytes queued. */
+    public synchronized int sizeBytes() {
+        return mBytes;
+    }
+
+    public synchronized boolean isEmpty() {
+        return mEntries.isEmpty();
+    }
+
+    /** Discards all pending frames. */
+    public synchronized void clear() {
+        mEntries.clear();
+        mBytes = 0;
+        if (mPendingValues != null) {
+            mPendingValues.clear();
+        }
+    }
+}
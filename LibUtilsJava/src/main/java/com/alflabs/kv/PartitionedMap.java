@@ -0,0 +1,151 @@
+/*
+ * Project: Lib Utils
+ * Copyright (C) 2017 alf.labs gmail com,
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.alflabs.kv;
+
+import com.alflabs.annotations.NonNull;
+import com.alflabs.annotations.Null;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * An immutable sorted map of strings made of the snapshots of the partitions of a store.
+ * <p/>
+ * Keys are assigned to partitions by {@link #indexOf}, so each key is in a single partition and
+ * lookups only read that partition. Iterating merges the sorted entries of all the partitions.
+ * <p/>
+ * This is a point-in-time snapshot as long as the partition maps have been read atomically,
+ * which {@link KeyValueProtocol} does by holding the locks of all its partitions.
+ */
+final class PartitionedMap extends AbstractMap<String, String> {
+
+    @NonNull private final List<Map<String, String>> mMaps;
+    private final int mSize;
+    private Set<Map.Entry<String, String>> mEntrySet;
+
+    /** Creates a map of the given partition maps, which must iterate in key order. */
+    PartitionedMap(@NonNull List<Map<String, String>> maps) {
+        mMaps = maps;
+        int size = 0;
+        for (Map<String, String> map : maps) {
+            size += map.size();
+        }
+        mSize = size;
+    }
+
+    /** Returns the partition of the key among numPartitions partitions. */
+    static int indexOf(@NonNull String key, int numPartitions) {
+        int hash = key.hashCode();
+        // Spreads the high bits since similar keys often only differ by their last characters.
+        hash ^= hash >>> 16;
+        return (hash & Integer.MAX_VALUE) % numPartitions;
+    }
+
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    /** Returns the value for the given key or null if it doesn't exist. */
+    @Null
+    @Override
+    public String get(Object key) {
+        if (!(key instanceof String)) return null;
+        return mMaps.get(indexOf((String) key, mMaps.size())).get(key);
+    }
+
+    @NonNull
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+        if (mEntrySet == null) {
+            mEntrySet = new AbstractSet<Map.Entry<String, String>>() {
+                @Override
+                public Iterator<Map.Entry<String, String>> iterator() {
+                    return new MergeIterator(mMaps);
+                }
+
+                @Override
+                public int size() {
+                    return mSize;
+                }
+            };
+        }
+        return mEntrySet;
+    }
+
+    /** The next entry of one partition. */
+    private static class Cursor implements Comparable<Cursor> {
+        private final Iterator<Map.Entry<String, String>> mIterator;
+        private Map.Entry<String, String> mEntry;
+
+        Cursor(@NonNull Iterator<Map.Entry<String, String>> iterator) {
+            mIterator = iterator;
+            mEntry = iterator.next();
+        }
+
+        @Override
+        public int compareTo(@NonNull Cursor other) {
+            // Keys are never in two partitions.
+            return mEntry.getKey().compareTo(other.mEntry.getKey());
+        }
+    }
+
+    /** Merges the sorted entries of the partitions, by taking the smallest next entry of all partitions. */
+    private static class MergeIterator implements Iterator<Map.Entry<String, String>> {
+        private final PriorityQueue<Cursor> mCursors;
+
+        MergeIterator(@NonNull List<Map<String, String>> maps) {
+            mCursors = new PriorityQueue<>(maps.size());
+            for (Map<String, String> map : maps) {
+                Iterator<Map.Entry<String, String>> iterator = map.entrySet().iterator();
+                if (iterator.hasNext()) {
+                    mCursors.add(new Cursor(iterator));
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !mCursors.isEmpty();
+        }
+
+        @Override
+        public Map.Entry<String, String> next() {
+            Cursor cursor = mCursors.poll();
+            if (cursor == null) throw new NoSuchElementException();
+            Map.Entry<String, String> next = cursor.mEntry;
+            if (cursor.mIterator.hasNext()) {
+                cursor.mEntry = cursor.mIterator.next();
+                mCursors.add(cursor);
+            }
+            return next;
+        }
+    }
+}
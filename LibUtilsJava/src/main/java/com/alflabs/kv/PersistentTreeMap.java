@@ -0,0 +1,347 @@
+/*
+ * Project: Lib Utils
+ * Copyright (C) 2017 alf.labs gmail com,
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.alflabs.kv;
+
+import com.alflabs.annotations.NonNull;
+import com.alflabs.annotations.Null;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An immutable sorted map of strings, backed by a persistent AVL tree.
+ * <p/>
+ * {@link #with} and {@link #without} return a new map which shares all the nodes of this map
+ * except the O(log n) nodes on the path to the changed key. Existing maps are never modified,
+ * which makes any map instance a free point-in-time snapshot that can be read or iterated by
+ * any thread without locking.
+ * <p/>
+ * Iteration is in key order. Keys and values are never null. The map is read-only: the
+ * {@link Map} mutators throw {@link UnsupportedOperationException}.
+ */
+final class PersistentTreeMap extends AbstractMap<String, String> {
+
+    /** The empty map. */
+    public static final PersistentTreeMap EMPTY = new PersistentTreeMap(null);
+
+    @Null private final Node mRoot;
+    private Set<String> mKeySet;
+    private Set<Map.Entry<String, String>> mEntrySet;
+
+    private PersistentTreeMap(@Null Node root) {
+        mRoot = root;
+    }
+
+    @Override
+    public int size() {
+        return size(mRoot);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return mRoot == null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key instanceof String && find((String) key) != null;
+    }
+
+    /** Returns the value for the given key or null if it doesn't exist. */
+    @Null
+    @Override
+    public String get(Object key) {
+        if (!(key instanceof String)) return null;
+        Node node = find((String) key);
+        return node == null ? null : node.mValue;
+    }
+
+    /** Returns a map with that key set to that value. Returns this map if the key already has that value. */
+    @NonNull
+    public PersistentTreeMap with(@NonNull String key, @NonNull String value) {
+        Node root = insert(mRoot, key, value);
+        return root == mRoot ? this : new PersistentTreeMap(root);
+    }
+
+    /** Returns a map without that key. Returns this map if the key doesn't exist. */
+    @NonNull
+    public PersistentTreeMap without(@NonNull String key) {
+        Node root = delete(mRoot, key);
+        if (root == mRoot) return this;
+        return root == null ? EMPTY : new PersistentTreeMap(root);
+    }
+
+    @NonNull
+    @Override
+    public Set<String> keySet() {
+        if (mKeySet == null) {
+            mKeySet = new AbstractSet<String>() {
+                @Override
+                public Iterator<String> iterator() {
+                    final NodeIterator it = new NodeIterator(mRoot);
+                    return new Iterator<String>() {
+                        @Override
+                        public boolean hasNext() {
+                            return it.hasNext();
+                        }
+
+                        @Override
+                        public String next() {
+                            return it.next().mKey;
+                        }
+                    };
+                }
+
+                @Override
+                public boolean contains(Object key) {
+                    return containsKey(key);
+                }
+
+                @Override
+                public int size() {
+                    return PersistentTreeMap.this.size();
+                }
+            };
+        }
+        return mKeySet;
+    }
+
+    @NonNull
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+        if (mEntrySet == null) {
+            mEntrySet = new AbstractSet<Map.Entry<String, String>>() {
+                @Override
+                @SuppressWarnings("unchecked")
+                public Iterator<Map.Entry<String, String>> iterator() {
+                    return (Iterator<Map.Entry<String, String>>) (Iterator<?>) new NodeIterator(mRoot);
+                }
+
+                @Override
+                public int size() {
+                    return PersistentTreeMap.this.size();
+                }
+            };
+        }
+        return mEntrySet;
+    }
+
+    /** Keys received from the network are canonical instances, see {@link KeyTable}, which match by identity. */
+    private static int compare(@NonNull String key, @NonNull String nodeKey) {
+        return key == nodeKey ? 0 : key.compareTo(nodeKey);
+    }
+
+    @Null
+    private Node find(@NonNull String key) {
+        Node node = mRoot;
+        while (node != null) {
+            int cmp = compare(key, node.mKey);
+            if (cmp == 0) return node;
+            node = cmp < 0 ? node.mLeft : node.mRight;
+        }
+        return null;
+    }
+
+    // ----
+
+    /** A tree node, which is also the map entry returned by iterators. Immutable. */
+    private static final class Node implements Map.Entry<String, String> {
+        @NonNull final String mKey;
+        @NonNull final String mValue;
+        @Null final Node mLeft;
+        @Null final Node mRight;
+        final int mHeight;
+        final int mSize;
+
+        Node(@NonNull String key, @NonNull String value, @Null Node left, @Null Node right) {
+            mKey = key;
+            mValue = value;
+            mLeft = left;
+            mRight = right;
+            mHeight = 1 + Math.max(height(left), height(right));
+            mSize = 1 + size(left) + size(right);
+        }
+
+        @Override
+        public String getKey() {
+            return mKey;
+        }
+
+        @Override
+        public String getValue() {
+            return mValue;
+        }
+
+        @Override
+        public String setValue(String value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Map.Entry)) return false;
+            Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+            return mKey.equals(e.getKey()) && mValue.equals(e.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return mKey.hashCode() ^ mValue.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return mKey + "=" + mValue;
+        }
+    }
+
+    private static int height(@Null Node node) {
+        return node == null ? 0 : node.mHeight;
+    }
+
+    private static int size(@Null Node node) {
+        return node == null ? 0 : node.mSize;
+    }
+
+    @NonNull
+    private static Node insert(@Null Node node, @NonNull String key, @NonNull String value) {
+        if (node == null) {
+            return new Node(key, value, null, null);
+        }
+        int cmp = compare(key, node.mKey);
+        if (cmp == 0) {
+            if (value.equals(node.mValue)) return node;
+            return new Node(node.mKey, value, node.mLeft, node.mRight);
+        } else if (cmp < 0) {
+            Node left = insert(node.mLeft, key, value);
+            if (left == node.mLeft) return node;
+            return balance(node.mKey, node.mValue, left, node.mRight);
+        } else {
+            Node right = insert(node.mRight, key, value);
+            if (right == node.mRight) return node;
+            return balance(node.mKey, node.mValue, node.mLeft, right);
+        }
+    }
+
+    @Null
+    private static Node delete(@Null Node node, @NonNull String key) {
+        if (node == null) return null;
+        int cmp = compare(key, node.mKey);
+        if (cmp < 0) {
+            Node left = delete(node.mLeft, key);
+            if (left == node.mLeft) return node;
+            return balance(node.mKey, node.mValue, left, node.mRight);
+        } else if (cmp > 0) {
+            Node right = delete(node.mRight, key);
+            if (right == node.mRight) return node;
+            return balance(node.mKey, node.mValue, node.mLeft, right);
+        }
+        if (node.mLeft == null) return node.mRight;
+        if (node.mRight == null) return node.mLeft;
+        // Replace by the smallest node of the right subtree.
+        Node min = node.mRight;
+        while (min.mLeft != null) {
+            min = min.mLeft;
+        }
+        return balance(min.mKey, min.mValue, node.mLeft, deleteMin(node.mRight));
+    }
+
+    @Null
+    private static Node deleteMin(@NonNull Node node) {
+        if (node.mLeft == null) return node.mRight;
+        return balance(node.mKey, node.mValue, deleteMin(node.mLeft), node.mRight);
+    }
+
+    /** Creates a node, rotating it if the heights of the subtrees differ by 2. */
+    @NonNull
+    private static Node balance(@NonNull String key, @NonNull String value, @Null Node left, @Null Node right) {
+        int diff = height(left) - height(right);
+        if (diff > 1) {
+            assert left != null;
+            if (height(left.mLeft) >= height(left.mRight)) {
+                // Single right rotation.
+                return new Node(left.mKey, left.mValue,
+                        left.mLeft,
+                        new Node(key, value, left.mRight, right));
+            } else {
+                // Double left-right rotation.
+                Node lr = left.mRight;
+                assert lr != null;
+                return new Node(lr.mKey, lr.mValue,
+                        new Node(left.mKey, left.mValue, left.mLeft, lr.mLeft),
+                        new Node(key, value, lr.mRight, right));
+            }
+        } else if (diff < -1) {
+            assert right != null;
+            if (height(right.mRight) >= height(right.mLeft)) {
+                // Single left rotation.
+                return new Node(right.mKey, right.mValue,
+                        new Node(key, value, left, right.mLeft),
+                        right.mRight);
+            } else {
+                // Double right-left rotation.
+                Node rl = right.mLeft;
+                assert rl != null;
+                return new Node(rl.mKey, rl.mValue,
+                        new Node(key, value, left, rl.mLeft),
+                        new Node(right.mKey, right.mValue, rl.mRight, right.mRight));
+            }
+        }
+        return new Node(key, value, left, right);
+    }
+
+    /** Returns the height of the tree, for tests. */
+    int height() {
+        return height(mRoot);
+    }
+
+    /** In-order iterator. Uses a stack of at most the height of the tree. */
+    private static class NodeIterator implements Iterator<Node> {
+        private final ArrayDeque<Node> mStack = new ArrayDeque<>();
+
+        NodeIterator(@Null Node root) {
+            pushLeft(root);
+        }
+
+        private void pushLeft(@Null Node node) {
+            while (node != null) {
+                mStack.push(node);
+                node = node.mLeft;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !mStack.isEmpty();
+        }
+
+        @Override
+        public Node next() {
+            if (mStack.isEmpty()) throw new NoSuchElementException();
+            Node node = mStack.pop();
+            pushLeft(node.mRight);
+            return node;
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Project: Lib Utils
+ * Copyright (C) 2017 alf.labs gmail com,
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.alflabs.kv;
+
+import com.alflabs.annotations.NonNull;
+import com.alflabs.annotations.Null;
+import com.alflabs.utils.ILogger;
+import com.alflabs.utils.JavaClock;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A selector-based connection engine for the {@link KeyValueServer}.
+ * <p/>
+ * Instead of using two threads per client connection, all connections are multiplexed on a
+ * small fixed number of {@link SelectorLoop}s. The first loop also accepts new connections,
+ * which are then distributed round-robin across all the loops.
+ * <p/>
+ * Frames are decoded and given to the same shared {@link KeyValueProtocol} as the thread-based
+ * engine, on the loop thread of the connection. Replies and broadcasts are queued in the
+ * {@link KeyValueServer.Sender} of the connection and written when the channel is writable,
+ * compressed if negotiated.
+ */
+class SelectorEngine {
+    private static final String TAG = SelectorEngine.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    @NonNull private final ILogger mLogger;
+    @NonNull private final KeyValueServer mServer;
+    @NonNull private final KeyValueProtocol mProtocol;
+    @NonNull private final SelectorLoop[] mLoops;
+    private ServerSocketChannel mServerChannel;
+    private int mNextLoop;
+
+    public SelectorEngine(
+            @NonNull ILogger logger,
+            @NonNull KeyValueServer server,
+            @NonNull KeyValueProtocol protocol,
+            int numLoops) throws IOException {
+        mLogger = logger;
+        mServer = server;
+        mProtocol = protocol;
+        mLoops = new SelectorLoop[Math.max(1, numLoops)];
+        for (int i = 0; i < mLoops.length; i++) {
+            mLoops[i] = new SelectorLoop(new JavaClock(), logger, KeyValueServer.class.getSimpleName() + "-Loop" + i);
+        }
+    }
+
+    /**
+     * Binds the server channel and starts the selector loops.
+     * Returns the socket address & port of the server.
+     */
+    @NonNull
+    public InetSocketAddress start(@Null InetAddress ip, int port) throws IOException {
+        mServerChannel = ServerSocketChannel.open();
+        mServerChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        mServerChannel.bind(new InetSocketAddress(
+                ip != null ? ip : InetAddress.getByName("0.0.0.0"),
+                port));
+        for (SelectorLoop loop : mLoops) {
+            loop.start();
+        }
+        final SelectorLoop acceptLoop = mLoops[0];
+        acceptLoop.execute(() -> {
+            try {
+                acceptLoop.register(mServerChannel, SelectionKey.OP_ACCEPT, new Acceptor());
+            } catch (IOException e) {
+                mLogger.d(TAG, "Register server channel failed: " + e);
+            }
+        });
+        return (InetSocketAddress) mServerChannel.getLocalAddress();
+    }
+
+    /** Stops accepting connections and asks all the loops to stop. Returns immediately. */
+    public void stopAsync() {
+        closeServerChannel();
+        for (SelectorLoop loop : mLoops) {
+            loop.stopAsync();
+        }
+    }
+
+    /** Stops all the loops and returns once they are finished and all connections are closed. */
+    public void stopSync() {
+        closeServerChannel();
+        for (SelectorLoop loop : mLoops) {
+            loop.stopSync();
+        }
+    }
+
+    private void closeServerChannel() {
+        ServerSocketChannel channel = mServerChannel;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                if (DEBUG) mLogger.d(TAG, "server channel close: " + e);
+            }
+        }
+    }
+
+    private class Acceptor implements SelectorLoop.IHandler {
+        @Override
+        public void onSelected(@NonNull SelectionKey key) throws IOException {
+            SocketChannel channel;
+            while ((channel = mServerChannel.accept()) != null) {
+                if (DEBUG) mLogger.d(TAG, "accept " + channel);
+                final SelectorLoop loop = mLoops[mNextLoop];
+                mNextLoop = (mNextLoop + 1) % mLoops.length;
+                final SocketChannel channel_ = channel;
+                loop.execute(() -> new Connection(loop, channel_).open());
+            }
+        }
+
+        @Override
+        public void close() {
+            closeServerChannel();
+        }
+    }
+
+    /** Per-client connection state. All methods except {@link #requestWrite()} run on the loop thread. */
+    private class Connection implements SelectorLoop.IHandler {
+        @NonNull private final SelectorLoop mLoop;
+        @NonNull private final SocketChannel mChannel;
+        @NonNull private final KeyValueServer.Sender mSender;
+        @NonNull private final FrameDecoder mDecoder;
+        @NonNull private final ChannelWriter mWriter;
+        private final AtomicBoolean mWritePending = new AtomicBoolean();
+        private final ByteBuffer mInBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private SelectionKey mKey;
+        private int mSenderIndex = -1;
+        private boolean mClosed;
+
+        public Connection(@NonNull SelectorLoop loop, @NonNull SocketChannel channel) {
+            mLoop = loop;
+            mChannel = channel;
+            mSender = mServer.createSender(
+                    channel.socket().getRemoteSocketAddress(),
+                    this::requestWrite,
+                    () -> mLoop.execute(this::close));
+            mDecoder = new FrameDecoder(mLogger, mProtocol, mSender);
+            mWriter = new ChannelWriter(channel, new ChannelWriter.IFrameSource() {
+                @Override
+                public byte[] pollFrame() {
+                    return mSender.pollFrame();
+                }
+
+                @Override
+                public void onFrameWritten(@NonNull byte[] frame, long nowNanos) {
+                    mServer.onFrameWritten(mSender, frame, nowNanos);
+                }
+
+                @Override
+                public void onBytesWritten(int count) {
+                    mServer.onBytesWritten(count);
+                }
+            }, mServer.getCompressionThreshold());
+        }
+
+        void open() {
+            try {
+                // Same parameters as the thread-based engine: disable nagle algorithm, enable keep alive.
+                mChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                mChannel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+                mKey = mLoop.register(mChannel, SelectionKey.OP_READ, this);
+            } catch (IOException e) {
+                if (DEBUG) mLogger.d(TAG, "register connection failed: " + e);
+                close();
+                return;
+            }
+            mSenderIndex = mServer.addSender(mSender);
+            mSender.sendInit();
+        }
+
+        @Override
+        public void onSelected(@NonNull SelectionKey key) throws IOException {
+            if (key.isReadable()) {
+                read();
+            }
+            if (!mClosed && key.isValid() && key.isWritable()) {
+                flush();
+            }
+        }
+
+        /** Invoked by the sender when a new frame has been queued, from any thread. */
+        private void requestWrite() {
+            if (mWritePending.compareAndSet(false, true)) {
+                mLoop.execute(this::flush);
+            }
+        }
+
+        private void read() throws IOException {
+            mInBuffer.clear();
+            int n = mChannel.read(mInBuffer);
+            if (n < 0) {
+                if (DEBUG) mLogger.d(TAG, "READ EOF");
+                close();
+                return;
+            }
+            mServer.onBytesRead(n);
+            try {
+                mDecoder.feed(mInBuffer.array(), 0, n);
+            } catch (KeyValueProtocol.QCloseRequestException e) {
+                if (DEBUG) mLogger.d(TAG, "Q Close Request received.");
+                close();
+            }
+        }
+
+        /** Writes as much of the queued frames as the channel accepts without blocking. */
+        private void flush() {
+            if (mClosed) return;
+            try {
+                while (true) {
+                    if (!mWriter.write()) {
+                        // Socket buffer is full. Wait till the channel is writable again.
+                        mKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    // Nothing left to write.
+                    mKey.interestOps(SelectionKey.OP_READ);
+                    mWritePending.set(false);
+                    // A frame may have been queued between the last poll and the reset of the flag.
+                    if (mSender.isEmpty() || !mWritePending.compareAndSet(false, true)) {
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                if (DEBUG) mLogger.d(TAG, "WRITE failed: " + e);
+                close();
+            }
+        }
+
+        @Override
+        public void close() {
+            if (mClosed) return;
+            mClosed = true;
+            if (mKey != null) {
+                mKey.cancel();
+            }
+            try {
+                mChannel.close();
+            } catch (IOException ignore) {}
+            mSender.clear();
+            mWriter.close();
+            mDecoder.close();
+            if (mSenderIndex != -1) {
+                mServer.removeSender(mSenderIndex);
+                mSenderIndex = -1;
+            }
+        }
+    }
+}
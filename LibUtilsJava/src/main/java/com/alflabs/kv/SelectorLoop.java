@@ -0,0 +1,239 @@
+/*
+ * Project: Lib Utils
+ * Copyright (C) 2017 alf.labs gmail com,
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.alflabs.kv;
+
+import com.alflabs.annotations.NonNull;
+import com.alflabs.utils.IClock;
+import com.alflabs.utils.ILogger;
+
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single thread running a NIO {@link Selector} event loop.
+ * <p/>
+ * Channels are registered with an {@link IHandler} attachment which gets invoked on the loop
+ * thread every time the channel is selected. Other threads interact with the loop by posting
+ * tasks via {@link #execute(Runnable)}; these run on the loop thread between two selections.
+ * Tasks can also be delayed with {@link #schedule(Runnable, long)}, e.g. for timeouts. Delays are
+ * measured with the {@link IClock} of the loop.
+ * <p/>
+ * This is package-private: it's the shared building block of the selector-based connection
+ * engines of the {@link KeyValueServer} and of the {@link KeyValueClientGroup}.
+ */
+class SelectorLoop {
+    private static final String TAG = SelectorLoop.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    /** Handler attached to each channel registered with the loop. Always invoked on the loop thread. */
+    interface IHandler {
+        /** Invoked when the channel is ready for one or more of its registered operations. */
+        void onSelected(@NonNull SelectionKey key) throws IOException;
+
+        /** Invoked when the channel must be closed, either due to an error or because the loop stops. */
+        void close();
+    }
+
+    private static class Timer implements Comparable<Timer> {
+        final long mDeadlineNanos;
+        final long mSeq;
+        @NonNull final Runnable mTask;
+
+        Timer(long deadlineNanos, long seq, @NonNull Runnable task) {
+            mDeadlineNanos = deadlineNanos;
+            mSeq = seq;
+            mTask = task;
+        }
+
+        @Override
+        public int compareTo(@NonNull Timer other) {
+            // Deadlines are compared by difference since nanoTime can overflow.
+            long diff = mDeadlineNanos - other.mDeadlineNanos;
+            if (diff != 0) return diff < 0 ? -1 : 1;
+            return Long.compare(mSeq, other.mSeq);
+        }
+    }
+
+    @NonNull private final IClock mClock;
+    @NonNull private final ILogger mLogger;
+    @NonNull private final String mName;
+    @NonNull private final Selector mSelector;
+    private final ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<>();
+    /** Delayed tasks, only accessed on the loop thread. */
+    private final PriorityQueue<Timer> mTimers = new PriorityQueue<>();
+    private long mTimerSeq;
+    private volatile Thread mThread;
+    private volatile boolean mIsRunning;
+
+    public SelectorLoop(@NonNull IClock clock, @NonNull ILogger logger, @NonNull String name) throws IOException {
+        mClock = clock;
+        mLogger = logger;
+        mName = name;
+        mSelector = Selector.open();
+    }
+
+    public boolean isRunning() {
+        return mIsRunning;
+    }
+
+    /** Returns true if the caller is running on this loop's thread. */
+    public boolean inLoop() {
+        return Thread.currentThread() == mThread;
+    }
+
+    /** Starts the loop thread. Returns immediately. */
+    public void start() {
+        mIsRunning = true;
+        mThread = new Thread(this::runLoop, mName);
+        mThread.start();
+    }
+
+    /** Asks the loop to stop. Returns immediately. */
+    public void stopAsync() {
+        mIsRunning = false;
+        mSelector.wakeup();
+    }
+
+    /** Asks the loop to stop. Returns once the loop thread has ended and all its channels are closed. */
+    public void stopSync() {
+        stopAsync();
+        Thread t = mThread;
+        if (t != null && t != Thread.currentThread()) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                mLogger.d(TAG, mName + " join interrupted: " + e);
+            }
+        }
+    }
+
+    /**
+     * Runs the task on the loop thread. The task is queued even if the caller is already on the
+     * loop thread, which makes it safe to call from within a handler.
+     */
+    public void execute(@NonNull Runnable task) {
+        mTasks.offer(task);
+        mSelector.wakeup();
+    }
+
+    /**
+     * Runs the task on the loop thread once the delay has elapsed. Tasks with the same deadline
+     * run in the order they were scheduled. Must be called on the loop thread.
+     */
+    public void schedule(@NonNull Runnable task, long delayMs) {
+        long deadline = mClock.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMs));
+        mTimers.add(new Timer(deadline, mTimerSeq++, task));
+    }
+
+    /** Registers a channel with this loop's selector. Must be called on the loop thread. */
+    @NonNull
+    public SelectionKey register(
+            @NonNull SelectableChannel channel,
+            int ops,
+            @NonNull IHandler handler) throws IOException {
+        channel.configureBlocking(false);
+        return channel.register(mSelector, ops, handler);
+    }
+
+    private void runLoop() {
+        if (DEBUG) mLogger.d(TAG, mName + " [start]");
+        try {
+            while (mIsRunning) {
+                long timeoutMs = 1000;
+                Timer next = mTimers.peek();
+                if (next != null) {
+                    long waitNs = next.mDeadlineNanos - mClock.nanoTime();
+                    // Rounded up so that a timer is never polled too early.
+                    timeoutMs = Math.min(timeoutMs, (waitNs + 999999) / 1000000);
+                }
+                if (timeoutMs > 0) {
+                    mSelector.select(timeoutMs);
+                } else {
+                    mSelector.selectNow();
+                }
+                runTasks();
+                runTimers();
+
+                Iterator<SelectionKey> it = mSelector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    IHandler handler = (IHandler) key.attachment();
+                    try {
+                        if (key.isValid()) {
+                            handler.onSelected(key);
+                        }
+                    } catch (Exception e) {
+                        if (DEBUG) mLogger.d(TAG, mName + " handler failed: " + e);
+                        handler.close();
+                    }
+                }
+            }
+        } catch (Throwable t) {
+            mLogger.d(TAG, mName + " [unexpected] " + t);
+        } finally {
+            if (DEBUG) mLogger.d(TAG, mName + " [tear down]");
+            mIsRunning = false;
+            runTasks();
+            List<IHandler> handlers = new ArrayList<>();
+            for (SelectionKey key : mSelector.keys()) {
+                handlers.add((IHandler) key.attachment());
+            }
+            for (IHandler handler : handlers) {
+                handler.close();
+            }
+            try {
+                mSelector.close();
+            } catch (IOException ignore) {}
+        }
+        if (DEBUG) mLogger.d(TAG, mName + " [end]");
+    }
+
+    private void runTimers() {
+        long now = mClock.nanoTime();
+        Timer timer;
+        while ((timer = mTimers.peek()) != null && timer.mDeadlineNanos - now <= 0) {
+            mTimers.poll();
+            try {
+                timer.mTask.run();
+            } catch (Exception e) {
+                mLogger.d(TAG, mName + " timer failed: " + e);
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = mTasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                mLogger.d(TAG, mName + " task failed: " + e);
+            }
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Project: Lib Utils
+ * Copyright (C) 2017 alf.labs gmail com,
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.alflabs.kv;
+
+import com.alflabs.annotations.NonNull;
+import com.alflabs.annotations.Null;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Indexes key subscription patterns by their literal prefix to find the targets interested in a key.
+ * <p/>
+ * A pattern is a key name which may contain the glob wildcards '*' (any sequence of characters)
+ * and '?' (any single character). Patterns are stored in the trie node of their literal prefix,
+ * i.e. the characters before the first wildcard. Looking up a key only walks the nodes along that
+ * key and only checks the patterns found there, so the cost depends on the length of the key and
+ * not on the number of subscriptions. Patterns of the common "prefix*" form match without any check.
+ * <p/>
+ * The trie is built once and then only read: it's not thread-safe while being built and it's
+ * safe to use from any thread once published, e.g. via a volatile field.
+ */
+class SubscriptionTrie<T> {
+
+    private static class Entry<T> {
+        @NonNull final String mPattern;
+        @NonNull final T mTarget;
+        /** True for "prefix*" patterns, which match all the keys reaching their node. */
+        final boolean mPrefixOnly;
+
+        Entry(@NonNull String pattern, @NonNull T target, boolean prefixOnly) {
+            mPattern = pattern;
+            mTarget = target;
+            mPrefixOnly = prefixOnly;
+        }
+    }
+
+    private static class Node<T> {
+        @Null HashMap<Character, Node<T>> mChildren;
+        @Null List<Entry<T>> mEntries;
+    }
+
+    private final Node<T> mRoot = new Node<>();
+    private int mSize;
+
+    /** Adds a pattern for that target. */
+    public void add(@NonNull String pattern, @NonNull T target) {
+        int prefixLen = literalPrefixLength(pattern);
+        Node<T> node = mRoot;
+        for (int i = 0; i < prefixLen; i++) {
+            if (node.mChildren == null) {
+                node.mChildren = new HashMap<>();
+            }
+            Character c = pattern.charAt(i);
+            Node<T> child = node.mChildren.get(c);
+            if (child == null) {
+                child = new Node<>();
+                node.mChildren.put(c, child);
+            }
+            node = child;
+        }
+        if (node.mEntries == null) {
+            node.mEntries = new ArrayList<>(1);
+        }
+        boolean prefixOnly = prefixLen == pattern.length() - 1 && pattern.charAt(prefixLen) == '*';
+        node.mEntries.add(new Entry<>(pattern, target, prefixOnly));
+        mSize++;
+    }
+
+    /** Returns the number of patterns added. */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Adds to out the targets which have at least one pattern matching the key.
+     * Each target is added at most once even if several of its patterns match.
+     */
+    public void collect(@NonNull String key, @NonNull List<T> out) {
+        int start = out.size();
+        Node<T> node = mRoot;
+        int n = key.length();
+        for (int i = 0; node != null; i++) {
+            if (node.mEntries != null) {
+                for (Entry<T> entry : node.mEntries) {
+                    if ((entry.mPrefixOnly || globMatches(entry.mPattern, key))
+                            && !containsTarget(out, start, entry.mTarget)) {
+                        out.add(entry.mTarget);
+                    }
+                }
+            }
+            if (i == n || node.mChildren == null) break;
+            node = node.mChildren.get(key.charAt(i));
+        }
+    }
+
+    private static <T> boolean containsTarget(@NonNull List<T> out, int start, @NonNull T target) {
+        for (int i = out.size() - 1; i >= start; i--) {
+            if (out.get(i) == target) return true;
+        }
+        return false;
+    }
+
+    /** Returns the number of characters before the first wildcard. */
+    static int literalPrefixLength(@NonNull String pattern) {
+        int n = pattern.length();
+        for (int i = 0; i < n; i++) {
+            char c = pattern.charAt(i);
+            if (c == '*' || c == '?') return i;
+        }
+        return n;
+    }
+
+    /** Returns true if the whole key matches the glob pattern. */
+    static boolean globMatches(@NonNull String pattern, @NonNull String key) {
+        int p = 0;
+        int k = 0;
+        int np = pattern.length();
+        int nk = key.length();
+        // Position to backtrack to after the last '*', if any.
+        int starP = -1;
+        int starK = 0;
+        while (k < nk) {
+            if (p < np) {
+                char c = pattern.charAt(p);
+                if (c == '*') {
+                    starP = p++;
+                    starK = k;
+                    continue;
+                }
+                if (c == '?' || c == key.charAt(k)) {
+                    p++;
+                    k++;
+                    continue;
+                }
+            }
+            if (starP < 0) return false;
+            // Let the last '*' match one more character.
+            p = starP + 1;
+            k = ++starK;
+        }
+        while (p < np && pattern.charAt(p) == '*') {
+            p++;
+        }
+        return p == np;
+    }
+}
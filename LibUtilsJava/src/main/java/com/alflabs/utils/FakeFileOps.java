@@ -24,17 +24,21 @@ import com.google.common.base.Charsets;
 import com.google.common.io.Files;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A "fake" version of FileOps for testing that keeps all files generated in memory and
@@ -43,7 +47,9 @@ import java.util.Properties;
 public class FakeFileOps extends FileOps {
 
     /** Map from file path to bytes content. */
-    private final Map<String, byte[]> mPathContentMap = new HashMap<>();
+    private final Map<String, byte[]> mPathContentMap = new ConcurrentHashMap<>();
+    /** Number of calls to {@link #sync(OutputStream)}. */
+    private final AtomicInteger mSyncCount = new AtomicInteger();
 
     /**
      * Returns true if the file path points to a file that was previously written.
@@ -185,4 +191,68 @@ public class FakeFileOps extends FileOps {
         }
         return content;
     }
+
+    /**
+     * Returns a new {@link OutputStream} that can create or append bytes to the given file.
+     * <p/>
+     * The in-memory file content is updated after every write.
+     */
+    @NonNull
+    public OutputStream openOutputStream(@NonNull File file, boolean append) throws IOException {
+        String key = file.getPath();
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream() {
+            @Override
+            public synchronized void write(int b) {
+                super.write(b);
+                mPathContentMap.put(key, toByteArray());
+            }
+
+            @Override
+            public synchronized void write(byte[] b, int off, int len) {
+                super.write(b, off, len);
+                mPathContentMap.put(key, toByteArray());
+            }
+        };
+
+        byte[] content = mPathContentMap.get(key);
+        if (append && content != null) {
+            stream.write(content, 0, content.length);
+        } else {
+            mPathContentMap.put(key, new byte[0]);
+        }
+
+        return stream;
+    }
+
+    /** Flushes the stream and counts the sync call, see {@link #getSyncCount()}. */
+    public void sync(@NonNull OutputStream stream) throws IOException {
+        stream.flush();
+        mSyncCount.incrementAndGet();
+    }
+
+    /** Returns the number of calls to {@link #sync(OutputStream)}. */
+    public int getSyncCount() {
+        return mSyncCount.get();
+    }
+
+    /** Returns a read-only buffer over the content of a file previously written. */
+    @NonNull
+    public ByteBuffer mapReadOnly(@NonNull File file) throws IOException {
+        return ByteBuffer.wrap(readBytes(file)).asReadOnlyBuffer();
+    }
+
+    /** Renames a file previously written, replacing the destination if it exists. */
+    public void rename(@NonNull File from, @NonNull File to) throws IOException {
+        byte[] content = mPathContentMap.remove(from.getPath());
+        if (content == null) {
+            throw new FileNotFoundException(from.getPath());
+        }
+        mPathContentMap.put(to.getPath(), content);
+    }
+
+    /** Deletes a file previously written. */
+    public boolean delete(@NonNull File file) {
+        return mPathContentMap.remove(file.getPath()) != null;
+    }
 }
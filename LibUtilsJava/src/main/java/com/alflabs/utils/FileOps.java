@@ -25,10 +25,16 @@ import com.google.common.io.Files;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.Properties;
@@ -145,6 +151,87 @@ public class FileOps {
         return new FileWriter(file, append);
     }
 
+    /**
+     * Returns a new {@link OutputStream} that can create or append bytes to the given file.
+     * <p/>
+     * Use {@link #sync(OutputStream)} to force the written bytes to the storage device.
+     *
+     * @throws IOException if an I/O error occurs
+     * @see FileOutputStream
+     */
+    @NonNull
+    public OutputStream openOutputStream(@NonNull File file, boolean append) throws IOException {
+        return new FileOutputStream(file, append);
+    }
+
+    /**
+     * Flushes the stream and, for a stream returned by {@link #openOutputStream(File, boolean)},
+     * forces all its bytes to the storage device (a.k.a. fsync).
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public void sync(@NonNull OutputStream stream) throws IOException {
+        stream.flush();
+        if (stream instanceof FileOutputStream) {
+            ((FileOutputStream) stream).getFD().sync();
+        }
+    }
+
+    /**
+     * Maps a whole file in memory, read-only.
+     * <p/>
+     * The file content is loaded lazily by the OS as it is accessed, so this returns quickly
+     * whatever the size of the file. The mapping remains valid after the file is renamed or deleted.
+     * <p/>
+     * This returns a {@link ByteBuffer} so that mocks/fakes can use a heap buffer instead of
+     * an actual {@link MappedByteBuffer}.
+     *
+     * @throws IOException if an I/O error occurs
+     * @throws IllegalArgumentException if the file is bigger than MAX_INT (2^31-1)
+     */
+    @NonNull
+    public ByteBuffer mapReadOnly(@NonNull File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("File too large: " + file);
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+    }
+
+    /**
+     * Renames a file, replacing the destination if it exists. The rename is atomic when the
+     * underlying file system supports it, e.g. on POSIX systems. Otherwise the destination is
+     * deleted first.
+     *
+     * @throws IOException if the file could not be renamed
+     * @see File#renameTo(File)
+     */
+    public void rename(@NonNull File from, @NonNull File to) throws IOException {
+        if (from.renameTo(to)) return;
+        if (!from.exists()) {
+            throw new FileNotFoundException(from.getPath());
+        }
+        // Some file systems (e.g. on Windows) do not rename over an existing file.
+        if (to.exists() && !to.delete()) {
+            throw new IOException("Failed to delete " + to);
+        }
+        if (!from.renameTo(to)) {
+            throw new IOException("Failed to rename " + from + " to " + to);
+        }
+    }
+
+    /**
+     * Deletes a file.
+     *
+     * @return True if the file was deleted, false if it did not exist or could not be deleted.
+     */
+    public boolean delete(@NonNull File file) {
+        return file.delete();
+    }
+
     /** Utility method that converts a list of "folder1/...folderN/leafName" to a File. */
     @NonNull
     public File toFile(@NonNull String...names) {
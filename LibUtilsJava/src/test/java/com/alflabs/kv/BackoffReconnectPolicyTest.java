@@ -0,0 +1,77 @@
+/*
+ * Project: Lib Utils
+ * Copyright (C) 2017 alf.labs gmail com,
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.alflabs.kv;
+
+import com.google.common.collect.Range;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class BackoffReconnectPolicyTest {
+
+    @Test
+    public void testMaxRetryDelay() throws Exception {
+        BackoffReconnectPolicy policy = new BackoffReconnectPolicy(100, 5000, 0);
+        assertThat(policy.getMaxRetryDelayMs(0)).isEqualTo(100);
+        assertThat(policy.getMaxRetryDelayMs(1)).isEqualTo(200);
+        assertThat(policy.getMaxRetryDelayMs(5)).isEqualTo(3200);
+        assertThat(policy.getMaxRetryDelayMs(6)).isEqualTo(5000);
+        // No overflow however many failures.
+        assertThat(policy.getMaxRetryDelayMs(1000)).isEqualTo(5000);
+        assertThat(new BackoffReconnectPolicy(Long.MAX_VALUE / 2, Long.MAX_VALUE, 0).getMaxRetryDelayMs(1000))
+                .isEqualTo(Long.MAX_VALUE / 2 * 2);
+    }
+
+    @Test
+    public void testFullJitter() throws Exception {
+        BackoffReconnectPolicy policy = new BackoffReconnectPolicy(100, 5000, 1000, new Random(42));
+        for (int failures = 0; failures < 10; failures++) {
+            long min = Long.MAX_VALUE;
+            long max = 0;
+            for (int i = 0; i < 1000; i++) {
+                long delay = policy.getRetryDelayMs(failures);
+                min = Math.min(min, delay);
+                max = Math.max(max, delay);
+            }
+            // Delays are spread over the whole range, not just around its upper bound.
+            long bound = policy.getMaxRetryDelayMs(failures);
+            assertThat(min).isAtLeast(0L);
+            assertThat(min).isLessThan(bound / 10);
+            assertThat(max).isAtMost(bound);
+            assertThat(max).isGreaterThan(bound * 9 / 10);
+        }
+    }
+
+    @Test
+    public void testResyncDelay() throws Exception {
+        BackoffReconnectPolicy policy = new BackoffReconnectPolicy(100, 5000, 1000, new Random(42));
+        long sum = 0;
+        for (int i = 0; i < 1000; i++) {
+            long delay = policy.getResyncDelayMs();
+            assertThat(delay).isAtLeast(0L);
+            assertThat(delay).isAtMost(1000L);
+            sum += delay;
+        }
+        assertThat(sum / 1000).isIn(Range.closed(400L, 600L));
+
+        assertThat(new BackoffReconnectPolicy(100, 5000, 0).getResyncDelayMs()).isEqualTo(0);
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Project: Lib Utils
+ * Copyright (C) 2017 alf.labs gmail com,
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.alflabs.kv;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class ExpiryWheelTest {
+
+    @Test
+    public void testScheduleAdvance() throws Exception {
+        ExpiryWheel wheel = new ExpiryWheel(100, 8, 1000);
+        wheel.schedule("a", 1250);
+        wheel.schedule("b", 1300);
+        wheel.schedule("c", 1300);
+        assertThat(wheel.size()).isEqualTo(3);
+        // Deadlines are rounded up to the end of their tick.
+        assertThat(wheel.getDeadline("a")).isEqualTo(1300);
+        assertThat(wheel.getDeadline("d")).isEqualTo(-1);
+
+        assertThat(wheel.advance(1299)).isEmpty();
+        List<String> expired = wheel.advance(1300);
+        Collections.sort(expired);
+        assertThat(expired).containsExactly("a", "b", "c").inOrder();
+        assertThat(wheel.size()).isEqualTo(0);
+        assertThat(wheel.advance(1400)).isEmpty();
+    }
+
+    @Test
+    public void testRescheduleCancel() throws Exception {
+        ExpiryWheel wheel = new ExpiryWheel(100, 8, 0);
+        wheel.schedule("a", 200);
+        wheel.schedule("b", 200);
+        wheel.schedule("a", 500);
+        assertThat(wheel.cancel("b")).isTrue();
+        assertThat(wheel.cancel("b")).isFalse();
+
+        assertThat(wheel.advance(400)).isEmpty();
+        assertThat(wheel.advance(500)).containsExactly("a");
+
+        // A deadline in the past expires on the next tick.
+        wheel.schedule("c", 0);
+        assertThat(wheel.getDeadline("c")).isEqualTo(600);
+        assertThat(wheel.advance(600)).containsExactly("c");
+    }
+
+    @Test
+    public void testSeveralTurns() throws Exception {
+        // 8 slots of 100 ms: deadlines after 800 ms wait one or more turns in their slot.
+        ExpiryWheel wheel = new ExpiryWheel(100, 8, 0);
+        wheel.schedule("turn0", 300);
+        wheel.schedule("turn1", 1100);
+        wheel.schedule("turn2", 1900);
+        List<String> expired = new ArrayList<>();
+        for (long now = 0; now <= 2000; now += 100) {
+            for (String key : wheel.advance(now)) {
+                expired.add(key + "@" + now);
+            }
+        }
+        assertThat(expired).containsExactly("turn0@300", "turn1@1100", "turn2@1900").inOrder();
+    }
+
+    @Test
+    public void testLargeJump() throws Exception {
+        ExpiryWheel wheel = new ExpiryWheel(100, 8, 0);
+        for (int i = 1; i <= 100; i++) {
+            wheel.schedule("key" + i, i * 100);
+        }
+        // Jumping over many turns visits each slot once and expires everything due.
+        assertThat(wheel.advance(5000)).hasSize(50);
+        assertThat(wheel.size()).isEqualTo(50);
+        assertThat(wheel.getDeadline("key51")).isEqualTo(5100);
+        assertThat(wheel.advance(100000)).hasSize(50);
+        assertThat(wheel.size()).isEqualTo(0);
+    }
+}
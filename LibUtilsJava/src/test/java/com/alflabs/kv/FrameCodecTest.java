@@ -0,0 +1,331 @@
+/*
+ * Project: Lib Utils
+ * Copyright (C) 2017 alf.labs gmail com,
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.alflabs.kv;
+
+import com.alflabs.annotations.NonNull;
+import com.alflabs.utils.ILogger;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class FrameCodecTest {
+
+    private KeyValueProtocol mProtocol;
+    private final List<String> mReceived = new ArrayList<>();
+    private boolean mBinaryInbound;
+    private boolean mCompressedInbound;
+    private KeyValueProtocol.Sender mSender;
+
+    @Before
+    public void setUp() throws Exception {
+        mReceived.clear();
+        mBinaryInbound = false;
+        mCompressedInbound = false;
+        mProtocol = new KeyValueProtocol(mock(ILogger.class)) {
+            @Override
+            void processLine(@NonNull Sender sender, @NonNull byte[] data, int start, int end) throws QCloseRequestException {
+                mReceived.add("line:" + new String(data, start, end - start, StandardCharsets.UTF_8));
+            }
+
+            @Override
+            void processFrame(@NonNull Sender sender, char op, @NonNull String key, @NonNull String value)
+                    throws QCloseRequestException {
+                mReceived.add("frame:" + op + "|" + key + "|" + value);
+            }
+        };
+        mSender = new KeyValueProtocol.Sender() {
+            @Override
+            public void sendLine(@NonNull String line) {}
+
+            @Override
+            public boolean isBinaryInbound() {
+                return mBinaryInbound;
+            }
+
+            @Override
+            public boolean isCompressedInbound() {
+                return mCompressedInbound;
+            }
+        };
+    }
+
+    @Test
+    public void testUtf8() throws Exception {
+        String[] samples = {
+                "",
+                "plain ascii",
+                "caf\u00e9 \u00fcber",
+                "\u20ac \u65e5\u672c",
+                "emoji \ud83d\ude00 pair",
+                "unpaired \ud83d surrogate",
+        };
+        for (String s : samples) {
+            byte[] expected = s.getBytes(StandardCharsets.UTF_8);
+            assertThat(FrameCodec.utf8Length(s)).isEqualTo(expected.length);
+            byte[] actual = new byte[expected.length];
+            assertThat(FrameCodec.writeUtf8(s, actual, 0)).isEqualTo(expected.length);
+            assertThat(actual).isEqualTo(expected);
+        }
+    }
+
+    @Test
+    public void testVarint() throws Exception {
+        int[] samples = { 0, 1, 127, 128, 300, 16383, 16384, FrameCodec.MAX_FRAME_LENGTH };
+        for (int value : samples) {
+            byte[] buf = new byte[5];
+            int len = FrameCodec.writeVarint(value, buf, 0);
+            assertThat(len).isEqualTo(FrameCodec.varintLength(value));
+            int[] pos = { 0 };
+            assertThat(FrameCodec.readVarint(buf, pos, len)).isEqualTo(value);
+            assertThat(pos[0]).isEqualTo(len);
+            // Truncated varints need more bytes.
+            pos[0] = 0;
+            if (len > 1) {
+                assertThat(FrameCodec.readVarint(buf, pos, len - 1)).isEqualTo(-1);
+            }
+        }
+    }
+
+    @Test
+    public void testSharedValue() throws Exception {
+        FrameCodec.SharedValue shared = new FrameCodec.SharedValue("foo", "multi\nline");
+        byte[] text = shared.getTextFrame();
+        byte[] binary = shared.getBinaryFrame();
+        assertThat(new String(text, StandardCharsets.UTF_8)).isEqualTo("Wfoo:multi line\n");
+        assertThat(binary).isEqualTo(FrameCodec.encodeFrame('W', "foo", "multi\nline"));
+
+        // Frames are only encoded once.
+        assertThat(shared.getTextFrame()).isSameInstanceAs(text);
+        assertThat(shared.getBinaryFrame()).isSameInstanceAs(binary);
+    }
+
+    @Test
+    public void testSharedBatch() throws Exception {
+        Map<String, String> values = new TreeMap<>();
+        values.put("foo", "multi\nline");
+        values.put("bar", "1");
+        FrameCodec.SharedBatch shared = new FrameCodec.SharedBatch(values);
+        assertThat(new String(shared.getTextFrame(), StandardCharsets.UTF_8))
+                .isEqualTo("B2\nWbar:1\nWfoo:multi line\n");
+        assertThat(shared.getTextFrame()).isSameInstanceAs(shared.getTextFrame());
+
+        // The binary batch is a B frame followed by the W frames.
+        mBinaryInbound = true;
+        FrameDecoder decoder = new FrameDecoder(mock(ILogger.class), mProtocol, mSender);
+        byte[] data = shared.getBinaryFrame();
+        decoder.feed(data, 0, data.length);
+        assertThat(mReceived.toString()).isEqualTo("[frame:B|2|, frame:W|bar|1, frame:W|foo|multi\nline]");
+        assertThat(FrameCodec.binaryToLine(FrameCodec.encodeFrame('B', "2", ""))).isEqualTo("B2");
+    }
+
+    @Test
+    public void testBinaryToText() throws Exception {
+        assertThat(FrameCodec.binaryToText(FrameCodec.encodeFrame('W', "foo", "x\nQ"))).isEqualTo("Wfoo:x Q");
+        assertThat(FrameCodec.binaryToText(FrameCodec.encodeFrame('W', "a:b", "1"))).isNull();
+        assertThat(FrameCodec.binaryToText(FrameCodec.encodeFrame('P', "S", "42"))).isEqualTo("PS42");
+        assertThat(FrameCodec.binaryToText(FrameCodec.encodeFrame('T', "foo", "100"))).isEqualTo("Tfoo:100");
+        assertThat(FrameCodec.binaryToText(FrameCodec.encodeFrame('T', "x\nQ", "100"))).isNull();
+
+        // Batches are split back into their lines.
+        Map<String, String> values = new TreeMap<>();
+        values.put("bar", "1");
+        values.put("foo", "multi\nline");
+        values.put("a:b", "2");
+        assertThat(FrameCodec.binaryToText(FrameCodec.encodeBatchFrame(values)))
+                .isEqualTo("B2\nWbar:1\nWfoo:multi line");
+
+        // Truncated frames are malformed.
+        byte[] batch = FrameCodec.encodeBatchFrame(values);
+        assertThat(FrameCodec.binaryToText(Arrays.copyOf(batch, batch.length - 1))).isNull();
+    }
+
+    @Test
+    public void testInvalidKeys() throws Exception {
+        assertThat(FrameCodec.isValidKey("foo bar")).isTrue();
+        assertThat(FrameCodec.isValidKey("")).isFalse();
+        assertThat(FrameCodec.isValidKey("a:b")).isFalse();
+        assertThat(FrameCodec.isValidKey("x\nQ")).isFalse();
+        assertThat(FrameCodec.isValidKey("x\r")).isFalse();
+        assertThat(FrameCodec.isValidKey(" foo")).isFalse();
+        assertThat(FrameCodec.isValidKey("foo\t")).isFalse();
+
+        // Values with invalid keys are not sent as text.
+        assertThat(FrameCodec.valueLine("a:b", "1")).isNull();
+        assertThat(new FrameCodec.SharedValue("x\nQ", "1").getTextFrame()).isNull();
+        Map<String, String> values = new TreeMap<>();
+        values.put("a:b", "1");
+        assertThat(FrameCodec.batchLines(values)).isNull();
+        values.put("foo", "2");
+        values.put(" foo", "3");
+        assertThat(FrameCodec.batchLines(values)).isEqualTo("B1\nWfoo:2");
+    }
+
+    @Test
+    public void testBinaryToLine() throws Exception {
+        assertThat(FrameCodec.binaryToLine(FrameCodec.encodeFrame('W', "foo", "bar"))).isEqualTo("Wfoo:bar");
+        assertThat(FrameCodec.binaryToLine(FrameCodec.encodeFrame('R', "*", ""))).isEqualTo("R*");
+        assertThat(FrameCodec.binaryToLine(FrameCodec.encodeFrame('P', "S", "42"))).isEqualTo("PS42");
+        assertThat(FrameCodec.binaryToLine(FrameCodec.encodeFrame('Q', "", ""))).isEqualTo("Q");
+        assertThat(FrameCodec.binaryToLine(FrameCodec.encodeFrame('S', "e:12", ""))).isEqualTo("Se:12");
+        assertThat(FrameCodec.binaryToLine(new byte[] { 'W', 5, 'a' })).isNull();
+    }
+
+    @Test
+    public void testDecoder_Text() throws Exception {
+        FrameDecoder decoder = new FrameDecoder(mock(ILogger.class), mProtocol, mSender);
+        byte[] data = "Wfoo:bar\nR*\nPS1".getBytes(StandardCharsets.UTF_8);
+        decoder.feed(data, 0, data.length);
+        assertThat(mReceived.toString()).isEqualTo("[line:Wfoo:bar, line:R*]");
+
+        data = "2\n".getBytes(StandardCharsets.UTF_8);
+        decoder.feed(data, 0, data.length);
+        assertThat(mReceived.toString()).isEqualTo("[line:Wfoo:bar, line:R*, line:PS12]");
+    }
+
+    @Test
+    public void testDecoder_Text_CarriageReturn() throws Exception {
+        FrameDecoder decoder = new FrameDecoder(mock(ILogger.class), mProtocol, mSender);
+        byte[] data = "Wfoo:bar\r\nR*\rPS1\r".getBytes(StandardCharsets.UTF_8);
+        decoder.feed(data, 0, data.length);
+        assertThat(mReceived.toString()).isEqualTo("[line:Wfoo:bar, line:R*, line:PS1]");
+
+        // The "\r\n" pair can span two reads.
+        data = "\nQ\n\n".getBytes(StandardCharsets.UTF_8);
+        decoder.feed(data, 0, data.length);
+        assertThat(mReceived.toString()).isEqualTo("[line:Wfoo:bar, line:R*, line:PS1, line:Q, line:]");
+    }
+
+    @Test
+    public void testDecoder_Binary() throws Exception {
+        mBinaryInbound = true;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(FrameCodec.encodeFrame('W', "foo", "multi\nline\u00e9"));
+        out.write(FrameCodec.encodeFrame('R', "*", ""));
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            large.append("0123456789");
+        }
+        out.write(FrameCodec.encodeFrame('W', "large", large.toString()));
+        byte[] data = out.toByteArray();
+
+        // Feed one byte at a time to exercise partial frames.
+        FrameDecoder decoder = new FrameDecoder(mock(ILogger.class), mProtocol, mSender);
+        for (int i = 0; i < data.length; i++) {
+            decoder.feed(data, i, 1);
+        }
+        assertThat(mReceived).hasSize(3);
+        assertThat(mReceived.get(0)).isEqualTo("frame:W|foo|multi\nline\u00e9");
+        assertThat(mReceived.get(1)).isEqualTo("frame:R|*|");
+        assertThat(mReceived.get(2)).isEqualTo("frame:W|large|" + large);
+
+        // Feed everything at once.
+        mReceived.clear();
+        decoder.feed(data, 0, data.length);
+        assertThat(mReceived).hasSize(3);
+        assertThat(mReceived.get(2)).isEqualTo("frame:W|large|" + large);
+    }
+
+    @Test
+    public void testDecoder_Compressed() throws Exception {
+        mBinaryInbound = true;
+        mCompressedInbound = true;
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            large.append("key.").append(i % 100).append(',');
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FrameCompressor compressor = new FrameCompressor(100);
+
+        // Frames before the marker are written as-is.
+        assertThat(compressor.write(out, FrameCodec.encodeFrame('W', "a", "1"))).isEqualTo(5);
+        assertThat(compressor.write(out, FrameCodec.COMPRESS_MARKER)).isEqualTo(0);
+        assertThat(compressor.isEnabled()).isTrue();
+        int raw = out.size();
+
+        // Less than the threshold is written uncompressed on flush.
+        assertThat(compressor.write(out, FrameCodec.encodeFrame('P', "S", "42"))).isEqualTo(0);
+        assertThat(out.size()).isEqualTo(raw);
+        assertThat(compressor.flush(out)).isEqualTo(6);
+        raw = out.size();
+
+        // Larger writes are deflated, in several "Z" frames when over the chunk size.
+        byte[] frame = FrameCodec.encodeFrame('W', "large", large.toString());
+        assertThat(frame.length).isGreaterThan(64 * 1024);
+        compressor.write(out, frame);
+        compressor.write(out, FrameCodec.encodeFrame('W', "b", large.substring(0, 200)));
+        compressor.flush(out);
+        byte[] data = out.toByteArray();
+        assertThat(data[raw]).isEqualTo((byte) 'Z');
+        assertThat(data.length - raw).isLessThan(frame.length / 10);
+        compressor.close();
+
+        // Feed in small pieces to exercise partial frames, including partial "Z" frames.
+        FrameDecoder decoder = new FrameDecoder(mock(ILogger.class), mProtocol, mSender);
+        for (int i = 0; i < data.length; i += 7) {
+            decoder.feed(data, i, Math.min(7, data.length - i));
+        }
+        decoder.close();
+        assertThat(mReceived).hasSize(4);
+        assertThat(mReceived.get(0)).isEqualTo("frame:W|a|1");
+        assertThat(mReceived.get(1)).isEqualTo("frame:P|S|42");
+        assertThat(mReceived.get(2)).isEqualTo("frame:W|large|" + large);
+        assertThat(mReceived.get(3)).isEqualTo("frame:W|b|" + large.substring(0, 200));
+    }
+
+    @Test
+    public void testDecoder_SwitchMidBuffer() throws Exception {
+        // The protocol switches the framing while processing the last text line;
+        // the rest of the same buffer must be decoded as binary.
+        KeyValueProtocol protocol = new KeyValueProtocol(mock(ILogger.class)) {
+            @Override
+            void processLine(@NonNull Sender sender, @NonNull byte[] data, int start, int end) throws QCloseRequestException {
+                String line = new String(data, start, end - start, StandardCharsets.UTF_8);
+                mReceived.add("line:" + line);
+                if (line.startsWith("V")) {
+                    mBinaryInbound = true;
+                }
+            }
+
+            @Override
+            void processFrame(@NonNull Sender sender, char op, @NonNull String key, @NonNull String value)
+                    throws QCloseRequestException {
+                mReceived.add("frame:" + op + "|" + key + "|" + value);
+            }
+        };
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(FrameCodec.encodeLine("Wa:1"));
+        out.write(FrameCodec.encodeLine("VJuniorDayModelAccept:bin"));
+        out.write(FrameCodec.encodeFrame('W', "b", "2"));
+        byte[] data = out.toByteArray();
+
+        FrameDecoder decoder = new FrameDecoder(mock(ILogger.class), protocol, mSender);
+        decoder.feed(data, 0, data.length);
+        assertThat(mReceived.toString()).isEqualTo("[line:Wa:1, line:VJuniorDayModelAccept:bin, frame:W|b|2]");
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Project: Lib Utils
+ * Copyright (C) 2017 alf.labs gmail com,
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.alflabs.kv;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class KeyTableTest {
+
+    private static String intern(KeyTable table, String key) {
+        // Keys are interned from a range of a larger read buffer.
+        byte[] data = ("<" + key + ">").getBytes(StandardCharsets.UTF_8);
+        return table.intern(data, 1, data.length - 1);
+    }
+
+    private static String lookup(KeyTable table, String key) {
+        byte[] data = ("<" + key + ">").getBytes(StandardCharsets.UTF_8);
+        return table.lookup(data, 1, data.length - 1);
+    }
+
+    private static int getId(KeyTable table, String key) {
+        byte[] data = key.getBytes(StandardCharsets.UTF_8);
+        return table.getId(data, 0, data.length);
+    }
+
+    @Test
+    public void testIntern() throws Exception {
+        KeyTable table = new KeyTable(100);
+        String foo = intern(table, "foo");
+        assertThat(foo).isEqualTo("foo");
+        assertThat(intern(table, "foo")).isSameInstanceAs(foo);
+        assertThat(intern(table, "clé")).isEqualTo("clé");
+        assertThat(intern(table, "clé")).isSameInstanceAs(intern(table, "clé"));
+        assertThat(intern(table, "")).isEmpty();
+        assertThat(table.size()).isEqualTo(2);
+
+        // Ids are stable and sequential.
+        assertThat(getId(table, "foo")).isEqualTo(0);
+        assertThat(getId(table, "clé")).isEqualTo(1);
+        assertThat(getId(table, "bar")).isEqualTo(-1);
+        assertThat(table.getKey(0)).isSameInstanceAs(foo);
+        assertThat(table.getKey(2)).isNull();
+        assertThat(table.getKey(-1)).isNull();
+    }
+
+    @Test
+    public void testLookup() throws Exception {
+        KeyTable table = new KeyTable(100);
+        String foo = intern(table, "foo");
+        assertThat(lookup(table, "foo")).isSameInstanceAs(foo);
+
+        // Keys not in the table are decoded without being added.
+        String bar = lookup(table, "bar");
+        assertThat(bar).isEqualTo("bar");
+        assertThat(lookup(table, "bar")).isNotSameInstanceAs(bar);
+        assertThat(lookup(table, "")).isEmpty();
+        assertThat(getId(table, "bar")).isEqualTo(-1);
+        assertThat(table.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void testGrowAndLimit() throws Exception {
+        KeyTable table = new KeyTable(1000);
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            keys.add(intern(table, "key" + i));
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertThat(intern(table, "key" + i)).isSameInstanceAs(keys.get(i));
+            assertThat(getId(table, "key" + i)).isEqualTo(i);
+        }
+
+        // Once full, new keys are still decoded but not added.
+        String extra = intern(table, "extra");
+        assertThat(extra).isEqualTo("extra");
+        assertThat(intern(table, "extra")).isNotSameInstanceAs(extra);
+        assertThat(table.size()).isEqualTo(1000);
+    }
+
+    @Test
+    public void testConcurrentIntern() throws Exception {
+        KeyTable table = new KeyTable(KeyTable.DEFAULT_MAX_KEYS);
+        ConcurrentHashMap<String, String> canonical = new ConcurrentHashMap<>();
+        AtomicBoolean consistent = new AtomicBoolean(true);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 2000; i++) {
+                    String key = intern(table, "key" + i);
+                    String previous = canonical.putIfAbsent(key, key);
+                    if (previous != null && previous != key) {
+                        consistent.set(false);
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertThat(consistent.get()).isTrue();
+        assertThat(table.size()).isEqualTo(2000);
+    }
+}
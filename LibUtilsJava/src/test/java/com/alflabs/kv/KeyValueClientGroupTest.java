@@ -0,0 +1,235 @@
+/*
+ * Project: Lib Utils
+ * Copyright (C) 2017 alf.labs gmail com,
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.alflabs.kv;
+
+import com.alflabs.annotations.LargeTest;
+import com.alflabs.annotations.NonNull;
+import com.alflabs.annotations.Null;
+import com.alflabs.rx.Schedulers;
+import com.alflabs.utils.FakeClock;
+import com.alflabs.utils.ILogger;
+import com.alflabs.utils.JavaClock;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.mock;
+
+@LargeTest
+public class KeyValueClientGroupTest {
+
+    private KeyValueServer mServer;
+    private KeyValueClientGroup mGroup;
+    private final List<KeyValueClient> mClients = new ArrayList<>();
+    private final Set<String> mClientChanges = new ConcurrentSkipListSet<>();
+
+    @Before
+    public void setUp() throws Exception {
+        mClientChanges.clear();
+        mServer = new KeyValueServer(mock(ILogger.class));
+        mGroup = new KeyValueClientGroup(new JavaClock(), mock(ILogger.class), 2 /*numLoops*/);
+        mGroup.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mGroup.stopSync();
+        mServer.stopSync();
+    }
+
+    @NonNull
+    private KeyValueClient _createClient(@NonNull InetSocketAddress address, final int index) {
+        KeyValueClient client = mGroup.createClient(address, new KeyValueClient.IStatsListener() {
+            @Override
+            public void addBandwidthTXBytes(int count) {}
+
+            @Override
+            public void addBandwidthRXBytes(int count) {}
+
+            @Override
+            public void setMessage(@Null String msg) {}
+
+            @Override
+            public void HBLatencyRequestSent() {}
+
+            @Override
+            public void HBLatencyReplyReceived() {}
+        });
+        client.getChangedStream().subscribe(Schedulers.sync(),
+                (stream, key) -> {
+                    assert key != null;
+                    mClientChanges.add(index + ":" + key + "=" + client.getValue(key));
+                });
+        mClients.add(client);
+        return client;
+    }
+
+    private void _waitFor(int numConnected) throws InterruptedException {
+        for (int i = 0; i < 50 && mServer.getNumConnections() != numConnected; i++) {
+            Thread.sleep(50 /*ms*/);
+        }
+        assertThat(mServer.getNumConnections()).isEqualTo(numConnected);
+    }
+
+    @Test
+    public void testManyClients() throws Exception {
+        InetSocketAddress address = mServer.start(20005);
+        assertThat(address).isNotNull();
+        for (int i = 0; i < 20; i++) {
+            _createClient(address, i).startAsync();
+        }
+        _waitFor(20);
+        assertThat(mGroup.getNumConnected()).isEqualTo(20);
+
+        // Values broadcast by the server reach all the clients.
+        mServer.putValue("foo", "bar", true /*broadcast*/);
+        for (int i = 0; i < 50 && mClientChanges.size() < 20; i++) {
+            Thread.sleep(50 /*ms*/);
+        }
+        Set<String> expected = new TreeSet<>();
+        for (int i = 0; i < 20; i++) {
+            expected.add(i + ":foo=bar");
+        }
+        assertThat(mClientChanges).containsExactlyElementsIn(expected);
+
+        // Values broadcast by one client reach the server and the other clients.
+        mClientChanges.clear();
+        mClients.get(3).putValue("key", "value", true /*broadcast*/);
+        for (int i = 0; i < 50 && mClientChanges.size() < 19; i++) {
+            Thread.sleep(50 /*ms*/);
+        }
+        assertThat(mServer.getValue("key")).isEqualTo("value");
+        assertThat(mClientChanges).hasSize(19);
+        assertThat(mClientChanges).doesNotContain("3:key=value");
+        assertThat(mClients.get(10).getValue("key")).isEqualTo("value");
+
+        // Heartbeats are sent by the group loops.
+        for (int i = 0; i < 50 && mClients.get(0).getHeartBeatLatency().getCount() == 0; i++) {
+            Thread.sleep(100 /*ms*/);
+        }
+        assertThat(mClients.get(0).getHeartBeatLatency().getCount()).isGreaterThan(0L);
+
+        // Stopping a client closes its connection only.
+        mClients.get(0).stopSync();
+        _waitFor(19);
+        assertThat(mGroup.getNumConnected()).isEqualTo(19);
+
+        mGroup.stopSync();
+        _waitFor(0);
+    }
+
+    @Test
+    public void testStartSync() throws Exception {
+        InetSocketAddress address = mServer.start(20005);
+        assertThat(address).isNotNull();
+        KeyValueClient client = _createClient(address, 0);
+        assertThat(client.startSync()).isTrue();
+        _waitFor(1);
+        client.stopSync();
+        _waitFor(0);
+
+        // The handshake and the initial snapshot complete from the selector loop too.
+        mServer.putValue("foo", "bar", false /*broadcast*/);
+        KeyValueClient client1 = _createClient(address, 1);
+        assertThat(client1.startSync(true /*requestAllKeys*/)).isTrue();
+        assertThat(client1.getValue("foo")).isEqualTo("bar");
+        client1.stopSync();
+        _waitFor(0);
+
+        // Nothing listens on that port.
+        KeyValueClient client2 = _createClient(new InetSocketAddress(address.getAddress(), 20006), 2);
+        assertThat(client2.startSync()).isFalse();
+    }
+
+    @Test
+    public void testReconnect() throws Exception {
+        InetSocketAddress address = mServer.start(20005);
+        assertThat(address).isNotNull();
+        KeyValueClient client = _createClient(address, 0);
+        client.startAsync();
+        _waitFor(1);
+
+        mServer.stopSync();
+        for (int i = 0; i < 50 && mGroup.getNumConnected() > 0; i++) {
+            Thread.sleep(50 /*ms*/);
+        }
+        assertThat(mGroup.getNumConnected()).isEqualTo(0);
+
+        // The threaded server can't be restarted once stopped, use a new one on the same port.
+        mServer = new KeyValueServer(mock(ILogger.class));
+        mServer.putValue("foo", "changed while disconnected", false /*broadcast*/);
+        assertThat(mServer.start(20005)).isNotNull();
+        // Refused connections are retried after a delay.
+        for (int i = 0; i < 100 && mServer.getNumConnections() == 0; i++) {
+            Thread.sleep(50 /*ms*/);
+        }
+        _waitFor(1);
+        client.requestAllKeys();
+        for (int i = 0; i < 50 && client.getValue("foo") == null; i++) {
+            Thread.sleep(50 /*ms*/);
+        }
+        assertThat(client.getValue("foo")).isEqualTo("changed while disconnected");
+    }
+
+    @Test
+    public void testReconnect_Clock() throws Exception {
+        // The reconnect delays are measured with the clock of the group.
+        mGroup.stopSync();
+        FakeClock clock = new FakeClock(1000);
+        mGroup = new KeyValueClientGroup(clock, mock(ILogger.class), 1 /*numLoops*/);
+        mGroup.start();
+
+        // Nothing listens on that port yet.
+        KeyValueClient client = _createClient(new InetSocketAddress("localhost", 20005), 0);
+        client.setReconnectPolicy(new KeyValueClient.IReconnectPolicy() {
+            @Override
+            public long getRetryDelayMs(int failures) {
+                return 5000;
+            }
+
+            @Override
+            public long getResyncDelayMs() {
+                return 0;
+            }
+        });
+        client.startAsync();
+        // Lets the first attempt fail. The retry is not due before the clock moves on.
+        Thread.sleep(500 /*ms*/);
+        assertThat(mServer.start(20005)).isNotNull();
+
+        // Real time does not matter, only the clock does.
+        Thread.sleep(1500 /*ms*/);
+        assertThat(mServer.getNumConnections()).isEqualTo(0);
+        clock.add(4000);
+        Thread.sleep(1500 /*ms*/);
+        assertThat(mServer.getNumConnections()).isEqualTo(0);
+
+        clock.add(1000);
+        _waitFor(1);
+        assertThat(mGroup.getNumConnected()).isEqualTo(1);
+    }
+}
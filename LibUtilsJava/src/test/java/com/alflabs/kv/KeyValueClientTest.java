@@ -22,6 +22,8 @@ import com.alflabs.annotations.LargeTest;
 import com.alflabs.annotations.NonNull;
 import com.alflabs.annotations.Null;
 import com.alflabs.rx.Schedulers;
+import com.alflabs.utils.FakeClock;
+import com.alflabs.utils.IClock;
 import com.alflabs.utils.ILogger;
 import com.alflabs.utils.JavaClock;
 import org.junit.After;
@@ -32,7 +34,15 @@ import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.google.common.truth.Truth.assertThat;
 import static org.mockito.Mockito.mock;
@@ -41,10 +51,14 @@ import static org.mockito.Mockito.mock;
 public class KeyValueClientTest {
     private static final String TAG = KeyValueClientTest.class.getSimpleName();
 
+    private IClock mClock;
     private KeyValueServer mServer;
     private KeyValueClient mClient;
     private final List<String> mServerChanges = new ArrayList<>();
     private final List<String> mClientChanges = new ArrayList<>();
+    private boolean mBinaryClient;
+    private boolean mIncrementalResync;
+    private boolean mCompressedClient;
 
     public void logD(String tag, String msg) {
         System.out.println(tag + ": " + msg + "\n");
@@ -55,6 +69,10 @@ public class KeyValueClientTest {
         mClientChanges.clear();
         mServerChanges.clear();
         mClient = null;
+        mClock = new JavaClock();
+        mBinaryClient = false;
+        mIncrementalResync = false;
+        mCompressedClient = false;
         mServer = new KeyValueServer(mock(ILogger.class));
         mServer.getChangedStream().subscribe(Schedulers.sync(),
                 (stream, key) -> {
@@ -97,11 +115,376 @@ public class KeyValueClientTest {
 
     @Test
     public void testKeyValueClientTest_Protocol() throws Exception {
+        _testProtocol();
+    }
+
+    @Test
+    public void testKeyValueClientTest_Protocol_SelectorEngine() throws Exception {
+        mServer.setSelectorLoops(1);
+        _testProtocol();
+    }
+
+    @Test
+    public void testKeyValueClientTest_Protocol_Binary() throws Exception {
+        mServer.setBinaryProtocol(true);
+        mBinaryClient = true;
+        _testProtocol();
+    }
+
+    @Test
+    public void testKeyValueClientTest_Protocol_BinaryServer_TextClient() throws Exception {
+        // Older clients which do not request the binary framing keep using text lines.
+        mServer.setBinaryProtocol(true);
+        _testProtocol();
+    }
+
+    @Test
+    public void testKeyValueClientTest_BinaryValues_SelectorEngine() throws Exception {
+        mServer.setSelectorLoops(1);
+        mServer.setBinaryProtocol(true);
+        mBinaryClient = true;
+        _startClient();
+        assertThat(mClient.isBinaryConnection()).isTrue();
+
+        String value = " multi\nline\r\nvalue with \u00fcnicode \u20ac \ud83d\ude00 ";
+        mClient.putValue("foo", value, true /*broadcast*/);
+        assertThat(_serverChanges()).isEqualTo("[foo=" + value + "]");
+        assertThat(mServer.getValue("foo")).isEqualTo(value);
+
+        mServer.putValue("bar", value, true /*broadcast*/);
+        assertThat(_clientChanges()).isEqualTo("[bar=" + value + "]");
+    }
+
+    @Test
+    public void testKeyValueClientTest_Protocol_Compressed() throws Exception {
+        mServer.setBinaryProtocol(true);
+        mServer.setCompression(true, 0 /*threshold*/);
+        mBinaryClient = true;
+        mCompressedClient = true;
+        _testProtocol();
+    }
+
+    @Test
+    public void testKeyValueClientTest_Compressed_SelectorEngine() throws Exception {
+        mServer.setSelectorLoops(1);
+        mServer.setBinaryProtocol(true);
+        mServer.setCompression(true, 64 /*threshold*/);
+        mBinaryClient = true;
+        mCompressedClient = true;
+        _startClient();
+        assertThat(mClient.isCompressedConnection()).isTrue();
+
+        // A dump larger than the socket buffers, with small pings in between.
+        Map<String, String> values = new TreeMap<>();
+        for (int i = 0; i < 5000; i++) {
+            values.put("block." + i, "value " + (i % 10));
+        }
+        mServer.putValues(values, false /*broadcast*/);
+        mClient.requestAllKeys();
+        for (int i = 0; i < 50 && mClientChanges.size() < values.size(); i++) {
+            Thread.sleep(100 /*ms*/);
+        }
+        assertThat(mClientChanges).hasSize(values.size());
+        assertThat(mClient.getSnapshot()).isEqualTo(values);
+        mClientChanges.clear();
+
+        mClient.putValue("foo", "bar", true /*broadcast*/);
+        assertThat(_serverChanges()).isEqualTo("[foo=bar]");
+    }
+
+    @Test
+    public void testKeyValueClientTest_Compression_NotBinary() throws Exception {
+        // The compression is only used with binary frames.
+        mServer.setCompression(true, 0 /*threshold*/);
+        mCompressedClient = true;
+        _testProtocol();
+        assertThat(mClient.isCompressedConnection()).isFalse();
+    }
+
+    @Test
+    public void testKeyValueClientTest_Ttl() throws Exception {
+        _startClient();
+        // Expiry only runs while there are TTLs.
+        assertThat(mServer.isExpiryRunning()).isFalse();
+
+        mClient.putValue("presence", "here", true /*broadcast*/, 300 /*ms*/);
+        assertThat(_serverChanges()).isEqualTo("[presence=here]");
+        assertThat(mServer.getValue("presence")).isEqualTo("here");
+        assertThat(mServer.isExpiryRunning()).isTrue();
+
+        // The server removes the key once expired and broadcasts the removal, as an empty value.
+        for (int i = 0; i < 20 && "here".equals(mClient.getValue("presence")); i++) {
+            Thread.sleep(100 /*ms*/);
+        }
+        assertThat(mServer.getValue("presence")).isNull();
+        assertThat(mClient.getValue("presence")).isEmpty();
+        assertThat(_serverChanges()).isEqualTo("[presence=null]");
+        for (int i = 0; i < 20 && mServer.isExpiryRunning(); i++) {
+            Thread.sleep(50 /*ms*/);
+        }
+        assertThat(mServer.isExpiryRunning()).isFalse();
+
+        // A TTL set directly on the server starts it again.
+        mServer.putValue("local", "x", false /*broadcast*/, 60000 /*ms*/);
+        assertThat(mServer.isExpiryRunning()).isTrue();
+    }
+
+    @Test
+    public void testKeyValueClientTest_IncrementalResync() throws Exception {
+        // The selector engine can be restarted on the same server.
+        mServer.setSelectorLoops(1);
+        mServer.setIncrementalResync(100);
+        mIncrementalResync = true;
+        _startClient();
+
+        mServer.putValue("foo", "bar", false /*broadcast*/);
+        mServer.putValue("key 1", "value 1", false /*broadcast*/);
+        mClient.requestAllKeys();
+        assertThat(_clientChanges()).isEqualTo("[foo=bar, key 1=value 1]");
+        assertThat(mClient.getSyncPosition()).isNotNull();
+
+        // A value only changed locally reveals whether the server sends all its values again.
+        mClient.putValue("key 1", "local", false /*broadcast*/);
+
+        mServer.stopSync();
+        mServer.putValue("foo", "changed while disconnected", false /*broadcast*/);
+        mServer.putValue("key 2", "new", false /*broadcast*/);
+        assertThat(mServer.start(20005)).isNotNull();
+
+        // The client reconnects on its own and only receives the values changed since.
+        for (int i = 0; i < 50 && mClientChanges.size() < 2; i++) {
+            Thread.sleep(100 /*ms*/);
+        }
+        assertThat(_clientChanges()).isEqualTo("[foo=changed while disconnected, key 2=new]");
+        assertThat(mClient.getValue("key 1")).isEqualTo("local");
+    }
+
+    @Test
+    public void testKeyValueClientTest_StartSyncSnapshot() throws Exception {
+        mServer.putValue("foo", "bar", false /*broadcast*/);
+        mServer.putValue("key 1", "value 1", false /*broadcast*/);
         InetSocketAddress address = mServer.start(20005);
         assertThat(address).isNotNull();
+        _createClient(address);
 
+        // Returns once the server version and all the values have been received, without polling.
+        assertThat(mClient.startSync(true /*requestAllKeys*/)).isTrue();
+        assertThat(mClient.getProtocol().getServerVersion()).isEqualTo(1);
+        assertThat(mClient.getValue("foo")).isEqualTo("bar");
+        assertThat(mClient.getValue("key 1")).isEqualTo("value 1");
+    }
+
+    @Test
+    public void testKeyValueClientTest_StartSyncSnapshot_Binary() throws Exception {
+        mServer.setBinaryProtocol(true);
+        mServer.setSelectorLoops(1);
+        mBinaryClient = true;
+        mServer.putValue("foo", "bar", false /*broadcast*/);
+        InetSocketAddress address = mServer.start(20005);
+        assertThat(address).isNotNull();
+        _createClient(address);
+
+        assertThat(mClient.startSync(true /*requestAllKeys*/)).isTrue();
+        assertThat(mClient.getValue("foo")).isEqualTo("bar");
+        assertThat(mClient.isBinaryConnection()).isTrue();
+    }
+
+    @Test
+    public void testKeyValueClientTest_StartSyncHandshake_Failed() throws Exception {
+        // Nothing listens on that port.
+        _createClient(new InetSocketAddress("localhost", 20006));
+        assertThat(mClient.startSync(false /*requestAllKeys*/)).isFalse();
+        mClient = null;
+    }
+
+    @Test
+    public void testKeyValueClientTest_GetAsync() throws Exception {
+        _testGetAsync();
+    }
+
+    @Test
+    public void testKeyValueClientTest_GetAsync_Binary() throws Exception {
+        mServer.setBinaryProtocol(true);
+        mBinaryClient = true;
+        _testGetAsync();
+    }
+
+    private void _testGetAsync() throws Exception {
+        mServer.putValue("foo", "bar", false /*broadcast*/);
+        mServer.putValue("key 1", "value 1", false /*broadcast*/);
+        _startClient();
+        assertThat(mClient.getValue("foo")).isNull();
+
+        // Hold the reply: the client's reader blocks when it receives the value, before the ping reply.
+        CountDownLatch reply = new CountDownLatch(1);
+        mClient.getChangedStream().subscribe(Schedulers.sync(),
+                (stream, key) -> {
+                    if ("foo".equals(key)) {
+                        try {
+                            reply.await(5, TimeUnit.SECONDS);
+                        } catch (InterruptedException ignore) {}
+                    }
+                });
+        // Count the frames sent by this thread, not the heartbeats.
+        Thread thread = Thread.currentThread();
+        AtomicInteger queued = new AtomicInteger();
+        mClient.setOnQueued(() -> {
+            if (Thread.currentThread() == thread) queued.incrementAndGet();
+        });
+
+        List<CompletableFuture<String>> futures = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            futures.add(mClient.getAsync("foo"));
+        }
+        for (CompletableFuture<String> future : futures) {
+            assertThat(future.isDone()).isFalse();
+        }
+        // One read request and its ping instead of 10 requests and pings.
+        assertThat(queued.get()).isEqualTo(2);
+
+        reply.countDown();
+        for (CompletableFuture<String> future : futures) {
+            assertThat(future.get(5, TimeUnit.SECONDS)).isEqualTo("bar");
+        }
+        mClient.setOnQueued(null);
+
+        // Keys unknown to the server are received as empty values.
+        assertThat(mClient.getAsync("unknown").get(5, TimeUnit.SECONDS)).isEmpty();
+
+        Map<String, String> values = mClient.getAllAsync().get(5, TimeUnit.SECONDS);
+        assertThat(values).containsEntry("foo", "bar");
+        assertThat(values).containsEntry("key 1", "value 1");
+    }
+
+    @Test
+    public void testKeyValueClientTest_GetAsync_Disconnected() throws Exception {
+        // The selector engine can be restarted on the same server.
+        mServer.setSelectorLoops(1);
+        _startClient();
+        mServer.stopSync();
+        Thread.sleep(500 /*ms*/);
+
+        // Requests made while disconnected are sent once reconnected.
+        CompletableFuture<String> future = mClient.getAsync("foo");
+        Thread.sleep(100 /*ms*/);
+        assertThat(future.isDone()).isFalse();
+        mServer.putValue("foo", "bar", false /*broadcast*/);
+        assertThat(mServer.start(20005)).isNotNull();
+        assertThat(future.get(10, TimeUnit.SECONDS)).isEqualTo("bar");
+    }
+
+    @Test
+    public void testKeyValueClientTest_Reconnect_PendingBinaryFrames() throws Exception {
+        // The selector engine can be restarted on the same server.
+        mServer.setSelectorLoops(1);
+        mServer.setBinaryProtocol(true);
+        mBinaryClient = true;
+        _startClient();
+        assertThat(mClient.isBinaryConnection()).isTrue();
+        mServer.stopSync();
+        // Past the 1-second poll of the writer, which then notices the connection is closed.
+        Thread.sleep(1500 /*ms*/);
+
+        // Frames queued in binary while disconnected are sent as text lines once reconnected.
+        Map<String, String> values = new TreeMap<>();
+        values.put("key 1", "value 1");
+        values.put("key 2", "multi\nline");
+        mClient.broadcastValues(values);
+        mClient.broadcastValue("key 3", "x\nQ");
+        assertThat(mServer.start(20005)).isNotNull();
+        for (int i = 0; i < 100 && mServer.getValue("key 3") == null; i++) {
+            Thread.sleep(50 /*ms*/);
+        }
+        assertThat(mServer.getValue("key 1")).isEqualTo("value 1");
+        assertThat(mServer.getValue("key 2")).isEqualTo("multi line");
+        assertThat(mServer.getValue("key 3")).isEqualTo("x Q");
+        assertThat(mServer.getNumConnections()).isEqualTo(1);
+    }
+
+    @Test
+    public void testKeyValueClientTest_ReconnectBackoff() throws Exception {
+        // The retry delays are slept on the client's clock: a fake clock makes them instantaneous.
+        FakeClock clock = new FakeClock(1000);
+        mClock = clock;
+        List<Long> delays = new CopyOnWriteArrayList<>();
+        CountDownLatch retried = new CountDownLatch(5);
+        clock.setSleepCallback(ms -> {
+            delays.add(ms);
+            retried.countDown();
+        });
+        List<Integer> failures = new CopyOnWriteArrayList<>();
+        BackoffReconnectPolicy backoff = new BackoffReconnectPolicy(100, 1000, 0, new Random(42));
+
+        // Nothing listens on that port.
+        _createClient(new InetSocketAddress("localhost", 20006));
+        mClient.setReconnectPolicy(new KeyValueClient.IReconnectPolicy() {
+            @Override
+            public long getRetryDelayMs(int numFailures) {
+                failures.add(numFailures);
+                return backoff.getRetryDelayMs(numFailures);
+            }
+
+            @Override
+            public long getResyncDelayMs() {
+                return 0;
+            }
+        });
+        mClient.startAsync();
+        assertThat(retried.await(10, TimeUnit.SECONDS)).isTrue();
+        mClient.stopSync();
+        mClient = null;
+
+        assertThat(failures.subList(0, 5)).containsExactly(1, 2, 3, 4, 5).inOrder();
+        for (int i = 0; i < 5; i++) {
+            assertThat(delays.get(i)).isAtMost(backoff.getMaxRetryDelayMs(i + 1));
+        }
+    }
+
+    @Test
+    public void testKeyValueClientTest_HeartBeatLatency() throws Exception {
+        _startClient();
+        LatencyHistogram latency = mClient.getHeartBeatLatency();
+        // Heartbeats are sent every second once connected.
+        for (int i = 0; i < 50 && latency.getCount() < 2; i++) {
+            Thread.sleep(100 /*ms*/);
+        }
+        assertThat(latency.getCount()).isAtLeast(2L);
+        assertThat(latency.getMax()).isGreaterThan(0L);
+        assertThat(latency.getP50()).isAtMost(latency.getP99());
+        assertThat(latency.getP99()).isAtMost(latency.getMax());
+        assertThat(mClient.getHeartBeatTimeoutMs()).isEqualTo(KeyValueClient.DEFAULT_HB_TIMEOUT_MS);
+
+        // Once enough heartbeats have been measured, the timeout follows the p99 round-trip time.
+        latency.reset();
+        for (int i = 0; i < 100; i++) {
+            latency.record(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        assertThat(mClient.getHeartBeatTimeoutMs()).isEqualTo(KeyValueClient.MIN_HB_TIMEOUT_MS);
+        for (int i = 0; i < 100; i++) {
+            latency.record(TimeUnit.SECONDS.toNanos(2));
+        }
+        assertThat(mClient.getHeartBeatTimeoutMs()).isAtLeast(9000L);
+        assertThat(mClient.getHeartBeatTimeoutMs()).isAtMost(9500L);
+        for (int i = 0; i < 100; i++) {
+            latency.record(TimeUnit.SECONDS.toNanos(60));
+        }
+        assertThat(mClient.getHeartBeatTimeoutMs()).isEqualTo(KeyValueClient.MAX_HB_TIMEOUT_MS);
+    }
+
+    private void _startClient() throws Exception {
+        InetSocketAddress address = mServer.start(20005);
+        assertThat(address).isNotNull();
+
+        _createClient(address);
+        mClient.startAsync();
+
+        Thread.sleep(100 /*ms*/);
+        assertThat(mServer.getNumConnections()).isEqualTo(1);
+    }
+
+    private void _createClient(@NonNull InetSocketAddress address) {
         mClient = new KeyValueClient(
-                new JavaClock(),
+                mClock,
                 mock(ILogger.class),
                 address,
                 new KeyValueClient.IStatsListener() {
@@ -120,15 +503,19 @@ public class KeyValueClientTest {
             @Override
             public void HBLatencyReplyReceived() {}
         });
+        mClient.setBinaryProtocol(mBinaryClient);
+        mClient.setIncrementalResync(mIncrementalResync);
+        mClient.setCompression(mCompressedClient, 0 /*threshold*/);
         mClient.getChangedStream().subscribe(Schedulers.sync(),
                 (stream, key) -> {
                     assert key != null;
                     mClientChanges.add(key + "=" + mClient.getValue(key));
                 });
-        mClient.startAsync();
+    }
 
-        Thread.sleep(100 /*ms*/);
-        assertThat(mServer.getNumConnections()).isEqualTo(1);
+    private void _testProtocol() throws Exception {
+        _startClient();
+        assertThat(mClient.isBinaryConnection()).isEqualTo(mBinaryClient);
 
         mClient.requestAllKeys();
         assertThat(_clientChanges()).isEqualTo("[]");
@@ -161,8 +548,9 @@ public class KeyValueClientTest {
         // When the server repeats the value back to the client, this is seen as a change and invokes
         // the callback. This can be used by the client to make sure the server knows about the value
         // before using it for itself.
+        // The server echoes the value right away, so the client value can only be checked before the call.
+        assertThat(mClient.getValue("foo")).isEqualTo("bar2");
         mClient.broadcastValue("foo", "broadcast3");
-        assertThat(mClient.getValue("foo")).isEqualTo("bar2"); // client value has not changed yet
         Thread.sleep(100 /*ms*/);
         assertThat(_serverChanges()).isEqualTo("[foo=broadcast3]");
         assertThat(mServer.getValue("foo")).isEqualTo("broadcast3");
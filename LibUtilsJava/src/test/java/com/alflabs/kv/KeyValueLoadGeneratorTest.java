@@ -0,0 +1,59 @@
+/*
+ * Project: Lib Utils
+ * Copyright (C) 2017 alf.labs gmail com,
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.alflabs.kv;
+
+import com.alflabs.utils.ILogger;
+import org.junit.Test;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class KeyValueLoadGeneratorTest {
+
+    @Test
+    public void testValues() throws Exception {
+        String value = KeyValueLoadGenerator.createValue(123456789L, 32);
+        assertThat(value).hasLength(32);
+        assertThat(KeyValueLoadGenerator.parseWriteTime(value)).isEqualTo(123456789L);
+        // Values are never truncated.
+        assertThat(KeyValueLoadGenerator.createValue(123456789L, 0)).isEqualTo("123456789 ");
+        assertThat(KeyValueLoadGenerator.parseWriteTime("")).isEqualTo(0);
+        assertThat(KeyValueLoadGenerator.parseWriteTime("foo bar")).isEqualTo(0);
+        assertThat(KeyValueLoadGenerator.parseWriteTime(null)).isEqualTo(0);
+    }
+
+    @Test
+    public void testRun() throws Exception {
+        KeyValueLoadGenerator generator = new KeyValueLoadGenerator(mock(ILogger.class));
+        generator.setNumClients(4);
+        generator.setWriteRate(200);
+        generator.setNumKeys(50);
+        generator.setSubscriberRatio(0.5);
+        generator.setDurationMs(1000, 200);
+
+        KeyValueLoadGenerator.Report report = generator.run();
+        assertThat(report.getWrites()).isGreaterThan(0L);
+        assertThat(report.getWritesPerSecond()).isGreaterThan(0.0);
+        // Two subscribers are notified of the writes of the other clients.
+        assertThat(report.getLatency().getCount()).isGreaterThan(0L);
+        assertThat(report.getLatency().getP999()).isAtLeast(report.getLatency().getP50());
+        assertThat(report.getServerStats().getLinesRX()).isAtLeast(report.getWrites());
+        assertThat(report.toString()).contains("p999=");
+    }
+}
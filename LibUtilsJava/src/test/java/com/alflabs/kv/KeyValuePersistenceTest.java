@@ -0,0 +1,284 @@
+/*
+ * Project: Lib Utils
+ * Copyright (C) 2017 alf.labs gmail com,
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.alflabs.kv;
+
+import com.alflabs.utils.FakeFileOps;
+import com.alflabs.utils.ILogger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class KeyValuePersistenceTest {
+
+    private final File mBase = new File("/data/kv/store");
+    private FakeFileOps mFileOps;
+    private KeyValueProtocol mProtocol;
+    private KeyValuePersistence mPersistence;
+
+    @Before
+    public void setUp() throws Exception {
+        mFileOps = new FakeFileOps();
+        mProtocol = new KeyValueProtocol(mock(ILogger.class));
+        mPersistence = new KeyValuePersistence(mock(ILogger.class), mFileOps, mBase);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mPersistence.close();
+    }
+
+    /** Simulates a restart: recovers the files in a new protocol. */
+    private KeyValueProtocol recover() throws Exception {
+        KeyValueProtocol protocol = new KeyValueProtocol(mock(ILogger.class));
+        KeyValuePersistence persistence = new KeyValuePersistence(mock(ILogger.class), mFileOps, mBase);
+        persistence.open(protocol);
+        persistence.close();
+        return protocol;
+    }
+
+    @Test
+    public void testOpenEmpty() throws Exception {
+        mPersistence.open(mProtocol);
+        assertThat(mPersistence.isOpen()).isTrue();
+        assertThat(mFileOps.isFile(mPersistence.getSnapshotFile())).isFalse();
+        assertThat(mFileOps.isFile(mPersistence.getLogFile(0))).isTrue();
+
+        mPersistence.close();
+        assertThat(mPersistence.isOpen()).isFalse();
+        assertThat(recover().getKeys()).isEmpty();
+    }
+
+    @Test
+    public void testRecovery() throws Exception {
+        mPersistence.open(mProtocol);
+        mProtocol.putValue("key1", "value1");
+        mProtocol.putValue("key2", "value2");
+        mProtocol.putValue("key3", "line1\nline2");
+        mProtocol.putValue("key2", null);
+        mProtocol.putValue("key1", "value1b");
+        mPersistence.close();
+
+        KeyValueProtocol protocol = recover();
+        assertThat(protocol.getSnapshot()).containsExactly(
+                "key1", "value1b",
+                "key3", "line1\nline2").inOrder();
+    }
+
+    @Test
+    public void testRecovery_NotClosed() throws Exception {
+        mPersistence.setSyncPolicy(KeyValuePersistence.SyncPolicy.EVERY_WRITE, 0);
+        mPersistence.open(mProtocol);
+        int syncs = mFileOps.getSyncCount();
+        mProtocol.putValue("key1", "value1");
+        mProtocol.putValue("key2", "value2");
+        assertThat(mFileOps.getSyncCount()).isEqualTo(syncs + 2);
+
+        // Recover without closing, as after a crash.
+        KeyValueProtocol protocol = recover();
+        assertThat(protocol.getSnapshot()).containsExactly(
+                "key1", "value1",
+                "key2", "value2").inOrder();
+    }
+
+    @Test
+    public void testRecovery_WriteCommand() throws Exception {
+        mPersistence.setSyncPolicy(KeyValuePersistence.SyncPolicy.NEVER, 0);
+        mPersistence.open(mProtocol);
+        int syncs = mFileOps.getSyncCount();
+        KeyValueProtocol.Sender sender = mock(KeyValueProtocol.Sender.class);
+        mProtocol.processLine(sender, "Wkey1:value1");
+        mProtocol.processLine(sender, "Wkey2:value2");
+        assertThat(mFileOps.getSyncCount()).isEqualTo(syncs);
+
+        // Records are written without sync.
+        KeyValueProtocol protocol = recover();
+        assertThat(protocol.getSnapshot()).containsExactly(
+                "key1", "value1",
+                "key2", "value2").inOrder();
+    }
+
+    @Test
+    public void testRecovery_TornTail() throws Exception {
+        mPersistence.setSyncPolicy(KeyValuePersistence.SyncPolicy.EVERY_WRITE, 0);
+        mPersistence.open(mProtocol);
+        mProtocol.putValue("key1", "value1");
+        mProtocol.putValue("key2", "value2");
+
+        // Truncate the last record in the middle.
+        File log = mPersistence.getLogFile(0);
+        byte[] data = mFileOps.readBytes(log);
+        mFileOps.writeBytes(Arrays.copyOf(data, data.length - 3), log);
+
+        // The torn log is replayed up to the torn record.
+        KeyValueProtocol protocol = new KeyValueProtocol(mock(ILogger.class));
+        KeyValuePersistence persistence = new KeyValuePersistence(mock(ILogger.class), mFileOps, mBase);
+        persistence.open(protocol);
+        assertThat(protocol.getSnapshot()).containsExactly("key1", "value1");
+        protocol.putValue("key3", "value3");
+
+        // The recovery writes a new snapshot, normally in the background, and the torn log is
+        // no longer needed. Compacting here waits for any background compaction.
+        persistence.compact();
+        persistence.close();
+        assertThat(mFileOps.isFile(log)).isFalse();
+
+        assertThat(recover().getSnapshot()).containsExactly(
+                "key1", "value1",
+                "key3", "value3").inOrder();
+    }
+
+    @Test
+    public void testIntervalSync() throws Exception {
+        mPersistence.setSyncPolicy(KeyValuePersistence.SyncPolicy.INTERVAL, 10);
+        mPersistence.open(mProtocol);
+        int syncs = mFileOps.getSyncCount();
+        mProtocol.putValue("key1", "value1");
+        mProtocol.putValue("key2", "value2");
+
+        for (int i = 0; i < 100 && mFileOps.getSyncCount() == syncs; i++) {
+            Thread.sleep(10);
+        }
+        assertThat(mFileOps.getSyncCount()).isGreaterThan(syncs);
+        assertThat(recover().getSnapshot()).containsExactly(
+                "key1", "value1",
+                "key2", "value2").inOrder();
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        mPersistence.setSyncPolicy(KeyValuePersistence.SyncPolicy.EVERY_WRITE, 0);
+        mPersistence.setCompactionThreshold(0);
+        mPersistence.open(mProtocol);
+        mProtocol.putValue("key1", "value1");
+        mProtocol.putValue("key2", "value2");
+
+        mPersistence.compact();
+        assertThat(mFileOps.isFile(mPersistence.getLogFile(0))).isFalse();
+        assertThat(mFileOps.isFile(mPersistence.getLogFile(1))).isTrue();
+
+        mProtocol.putValue("key2", null);
+        mProtocol.putValue("key3", "value3");
+
+        // The recovered store is backed by the mapped snapshot with the log changes on top.
+        KeyValueProtocol protocol = recover();
+        assertThat(protocol.getSnapshot()).containsExactly(
+                "key1", "value1",
+                "key3", "value3").inOrder();
+        assertThat(((LayeredMap) protocol.getSnapshot()).getNumChanges()).isEqualTo(2);
+        assertThat(protocol.getValue("key2")).isNull();
+    }
+
+    @Test
+    public void testRecovery_CompactionOnOpen() throws Exception {
+        mPersistence.setSyncPolicy(KeyValuePersistence.SyncPolicy.EVERY_WRITE, 0);
+        mPersistence.setCompactionThreshold(0);
+        mPersistence.open(mProtocol);
+        mProtocol.putValue("key1", "value1");
+        mPersistence.close();
+
+        // Opening with replayed logs writes a new snapshot in the background.
+        KeyValueProtocol protocol = new KeyValueProtocol(mock(ILogger.class));
+        KeyValuePersistence persistence = new KeyValuePersistence(mock(ILogger.class), mFileOps, mBase);
+        persistence.open(protocol);
+        for (int i = 0; i < 100 && !mFileOps.isFile(persistence.getSnapshotFile()); i++) {
+            Thread.sleep(10);
+        }
+        persistence.close();
+        assertThat(mFileOps.isFile(persistence.getSnapshotFile())).isTrue();
+        assertThat(mFileOps.isFile(persistence.getLogFile(0))).isFalse();
+
+        protocol = recover();
+        assertThat(protocol.getSnapshot()).containsExactly("key1", "value1");
+        assertThat(((LayeredMap) protocol.getSnapshot()).getNumChanges()).isEqualTo(0);
+    }
+
+    @Test
+    public void testRecovery_NonEmptyStore() throws Exception {
+        mPersistence.open(mProtocol);
+        mProtocol.putValue("key1", "value1");
+        mProtocol.putValue("key2", "value2");
+        mPersistence.compact();
+        mPersistence.close();
+
+        // Values set before opening are kept unless recovered.
+        KeyValueProtocol protocol = new KeyValueProtocol(mock(ILogger.class));
+        protocol.putValue("key2", "other");
+        protocol.putValue("key3", "value3");
+        KeyValuePersistence persistence = new KeyValuePersistence(mock(ILogger.class), mFileOps, mBase);
+        persistence.open(protocol);
+        persistence.close();
+        assertThat(protocol.getSnapshot()).containsExactly(
+                "key1", "value1",
+                "key2", "value2",
+                "key3", "value3").inOrder();
+    }
+
+    @Test
+    public void testCompaction_Threshold() throws Exception {
+        mPersistence.setSyncPolicy(KeyValuePersistence.SyncPolicy.EVERY_WRITE, 0);
+        mPersistence.setCompactionThreshold(10);
+        mPersistence.open(mProtocol);
+
+        for (int i = 0; i < 25; i++) {
+            mProtocol.putValue("key" + i, "value" + i);
+        }
+        for (int i = 0; i < 100 && mFileOps.isFile(mPersistence.getLogFile(0)); i++) {
+            Thread.sleep(10);
+        }
+        assertThat(mFileOps.isFile(mPersistence.getLogFile(0))).isFalse();
+
+        assertThat(recover().getSnapshot()).isEqualTo(mProtocol.getSnapshot());
+    }
+
+    @Test
+    public void testConcurrentWrites() throws Exception {
+        mPersistence.setSyncPolicy(KeyValuePersistence.SyncPolicy.EVERY_WRITE, 0);
+        mPersistence.setCompactionThreshold(50);
+        mPersistence.open(mProtocol);
+
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final int n = t;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 200; i++) {
+                    mProtocol.putValue("key" + (i % 20), "value" + n + "_" + i);
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        // A background compaction must not run while recovering the files.
+        mPersistence.close();
+
+        // The last record of each key has its latest value, whatever the order of the writers.
+        assertThat(recover().getSnapshot()).isEqualTo(mProtocol.getSnapshot());
+    }
+}
@@ -19,19 +19,25 @@
 package com.alflabs.kv;
 
 import com.alflabs.annotations.NonNull;
+import com.alflabs.annotations.Null;
 import com.alflabs.rx.Schedulers;
+import com.alflabs.utils.FakeClock;
 import com.alflabs.utils.ILogger;
 import com.alflabs.utils.RPair;
 import com.google.common.truth.Truth;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.google.common.truth.Truth.assertThat;
 import static org.mockito.Mockito.mock;
@@ -72,14 +78,14 @@ public class KeyValueProtocolTest {
             }
 
             @Override
-            protected void processRead(@NonNull Sender sender, @NonNull String line) {
-                super.processRead(sender, line);
+            protected void processReadKey(@NonNull Sender sender, @NonNull String key) {
+                super.processReadKey(sender, key);
                 mCounts.put("Read", 1 + mCounts.get("Read"));
             }
 
             @Override
-            protected void processWrite(@NonNull String line) {
-                super.processWrite(line);
+            protected void processWriteKeyValue(@NonNull String key, @Null String value) {
+                super.processWriteKeyValue(key, value);
                 mCounts.put("Write", 1 + mCounts.get("Write"));
             }
         };
@@ -190,6 +196,528 @@ public class KeyValueProtocolTest {
         assertThat(mProtocol.getValue("key 2")).isEqualTo("value 2");
     }
 
+    @Test
+    public void testProcessLineBytes() throws Exception {
+        // Lines are parsed in place from any range of a read buffer.
+        byte[] data = "xx  W clé : välue : 2 \r\nR clé\n".getBytes(StandardCharsets.UTF_8);
+        int end = 0;
+        while (data[end] != '\n') end++;
+        mProtocol.processLine(mSender, data, 2, end);
+        assertThat(mProtocol.getValue("clé")).isEqualTo("välue : 2");
+        assertThat(_readAll()).isEqualTo("[Wclé:välue : 2]");
+
+        int start = end + 1;
+        end = start;
+        while (data[end] != '\n') end++;
+        mProtocol.processLine(mSender, data, start, end);
+        assertThat(_readAll()).isEqualTo("[Wclé:välue : 2]");
+        assertThat(mCounts.toString()).isEqualTo("{Ping=0, Quit=0, Read=1, Write=1}");
+
+        // Keys are canonical instances from the key table.
+        byte[] utf8 = "clé".getBytes(StandardCharsets.UTF_8);
+        String key = mProtocol.getKeyTable().intern(utf8, 0, utf8.length);
+        assertThat(mProtocol.getKeys().iterator().next()).isSameInstanceAs(key);
+        mProtocol.processLine(mSender, "Wclé:other");
+        assertThat(mProtocol.getKeys().iterator().next()).isSameInstanceAs(key);
+        assertThat(_readAll()).isEqualTo("[Wclé:other]");
+
+        // Only written keys are added to the key table, not the ones merely read.
+        int size = mProtocol.getKeyTable().size();
+        mProtocol.processLine(mSender, "R unknown");
+        mProtocol.processLine(mSender, "T unknown:1000");
+        assertThat(mProtocol.getKeyTable().size()).isEqualTo(size);
+        assertThat(_readAll()).isEqualTo("[Wunknown:]");
+        mProtocol.processLine(mSender, "R clé");
+        assertThat(_readAll()).isEqualTo("[Wclé:other]");
+
+        // Empty and blank ranges are ignored.
+        mProtocol.processLine(mSender, data, 0, 0);
+        mProtocol.processLine(mSender, data, 2, 4);
+        assertThat(mCounts.toString()).isEqualTo("{Ping=0, Quit=0, Read=3, Write=2}");
+        assertThat(_readAll()).isEqualTo("[]");
+    }
+
+    @Test
+    public void testFeatureNegotiation() throws Exception {
+        mProtocol.setFeatureEnabled(KeyValueProtocol.FEATURE_BINARY, true);
+        KeyValueProtocol.Sender sender = new KeyValueProtocol.Sender() {
+            @Override
+            public void sendLine(@NonNull String line) {
+                mSent.add(line);
+            }
+
+            @Override
+            protected void sendFrame(@Null String key, @NonNull byte[] frame) {
+                mSent.add("bin:" + FrameCodec.binaryToLine(frame));
+            }
+
+            @Override
+            protected boolean supportsFeature(@NonNull String feature) {
+                return KeyValueProtocol.FEATURE_BINARY.equals(feature);
+            }
+        };
+
+        // Unknown features are not accepted. The Accept line is the last text line sent.
+        mProtocol.processLine(sender, "VJuniorDayModelClient:1:bin,unknown");
+        assertThat(_readAll()).isEqualTo("[VJuniorDayModelAccept:bin]");
+        assertThat(sender.isBinaryOutbound()).isTrue();
+        assertThat(sender.isBinaryInbound()).isFalse();
+
+        sender.sendValue("foo", "multi\nline");
+        sender.sendPingReply("42");
+        assertThat(_readAll()).isEqualTo("[bin:Wfoo:multi\nline, bin:PR42]");
+
+        // The other side's Accept line switches the inbound framing without a second reply.
+        mProtocol.processLine(sender, "VJuniorDayModelAccept:bin");
+        assertThat(_readAll()).isEqualTo("[]");
+        assertThat(sender.isBinaryInbound()).isTrue();
+
+        // Binary frames are decoded without trimming.
+        mProtocol.processFrame(sender, 'W', "foo", " with spaces ");
+        assertThat(mProtocol.getValue("foo")).isEqualTo(" with spaces ");
+        // The change is broadcast via the text mSender in the change listener.
+        assertThat(_readAll()).isEqualTo("[Wfoo: with spaces ]");
+        mProtocol.processFrame(sender, 'R', "foo", "");
+        assertThat(_readAll()).isEqualTo("[bin:Wfoo: with spaces ]");
+        mProtocol.processFrame(sender, 'P', "S", "7");
+        assertThat(_readAll()).isEqualTo("[bin:PR7]");
+        assertThat(mCounts.toString()).isEqualTo("{Ping=1, Quit=0, Read=0, Write=0}");
+
+        // Keys which can't be sent in a text line are ignored.
+        mProtocol.processFrame(sender, 'W', "a:b", "1");
+        mProtocol.processFrame(sender, 'W', "x\nQ", "1");
+        mProtocol.processFrame(sender, 'W', " foo", "1");
+        mProtocol.processFrame(sender, 'T', "foo\r", "1000");
+        mProtocol.processFrame(sender, 'R', "a:b", "");
+        mProtocol.processFrame(sender, 'B', "2", "");
+        mProtocol.processFrame(sender, 'W', "a:b", "2");
+        mProtocol.processFrame(sender, 'W', "bar", "2");
+        assertThat(mProtocol.getSnapshot()).containsExactly("bar", "2", "foo", " with spaces ");
+        assertThat(mProtocol.getTtl("foo")).isEqualTo(-1);
+        assertThat(_readAll()).isEqualTo("[Wbar:2]");
+
+        sender.resetFeatures();
+        assertThat(sender.isBinaryOutbound()).isFalse();
+        assertThat(sender.isBinaryInbound()).isFalse();
+    }
+
+    @Test
+    public void testFeatureNegotiation_NotEnabled() throws Exception {
+        // A sender which does not support binary frames never negotiates them.
+        mProtocol.setFeatureEnabled(KeyValueProtocol.FEATURE_BINARY, true);
+        mProtocol.processLine(mSender, "VJuniorDayModelClient:1:bin");
+        assertThat(_readAll()).isEqualTo("[VJuniorDayModelAccept:]");
+        assertThat(mSender.isBinaryOutbound()).isFalse();
+
+        // Values sent as text lines can't contain EOLs.
+        mSender.sendValue("foo", "multi\r\nline");
+        assertThat(_readAll()).isEqualTo("[Wfoo:multi  line]");
+    }
+
+    @Test
+    public void testFeatureNegotiation_DefaultSendFrame() throws Exception {
+        // A sender which negotiates binary frames without sending them gets them as text lines.
+        mProtocol.setFeatureEnabled(KeyValueProtocol.FEATURE_BINARY, true);
+        KeyValueProtocol.Sender sender = new KeyValueProtocol.Sender() {
+            @Override
+            public void sendLine(@NonNull String line) {
+                mSent.add(line);
+            }
+
+            @Override
+            protected boolean supportsFeature(@NonNull String feature) {
+                return KeyValueProtocol.FEATURE_BINARY.equals(feature);
+            }
+        };
+        mProtocol.processLine(sender, "VJuniorDayModelClient:1:bin");
+        assertThat(sender.isBinaryOutbound()).isTrue();
+        assertThat(_readAll()).isEqualTo("[VJuniorDayModelAccept:bin]");
+
+        sender.sendValue("foo", "multi\nline");
+        sender.sendValue("x\nQ", "1");
+        Map<String, String> batch = new TreeMap<>();
+        batch.put("a", "1");
+        batch.put("b", "2");
+        sender.sendBatch(batch);
+        sender.sendPingReply("42");
+        assertThat(_readAll()).isEqualTo("[Wfoo:multi line, B2\nWa:1\nWb:2, PR42]");
+    }
+
+    @Test
+    public void testIncrementalResync() throws Exception {
+        mProtocol.setFeatureEnabled(KeyValueProtocol.FEATURE_RESYNC, true);
+        mProtocol.setResyncHistorySize(3);
+        KeyValueProtocol.Sender sender = new KeyValueProtocol.Sender() {
+            @Override
+            public void sendLine(@NonNull String line) {
+                mSent.add(line);
+            }
+
+            @Override
+            protected boolean supportsFeature(@NonNull String feature) {
+                return KeyValueProtocol.FEATURE_RESYNC.equals(feature);
+            }
+        };
+
+        mProtocol.putValue("a", "1");
+        mProtocol.putValue("b", "1");
+        assertThat(mProtocol.getSequence()).isEqualTo(2);
+
+        // Sync markers are only sent once negotiated.
+        mProtocol.processLine(sender, "R*");
+        assertThat(_readAll()).isEqualTo("[Wa:1, Wb:1]");
+        mProtocol.processLine(sender, "VJuniorDayModelClient:1:seq");
+        assertThat(_readAll()).isEqualTo("[VJuniorDayModelAccept:seq]");
+        assertThat(sender.isResyncEnabled()).isTrue();
+
+        mProtocol.processLine(sender, "R*");
+        List<String> sent = new ArrayList<>(mSent);
+        assertThat(_readAll()).isEqualTo("[Wa:1, Wb:1, " + sent.get(2) + "]");
+        String marker = sent.get(2);
+        assertThat(marker).endsWith(":2");
+        String epoch = marker.substring(1, marker.indexOf(':'));
+
+        // Only the keys changed since the position are sent, with their latest value.
+        mProtocol.putValue("a", "2");
+        mProtocol.putValue("c", "1");
+        mProtocol.putValue("a", "3");
+        mProtocol.putValue("b", null);
+        mProtocol.processLine(sender, "S" + epoch + ":2");
+        assertThat(_readAll()).isEqualTo("[Wc:1, Wa:3, Wb:, S" + epoch + ":6]");
+        mProtocol.processLine(sender, "S" + epoch + ":5");
+        assertThat(_readAll()).isEqualTo("[Wb:, S" + epoch + ":6]");
+
+        // Pings send the marker only when it has changed.
+        mProtocol.processLine(sender, "PS1");
+        assertThat(_readAll()).isEqualTo("[PR1]");
+        mProtocol.processLine(mSender, "Wd:1");
+        _readAll();
+        mProtocol.processLine(sender, "PS2");
+        assertThat(_readAll()).isEqualTo("[PR2, S" + epoch + ":7]");
+
+        // Positions older than the history, from another epoch or malformed get all the values.
+        mProtocol.putValue("e", "1");
+        mProtocol.processLine(sender, "S" + epoch + ":2");
+        assertThat(_readAll()).isEqualTo("[Wa:3, Wc:1, Wd:1, We:1, S" + epoch + ":8]");
+        mProtocol.processLine(sender, "Sother:8");
+        assertThat(_readAll()).isEqualTo("[Wa:3, Wc:1, Wd:1, We:1, S" + epoch + ":8]");
+        mProtocol.processLine(sender, "S");
+        assertThat(_readAll()).isEqualTo("[Wa:3, Wc:1, Wd:1, We:1, S" + epoch + ":8]");
+        mProtocol.processFrame(sender, 'S', epoch + ":7", "");
+        assertThat(_readAll()).isEqualTo("[We:1, S" + epoch + ":8]");
+    }
+
+    @Test
+    public void testIncrementalResync_Client() throws Exception {
+        mProtocol.setFeatureEnabled(KeyValueProtocol.FEATURE_RESYNC, true);
+        KeyValueProtocol.Sender sender = new KeyValueProtocol.Sender() {
+            @Override
+            public void sendLine(@NonNull String line) {
+                mSent.add(line);
+            }
+
+            @Override
+            protected boolean supportsFeature(@NonNull String feature) {
+                return KeyValueProtocol.FEATURE_RESYNC.equals(feature);
+            }
+        };
+
+        // Markers are ignored till negotiated.
+        mProtocol.processLine(sender, "Sabc:12");
+        assertThat(mProtocol.getSyncPosition()).isNull();
+
+        mProtocol.processLine(sender, "VJuniorDayModelAccept:seq");
+        assertThat(_readAll()).isEqualTo("[VJuniorDayModelAccept:seq]");
+        mProtocol.processLine(sender, "Sabc:12");
+        assertThat(mProtocol.getSyncPosition()).isEqualTo("abc:12");
+        assertThat(_readAll()).isEqualTo("[]");
+
+        sender.requestResync(mProtocol.getSyncPosition());
+        assertThat(_readAll()).isEqualTo("[Sabc:12]");
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        mProtocol.putValue("a", "1");
+        mProtocol.putValue("b", "1");
+        Map<String, String> snapshot = mProtocol.getSnapshot();
+        Set<String> keys = mProtocol.getKeys();
+
+        // Snapshots are not affected by later changes.
+        mProtocol.putValue("a", "2");
+        mProtocol.putValue("b", null);
+        mProtocol.putValue("c", "1");
+        assertThat(snapshot.toString()).isEqualTo("{a=1, b=1}");
+        assertThat(keys.toString()).isEqualTo("[a, b]");
+        assertThat(mProtocol.getSnapshot().toString()).isEqualTo("{a=2, c=1}");
+        assertThat(mProtocol.getKeys().toString()).isEqualTo("[a, c]");
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        List<String> batches = new ArrayList<>();
+        mProtocol.getBatchChangedStream().subscribe(Schedulers.sync(),
+                (stream, keys) -> batches.add(keys + "=" + mProtocol.getSnapshot()));
+        mProtocol.putValue("b", "1");
+
+        // Values are only applied once the whole batch has been received.
+        mProtocol.processLine(mSender, "B3");
+        mProtocol.processLine(mSender, "Wa:1");
+        mProtocol.processLine(mSender, "Wb:1");
+        assertThat(mProtocol.getValue("a")).isNull();
+        mProtocol.processLine(mSender, "Wc:2");
+        assertThat(mProtocol.getSnapshot().toString()).isEqualTo("{a=1, b=1, c=2}");
+        // One batch notification with the changed keys, then one per key.
+        assertThat(batches.toString()).isEqualTo("[[a, c]={a=1, b=1, c=2}]");
+        assertThat(_readAll()).isEqualTo("[Wa:1, Wc:2]");
+        assertThat(mCounts.get("Write")).isEqualTo(0);
+
+        // Single writes are also published as a batch of one.
+        batches.clear();
+        mProtocol.processLine(mSender, "Wa:2");
+        assertThat(batches.toString()).isEqualTo("[[a]={a=2, b=1, c=2}]");
+        assertThat(_readAll()).isEqualTo("[Wa:2]");
+
+        // Another command ends an incomplete batch.
+        batches.clear();
+        mProtocol.processLine(mSender, "B5");
+        mProtocol.processLine(mSender, "Wd:1");
+        mProtocol.processLine(mSender, "We:1");
+        mProtocol.processLine(mSender, "Rd");
+        assertThat(batches.toString()).isEqualTo("[[d, e]={a=2, b=1, c=2, d=1, e=1}]");
+        assertThat(_readAll()).isEqualTo("[Wd:1, We:1, Wd:1]");
+
+        // Binary frames.
+        batches.clear();
+        mProtocol.processFrame(mSender, 'B', "2", "");
+        mProtocol.processFrame(mSender, 'W', "f", "1");
+        mProtocol.processFrame(mSender, 'W', "g", "multi\nline");
+        assertThat(batches.toString()).isEqualTo("[[f, g]={a=2, b=1, c=2, d=1, e=1, f=1, g=multi\nline}]");
+        _readAll();
+    }
+
+    @Test
+    public void testTtl() throws Exception {
+        FakeClock clock = new FakeClock(1000);
+        KeyValueProtocol protocol = new KeyValueProtocol(mock(ILogger.class), clock);
+        List<String> batches = new ArrayList<>();
+        protocol.getBatchChangedStream().subscribe(Schedulers.sync(),
+                (stream, keys) -> batches.add(keys + "=" + protocol.getSnapshot()));
+        assertThat(protocol.expireKeys()).isEqualTo(0);
+
+        protocol.putValue("a", "1");
+        protocol.putValue("b", "1");
+        protocol.putValue("c", "1");
+        protocol.setTtl("a", 500);
+        protocol.processLine(mSender, "Tb:500");
+        protocol.processFrame(mSender, 'T', "c", "2000");
+        protocol.processLine(mSender, "Tc:invalid");
+        assertThat(protocol.getTtl("a")).isEqualTo(500);
+        assertThat(protocol.getTtl("c")).isEqualTo(2000);
+        assertThat(protocol.getTtl("d")).isEqualTo(-1);
+
+        clock.add(400);
+        assertThat(protocol.expireKeys()).isEqualTo(0);
+        // Writing a value does not change the TTL, setting a new TTL refreshes it.
+        protocol.processLine(mSender, "Wa:2");
+        protocol.processLine(mSender, "Tb:500");
+        batches.clear();
+
+        clock.add(100);
+        assertThat(protocol.expireKeys()).isEqualTo(1);
+        assertThat(batches.toString()).isEqualTo("[[a]={b=1, c=1}]");
+        assertThat(protocol.getTtl("a")).isEqualTo(-1);
+
+        // Cancelled TTLs never expire.
+        protocol.processLine(mSender, "Tb:0");
+        clock.add(1500);
+        assertThat(protocol.expireKeys()).isEqualTo(1);
+        assertThat(protocol.getSnapshot().toString()).isEqualTo("{b=1}");
+
+        // Expiring keys which have been removed is not a change.
+        protocol.setTtl("x", 100);
+        protocol.setTtl("y", 100);
+        protocol.putValue("y", "1");
+        batches.clear();
+        clock.add(100);
+        assertThat(protocol.expireKeys()).isEqualTo(1);
+        assertThat(batches.toString()).isEqualTo("[[y]={b=1}]");
+
+        mSender.sendTtl("foo", 1234);
+        assertThat(_readAll()).isEqualTo("[Tfoo:1234]");
+    }
+
+    @Test
+    public void testPutValues() throws Exception {
+        mProtocol.putValue("a", "1");
+        mProtocol.putValue("b", "1");
+        Map<String, String> values = new TreeMap<>();
+        values.put("a", "1");
+        values.put("b", null);
+        values.put("c", "2");
+        Map<String, String> changed = mProtocol.putValues(values, null);
+        assertThat(changed.toString()).isEqualTo("{b=null, c=2}");
+        assertThat(mProtocol.getSnapshot().toString()).isEqualTo("{a=1, c=2}");
+        assertThat(mProtocol.putValues(values)).isFalse();
+
+        mSender.sendBatch(mProtocol.getSnapshot());
+        assertThat(_readAll()).isEqualTo("[B2\nWa:1\nWc:2]");
+    }
+
+    @Test
+    public void testConcurrentWritesAndDumps() throws Exception {
+        KeyValueProtocol protocol = new KeyValueProtocol(mock(ILogger.class));
+        AtomicInteger dumped = new AtomicInteger();
+        KeyValueProtocol.Sender sender = new KeyValueProtocol.Sender() {
+            @Override
+            public void sendLine(@NonNull String line) {
+                dumped.incrementAndGet();
+            }
+        };
+
+        // Dumps iterate the store while it's being modified, without blocking the writers.
+        AtomicBoolean writing = new AtomicBoolean(true);
+        Thread reader = new Thread(() -> {
+            while (writing.get()) {
+                try {
+                    protocol.processLine(sender, "R*");
+                } catch (KeyValueProtocol.QCloseRequestException ignore) {}
+            }
+        });
+        reader.start();
+
+        List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final int t_ = t;
+            Thread writer = new Thread(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    try {
+                        protocol.processLine(sender, "Wkey" + t_ + "_" + i + ":" + i);
+                        protocol.processLine(sender, "Wkey" + t_ + "_" + i + ":" + i);
+                    } catch (KeyValueProtocol.QCloseRequestException ignore) {}
+                }
+            });
+            writer.start();
+            writers.add(writer);
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        writing.set(false);
+        reader.join();
+
+        // Writing the same value twice is a single change.
+        assertThat(protocol.getKeys()).hasSize(4000);
+        assertThat(protocol.getSequence()).isEqualTo(4000);
+        assertThat(protocol.getValue("key3_999")).isEqualTo("999");
+    }
+
+    @Test
+    public void testPartitions() throws Exception {
+        mProtocol.putValue("b", "2");
+        mProtocol.setPartitions(4);
+        assertThat(mProtocol.getPartitions()).isEqualTo(4);
+        assertThat(mProtocol.getValue("b")).isEqualTo("2");
+
+        for (int i = 9; i >= 0; i--) {
+            mProtocol.processLine(mSender, "Wkey" + i + ":" + i);
+        }
+        mProtocol.putValue("a", "1");
+        mProtocol.putValue("key5", null);
+        assertThat(mProtocol.getValue("key3")).isEqualTo("3");
+        assertThat(mProtocol.getValue("key5")).isNull();
+
+        // The keys are spread across the partitions but views of the store are merged and sorted.
+        Set<Integer> partitions = new TreeSet<>();
+        for (String key : mProtocol.getKeys()) {
+            partitions.add(PartitionedMap.indexOf(key, 4));
+        }
+        assertThat(partitions.size()).isGreaterThan(1);
+        assertThat(mProtocol.getKeys()).containsExactly(
+                "a", "b", "key0", "key1", "key2", "key3", "key4", "key6", "key7", "key8", "key9").inOrder();
+        mSent.clear();
+        mProtocol.processLine(mSender, "R*");
+        assertThat(_readAll()).isEqualTo("[Wa:1, Wb:2, Wkey0:0, Wkey1:1, Wkey2:2, Wkey3:3, Wkey4:4, Wkey6:6, Wkey7:7, Wkey8:8, Wkey9:9]");
+
+        // Snapshots are immutable.
+        Map<String, String> snapshot = mProtocol.getSnapshot();
+        mProtocol.putValue("key0", "changed");
+        assertThat(snapshot.get("key0")).isEqualTo("0");
+        assertThat(snapshot).hasSize(11);
+
+        // Back to a single partition.
+        mProtocol.setPartitions(1);
+        assertThat(mProtocol.getKeys()).containsExactlyElementsIn(snapshot.keySet()).inOrder();
+        assertThat(mProtocol.getValue("key0")).isEqualTo("changed");
+    }
+
+    @Test
+    public void testPartitions_ConcurrentBatches() throws Exception {
+        KeyValueProtocol protocol = new KeyValueProtocol(mock(ILogger.class));
+        protocol.setPartitions(4);
+        AtomicInteger batches = new AtomicInteger();
+        protocol.getBatchChangedStream().subscribe(Schedulers.sync(), (stream, keys) -> batches.incrementAndGet());
+        // One batch is published on the stream of a single partition.
+        AtomicInteger partitionBatches = new AtomicInteger();
+        for (int i = 0; i < protocol.getPartitions(); i++) {
+            protocol.getBatchChangedStream(i).subscribe(Schedulers.sync(), (stream, keys) -> partitionBatches.incrementAndGet());
+        }
+
+        // Writers change keys of all the partitions, as single writes and as batches of keys
+        // which must always have the same value. Snapshots never see a partial batch.
+        AtomicBoolean writing = new AtomicBoolean(true);
+        AtomicBoolean consistent = new AtomicBoolean(true);
+        Thread reader = new Thread(() -> {
+            while (writing.get()) {
+                Map<String, String> snapshot = protocol.getSnapshot();
+                for (int t = 0; t < 4; t++) {
+                    String value = snapshot.get("batch" + t + "_0");
+                    for (int k = 1; k < 8; k++) {
+                        if (value != null && !value.equals(snapshot.get("batch" + t + "_" + k))) {
+                            consistent.set(false);
+                        }
+                    }
+                }
+            }
+        });
+        reader.start();
+
+        List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final int t_ = t;
+            // Batches are accumulated by the sender of each connection.
+            KeyValueProtocol.Sender sender = new KeyValueProtocol.Sender() {
+                @Override
+                public void sendLine(@NonNull String line) {}
+            };
+            Thread writer = new Thread(() -> {
+                for (int i = 0; i < 500; i++) {
+                    try {
+                        protocol.processLine(sender, "Wkey" + t_ + "_" + i + ":" + i);
+                        protocol.processLine(sender, "B8");
+                        for (int k = 0; k < 8; k++) {
+                            protocol.processLine(sender, "Wbatch" + t_ + "_" + k + ":" + i);
+                        }
+                    } catch (KeyValueProtocol.QCloseRequestException ignore) {}
+                }
+            });
+            writer.start();
+            writers.add(writer);
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        writing.set(false);
+        reader.join();
+
+        assertThat(consistent.get()).isTrue();
+        assertThat(protocol.getKeys()).hasSize(4 * 500 + 4 * 8);
+        assertThat(protocol.getSequence()).isEqualTo(4 * 500 + 4 * 500 * 8);
+        assertThat(protocol.getValue("batch3_7")).isEqualTo("499");
+        assertThat(batches.get()).isEqualTo(4 * 500 + 4 * 500);
+        assertThat(partitionBatches.get()).isEqualTo(batches.get());
+    }
+
     /** Read all it can from out till it blocks. */
     private String _readAll() {
         try {
@@ -21,21 +21,30 @@ package com.alflabs.kv;
 import com.alflabs.annotations.LargeTest;
 import com.alflabs.annotations.NonNull;
 import com.alflabs.rx.Schedulers;
+import com.alflabs.utils.FakeFileOps;
 import com.alflabs.utils.ILogger;
+import com.alflabs.utils.JavaClock;
 import com.alflabs.utils.RPair;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.InetSocketAddress;
+import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.google.common.truth.Truth.assertThat;
@@ -121,6 +130,159 @@ public class KeyValueServerTest {
 
     @Test
     public void testKeyValueServerTest_Protocol() throws Exception {
+        _testProtocol();
+    }
+
+    @Test
+    public void testKeyValueServerTest_Protocol_SelectorEngine() throws Exception {
+        mServer.setSelectorLoops(2);
+        _testProtocol();
+    }
+
+    @Test
+    public void testKeyValueServerTest_Protocol_Partitions() throws Exception {
+        mServer.setPartitions(4);
+        _testProtocol();
+    }
+
+    @Test
+    public void testKeyValueServerTest_Protocol_Partitions_SelectorEngine() throws Exception {
+        mServer.setPartitions(4);
+        mServer.setSelectorLoops(2);
+        _testProtocol();
+    }
+
+    @Test
+    public void testKeyValueServerTest_SelectorEngine_StartStop() throws Exception {
+        mServer.setSelectorLoops(2);
+        InetSocketAddress address = mServer.start(20005);
+        assertThat(address).isNotNull();
+        assertThat(mServer.isRunning()).isTrue();
+        assertThat(address.getPort()).isNotEqualTo(0);
+
+        // can't start when it's already started
+        assertThat(mServer.start(20005)).isNull();
+
+        mServer.stopSync();
+        assertThat(mServer.isRunning()).isFalse();
+        assertThat(mServer.getNumConnections()).isEqualTo(0);
+    }
+
+    @Test
+    public void testKeyValueServerTest_SelectorEngine_ManyConnections() throws Exception {
+        final int numSockets = 200;
+        mServer.setSelectorLoops(2);
+        InetSocketAddress address = mServer.start(20005);
+        assertThat(address).isNotNull();
+
+        ArrayList<Socket> sockets = new ArrayList<>();
+        ArrayList<BufferedReader> readers = new ArrayList<>();
+        try {
+            for (int i = 0; i < numSockets; i++) {
+                Socket socket = new Socket(address.getAddress(), address.getPort());
+                sockets.add(socket);
+                readers.add(new BufferedReader(new InputStreamReader(socket.getInputStream())));
+            }
+            Thread.sleep(500 /*ms*/);
+            assertThat(mServer.getNumConnections()).isEqualTo(numSockets);
+
+            mServer.putValue("foo", "bar", true /*broadcast*/);
+            for (BufferedReader in : readers) {
+                assertThat(in.readLine()).isEqualTo("VJuniorDayModelServer:1");
+                assertThat(in.readLine()).isEqualTo("Wfoo:bar");
+            }
+        } finally {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+
+        Thread.sleep(500 /*ms*/);
+        assertThat(mServer.getNumConnections()).isEqualTo(0);
+    }
+
+    @Test
+    public void testKeyValueServerTest_SlowConsumerEviction() throws Exception {
+        _testSlowConsumerEviction();
+    }
+
+    @Test
+    public void testKeyValueServerTest_SlowConsumerEviction_SelectorEngine() throws Exception {
+        mServer.setSelectorLoops(1);
+        _testSlowConsumerEviction();
+    }
+
+    private void _testSlowConsumerEviction() throws Exception {
+        final List<String> evicted = Collections.synchronizedList(new ArrayList<>());
+        mServer.setOutboundLimits(
+                100 /*maxLines*/, 0 /*maxBytes*/, KeyValueServer.SlowConsumerPolicy.DISCONNECT, 0);
+        mServer.setOnClientEvicted((clientAddress, policy) -> evicted.add(policy.toString()));
+        InetSocketAddress address = mServer.start(20005);
+        assertThat(address).isNotNull();
+
+        // This client never reads anything.
+        Socket socket = new Socket(address.getAddress(), address.getPort());
+        try {
+            Thread.sleep(100 /*ms*/);
+            assertThat(mServer.getNumConnections()).isEqualTo(1);
+
+            char[] chars = new char[1024];
+            Arrays.fill(chars, 'x');
+            String value = new String(chars);
+            for (int i = 0; i < 100000 && evicted.isEmpty(); i++) {
+                mServer.putValue("key" + i, value, true /*broadcast*/);
+            }
+
+            Thread.sleep(100 /*ms*/);
+            assertThat(evicted.toString()).isEqualTo("[DISCONNECT]");
+            assertThat(mServer.getNumConnections()).isEqualTo(0);
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void testKeyValueServerTest_Subscriptions() throws Exception {
+        InetSocketAddress address = mServer.start(20005);
+        assertThat(address).isNotNull();
+
+        Socket socket1 = new Socket(address.getAddress(), address.getPort());
+        Socket socket2 = new Socket(address.getAddress(), address.getPort());
+        try {
+            BufferedReader in1 = new BufferedReader(new InputStreamReader(socket1.getInputStream()));
+            PrintWriter out1 = new PrintWriter(socket1.getOutputStream());
+            BufferedReader in2 = new BufferedReader(new InputStreamReader(socket2.getInputStream()));
+            assertThat(_readAll(in1)).isEqualTo("[VJuniorDayModelServer:1]");
+            assertThat(_readAll(in2)).isEqualTo("[VJuniorDayModelServer:1]");
+
+            _sendLine(out1, "Fblock.*");
+            _sendLine(out1, "F turnout.? ");
+            Thread.sleep(100 /*ms*/);
+            mServer.putValue("block.1", "on", true /*broadcast*/);
+            mServer.putValue("signal.1", "red", true /*broadcast*/);
+            mServer.putValue("turnout.2", "normal", true /*broadcast*/);
+            mServer.putValue("turnout.10", "normal", true /*broadcast*/);
+            assertThat(_readAll(in1)).isEqualTo("[Wblock.1:on, Wturnout.2:normal]");
+            // Clients without subscriptions get all changes.
+            assertThat(_readAll(in2)).isEqualTo("[Wblock.1:on, Wsignal.1:red, Wturnout.2:normal, Wturnout.10:normal]");
+
+            // Reads are not filtered.
+            _sendLine(out1, "Rsignal.1");
+            assertThat(_readAll(in1)).isEqualTo("[Wsignal.1:red]");
+
+            // Clearing the subscriptions restores all changes.
+            _sendLine(out1, "F");
+            Thread.sleep(100 /*ms*/);
+            mServer.putValue("signal.1", "green", true /*broadcast*/);
+            assertThat(_readAll(in1)).isEqualTo("[Wsignal.1:green]");
+            assertThat(_readAll(in2)).isEqualTo("[Wsignal.1:green]");
+        } finally {
+            socket1.close();
+            socket2.close();
+        }
+    }
+
+    private void _testProtocol() throws Exception {
         InetSocketAddress address = mServer.start(20005);
         assertThat(address).isNotNull();
 
@@ -221,6 +383,62 @@ public class KeyValueServerTest {
 
     }
 
+    @Test
+    public void testKeyValueServerTest_Stats() throws Exception {
+        _testStats();
+    }
+
+    @Test
+    public void testKeyValueServerTest_Stats_SelectorEngine() throws Exception {
+        mServer.setSelectorLoops(1);
+        _testStats();
+    }
+
+    private void _testStats() throws Exception {
+        KeyValueServerStats stats = (KeyValueServerStats) mServer.getStatsListener();
+        InetSocketAddress address = mServer.start(20005);
+        assertThat(address).isNotNull();
+
+        Socket socket1 = new Socket(address.getAddress(), address.getPort());
+        Socket socket2 = new Socket(address.getAddress(), address.getPort());
+        try {
+            BufferedReader in1 = new BufferedReader(new InputStreamReader(socket1.getInputStream()));
+            PrintWriter out1 = new PrintWriter(socket1.getOutputStream());
+            BufferedReader in2 = new BufferedReader(new InputStreamReader(socket2.getInputStream()));
+            assertThat(_readAll(in1)).isEqualTo("[VJuniorDayModelServer:1]");
+            assertThat(_readAll(in2)).isEqualTo("[VJuniorDayModelServer:1]");
+            assertThat(stats.getNumConnections()).isEqualTo(2);
+            assertThat(stats.getLinesTX()).isEqualTo(2);
+
+            _sendLine(out1, "Wfoo:bar");
+            assertThat(_readAll(in1)).isEqualTo("[Wfoo:bar]");
+            assertThat(_readAll(in2)).isEqualTo("[Wfoo:bar]");
+            assertThat(stats.getLinesRX()).isEqualTo(1);
+            assertThat(stats.getRXBytes()).isEqualTo("Wfoo:bar".length() + System.lineSeparator().length());
+            assertThat(stats.getProcessLineTime().getCount()).isEqualTo(1);
+            assertThat(stats.getBroadcastFanOut()).isEqualTo(2);
+            assertThat(stats.getBroadcastTime().getCount()).isEqualTo(1);
+            assertThat(stats.getLinesTX()).isEqualTo(4);
+            assertThat(stats.getWriteDelay().getCount()).isEqualTo(4);
+            assertThat(stats.getTXBytes()).isEqualTo(2 * ("VJuniorDayModelServer:1\n".length() + "Wfoo:bar\n".length()));
+
+            List<KeyValueServer.ConnectionStats> connections = mServer.getConnectionStats();
+            assertThat(connections).hasSize(2);
+            for (KeyValueServer.ConnectionStats connection : connections) {
+                assertThat(connection.getAddress()).isNotNull();
+                assertThat(connection.getQueuedFrames()).isEqualTo(0);
+                assertThat(connection.getHighWater()).isAtLeast(1);
+            }
+        } finally {
+            socket1.close();
+            socket2.close();
+        }
+        for (int i = 0; i < 50 && stats.getNumConnections() > 0; i++) {
+            Thread.sleep(20 /*ms*/);
+        }
+        assertThat(stats.getNumConnections()).isEqualTo(0);
+    }
+
     private void _sendLine(@NonNull PrintWriter out, @NonNull String line) {
         out.println(line);
         out.flush();
@@ -235,4 +453,176 @@ public class KeyValueServerTest {
         }
         return Arrays.toString(lines.toArray());
     }
+
+    @Test
+    public void testKeyValueServerTest_Persistence() throws Exception {
+        FakeFileOps fileOps = new FakeFileOps();
+        File base = new File("/data/kv/server");
+        mServer.setPersistence(new KeyValuePersistence(mock(ILogger.class), fileOps, base));
+        assertThat(mServer.start(20005)).isNotNull();
+        assertThat(mServer.getPersistence().isOpen()).isTrue();
+        mServer.putValue("key1", "value1", true /*broadcast*/);
+        mServer.putValue("key2", "value2", false /*broadcast*/);
+        mServer.stopSync();
+        assertThat(mServer.getPersistence().isOpen()).isFalse();
+
+        // A new server recovers the store on start.
+        mServer = new KeyValueServer(mock(ILogger.class));
+        mServer.setPersistence(new KeyValuePersistence(mock(ILogger.class), fileOps, base));
+        assertThat(mServer.getKeys()).isEmpty();
+        assertThat(mServer.start(20005)).isNotNull();
+        assertThat(mServer.getValue("key1")).isEqualTo("value1");
+        assertThat(mServer.getValue("key2")).isEqualTo("value2");
+    }
+
+    @Test
+    public void testKeyValueServerTest_StartFailed() throws Exception {
+        _testStartFailed();
+    }
+
+    @Test
+    public void testKeyValueServerTest_StartFailed_SelectorEngine() throws Exception {
+        mServer.setSelectorLoops(1);
+        _testStartFailed();
+    }
+
+    private void _testStartFailed() throws Exception {
+        mServer.setPersistence(new KeyValuePersistence(mock(ILogger.class), new FakeFileOps(), new File("/data/kv/server")));
+        mServer.setPrimary(new InetSocketAddress("localhost", 20006));
+
+        // Nothing started before the bind failed is left running.
+        try (ServerSocket socket = new ServerSocket(20005)) {
+            assertThat(mServer.start(20005)).isNull();
+        }
+        assertThat(mServer.getPersistence().isOpen()).isFalse();
+        assertThat(mServer.getReplicationClient()).isNull();
+    }
+
+    @Test
+    public void testKeyValueServerTest_Replica() throws Exception {
+        _testReplica();
+    }
+
+    @Test
+    public void testKeyValueServerTest_Replica_SelectorEngine() throws Exception {
+        mServer.setSelectorLoops(1);
+        _testReplica();
+    }
+
+    private void _testReplica() throws Exception {
+        mServer.setIncrementalResync(100 /*historySize*/);
+        mServer.putValue("foo", "bar", false /*broadcast*/);
+        InetSocketAddress primaryAddress = mServer.start(20005);
+        assertThat(primaryAddress).isNotNull();
+
+        KeyValueServer replica = new KeyValueServer(mock(ILogger.class));
+        replica.setPrimary(primaryAddress);
+        List<String> replicaChanges = new CopyOnWriteArrayList<>();
+        replica.getChangedStream().subscribe(Schedulers.sync(),
+                (stream, key) -> {
+                    assert key != null;
+                    replicaChanges.add(key + "=" + replica.getValue(key));
+                });
+        KeyValueClient client = null;
+        try {
+            InetSocketAddress replicaAddress = replica.start(20006);
+            assertThat(replicaAddress).isNotNull();
+
+            // The replica gets a full copy, then the changes broadcast by the primary.
+            _waitForValue(replica, "foo", "bar");
+            mServer.putValue("key 1", "value 1", true /*broadcast*/);
+            _waitForValue(replica, "key 1", "value 1");
+            assertThat(mServer.getNumConnections()).isEqualTo(1);
+
+            // Clients of the replica read from the copy and their writes go through the primary.
+            client = new KeyValueClient(new JavaClock(), mock(ILogger.class), replicaAddress,
+                    mock(KeyValueClient.IStatsListener.class));
+            assertThat(client.startSync(true /*requestAllKeys*/)).isTrue();
+            assertThat(client.getValue("foo")).isEqualTo("bar");
+            assertThat(client.getValue("key 1")).isEqualTo("value 1");
+            assertThat(replica.getNumConnections()).isEqualTo(1);
+
+            client.putValue("key 2", "value 2", true /*broadcast*/);
+            _waitForValue(mServer, "key 2", "value 2");
+            _waitForValue(replica, "key 2", "value 2");
+
+            // Changes and removals made on the primary reach the clients of the replica.
+            mServer.putValue("key 1", null, true /*broadcast*/);
+            mServer.putValue("foo", "changed", true /*broadcast*/);
+            _waitForValue(replica, "foo", "changed");
+            assertThat(replica.getValue("key 1")).isNull();
+            for (int i = 0; i < 50 && !"changed".equals(client.getValue("foo")); i++) {
+                Thread.sleep(50 /*ms*/);
+            }
+            assertThat(client.getValue("foo")).isEqualTo("changed");
+
+            // The replicated changes are published on the change stream of the replica.
+            assertThat(replicaChanges).containsAtLeast(
+                    "foo=bar",
+                    "key 1=value 1",
+                    "key 2=value 2",
+                    "key 1=null",
+                    "foo=changed").inOrder();
+        } finally {
+            if (client != null) {
+                client.stopSync();
+            }
+            replica.stopSync();
+        }
+        assertThat(replica.getReplicationClient()).isNull();
+    }
+
+    private void _waitForValue(@NonNull KeyValueServer server, @NonNull String key, @NonNull String value)
+            throws InterruptedException {
+        for (int i = 0; i < 50 && !value.equals(server.getValue(key)); i++) {
+            Thread.sleep(50 /*ms*/);
+        }
+        assertThat(server.getValue(key)).isEqualTo(value);
+    }
+
+    @Test
+    public void testKeyValueServerTest_Batch() throws Exception {
+        InetSocketAddress address = mServer.start(20005);
+        assertThat(address).isNotNull();
+
+        Socket socket1 = new Socket(address.getAddress(), address.getPort());
+        Socket socket2 = new Socket(address.getAddress(), address.getPort());
+        try {
+            BufferedReader in1 = new BufferedReader(new InputStreamReader(socket1.getInputStream()));
+            PrintWriter out1 = new PrintWriter(socket1.getOutputStream());
+            BufferedReader in2 = new BufferedReader(new InputStreamReader(socket2.getInputStream()));
+            PrintWriter out2 = new PrintWriter(socket2.getOutputStream());
+            assertThat(_readAll(in1)).isEqualTo("[VJuniorDayModelServer:1]");
+            assertThat(_readAll(in2)).isEqualTo("[VJuniorDayModelServer:1]");
+
+            // A batch from a client is relayed as a batch.
+            _sendLine(out1, "B2");
+            _sendLine(out1, "Wblock.1:on");
+            _sendLine(out1, "Wblock.2:off");
+            assertThat(_readAll(in2)).isEqualTo("[B2, Wblock.1:on, Wblock.2:off]");
+            assertThat(_readAll(in1)).isEqualTo("[B2, Wblock.1:on, Wblock.2:off]");
+            assertThat(mServer.getValue("block.2")).isEqualTo("off");
+
+            // Server batches only contain the changed values.
+            Map<String, String> values = new TreeMap<>();
+            values.put("block.1", "on");
+            values.put("block.2", "on");
+            values.put("block.3", "on");
+            mServer.putValues(values, true /*broadcast*/);
+            assertThat(_readAll(in2)).isEqualTo("[B2, Wblock.2:on, Wblock.3:on]");
+
+            // Subscribed clients only get the part of the batch matching their patterns.
+            _sendLine(out2, "Fblock.3");
+            Thread.sleep(100 /*ms*/);
+            _readAll(in1);
+            values.put("block.1", "off");
+            values.put("block.3", "off");
+            mServer.putValues(values, true /*broadcast*/);
+            assertThat(_readAll(in1)).isEqualTo("[B2, Wblock.1:off, Wblock.3:off]");
+            assertThat(_readAll(in2)).isEqualTo("[Wblock.3:off]");
+        } finally {
+            socket1.close();
+            socket2.close();
+        }
+    }
 }
@@ -0,0 +1,79 @@
+/*
+ * Project: Lib Utils
+ * Copyright (C) 2017 alf.labs gmail com,
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.alflabs.kv;
+
+import org.junit.Test;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testEmpty() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertThat(histogram.getCount()).isEqualTo(0);
+        assertThat(histogram.getP50()).isEqualTo(0);
+        assertThat(histogram.getP99()).isEqualTo(0);
+        assertThat(histogram.getMax()).isEqualTo(0);
+        assertThat(histogram.getMean()).isEqualTo(0);
+    }
+
+    @Test
+    public void testPercentiles() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        assertThat(histogram.getCount()).isEqualTo(1000);
+        assertThat(histogram.getMax()).isEqualTo(1000000);
+        assertThat(histogram.getMean()).isEqualTo(500500);
+        // Percentiles are the end of their bucket, within 1/16th of the exact value.
+        assertThat(histogram.getP50()).isAtLeast(500000L);
+        assertThat(histogram.getP50()).isAtMost(500000L + 500000L / 16);
+        assertThat(histogram.getP99()).isAtLeast(990000L);
+        assertThat(histogram.getP99()).isAtMost(1000000L);
+        assertThat(histogram.getP999()).isAtLeast(999000L);
+        assertThat(histogram.getP999()).isAtMost(1000000L);
+        assertThat(histogram.getPercentile(100)).isEqualTo(1000000);
+
+        histogram.reset();
+        assertThat(histogram.getCount()).isEqualTo(0);
+        assertThat(histogram.getP99()).isEqualTo(0);
+    }
+
+    @Test
+    public void testBuckets() throws Exception {
+        // Small values are exact.
+        for (long value = 0; value < 16; value++) {
+            assertThat(LatencyHistogram.upperBoundOf(LatencyHistogram.bucketOf(value))).isEqualTo(value);
+        }
+        // Any other value falls in a bucket ending at most 1/16th above it.
+        long[] values = { 16, 17, 31, 32, 33, 1000, 123456789L, 1L << 40, Long.MAX_VALUE };
+        int last = -1;
+        for (long value : values) {
+            int bucket = LatencyHistogram.bucketOf(value);
+            assertThat(bucket).isAtLeast(last);
+            last = bucket;
+            long upper = LatencyHistogram.upperBoundOf(bucket);
+            assertThat(upper).isAtLeast(value);
+            assertThat(upper - value).isAtMost(value / 16);
+        }
+        assertThat(LatencyHistogram.upperBoundOf(LatencyHistogram.bucketOf(Long.MAX_VALUE))).isEqualTo(Long.MAX_VALUE);
+    }
+}
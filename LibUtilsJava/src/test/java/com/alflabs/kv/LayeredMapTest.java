@@ -0,0 +1,94 @@
+/*
+ * Project: Lib Utils
+ * Copyright (C) 2017 alf.labs gmail com,
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.alflabs.kv;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class LayeredMapTest {
+
+    @Test
+    public void testWithoutBase() throws Exception {
+        LayeredMap map = LayeredMap.EMPTY.with("b", "1").with("a", "1");
+        assertThat(map.toString()).isEqualTo("{a=1, b=1}");
+        assertThat(map.with("a", "1")).isSameInstanceAs(map);
+        assertThat(map.without("c")).isSameInstanceAs(map);
+        assertThat(map.without("a").toString()).isEqualTo("{b=1}");
+        assertThat(map.getNumChanges()).isEqualTo(2);
+    }
+
+    @Test
+    public void testWithBase() throws Exception {
+        TreeMap<String, String> base = new TreeMap<>();
+        base.put("a", "1");
+        base.put("c", "1");
+        base.put("e", "");
+        LayeredMap map = LayeredMap.onTopOf(MappedSnapshotTest.create(base, 0));
+        assertThat(map.toString()).isEqualTo("{a=1, c=1, e=}");
+        assertThat(map.getNumChanges()).isEqualTo(0);
+        assertThat(map.with("a", "1")).isSameInstanceAs(map);
+        assertThat(map.without("b")).isSameInstanceAs(map);
+
+        LayeredMap map2 = map.with("b", "2").with("c", "2").without("a").without("e");
+        assertThat(map2.toString()).isEqualTo("{b=2, c=2}");
+        assertThat(map2.size()).isEqualTo(2);
+        assertThat(map2.get("a")).isNull();
+        assertThat(map2.containsKey("e")).isFalse();
+        assertThat(new ArrayList<>(map2.keySet()).toString()).isEqualTo("[b, c]");
+        assertThat(map.toString()).isEqualTo("{a=1, c=1, e=}");
+
+        // Removed keys can be set again, including to an empty value.
+        LayeredMap map3 = map2.with("a", "3").with("e", "");
+        assertThat(map3.toString()).isEqualTo("{a=3, b=2, c=2, e=}");
+        // Setting back the base value drops the change.
+        assertThat(map3.with("a", "1").with("c", "1").getNumChanges()).isEqualTo(1);
+    }
+
+    @Test
+    public void testRandomOperations() throws Exception {
+        Random random = new Random(42);
+        TreeMap<String, String> expected = new TreeMap<>();
+        for (int i = 0; i < 1000; i++) {
+            expected.put("key" + random.nextInt(2000), Integer.toString(random.nextInt(5)));
+        }
+        LayeredMap map = LayeredMap.onTopOf(MappedSnapshotTest.create(expected, 0));
+        for (int i = 0; i < 20000; i++) {
+            String key = "key" + random.nextInt(2000);
+            if (random.nextInt(3) == 0) {
+                expected.remove(key);
+                map = map.without(key);
+            } else {
+                String value = Integer.toString(random.nextInt(5));
+                expected.put(key, value);
+                map = map.with(key, value);
+            }
+        }
+        assertThat(map.size()).isEqualTo(expected.size());
+        assertThat(new ArrayList<>(map.entrySet())).isEqualTo(new ArrayList<>(expected.entrySet()));
+        for (int i = 0; i < 2000; i++) {
+            String key = "key" + i;
+            assertThat(map.get(key)).isEqualTo(expected.get(key));
+        }
+    }
+}
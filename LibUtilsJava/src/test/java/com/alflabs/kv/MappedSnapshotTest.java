@@ -0,0 +1,92 @@
+/*
+ * Project: Lib Utils
+ * Copyright (C) 2017 alf.labs gmail com,
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.alflabs.kv;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class MappedSnapshotTest {
+
+    static MappedSnapshot create(Map<String, String> map, int generation) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MappedSnapshot.write(out, map, generation);
+        return MappedSnapshot.open(ByteBuffer.wrap(out.toByteArray()).asReadOnlyBuffer());
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        MappedSnapshot snapshot = create(new TreeMap<>(), 42);
+        assertThat(snapshot.getGeneration()).isEqualTo(42);
+        assertThat(snapshot.isEmpty()).isTrue();
+        assertThat(snapshot.get("foo")).isNull();
+        assertThat(snapshot.keySet()).isEmpty();
+    }
+
+    @Test
+    public void testReadWrite() throws Exception {
+        TreeMap<String, String> expected = new TreeMap<>();
+        for (int i = 0; i < 1000; i++) {
+            expected.put("key" + i, i % 7 == 0 ? "" : "value\n" + i + "é€");
+        }
+        MappedSnapshot snapshot = create(expected, 1);
+
+        assertThat(snapshot.size()).isEqualTo(1000);
+        assertThat(snapshot).isEqualTo(expected);
+        assertThat(new ArrayList<>(snapshot.keySet())).isEqualTo(new ArrayList<>(expected.keySet()));
+        for (String key : expected.keySet()) {
+            assertThat(snapshot.get(key)).isEqualTo(expected.get(key));
+        }
+        assertThat(snapshot.get("key")).isNull();
+        assertThat(snapshot.get("key9999")).isNull();
+        assertThat(snapshot.containsKey("key500")).isTrue();
+        assertThat(snapshot.containsKey("zzz")).isFalse();
+        assertThat(snapshot.keyAt(0)).isEqualTo("key0");
+        assertThat(snapshot.valueAt(1)).isEqualTo(expected.get(snapshot.keyAt(1)));
+    }
+
+    @Test
+    public void testInvalid() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TreeMap<String, String> map = new TreeMap<>();
+        map.put("key", "value");
+        MappedSnapshot.write(out, map, 1);
+        byte[] data = out.toByteArray();
+
+        for (byte[] invalid : new byte[][] {
+                new byte[0],
+                Arrays.copyOf(data, data.length - 1),
+                Arrays.copyOfRange(data, 1, data.length) }) {
+            try {
+                MappedSnapshot.open(ByteBuffer.wrap(invalid));
+                throw new AssertionError("Expected IOException");
+            } catch (IOException expected) {
+                // expected
+            }
+        }
+    }
+}
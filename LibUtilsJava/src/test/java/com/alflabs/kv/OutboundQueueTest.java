@@ -0,0 +1,252 @@
+/*
+ * Project: Lib Utils
+ * Copyright (C) 2017 alf.labs gmail com,
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.alflabs.kv;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class OutboundQueueTest {
+
+    @Test
+    public void testFifo() throws Exception {
+        OutboundQueue queue = new OutboundQueue(false /*conflate*/);
+        assertThat(queue.isConflating()).isFalse();
+        assertThat(queue.poll()).isNull();
+
+        queue.offer("foo", _line("Wfoo:1"));
+        queue.offer(null, _line("PR1"));
+        queue.offer("foo", _line("Wfoo:2"));
+        assertThat(queue.size()).isEqualTo(3);
+
+        assertThat(_pollAll(queue)).isEqualTo("[Wfoo:1, PR1, Wfoo:2]");
+        assertThat(queue.isEmpty()).isTrue();
+    }
+
+    @Test
+    public void testConflating() throws Exception {
+        OutboundQueue queue = new OutboundQueue(true /*conflate*/);
+        assertThat(queue.isConflating()).isTrue();
+
+        queue.offer("foo", _line("Wfoo:1"));
+        queue.offer("bar", _line("Wbar:1"));
+        queue.offer(null, _line("PR1"));
+        queue.offer(null, _line("PR1"));
+        for (int i = 2; i <= 1000; i++) {
+            queue.offer("foo", _line("Wfoo:" + i));
+        }
+        queue.offer("bar", _line("Wbar:2"));
+        assertThat(queue.size()).isEqualTo(4);
+
+        // The latest value replaces the pending one in place; non-value lines are never conflated.
+        assertThat(_pollAll(queue)).isEqualTo("[Wfoo:1000, Wbar:2, PR1, PR1]");
+
+        // Once polled, a key is queued again at the end.
+        queue.offer("foo", _line("Wfoo:1"));
+        queue.offer("bar", _line("Wbar:1"));
+        assertThat(_string(queue.poll())).isEqualTo("Wfoo:1");
+        queue.offer("foo", _line("Wfoo:2"));
+        queue.offer("bar", _line("Wbar:2"));
+        assertThat(_pollAll(queue)).isEqualTo("[Wbar:2, Wfoo:2]");
+    }
+
+    @Test
+    public void testConflating_Batch() throws Exception {
+        OutboundQueue queue = new OutboundQueue(true /*conflate*/);
+        queue.offer("foo", _line("Wfoo:1"));
+        queue.offer("bar", _line("Wbar:1"));
+        queue.offerBatch(Arrays.asList("foo", "baz"), _line("B2\nWfoo:2\nWbaz:2"));
+
+        // A newer value of a batch key is queued after the batch, never before it.
+        queue.offer("foo", _line("Wfoo:3"));
+        queue.offer("foo", _line("Wfoo:4"));
+        queue.offer("bar", _line("Wbar:3"));
+        assertThat(_pollAll(queue)).isEqualTo("[Wfoo:1, Wbar:3, B2\nWfoo:2\nWbaz:2, Wfoo:4]");
+
+        // Polling the older value does not stop the conflation of the newer one.
+        queue.offer("foo", _line("Wfoo:5"));
+        queue.offerBatch(Arrays.asList("foo"), _line("B1\nWfoo:6"));
+        queue.offer("foo", _line("Wfoo:7"));
+        assertThat(_string(queue.poll())).isEqualTo("Wfoo:5");
+        queue.offer("foo", _line("Wfoo:8"));
+        assertThat(_pollAll(queue)).isEqualTo("[B1\nWfoo:6, Wfoo:8]");
+    }
+
+    @Test
+    public void testClear() throws Exception {
+        OutboundQueue queue = new OutboundQueue(true /*conflate*/);
+        queue.offer("foo", _line("Wfoo:1"));
+        queue.clear();
+        assertThat(queue.isEmpty()).isTrue();
+        queue.offer("foo", _line("Wfoo:2"));
+        assertThat(_pollAll(queue)).isEqualTo("[Wfoo:2]");
+    }
+
+    @Test
+    public void testPollTimeout() throws Exception {
+        OutboundQueue queue = new OutboundQueue(false /*conflate*/);
+        assertThat(queue.poll(10, TimeUnit.MILLISECONDS)).isNull();
+
+        Thread t = new Thread(() -> queue.offer(null, _line("Q")));
+        t.start();
+        assertThat(_string(queue.poll(5, TimeUnit.SECONDS))).isEqualTo("Q");
+        t.join();
+    }
+
+    @Test
+    public void testHighWater() throws Exception {
+        OutboundQueue queue = new OutboundQueue(true /*conflate*/);
+        assertThat(queue.getHighWater()).isEqualTo(0);
+        long before = System.nanoTime();
+        queue.offer("foo", _line("Wfoo:1"));
+        queue.offer("bar", _line("Wbar:1"));
+        // Conflated values don't add frames.
+        queue.offer("foo", _line("Wfoo:2"));
+        assertThat(queue.getHighWater()).isEqualTo(2);
+
+        assertThat(_string(queue.poll())).isEqualTo("Wfoo:2");
+        assertThat(queue.getLastPolledNanos()).isAtLeast(before);
+        assertThat(queue.getLastPolledNanos()).isAtMost(System.nanoTime());
+        queue.poll();
+        queue.offer(null, _line("Q"));
+        assertThat(queue.size()).isEqualTo(1);
+        assertThat(queue.getHighWater()).isEqualTo(2);
+    }
+
+    @Test
+    public void testLimit_Disconnect() throws Exception {
+        OutboundQueue queue = new OutboundQueue(
+                false /*conflate*/, 2 /*maxLines*/, 0 /*maxBytes*/, KeyValueServer.SlowConsumerPolicy.DISCONNECT, 0);
+        assertThat(queue.offer(null, _line("PR1"))).isTrue();
+        assertThat(queue.offer(null, _line("PR2"))).isTrue();
+        assertThat(queue.isEvicted()).isFalse();
+
+        assertThat(queue.offer(null, _line("PR3"))).isFalse();
+        assertThat(queue.isEvicted()).isTrue();
+        assertThat(queue.isEmpty()).isTrue();
+
+        // An evicted queue refuses everything.
+        assertThat(queue.offer(null, _line("PR4"))).isFalse();
+        assertThat(queue.poll()).isNull();
+    }
+
+    @Test
+    public void testLimit_DropOldest() throws Exception {
+        OutboundQueue queue = new OutboundQueue(
+                true /*conflate*/, 0 /*maxLines*/, 24 /*maxBytes*/, KeyValueServer.SlowConsumerPolicy.DROP_OLDEST, 0);
+        assertThat(queue.offer("a", _line("Wa:1"))).isTrue();
+        assertThat(queue.offer("b", _line("Wb:1"))).isTrue();
+        assertThat(queue.offer("c", _line("Wc:1"))).isTrue();
+        assertThat(queue.offer("d", _line("Wd:1"))).isTrue();
+        assertThat(queue.sizeBytes()).isEqualTo(20);
+        assertThat(queue.hasDropped()).isFalse();
+
+        assertThat(queue.offer("e", _line("We:1"))).isTrue();
+        assertThat(queue.offer("f", _line("Wf:1"))).isTrue();
+        assertThat(queue.isEvicted()).isFalse();
+        assertThat(queue.hasDropped()).isTrue();
+        assertThat(queue.sizeBytes()).isEqualTo(20);
+
+        // The dropped keys are no longer pending and can be queued again.
+        assertThat(queue.offer("a", _line("Wa:2"))).isTrue();
+        assertThat(_pollAll(queue)).isEqualTo("[Wd:1, We:1, Wf:1, Wa:2]");
+        assertThat(queue.sizeBytes()).isEqualTo(0);
+
+        // A single line larger than the limit is always accepted.
+        assertThat(queue.offer(null, _line("PR this is a fairly long ping reply"))).isTrue();
+        assertThat(queue.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void testLimit_DropOldest_KeepsControlFrames() throws Exception {
+        OutboundQueue queue = new OutboundQueue(
+                true /*conflate*/, 4 /*maxLines*/, 0 /*maxBytes*/, KeyValueServer.SlowConsumerPolicy.DROP_OLDEST, 0);
+        assertThat(queue.offer(null, _line("VJuniorDayModelAccept:bin"))).isTrue();
+        assertThat(queue.offer("a", _line("Wa:1"))).isTrue();
+        assertThat(queue.offer(null, _line("PR1"))).isTrue();
+        assertThat(queue.offer("b", _line("Wb:1"))).isTrue();
+
+        // Only the value frames make room.
+        assertThat(queue.offer("c", _line("Wc:1"))).isTrue();
+        assertThat(queue.offer(null, _line("PR2"))).isTrue();
+        assertThat(queue.hasDropped()).isTrue();
+        assertThat(queue.size()).isEqualTo(4);
+
+        assertThat(queue.offer(null, _line("PR3"))).isTrue();
+        assertThat(queue.size()).isEqualTo(4);
+
+        // Once only control frames remain, new frames go over the limit.
+        assertThat(queue.offer("d", _line("Wd:1"))).isTrue();
+        assertThat(queue.isEvicted()).isFalse();
+        assertThat(queue.size()).isEqualTo(5);
+        assertThat(_pollAll(queue)).isEqualTo("[VJuniorDayModelAccept:bin, PR1, PR2, PR3, Wd:1]");
+    }
+
+    @Test
+    public void testLimit_Block() throws Exception {
+        OutboundQueue queue = new OutboundQueue(
+                false /*conflate*/, 1 /*maxLines*/, 0 /*maxBytes*/, KeyValueServer.SlowConsumerPolicy.BLOCK, 5000);
+        assertThat(queue.offer(null, _line("PR1"))).isTrue();
+
+        Thread t = new Thread(() -> {
+            try {
+                Thread.sleep(50 /*ms*/);
+            } catch (InterruptedException ignore) {}
+            queue.poll();
+        });
+        t.start();
+        // Blocks till the other thread polls.
+        assertThat(queue.offer(null, _line("PR2"))).isTrue();
+        t.join();
+        assertThat(_pollAll(queue)).isEqualTo("[PR2]");
+    }
+
+    @Test
+    public void testLimit_BlockTimeout() throws Exception {
+        OutboundQueue queue = new OutboundQueue(
+                false /*conflate*/, 1 /*maxLines*/, 0 /*maxBytes*/, KeyValueServer.SlowConsumerPolicy.BLOCK, 20);
+        assertThat(queue.offer(null, _line("PR1"))).isTrue();
+        assertThat(queue.offer(null, _line("PR2"))).isFalse();
+        assertThat(queue.isEvicted()).isTrue();
+    }
+
+    private static byte[] _line(String line) {
+        return FrameCodec.encodeLine(line);
+    }
+
+    private static String _string(byte[] frame) {
+        // Strips the EOL added by _line.
+        return new String(frame, 0, frame.length - 1, StandardCharsets.UTF_8);
+    }
+
+    private static String _pollAll(OutboundQueue queue) {
+        List<String> lines = new ArrayList<>();
+        byte[] frame;
+        while ((frame = queue.poll()) != null) {
+            lines.add(_string(frame));
+        }
+        return lines.toString();
+    }
+}
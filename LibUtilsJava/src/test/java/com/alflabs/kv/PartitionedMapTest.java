@@ -0,0 +1,76 @@
+/*
+ * Project: Lib Utils
+ * Copyright (C) 2017 alf.labs gmail com,
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.alflabs.kv;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class PartitionedMapTest {
+
+    @Test
+    public void testMerge() throws Exception {
+        List<Map<String, String>> maps = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            maps.add(LayeredMap.EMPTY);
+        }
+        for (String key : new String[] { "d", "a", "c", "e", "b" }) {
+            int index = PartitionedMap.indexOf(key, maps.size());
+            maps.set(index, ((LayeredMap) maps.get(index)).with(key, key + "1"));
+        }
+
+        PartitionedMap map = new PartitionedMap(maps);
+        assertThat(map.toString()).isEqualTo("{a=a1, b=b1, c=c1, d=d1, e=e1}");
+        assertThat(map.size()).isEqualTo(5);
+        assertThat(map.get("c")).isEqualTo("c1");
+        assertThat(map.get("f")).isNull();
+        assertThat(map.containsKey("e")).isTrue();
+        assertThat(new ArrayList<>(map.keySet()).toString()).isEqualTo("[a, b, c, d, e]");
+        assertThat(new PartitionedMap(Arrays.<Map<String, String>>asList(LayeredMap.EMPTY, LayeredMap.EMPTY))).isEmpty();
+    }
+
+    @Test
+    public void testRandom() throws Exception {
+        Random random = new Random(42);
+        TreeMap<String, String> expected = new TreeMap<>();
+        List<Map<String, String>> maps = new ArrayList<>();
+        for (int i = 0; i < 7; i++) {
+            maps.add(new TreeMap<>());
+        }
+        for (int i = 0; i < 1000; i++) {
+            String key = "key" + random.nextInt(5000);
+            expected.put(key, Integer.toString(i));
+            maps.get(PartitionedMap.indexOf(key, maps.size())).put(key, Integer.toString(i));
+        }
+
+        PartitionedMap map = new PartitionedMap(maps);
+        assertThat(map).isEqualTo(expected);
+        assertThat(new ArrayList<>(map.entrySet())).isEqualTo(new ArrayList<>(expected.entrySet()));
+        for (Map<String, String> partition : maps) {
+            assertThat(partition).isNotEmpty();
+        }
+    }
+}
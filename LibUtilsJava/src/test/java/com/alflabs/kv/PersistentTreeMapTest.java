@@ -0,0 +1,99 @@
+/*
+ * Project: Lib Utils
+ * Copyright (C) 2017 alf.labs gmail com,
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.alflabs.kv;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class PersistentTreeMapTest {
+
+    @Test
+    public void testEmpty() throws Exception {
+        PersistentTreeMap map = PersistentTreeMap.EMPTY;
+        assertThat(map.isEmpty()).isTrue();
+        assertThat(map.size()).isEqualTo(0);
+        assertThat(map.get("foo")).isNull();
+        assertThat(map.keySet()).isEmpty();
+        assertThat(map.without("foo")).isSameInstanceAs(map);
+    }
+
+    @Test
+    public void testWithWithout() throws Exception {
+        PersistentTreeMap map1 = PersistentTreeMap.EMPTY.with("b", "1").with("a", "1").with("c", "1");
+        assertThat(map1.toString()).isEqualTo("{a=1, b=1, c=1}");
+        assertThat(new ArrayList<>(map1.keySet()).toString()).isEqualTo("[a, b, c]");
+        assertThat(map1.containsKey("b")).isTrue();
+        assertThat(map1.keySet().contains("d")).isFalse();
+
+        // Setting the same value or removing a missing key returns the same map.
+        assertThat(map1.with("b", "1")).isSameInstanceAs(map1);
+        assertThat(map1.without("d")).isSameInstanceAs(map1);
+
+        // Existing maps are snapshots which are never modified.
+        PersistentTreeMap map2 = map1.with("b", "2").without("a");
+        assertThat(map2.toString()).isEqualTo("{b=2, c=1}");
+        assertThat(map1.toString()).isEqualTo("{a=1, b=1, c=1}");
+        assertThat(map2.without("b").without("c")).isSameInstanceAs(PersistentTreeMap.EMPTY);
+
+        // Equality follows the Map contract.
+        Map<String, String> expected = new TreeMap<>();
+        expected.put("c", "1");
+        expected.put("b", "2");
+        assertThat(map2).isEqualTo(expected);
+        assertThat(map2.hashCode()).isEqualTo(expected.hashCode());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testReadOnly() throws Exception {
+        PersistentTreeMap.EMPTY.with("a", "1").put("b", "2");
+    }
+
+    @Test
+    public void testRandomOperations() throws Exception {
+        Random random = new Random(42);
+        TreeMap<String, String> expected = new TreeMap<>();
+        PersistentTreeMap map = PersistentTreeMap.EMPTY;
+        for (int i = 0; i < 20000; i++) {
+            String key = "key" + random.nextInt(2000);
+            if (random.nextInt(3) == 0) {
+                expected.remove(key);
+                map = map.without(key);
+            } else {
+                String value = Integer.toString(random.nextInt(5));
+                expected.put(key, value);
+                map = map.with(key, value);
+            }
+        }
+        assertThat(map.size()).isEqualTo(expected.size());
+        assertThat(new ArrayList<>(map.entrySet())).isEqualTo(new ArrayList<>(expected.entrySet()));
+        for (String key : expected.keySet()) {
+            assertThat(map.get(key)).isEqualTo(expected.get(key));
+        }
+
+        // An AVL tree is at most ~1.44 log2(n) high.
+        int maxHeight = (int) Math.ceil(1.45 * Math.log(expected.size() + 2) / Math.log(2));
+        assertThat(map.height()).isAtMost(maxHeight);
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Project: Lib Utils
+ * Copyright (C) 2017 alf.labs gmail com,
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.alflabs.kv;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class SubscriptionTrieTest {
+
+    @Test
+    public void testGlobMatches() throws Exception {
+        assertThat(SubscriptionTrie.globMatches("foo", "foo")).isTrue();
+        assertThat(SubscriptionTrie.globMatches("foo", "foobar")).isFalse();
+        assertThat(SubscriptionTrie.globMatches("foo*", "foo")).isTrue();
+        assertThat(SubscriptionTrie.globMatches("foo*", "foobar")).isTrue();
+        assertThat(SubscriptionTrie.globMatches("*bar", "foobar")).isTrue();
+        assertThat(SubscriptionTrie.globMatches("*bar", "foobarz")).isFalse();
+        assertThat(SubscriptionTrie.globMatches("f?o", "foo")).isTrue();
+        assertThat(SubscriptionTrie.globMatches("f?o", "fo")).isFalse();
+        assertThat(SubscriptionTrie.globMatches("a*b*c", "aXbYbZc")).isTrue();
+        assertThat(SubscriptionTrie.globMatches("a*b*c", "aXbYbZ")).isFalse();
+        assertThat(SubscriptionTrie.globMatches("*", "")).isTrue();
+        assertThat(SubscriptionTrie.globMatches("**", "anything")).isTrue();
+    }
+
+    @Test
+    public void testCollect() throws Exception {
+        SubscriptionTrie<String> trie = new SubscriptionTrie<>();
+        trie.add("block.*", "A");
+        trie.add("block.1", "B");
+        trie.add("block.?.state", "C");
+        trie.add("*.state", "D");
+        trie.add("turnout.*", "E");
+        // Multiple matching patterns of the same target only collect it once.
+        trie.add("block.1*", "A");
+        assertThat(trie.size()).isEqualTo(6);
+
+        assertThat(_collect(trie, "block.1")).isEqualTo("[A, B]");
+        assertThat(_collect(trie, "block.12")).isEqualTo("[A]");
+        assertThat(_collect(trie, "block.2.state")).isEqualTo("[D, A, C]");
+        assertThat(_collect(trie, "turnout.1")).isEqualTo("[E]");
+        assertThat(_collect(trie, "block")).isEqualTo("[]");
+        assertThat(_collect(trie, "signal.1")).isEqualTo("[]");
+    }
+
+    private String _collect(SubscriptionTrie<String> trie, String key) {
+        List<String> out = new ArrayList<>();
+        trie.collect(key, out);
+        return out.toString();
+    }
+}
@@ -25,6 +25,7 @@ import org.junit.Test;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Writer;
 
 import static com.alflabs.utils.AssertException.assertException;
@@ -92,6 +93,53 @@ public class FakeFileOpsTest {
         assertThat(mOps.readBytes(f)).isEqualTo("Third part".getBytes(Charsets.UTF_8));
     }
 
+    @Test
+    public void testOpenOutputStream() throws IOException {
+        File f = new File("some_file");
+        FakeFileOps ops = (FakeFileOps) mOps;
+
+        try (OutputStream out = mOps.openOutputStream(f, false /* append */)) {
+            out.write("First ".getBytes(Charsets.UTF_8));
+            // Content is available before sync/close.
+            assertThat(mOps.readBytes(f)).isEqualTo("First ".getBytes(Charsets.UTF_8));
+            mOps.sync(out);
+        }
+        assertThat(ops.getSyncCount()).isEqualTo(1);
+
+        // Write-append
+        try (OutputStream out = mOps.openOutputStream(f, true /* append */)) {
+            out.write("Second".getBytes(Charsets.UTF_8));
+        }
+        assertThat(mOps.readBytes(f)).isEqualTo("First Second".getBytes(Charsets.UTF_8));
+
+        // Write-replace
+        try (OutputStream out = mOps.openOutputStream(f, false /* append */)) {
+            assertThat(mOps.readBytes(f)).isEmpty();
+            out.write("Third".getBytes(Charsets.UTF_8));
+        }
+        assertThat(mOps.readBytes(f)).isEqualTo("Third".getBytes(Charsets.UTF_8));
+    }
+
+    @Test
+    public void testRenameDelete() throws Exception {
+        File f1 = new File("file1");
+        File f2 = new File("file2");
+
+        assertException(
+                FileNotFoundException.class,
+                () -> mOps.rename(f1, f2));
+
+        mOps.writeBytes("Content".getBytes(Charsets.UTF_8), f1);
+        mOps.writeBytes("Replaced".getBytes(Charsets.UTF_8), f2);
+        mOps.rename(f1, f2);
+        assertThat(mOps.isFile(f1)).isFalse();
+        assertThat(mOps.readBytes(f2)).isEqualTo("Content".getBytes(Charsets.UTF_8));
+
+        assertThat(mOps.delete(f1)).isFalse();
+        assertThat(mOps.delete(f2)).isTrue();
+        assertThat(mOps.isFile(f2)).isFalse();
+    }
+
     @Test
     public void testToFile() {
         assertThat(mOps.toFile("name")).isEqualTo(new File("name"));